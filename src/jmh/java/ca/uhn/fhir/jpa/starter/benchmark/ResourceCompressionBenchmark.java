@@ -0,0 +1,190 @@
+package ca.uhn.fhir.jpa.starter.benchmark;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.storage.ResourceTextCompressor;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.ContactPoint;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Weighs the storage saved by <code>hapi.fhir.resource_compression_enabled</code> against its CPU cost.
+ * <p>
+ * <code>compress</code> and <code>decompress</code> time the codecs alone on typical Patient and
+ * Observation JSON: the gzip HAPI stores resources with by default, plain deflate, and deflate with the
+ * dictionary of the resource type. The <code>storedPercent</code> counter gives the stored size as a
+ * percentage of the JSON. <code>create</code> and <code>read</code> time the same through the server,
+ * with the compression disabled and enabled.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class ResourceCompressionBenchmark {
+
+	public enum Codec {
+		GZIP, DEFLATE, DEFLATE_DICTIONARY
+	}
+
+	@State(Scope.Benchmark)
+	public static class CodecState {
+
+		@Param({"GZIP", "DEFLATE", "DEFLATE_DICTIONARY"})
+		public Codec codec;
+
+		private final List<byte[]> myTexts = new ArrayList<>();
+		private final List<byte[]> myStored = new ArrayList<>();
+		private ResourceTextCompressor myCompressor;
+		private long myTextBytes;
+		private long myStoredBytes;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			FhirContext ctx = FhirContext.forR4Cached();
+			myCompressor = new ResourceTextCompressor(ctx, 6, codec == Codec.DEFLATE_DICTIONARY);
+			for (int i = 0; i < 100; i++) {
+				myTexts.add(ctx.newJsonParser().encodeResourceToString(newPatient(i)).getBytes(StandardCharsets.UTF_8));
+				myTexts.add(ctx.newJsonParser().encodeResourceToString(newObservation(i)).getBytes(StandardCharsets.UTF_8));
+			}
+			for (byte[] text : myTexts) {
+				byte[] stored = compress(text);
+				myStored.add(stored);
+				myTextBytes += text.length;
+				myStoredBytes += stored.length;
+			}
+		}
+
+		byte[] compress(byte[] theText) {
+			if (codec == Codec.GZIP) {
+				ByteArrayOutputStream retVal = new ByteArrayOutputStream(theText.length);
+				try (GZIPOutputStream gzip = new GZIPOutputStream(retVal)) {
+					gzip.write(theText);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				return retVal.toByteArray();
+			}
+			return myCompressor.compress(theText);
+		}
+
+		byte[] decompress(byte[] theStored) {
+			if (codec == Codec.GZIP) {
+				try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(theStored))) {
+					return gzip.readAllBytes();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			return myCompressor.decompress(theStored);
+		}
+	}
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Sizes {
+
+		public double storedPercent;
+	}
+
+	@State(Scope.Thread)
+	public static class Cursor {
+
+		private int myNext;
+
+		int next(int theSize) {
+			myNext = (myNext + 1) % theSize;
+			return myNext;
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class ServerState extends StarterServerState {
+
+		@Param({"false", "true"})
+		public boolean compression;
+
+		private IIdType myObservationId;
+
+		@Override
+		protected List<String> getStateProperties() {
+			return List.of("hapi.fhir.resource_compression_enabled=" + compression);
+		}
+
+		@Setup(Level.Trial)
+		public void createObservation() {
+			myObservationId = getClient().create().resource(newObservation(0)).execute().getId().toUnqualifiedVersionless();
+		}
+	}
+
+	@Benchmark
+	public byte[] compress(CodecState theState, Cursor theCursor, Sizes theSizes) {
+		theSizes.storedPercent = 100.0 * theState.myStoredBytes / theState.myTextBytes;
+		return theState.compress(theState.myTexts.get(theCursor.next(theState.myTexts.size())));
+	}
+
+	@Benchmark
+	public byte[] decompress(CodecState theState, Cursor theCursor) {
+		return theState.decompress(theState.myStored.get(theCursor.next(theState.myStored.size())));
+	}
+
+	@Benchmark
+	@Threads(4)
+	public IIdType create(ServerState theState, Cursor theCursor) {
+		return theState.getClient().create().resource(newObservation(theCursor.next(1000))).execute().getId();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Observation read(ServerState theState) {
+		return theState.getClient().read().resource(Observation.class).withId(theState.myObservationId).execute();
+	}
+
+	private static Patient newPatient(int theIndex) {
+		Patient patient = new Patient();
+		patient.addIdentifier().setSystem("http://hospital.example.org/mrn").setValue("MRN" + theIndex);
+		patient.setActive(true);
+		patient.addName().setFamily("Family" + theIndex).addGiven("Given" + theIndex);
+		patient.setGender(theIndex % 2 == 0 ? Enumerations.AdministrativeGender.FEMALE : Enumerations.AdministrativeGender.MALE);
+		patient.addTelecom().setSystem(ContactPoint.ContactPointSystem.PHONE).setValue("555-01" + theIndex);
+		patient.addAddress().addLine(theIndex + " Main Street").setCity("Springfield").setPostalCode("12345").setCountry("US");
+		return patient;
+	}
+
+	private static Observation newObservation(int theIndex) {
+		Observation observation = new Observation();
+		observation.setStatus(Observation.ObservationStatus.FINAL);
+		observation.getCategoryFirstRep().addCoding().setSystem("http://terminology.hl7.org/CodeSystem/observation-category").setCode("vital-signs").setDisplay("Vital Signs");
+		observation.getCode().addCoding().setSystem("http://loinc.org").setCode("8867-4").setDisplay("Heart rate");
+		observation.getSubject().setReference("Patient/" + theIndex);
+		observation.setValue(new Quantity().setValue(60 + theIndex % 40).setUnit("beats/minute").setSystem("http://unitsofmeasure.org").setCode("/min"));
+		return observation;
+	}
+}
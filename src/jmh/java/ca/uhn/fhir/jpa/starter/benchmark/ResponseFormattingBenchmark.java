@@ -0,0 +1,105 @@
+package ca.uhn.fhir.jpa.starter.benchmark;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Quantity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what indenting responses costs on large Bundles, as saved by <code>hapi.fhir.machine_client_formatting_enabled</code>.
+ * <p>
+ * <code>serialize</code> times the JSON parser alone on a Bundle of {@link StarterServerState#OBSERVATION_COUNT}
+ * Observations, pretty printed and not. <code>search</code> fetches the same number of Observations from the
+ * server as a machine client, with <code>default_pretty_print</code> on and the machine client formatting off
+ * and on.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class ResponseFormattingBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class BundleState {
+
+		@Param({"true", "false"})
+		public boolean prettyPrint;
+
+		private FhirContext myFhirContext;
+		private Bundle myBundle;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			myFhirContext = FhirContext.forR4Cached();
+			myBundle = new Bundle();
+			myBundle.setType(Bundle.BundleType.SEARCHSET);
+			for (int i = 0; i < StarterServerState.OBSERVATION_COUNT; i++) {
+				Observation observation = new Observation();
+				observation.setId("Observation/" + i);
+				observation.setStatus(Observation.ObservationStatus.FINAL);
+				observation.getCode().addCoding().setSystem("http://loinc.org").setCode("8867-4").setDisplay("Heart rate");
+				observation.getSubject().setReference("Patient/1");
+				observation.setValue(new Quantity().setValue(60 + (i % 40)).setUnit("beats/minute").setSystem("http://unitsofmeasure.org").setCode("/min"));
+				myBundle.addEntry().setFullUrl("http://localhost/fhir/Observation/" + i).setResource(observation);
+			}
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class ServerState extends StarterServerState {
+
+		@Param({"false", "true"})
+		public boolean machineClientFormatting;
+
+		private HttpClient myHttpClient;
+
+		@Override
+		protected List<String> getStateProperties() {
+			return List.of(
+				"hapi.fhir.default_pretty_print=true",
+				"hapi.fhir.machine_client_formatting_enabled=" + machineClientFormatting
+			);
+		}
+
+		@Setup(Level.Trial)
+		public void createHttpClient() {
+			myHttpClient = HttpClient.newHttpClient();
+		}
+	}
+
+	@Benchmark
+	public String serialize(BundleState theState) {
+		return theState.myFhirContext.newJsonParser().setPrettyPrint(theState.prettyPrint).encodeResourceToString(theState.myBundle);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public byte[] search(ServerState theState) throws Exception {
+		HttpRequest request = HttpRequest.newBuilder(URI.create(theState.getServerBase() + "/Observation?subject=" + theState.getPatientId() + "&_count=" + StarterServerState.OBSERVATION_COUNT))
+			.header("Accept", "application/fhir+json")
+			.GET()
+			.build();
+		return theState.myHttpClient.send(request, HttpResponse.BodyHandlers.ofByteArray()).body();
+	}
+}
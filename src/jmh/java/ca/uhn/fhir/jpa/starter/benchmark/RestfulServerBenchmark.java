@@ -0,0 +1,98 @@
+package ca.uhn.fhir.jpa.starter.benchmark;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.UriType;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the request hot paths of the starter through the {@link ca.uhn.fhir.rest.server.RestfulServer}:
+ * read by id, a search that pages through its results, a transaction bundle, <code>$validate</code> and
+ * <code>$expand</code>.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@Threads(4)
+public class RestfulServerBenchmark {
+
+	private static final int TRANSACTION_SIZE = 20;
+
+	@Benchmark
+	public Patient read(StarterServerState theState) {
+		return theState.getClient().read().resource(Patient.class).withId(theState.getPatientId()).execute();
+	}
+
+	@Benchmark
+	public void searchWithPaging(StarterServerState theState, Blackhole theBlackhole) {
+		Bundle page = theState.getClient()
+			.search()
+			.forResource(Observation.class)
+			.where(Observation.SUBJECT.hasId(theState.getPatientId()))
+			.count(StarterServerState.PAGE_SIZE)
+			.returnBundle(Bundle.class)
+			.execute();
+		theBlackhole.consume(page);
+
+		// Follow the next link a couple of times so that the paging provider is exercised as well
+		for (int i = 0; i < 3 && page.getLink(Bundle.LINK_NEXT) != null; i++) {
+			page = theState.getClient().loadPage().next(page).execute();
+			theBlackhole.consume(page);
+		}
+	}
+
+	@Benchmark
+	public Bundle transaction(StarterServerState theState) {
+		Bundle transaction = new Bundle();
+		transaction.setType(Bundle.BundleType.TRANSACTION);
+		for (int i = 0; i < TRANSACTION_SIZE; i++) {
+			transaction.addEntry()
+				.setResource(theState.newObservation(i))
+				.getRequest()
+				.setMethod(Bundle.HTTPVerb.POST)
+				.setUrl("Observation");
+		}
+		return theState.getClient().transaction().withBundle(transaction).execute();
+	}
+
+	@Benchmark
+	public Parameters validate(StarterServerState theState) {
+		Patient patient = new Patient();
+		patient.setActive(true);
+		patient.addName().setFamily("Validate").addGiven("Jmh");
+		patient.setGender(Enumerations.AdministrativeGender.FEMALE);
+		return theState.getClient()
+			.operation()
+			.onType(Patient.class)
+			.named("$validate")
+			.withParameter(Parameters.class, "resource", patient)
+			.execute();
+	}
+
+	@Benchmark
+	public ValueSet expand(StarterServerState theState) {
+		return theState.getClient()
+			.operation()
+			.onType(ValueSet.class)
+			.named("$expand")
+			.withParameter(Parameters.class, "url", new UriType("http://hl7.org/fhir/ValueSet/administrative-gender"))
+			.returnResourceType(ValueSet.class)
+			.execute();
+	}
+}
@@ -0,0 +1,138 @@
+package ca.uhn.fhir.jpa.starter.benchmark;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.Application;
+import ca.uhn.fhir.jpa.starter.JpaStarterWebsocketDispatcherConfig;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Boots the starter {@link Application} once per trial against an in-memory H2 database and seeds
+ * it with enough data for the benchmarks to exercise paging. All requests go over HTTP so that they
+ * pass through the {@link ca.uhn.fhir.rest.server.RestfulServer} built by the starter configuration,
+ * including its interceptors.
+ * <p>
+ * Extra Spring properties can be supplied with <code>-Djmh.properties=key=value,key=value</code>,
+ * which makes it possible to compare one configuration switch against another.
+ */
+@State(Scope.Benchmark)
+public class StarterServerState {
+
+	public static final int OBSERVATION_COUNT = 500;
+	public static final int PAGE_SIZE = 50;
+
+	private ConfigurableApplicationContext myAppContext;
+	private FhirContext myFhirContext;
+	private IGenericClient myClient;
+	private String myServerBase;
+	private String myPatientId;
+
+	@Setup(Level.Trial)
+	public void startServer() {
+		List<String> properties = new ArrayList<>(List.of(
+			"server.port=0",
+			"spring.datasource.url=jdbc:h2:mem:jmh",
+			"spring.jpa.properties.hibernate.search.enabled=false",
+			"hapi.fhir.fhir_version=r4",
+			"hapi.fhir.openapi_enabled=false",
+			"logging.level.root=WARN"
+		));
+		String extraProperties = System.getProperty("jmh.properties");
+		if (extraProperties != null && !extraProperties.isBlank()) {
+			properties.addAll(List.of(extraProperties.split(",")));
+		}
+		properties.addAll(getStateProperties());
+
+		myAppContext = new SpringApplicationBuilder(Application.class, JpaStarterWebsocketDispatcherConfig.class)
+			.properties(properties.toArray(new String[0]))
+			.run();
+
+		int port = myAppContext.getEnvironment().getRequiredProperty("local.server.port", Integer.class);
+		myServerBase = "http://localhost:" + port + "/fhir";
+
+		myFhirContext = FhirContext.forR4();
+		myFhirContext.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		myFhirContext.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		myFhirContext.getRestfulClientFactory().setPoolMaxPerRoute(64);
+		myFhirContext.getRestfulClientFactory().setPoolMaxTotal(64);
+		myClient = myFhirContext.newRestfulGenericClient(myServerBase);
+
+		seed();
+	}
+
+	/**
+	 * Lets a subclass add Spring properties derived from its JMH parameters.
+	 */
+	protected List<String> getStateProperties() {
+		return List.of();
+	}
+
+	private void seed() {
+		Patient patient = new Patient();
+		patient.setActive(true);
+		patient.addName().setFamily("Benchmark").addGiven("Jmh");
+		patient.addIdentifier().setSystem("http://example.org/mrn").setValue("jmh-1");
+		myPatientId = myClient.create().resource(patient).execute().getId().toUnqualifiedVersionless().getValue();
+
+		Bundle transaction = new Bundle();
+		transaction.setType(Bundle.BundleType.TRANSACTION);
+		for (int i = 0; i < OBSERVATION_COUNT; i++) {
+			transaction.addEntry()
+				.setResource(newObservation(i))
+				.getRequest()
+				.setMethod(Bundle.HTTPVerb.POST)
+				.setUrl("Observation");
+		}
+		myClient.transaction().withBundle(transaction).execute();
+	}
+
+	public Observation newObservation(int theIndex) {
+		Observation observation = new Observation();
+		observation.setStatus(Observation.ObservationStatus.FINAL);
+		observation.getCode().addCoding().setSystem("http://loinc.org").setCode("8867-4").setDisplay("Heart rate");
+		observation.setSubject(new Reference(myPatientId));
+		observation.getValueQuantity().setValue(60 + (theIndex % 40)).setUnit("beats/minute").setSystem("http://unitsofmeasure.org").setCode("/min");
+		return observation;
+	}
+
+	@TearDown(Level.Trial)
+	public void stopServer() {
+		if (myAppContext != null) {
+			myAppContext.close();
+		}
+	}
+
+	public ConfigurableApplicationContext getAppContext() {
+		return myAppContext;
+	}
+
+	public FhirContext getFhirContext() {
+		return myFhirContext;
+	}
+
+	public IGenericClient getClient() {
+		return myClient;
+	}
+
+	public String getServerBase() {
+		return myServerBase;
+	}
+
+	public String getPatientId() {
+		return myPatientId;
+	}
+}
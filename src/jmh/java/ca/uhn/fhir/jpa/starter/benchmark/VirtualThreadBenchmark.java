@@ -0,0 +1,66 @@
+package ca.uhn.fhir.jpa.starter.benchmark;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares request throughput with <code>hapi.fhir.virtual_threads_enabled</code> against the
+ * platform thread pool, under more concurrent clients than there are container threads or database
+ * connections. Virtual threads need Java 21 or later. On an older runtime both runs use the
+ * platform pool, and the starter logs a warning saying so.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@Threads(64)
+public class VirtualThreadBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class ServerState extends StarterServerState {
+
+		@Param({"false", "true"})
+		public boolean virtualThreads;
+
+		@Override
+		protected List<String> getStateProperties() {
+			return List.of(
+				"hapi.fhir.virtual_threads_enabled=" + virtualThreads,
+				"server.jetty.threads.max=24",
+				"spring.datasource.hikari.maximum-pool-size=8"
+			);
+		}
+	}
+
+	@Benchmark
+	public Patient read(ServerState theState) {
+		return theState.getClient().read().resource(Patient.class).withId(theState.getPatientId()).execute();
+	}
+
+	@Benchmark
+	public Bundle search(ServerState theState) {
+		return theState.getClient()
+			.search()
+			.forResource(Observation.class)
+			.where(Observation.SUBJECT.hasId(theState.getPatientId()))
+			.count(StarterServerState.PAGE_SIZE)
+			.returnBundle(Bundle.class)
+			.execute();
+	}
+}
@@ -47,12 +47,34 @@ public class AppProperties {
   private Boolean graphql_enabled = false;
   private Boolean binary_storage_enabled = false;
   private Integer inline_resource_storage_below_size = 0;
+  private Boolean resource_compression_enabled = false;
+  private Integer resource_compression_level = 6;
+  private Boolean resource_compression_dictionaries = true;
+  private String resource_compression_dictionary_directory = null;
   private Boolean bulk_export_enabled = false;
   private Boolean bulk_import_enabled = false;
   private Boolean default_pretty_print = true;
+  private Boolean response_highlighter_enabled = true;
+  private Boolean machine_client_formatting_enabled = false;
   private Integer default_page_size = 20;
   private Integer max_binary_size = null;
+  private BinaryStorageBackend binary_storage_backend = BinaryStorageBackend.DATABASE;
+  private String binary_storage_directory = null;
+  private BinaryStorageS3 binary_storage_s3 = new BinaryStorageS3();
+  private Long binary_storage_orphan_grace_seconds = 3600L;
+  private Boolean binary_range_requests_enabled = false;
+  private Integer binary_transfer_buffer_size = 64 * 1024;
+  private Integer binary_transfer_buffers = 32;
+  private Long binary_transfer_timeout_millis = 5000L;
   private Integer max_page_size = Integer.MAX_VALUE;
+  private Integer search_page_hot_tier_size = 0;
+  private Boolean search_keyset_paging_enabled = false;
+  private Boolean search_ndjson_streaming_enabled = false;
+  private Boolean read_cache_enabled = false;
+  private Long read_cache_max_bytes = 64L * 1024 * 1024;
+  private Long read_cache_ttl_seconds = 60L;
+  private Boolean capability_statement_cache_enabled = false;
+  private Boolean virtual_threads_enabled = false;
   private Integer defer_indexing_for_codesystems_of_size = 100;
   private Long retain_cached_searches_mins = 60L;
   private Long reuse_cached_search_results_millis = 60000L;
@@ -67,10 +89,18 @@ public class AppProperties {
   private Validation validation = new Validation();
   private Map<String, Tester> tester = null;
   private Logger logger = new Logger();
+  private Boolean request_metrics_enabled = false;
   private Subscription subscription = new Subscription();
   private Cors cors = null;
+  private ResponseCompression response_compression = new ResponseCompression();
+  private SlowSearch slow_search = new SlowSearch();
   private Partitioning partitioning = null;
   private Boolean install_transitive_ig_dependencies = true;
+  private Integer ig_install_threads = 1;
+  private String ig_package_directory = null;
+  private Boolean ig_install_deferred = false;
+  private List<PackageInstallationGate> ig_install_deferred_gates = new ArrayList<>(List.of(PackageInstallationGate.WRITES));
+  private Long ig_install_deferred_poll_millis = 2000L;
   private Map<String, ImplementationGuide> implementationGuides = null;
 
 	private String staticLocation = null;
@@ -84,6 +114,18 @@ public class AppProperties {
 
   private Integer bundle_batch_pool_size = 20;
   private Integer bundle_batch_pool_max_size = 100;
+  private Boolean transaction_parallel_indexing_enabled = false;
+  private Integer transaction_parallel_indexing_min_entries = 10;
+  private Boolean bulk_ingestion_enabled = false;
+  private Integer bulk_ingestion_chunk_size = 800;
+  private Integer bulk_ingestion_jdbc_batch_size = 500;
+  private Boolean second_level_cache_enabled = false;
+  private Long second_level_cache_max_entries = 10000L;
+  private Long second_level_cache_expire_after_write_seconds = 600L;
+  private List<String> second_level_cache_entities = new ArrayList<>(List.of(
+    "ca.uhn.fhir.jpa.model.entity.ResourceHistoryTable",
+    "ca.uhn.fhir.jpa.model.entity.ResourceHistoryProvenanceEntity",
+    "ca.uhn.fhir.jpa.model.entity.ForcedId"));
   private final List<String> local_base_urls = new ArrayList<>();
   
   private final List<String> custom_interceptor_classes = new ArrayList<>();
@@ -183,6 +225,22 @@ public class AppProperties {
     this.cors = cors;
   }
 
+  public ResponseCompression getResponse_compression() {
+    return response_compression;
+  }
+
+  public void setResponse_compression(ResponseCompression response_compression) {
+    this.response_compression = response_compression;
+  }
+
+  public SlowSearch getSlow_search() {
+    return slow_search;
+  }
+
+  public void setSlow_search(SlowSearch slow_search) {
+    this.slow_search = slow_search;
+  }
+
   public List<Bundle.BundleType> getAllowed_bundle_types() {
     return allowed_bundle_types;
   }
@@ -211,6 +269,22 @@ public class AppProperties {
     this.default_pretty_print = default_pretty_print;
   }
 
+  public Boolean getResponse_highlighter_enabled() {
+    return response_highlighter_enabled;
+  }
+
+  public void setResponse_highlighter_enabled(Boolean response_highlighter_enabled) {
+    this.response_highlighter_enabled = response_highlighter_enabled;
+  }
+
+  public Boolean getMachine_client_formatting_enabled() {
+    return machine_client_formatting_enabled;
+  }
+
+  public void setMachine_client_formatting_enabled(Boolean machine_client_formatting_enabled) {
+    this.machine_client_formatting_enabled = machine_client_formatting_enabled;
+  }
+
   public void setSubscription(Subscription subscription) {
     this.subscription = subscription;
   }
@@ -239,6 +313,14 @@ public class AppProperties {
     this.logger = logger;
   }
 
+  public Boolean getRequest_metrics_enabled() {
+    return request_metrics_enabled;
+  }
+
+  public void setRequest_metrics_enabled(Boolean request_metrics_enabled) {
+    this.request_metrics_enabled = request_metrics_enabled;
+  }
+
   public ClientIdStrategyEnum getClient_id_strategy() {
     return client_id_strategy;
   }
@@ -428,6 +510,38 @@ public class AppProperties {
 		this.inline_resource_storage_below_size = inline_resource_storage_below_size;
 	}
 
+  public Boolean getResource_compression_enabled() {
+    return resource_compression_enabled;
+  }
+
+  public void setResource_compression_enabled(Boolean resource_compression_enabled) {
+    this.resource_compression_enabled = resource_compression_enabled;
+  }
+
+  public Integer getResource_compression_level() {
+    return resource_compression_level;
+  }
+
+  public void setResource_compression_level(Integer resource_compression_level) {
+    this.resource_compression_level = resource_compression_level;
+  }
+
+  public Boolean getResource_compression_dictionaries() {
+    return resource_compression_dictionaries;
+  }
+
+  public void setResource_compression_dictionaries(Boolean resource_compression_dictionaries) {
+    this.resource_compression_dictionaries = resource_compression_dictionaries;
+  }
+
+  public String getResource_compression_dictionary_directory() {
+    return resource_compression_dictionary_directory;
+  }
+
+  public void setResource_compression_dictionary_directory(String resource_compression_dictionary_directory) {
+    this.resource_compression_dictionary_directory = resource_compression_dictionary_directory;
+  }
+
 	public Boolean getBulk_export_enabled() {
     return bulk_export_enabled;
   }
@@ -468,6 +582,70 @@ public class AppProperties {
     this.max_binary_size = max_binary_size;
   }
 
+  public BinaryStorageBackend getBinary_storage_backend() {
+    return binary_storage_backend;
+  }
+
+  public void setBinary_storage_backend(BinaryStorageBackend binary_storage_backend) {
+    this.binary_storage_backend = binary_storage_backend;
+  }
+
+  public String getBinary_storage_directory() {
+    return binary_storage_directory;
+  }
+
+  public void setBinary_storage_directory(String binary_storage_directory) {
+    this.binary_storage_directory = binary_storage_directory;
+  }
+
+  public BinaryStorageS3 getBinary_storage_s3() {
+    return binary_storage_s3;
+  }
+
+  public void setBinary_storage_s3(BinaryStorageS3 binary_storage_s3) {
+    this.binary_storage_s3 = binary_storage_s3;
+  }
+
+  public Long getBinary_storage_orphan_grace_seconds() {
+    return binary_storage_orphan_grace_seconds;
+  }
+
+  public void setBinary_storage_orphan_grace_seconds(Long binary_storage_orphan_grace_seconds) {
+    this.binary_storage_orphan_grace_seconds = binary_storage_orphan_grace_seconds;
+  }
+
+  public Boolean getBinary_range_requests_enabled() {
+    return binary_range_requests_enabled;
+  }
+
+  public void setBinary_range_requests_enabled(Boolean binary_range_requests_enabled) {
+    this.binary_range_requests_enabled = binary_range_requests_enabled;
+  }
+
+  public Integer getBinary_transfer_buffer_size() {
+    return binary_transfer_buffer_size;
+  }
+
+  public void setBinary_transfer_buffer_size(Integer binary_transfer_buffer_size) {
+    this.binary_transfer_buffer_size = binary_transfer_buffer_size;
+  }
+
+  public Integer getBinary_transfer_buffers() {
+    return binary_transfer_buffers;
+  }
+
+  public void setBinary_transfer_buffers(Integer binary_transfer_buffers) {
+    this.binary_transfer_buffers = binary_transfer_buffers;
+  }
+
+  public Long getBinary_transfer_timeout_millis() {
+    return binary_transfer_timeout_millis;
+  }
+
+  public void setBinary_transfer_timeout_millis(Long binary_transfer_timeout_millis) {
+    this.binary_transfer_timeout_millis = binary_transfer_timeout_millis;
+  }
+
   public Integer getMax_page_size() {
     return max_page_size;
   }
@@ -476,6 +654,70 @@ public class AppProperties {
     this.max_page_size = max_page_size;
   }
 
+  public Integer getSearch_page_hot_tier_size() {
+    return search_page_hot_tier_size;
+  }
+
+  public void setSearch_page_hot_tier_size(Integer search_page_hot_tier_size) {
+    this.search_page_hot_tier_size = search_page_hot_tier_size;
+  }
+
+  public Boolean getSearch_keyset_paging_enabled() {
+    return search_keyset_paging_enabled;
+  }
+
+  public void setSearch_keyset_paging_enabled(Boolean search_keyset_paging_enabled) {
+    this.search_keyset_paging_enabled = search_keyset_paging_enabled;
+  }
+
+  public Boolean getSearch_ndjson_streaming_enabled() {
+    return search_ndjson_streaming_enabled;
+  }
+
+  public void setSearch_ndjson_streaming_enabled(Boolean search_ndjson_streaming_enabled) {
+    this.search_ndjson_streaming_enabled = search_ndjson_streaming_enabled;
+  }
+
+  public Boolean getRead_cache_enabled() {
+    return read_cache_enabled;
+  }
+
+  public void setRead_cache_enabled(Boolean read_cache_enabled) {
+    this.read_cache_enabled = read_cache_enabled;
+  }
+
+  public Long getRead_cache_max_bytes() {
+    return read_cache_max_bytes;
+  }
+
+  public void setRead_cache_max_bytes(Long read_cache_max_bytes) {
+    this.read_cache_max_bytes = read_cache_max_bytes;
+  }
+
+  public Long getRead_cache_ttl_seconds() {
+    return read_cache_ttl_seconds;
+  }
+
+  public void setRead_cache_ttl_seconds(Long read_cache_ttl_seconds) {
+    this.read_cache_ttl_seconds = read_cache_ttl_seconds;
+  }
+
+  public Boolean getCapability_statement_cache_enabled() {
+    return capability_statement_cache_enabled;
+  }
+
+  public void setCapability_statement_cache_enabled(Boolean capability_statement_cache_enabled) {
+    this.capability_statement_cache_enabled = capability_statement_cache_enabled;
+  }
+
+  public Boolean getVirtual_threads_enabled() {
+    return virtual_threads_enabled;
+  }
+
+  public void setVirtual_threads_enabled(Boolean virtual_threads_enabled) {
+    this.virtual_threads_enabled = virtual_threads_enabled;
+  }
+
   public Long getRetain_cached_searches_mins() {
     return retain_cached_searches_mins;
   }
@@ -546,6 +788,46 @@ public class AppProperties {
 		this.install_transitive_ig_dependencies = install_transitive_ig_dependencies;
 	}
 
+	public Integer getIg_install_threads() {
+		return ig_install_threads;
+	}
+
+	public void setIg_install_threads(Integer ig_install_threads) {
+		this.ig_install_threads = ig_install_threads;
+	}
+
+	public String getIg_package_directory() {
+		return ig_package_directory;
+	}
+
+	public void setIg_package_directory(String ig_package_directory) {
+		this.ig_package_directory = ig_package_directory;
+	}
+
+	public Boolean getIg_install_deferred() {
+		return ig_install_deferred;
+	}
+
+	public void setIg_install_deferred(Boolean ig_install_deferred) {
+		this.ig_install_deferred = ig_install_deferred;
+	}
+
+	public List<PackageInstallationGate> getIg_install_deferred_gates() {
+		return ig_install_deferred_gates;
+	}
+
+	public void setIg_install_deferred_gates(List<PackageInstallationGate> ig_install_deferred_gates) {
+		this.ig_install_deferred_gates = ig_install_deferred_gates;
+	}
+
+	public Long getIg_install_deferred_poll_millis() {
+		return ig_install_deferred_poll_millis;
+	}
+
+	public void setIg_install_deferred_poll_millis(Long ig_install_deferred_poll_millis) {
+		this.ig_install_deferred_poll_millis = ig_install_deferred_poll_millis;
+	}
+
 	public Integer getBundle_batch_pool_size() {
 		return this.bundle_batch_pool_size;
 	}
@@ -562,6 +844,78 @@ public class AppProperties {
 		this.bundle_batch_pool_max_size = bundle_batch_pool_max_size;
 	}
 
+	public Boolean getTransaction_parallel_indexing_enabled() {
+		return transaction_parallel_indexing_enabled;
+	}
+
+	public void setTransaction_parallel_indexing_enabled(Boolean transaction_parallel_indexing_enabled) {
+		this.transaction_parallel_indexing_enabled = transaction_parallel_indexing_enabled;
+	}
+
+	public Integer getTransaction_parallel_indexing_min_entries() {
+		return transaction_parallel_indexing_min_entries;
+	}
+
+	public void setTransaction_parallel_indexing_min_entries(Integer transaction_parallel_indexing_min_entries) {
+		this.transaction_parallel_indexing_min_entries = transaction_parallel_indexing_min_entries;
+	}
+
+	public Boolean getBulk_ingestion_enabled() {
+		return bulk_ingestion_enabled;
+	}
+
+	public void setBulk_ingestion_enabled(Boolean bulk_ingestion_enabled) {
+		this.bulk_ingestion_enabled = bulk_ingestion_enabled;
+	}
+
+	public Integer getBulk_ingestion_chunk_size() {
+		return bulk_ingestion_chunk_size;
+	}
+
+	public void setBulk_ingestion_chunk_size(Integer bulk_ingestion_chunk_size) {
+		this.bulk_ingestion_chunk_size = bulk_ingestion_chunk_size;
+	}
+
+	public Integer getBulk_ingestion_jdbc_batch_size() {
+		return bulk_ingestion_jdbc_batch_size;
+	}
+
+	public void setBulk_ingestion_jdbc_batch_size(Integer bulk_ingestion_jdbc_batch_size) {
+		this.bulk_ingestion_jdbc_batch_size = bulk_ingestion_jdbc_batch_size;
+	}
+
+	public Boolean getSecond_level_cache_enabled() {
+		return second_level_cache_enabled;
+	}
+
+	public void setSecond_level_cache_enabled(Boolean second_level_cache_enabled) {
+		this.second_level_cache_enabled = second_level_cache_enabled;
+	}
+
+	public Long getSecond_level_cache_max_entries() {
+		return second_level_cache_max_entries;
+	}
+
+	public void setSecond_level_cache_max_entries(Long second_level_cache_max_entries) {
+		this.second_level_cache_max_entries = second_level_cache_max_entries;
+	}
+
+	public Long getSecond_level_cache_expire_after_write_seconds() {
+		return second_level_cache_expire_after_write_seconds;
+	}
+
+	public void setSecond_level_cache_expire_after_write_seconds(Long second_level_cache_expire_after_write_seconds) {
+		this.second_level_cache_expire_after_write_seconds = second_level_cache_expire_after_write_seconds;
+	}
+
+	public List<String> getSecond_level_cache_entities() {
+		return second_level_cache_entities;
+	}
+
+	public void setSecond_level_cache_entities(List<String> second_level_cache_entities) {
+		this.second_level_cache_entities = second_level_cache_entities;
+	}
+
 	public List<String> getLocal_base_urls() {
 		return local_base_urls;
 	}
@@ -593,8 +947,13 @@ public class AppProperties {
 
     private String name = "fhirtest.access";
     private String error_format = "ERROR - ${requestVerb} ${requestUrl}";
-    private String format = "Path[${servletPath}] Source[${requestHeader.x-forwarded-for}] Operation[${operationType} ${operationName} ${idOrResourceName}] UA[${requestHeader.user-agent}] Params[${requestParameters}] ResponseEncoding[${responseEncodingNoDefault}] Operation[${operationType} ${operationName} ${idOrResourceName}] UA[${requestHeader.user-agent}] Params[${requestParameters}] ResponseEncoding[${responseEncodingNoDefault}]";
+    private String format = "Path[${servletPath}] Source[${requestHeader.x-forwarded-for}] Operation[${operationType} ${operationName} ${idOrResourceName}] UA[${requestHeader.user-agent}] Params[${requestParameters}] ResponseEncoding[${responseEncodingNoDefault}]";
     private Boolean log_exceptions = true;
+    private Boolean async_enabled = false;
+    private Integer buffer_size = 8192;
+    private Integer batch_size = 256;
+    private AccessLogOverflowPolicy overflow_policy = AccessLogOverflowPolicy.DROP;
+    private List<String> trusted_proxies = new ArrayList<>();
 
     public String getName() {
       return name;
@@ -627,6 +986,60 @@ public class AppProperties {
     public void setLog_exceptions(Boolean log_exceptions) {
       this.log_exceptions = log_exceptions;
     }
+
+    public Boolean getAsync_enabled() {
+      return async_enabled;
+    }
+
+    public void setAsync_enabled(Boolean async_enabled) {
+      this.async_enabled = async_enabled;
+    }
+
+    public Integer getBuffer_size() {
+      return buffer_size;
+    }
+
+    public void setBuffer_size(Integer buffer_size) {
+      this.buffer_size = buffer_size;
+    }
+
+    public Integer getBatch_size() {
+      return batch_size;
+    }
+
+    public void setBatch_size(Integer batch_size) {
+      this.batch_size = batch_size;
+    }
+
+    public AccessLogOverflowPolicy getOverflow_policy() {
+      return overflow_policy;
+    }
+
+    public void setOverflow_policy(AccessLogOverflowPolicy overflow_policy) {
+      this.overflow_policy = overflow_policy;
+    }
+
+    public List<String> getTrusted_proxies() {
+      return trusted_proxies;
+    }
+
+    public void setTrusted_proxies(List<String> trusted_proxies) {
+      this.trusted_proxies = trusted_proxies;
+    }
+  }
+
+  /**
+   * The features which wait for the implementation guides with <code>ig_install_deferred</code>
+   */
+  public enum PackageInstallationGate {
+    READINESS,
+    WRITES,
+    VALIDATION
+  }
+
+  public enum AccessLogOverflowPolicy {
+    DROP,
+    BLOCK
   }
 
 
@@ -705,6 +1118,14 @@ public class AppProperties {
 
     private Boolean requests_enabled = false;
     private Boolean responses_enabled = false;
+    private Boolean cache_enabled = false;
+    private Long cache_max_entries = 10000L;
+    private Boolean responses_async = false;
+    private Double responses_sample_rate = 1.0;
+    private Integer responses_async_threads = 2;
+    private Integer responses_async_queue_size = 1000;
+    private Boolean warmup_enabled = false;
+    private Integer warmup_threads = Runtime.getRuntime().availableProcessors();
 
     public Boolean getRequests_enabled() {
       return requests_enabled;
@@ -721,6 +1142,250 @@ public class AppProperties {
     public void setResponses_enabled(Boolean responses_enabled) {
       this.responses_enabled = responses_enabled;
     }
+
+    public Boolean getCache_enabled() {
+      return cache_enabled;
+    }
+
+    public void setCache_enabled(Boolean cache_enabled) {
+      this.cache_enabled = cache_enabled;
+    }
+
+    public Long getCache_max_entries() {
+      return cache_max_entries;
+    }
+
+    public void setCache_max_entries(Long cache_max_entries) {
+      this.cache_max_entries = cache_max_entries;
+    }
+
+    public Boolean getResponses_async() {
+      return responses_async;
+    }
+
+    public void setResponses_async(Boolean responses_async) {
+      this.responses_async = responses_async;
+    }
+
+    public Double getResponses_sample_rate() {
+      return responses_sample_rate;
+    }
+
+    public void setResponses_sample_rate(Double responses_sample_rate) {
+      this.responses_sample_rate = responses_sample_rate;
+    }
+
+    public Integer getResponses_async_threads() {
+      return responses_async_threads;
+    }
+
+    public void setResponses_async_threads(Integer responses_async_threads) {
+      this.responses_async_threads = responses_async_threads;
+    }
+
+    public Integer getResponses_async_queue_size() {
+      return responses_async_queue_size;
+    }
+
+    public void setResponses_async_queue_size(Integer responses_async_queue_size) {
+      this.responses_async_queue_size = responses_async_queue_size;
+    }
+
+    public Boolean getWarmup_enabled() {
+      return warmup_enabled;
+    }
+
+    public void setWarmup_enabled(Boolean warmup_enabled) {
+      this.warmup_enabled = warmup_enabled;
+    }
+
+    public Integer getWarmup_threads() {
+      return warmup_threads;
+    }
+
+    public void setWarmup_threads(Integer warmup_threads) {
+      this.warmup_threads = warmup_threads;
+    }
+  }
+
+  public enum BinaryStorageBackend {
+    DATABASE,
+    FILESYSTEM,
+    S3
+  }
+
+  public static class BinaryStorageS3 {
+
+    private String endpoint = null;
+    private String region = "us-east-1";
+    private String bucket = null;
+    private String key_prefix = "";
+    private String access_key = null;
+    private String secret_key = null;
+    private Boolean path_style_access = false;
+
+    public String getEndpoint() {
+      return endpoint;
+    }
+
+    public void setEndpoint(String endpoint) {
+      this.endpoint = endpoint;
+    }
+
+    public String getRegion() {
+      return region;
+    }
+
+    public void setRegion(String region) {
+      this.region = region;
+    }
+
+    public String getBucket() {
+      return bucket;
+    }
+
+    public void setBucket(String bucket) {
+      this.bucket = bucket;
+    }
+
+    public String getKey_prefix() {
+      return key_prefix;
+    }
+
+    public void setKey_prefix(String key_prefix) {
+      this.key_prefix = key_prefix;
+    }
+
+    public String getAccess_key() {
+      return access_key;
+    }
+
+    public void setAccess_key(String access_key) {
+      this.access_key = access_key;
+    }
+
+    public String getSecret_key() {
+      return secret_key;
+    }
+
+    public void setSecret_key(String secret_key) {
+      this.secret_key = secret_key;
+    }
+
+    public Boolean getPath_style_access() {
+      return path_style_access;
+    }
+
+    public void setPath_style_access(Boolean path_style_access) {
+      this.path_style_access = path_style_access;
+    }
+  }
+
+  public static class ResponseCompression {
+
+    private Boolean enabled = false;
+    private List<String> encodings = new ArrayList<>(List.of("gzip", "deflate"));
+    private Integer min_size = 2048;
+    private Integer level = 4;
+    private Integer buffer_size = 32 * 1024;
+    private Integer pool_size = 64;
+
+    public Boolean getEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(Boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public List<String> getEncodings() {
+      return encodings;
+    }
+
+    public void setEncodings(List<String> encodings) {
+      this.encodings = encodings;
+    }
+
+    public Integer getMin_size() {
+      return min_size;
+    }
+
+    public void setMin_size(Integer min_size) {
+      this.min_size = min_size;
+    }
+
+    public Integer getLevel() {
+      return level;
+    }
+
+    public void setLevel(Integer level) {
+      this.level = level;
+    }
+
+    public Integer getBuffer_size() {
+      return buffer_size;
+    }
+
+    public void setBuffer_size(Integer buffer_size) {
+      this.buffer_size = buffer_size;
+    }
+
+    public Integer getPool_size() {
+      return pool_size;
+    }
+
+    public void setPool_size(Integer pool_size) {
+      this.pool_size = pool_size;
+    }
+  }
+
+  public static class SlowSearch {
+
+    private Boolean enabled = false;
+    private Long threshold_millis = 1000L;
+    private Integer max_entries = 100;
+    private Integer statements_per_thread = 64;
+    private Boolean explain = false;
+
+    public Boolean getEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(Boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public Long getThreshold_millis() {
+      return threshold_millis;
+    }
+
+    public void setThreshold_millis(Long threshold_millis) {
+      this.threshold_millis = threshold_millis;
+    }
+
+    public Integer getMax_entries() {
+      return max_entries;
+    }
+
+    public void setMax_entries(Integer max_entries) {
+      this.max_entries = max_entries;
+    }
+
+    public Integer getStatements_per_thread() {
+      return statements_per_thread;
+    }
+
+    public void setStatements_per_thread(Integer statements_per_thread) {
+      this.statements_per_thread = statements_per_thread;
+    }
+
+    public Boolean getExplain() {
+      return explain;
+    }
+
+    public void setExplain(Boolean explain) {
+      this.explain = explain;
+    }
   }
 
   public static class Partitioning {
@@ -0,0 +1,292 @@
+package ca.uhn.fhir.jpa.starter.binstore;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.binary.api.IBinaryStorageSvc;
+import ca.uhn.fhir.jpa.binary.api.StoredDetails;
+import ca.uhn.fhir.jpa.model.util.JpaConstants;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationInterceptor;
+import ca.uhn.fhir.rest.server.interceptor.auth.SearchNarrowingInterceptor;
+import ca.uhn.fhir.rest.server.interceptor.consent.ConsentInterceptor;
+import ca.uhn.fhir.util.BinaryUtil;
+import ca.uhn.fhir.util.FhirTerser;
+import ca.uhn.fhir.util.HapiExtensions;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseBinary;
+import org.hl7.fhir.instance.model.api.IBaseExtension;
+import org.hl7.fhir.instance.model.api.IBaseHasExtensions;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves <code>$binary-access-read</code> of externalized binaries with HTTP range requests and streaming,
+ * instead of the {@link ca.uhn.fhir.jpa.binary.provider.BinaryAccessProvider}.
+ * <p>
+ * A single <code>Range: bytes=first-last</code> (or <code>first-</code>, or <code>-suffix</code>) is answered
+ * with a 206 holding only those bytes, an unsatisfiable one with a 416, and several ranges or an
+ * <code>If-Range</code> that doesn't match the ETag (the content hash) with the whole binary. The binary is
+ * copied from the storage to the response through a buffer of the {@link TransferBufferPool}, which is
+ * flushed after every buffer, so a download holds one buffer whatever the size of the binary.
+ * <p>
+ * With a storage that reads parts of binaries ({@link IStreamingBinaryStorageSvc}) only the requested
+ * range is read. With database blobs the blob is streamed from its start, and the bytes outside the range
+ * are skipped. Binaries that are not externalized, and <code>POST</code> requests, are left to the provider.
+ * <p>
+ * Requests are served before the server authorizes the operation, so when an interceptor controls access
+ * to resources ({@link AuthorizationInterceptor}, {@link ConsentInterceptor} or {@link SearchNarrowingInterceptor})
+ * is registered, every request is left to the provider, which serves the whole binary once authorized.
+ */
+@Interceptor
+public class BinaryRangeStreamingInterceptor {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(BinaryRangeStreamingInterceptor.class);
+	private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+	private final FhirContext myFhirContext;
+	private final DaoRegistry myDaoRegistry;
+	private final IBinaryStorageSvc myBinaryStorageSvc;
+	private final TransferBufferPool myBufferPool;
+	private final AtomicBoolean myAccessControlWarned = new AtomicBoolean();
+
+	public BinaryRangeStreamingInterceptor(FhirContext theFhirContext, DaoRegistry theDaoRegistry, IBinaryStorageSvc theBinaryStorageSvc, TransferBufferPool theBufferPool) {
+		myFhirContext = theFhirContext;
+		myDaoRegistry = theDaoRegistry;
+		myBinaryStorageSvc = theBinaryStorageSvc;
+		myBufferPool = theBufferPool;
+	}
+
+	@Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+	public boolean streamBinary(RequestDetails theRequestDetails, HttpServletRequest theServletRequest, HttpServletResponse theServletResponse) throws IOException {
+		if (!JpaConstants.OPERATION_BINARY_ACCESS_READ.equals(theRequestDetails.getOperation())
+			|| theRequestDetails.getRequestType() != RequestTypeEnum.GET
+			|| theRequestDetails.getId() == null
+			|| !theRequestDetails.getId().hasResourceType()) {
+			return true;
+		}
+		String[] paths = theRequestDetails.getParameters().get("path");
+		if (paths == null || paths.length != 1) {
+			return true;
+		}
+		if (hasAccessControlInterceptor(theRequestDetails)) {
+			if (myAccessControlWarned.compareAndSet(false, true)) {
+				ourLog.warn("Not serving ranges of binaries, the server has an interceptor controlling access to them");
+			}
+			return true;
+		}
+
+		IIdType id = theRequestDetails.getId();
+		IBaseResource resource = myDaoRegistry.getResourceDao(id.getResourceType()).read(id, theRequestDetails, false);
+		String blobId = findExternalizedBinaryId(resource, paths[0]);
+		if (blobId == null) {
+			return true;
+		}
+		StoredDetails details = myBinaryStorageSvc.fetchBlobDetails(id, blobId);
+		if (details == null) {
+			return true;
+		}
+
+		long size = details.getBytes();
+		String etag = "\"" + details.getHash() + "\"";
+		long first = 0;
+		long last = size - 1;
+		boolean partial = false;
+		String ifRange = theServletRequest.getHeader("If-Range");
+		String range = theServletRequest.getHeader("Range");
+		if (range != null && (ifRange == null || ifRange.equals(etag))) {
+			Matcher matcher = RANGE_PATTERN.matcher(range.trim());
+			if (matcher.matches() && !(matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+				try {
+					if (matcher.group(1).isEmpty()) {
+						first = Math.max(0, size - Long.parseLong(matcher.group(2)));
+					} else {
+						first = Long.parseLong(matcher.group(1));
+						last = matcher.group(2).isEmpty() ? size - 1 : Math.min(size - 1, Long.parseLong(matcher.group(2)));
+					}
+				} catch (NumberFormatException e) {
+					// Beyond any binary this server can hold
+					first = size;
+				}
+				if (first > last) {
+					theServletResponse.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+					theServletResponse.setHeader("Content-Range", "bytes */" + size);
+					return false;
+				}
+				partial = true;
+			}
+		}
+
+		// Nothing is set on the response until a buffer is held, so that a 503 carries none of it
+		byte[] buffer = acquireBuffer();
+		try {
+			theServletResponse.setStatus(partial ? HttpServletResponse.SC_PARTIAL_CONTENT : HttpServletResponse.SC_OK);
+			if (partial) {
+				theServletResponse.setHeader("Content-Range", "bytes " + first + "-" + last + "/" + size);
+			}
+			theServletResponse.setHeader("Accept-Ranges", "bytes");
+			theServletResponse.setHeader(Constants.HEADER_ETAG, etag);
+			theServletResponse.setContentType(details.getContentType());
+			long length = last - first + 1;
+			theServletResponse.setContentLengthLong(length);
+			OutputStream outputStream = theServletResponse.getOutputStream();
+			stream(id, blobId, first, length, outputStream, buffer);
+			outputStream.close();
+		} finally {
+			myBufferPool.release(buffer);
+		}
+		return false;
+	}
+
+	private byte[] acquireBuffer() throws InterruptedIOException {
+		try {
+			return myBufferPool.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a transfer buffer");
+		}
+	}
+
+	/**
+	 * Copies the given part of a binary to the given output through the given buffer.
+	 *
+	 * @return the number of bytes copied
+	 */
+	private long stream(IIdType theResourceId, String theBlobId, long theOffset, long theLength, OutputStream theOutputStream, byte[] theBuffer) throws IOException {
+		if (myBinaryStorageSvc instanceof IStreamingBinaryStorageSvc) {
+			try (InputStream inputStream = ((IStreamingBinaryStorageSvc) myBinaryStorageSvc).openBlob(theResourceId, theBlobId, theOffset, theLength)) {
+				return inputStream != null ? copy(inputStream, theOutputStream, theLength, theBuffer) : 0;
+			}
+		}
+		RangeOutputStream range = new RangeOutputStream(theOutputStream, theOffset, theLength, theBuffer);
+		myBinaryStorageSvc.writeBlob(theResourceId, theBlobId, range);
+		range.flushBuffer();
+		return range.myWritten;
+	}
+
+	private static boolean hasAccessControlInterceptor(RequestDetails theRequestDetails) {
+		for (Object next : theRequestDetails.getServer().getInterceptorService().getAllRegisteredInterceptors()) {
+			if (next instanceof AuthorizationInterceptor || next instanceof ConsentInterceptor || next instanceof SearchNarrowingInterceptor) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private String findExternalizedBinaryId(IBaseResource theResource, String thePath) {
+		IBase data;
+		try {
+			if (theResource instanceof IBaseBinary && thePath.equals(myFhirContext.getResourceType(theResource))) {
+				data = BinaryUtil.getOrCreateData(myFhirContext, (IBaseBinary) theResource);
+			} else {
+				List<IBase> attachments = myFhirContext.newFhirPath().evaluate(theResource, thePath, IBase.class);
+				if (attachments.size() != 1) {
+					return null;
+				}
+				FhirTerser terser = myFhirContext.newTerser();
+				data = terser.getSingleValueOrNull(attachments.get(0), "data", IBase.class);
+			}
+		} catch (RuntimeException e) {
+			// Let the provider report an invalid path
+			ourLog.debug("Could not evaluate binary path {}: {}", thePath, e.toString());
+			return null;
+		}
+		if (!(data instanceof IBaseHasExtensions)) {
+			return null;
+		}
+		return ((IBaseHasExtensions) data).getExtension().stream()
+			.filter(next -> HapiExtensions.EXT_EXTERNALIZED_BINARY_ID.equals(next.getUrl()))
+			.map(IBaseExtension::getValue)
+			.filter(next -> next instanceof IPrimitiveType)
+			.map(next -> ((IPrimitiveType<?>) next).getValueAsString())
+			.findFirst()
+			.orElse(null);
+	}
+
+	private static long copy(InputStream theInputStream, OutputStream theOutputStream, long theLength, byte[] theBuffer) throws IOException {
+		long retVal = 0;
+		int read;
+		while (retVal < theLength && (read = theInputStream.read(theBuffer, 0, (int) Math.min(theBuffer.length, theLength - retVal))) != -1) {
+			theOutputStream.write(theBuffer, 0, read);
+			theOutputStream.flush();
+			retVal += read;
+		}
+		return retVal;
+	}
+
+	/**
+	 * Passes on the bytes of a range of what is written to it, through the given buffer.
+	 */
+	private static class RangeOutputStream extends OutputStream {
+
+		private final OutputStream myTarget;
+		private final byte[] myBuffer;
+		private long mySkip;
+		private long myRemaining;
+		private int myBuffered;
+		private long myWritten;
+
+		private RangeOutputStream(OutputStream theTarget, long theOffset, long theLength, byte[] theBuffer) {
+			myTarget = theTarget;
+			mySkip = theOffset;
+			myRemaining = theLength;
+			myBuffer = theBuffer;
+		}
+
+		@Override
+		public void write(int theByte) throws IOException {
+			write(new byte[]{(byte) theByte}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] theBytes, int theOffset, int theLength) throws IOException {
+			int offset = theOffset;
+			int length = theLength;
+			if (mySkip > 0) {
+				int skipped = (int) Math.min(mySkip, length);
+				mySkip -= skipped;
+				offset += skipped;
+				length -= skipped;
+			}
+			length = (int) Math.min(length, myRemaining);
+			while (length > 0) {
+				int chunk = Math.min(length, myBuffer.length - myBuffered);
+				System.arraycopy(theBytes, offset, myBuffer, myBuffered, chunk);
+				myBuffered += chunk;
+				myRemaining -= chunk;
+				offset += chunk;
+				length -= chunk;
+				if (myBuffered == myBuffer.length) {
+					flushBuffer();
+				}
+			}
+		}
+
+		private void flushBuffer() throws IOException {
+			if (myBuffered > 0) {
+				myTarget.write(myBuffer, 0, myBuffered);
+				myTarget.flush();
+				myWritten += myBuffered;
+				myBuffered = 0;
+			}
+		}
+	}
+}
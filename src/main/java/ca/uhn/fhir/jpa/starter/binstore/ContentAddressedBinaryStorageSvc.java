@@ -0,0 +1,290 @@
+package ca.uhn.fhir.jpa.starter.binstore;
+
+import ca.uhn.fhir.jpa.binary.api.StoredDetails;
+import ca.uhn.fhir.jpa.binstore.BaseBinaryStorageSvcImpl;
+import ca.uhn.fhir.util.JsonUtil;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.CountingInputStream;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+/**
+ * Stores the externalized binaries of <code>Binary</code> and attachments in an {@link IBlobObjectStore}
+ * instead of database blobs, which is enabled with <code>hapi.fhir.binary_storage_backend</code>.
+ * <p>
+ * Contents are stored once per SHA-256 hash, however many binaries have that content:
+ * <ul>
+ *    <li><code>content/ab/cd/abcd...</code> holds the content</li>
+ *    <li><code>refs/abcd.../blobId</code> records that a binary refers to it</li>
+ *    <li><code>blobs/blobId.json</code> holds the {@link StoredDetails} of a binary, including its content hash</li>
+ *    <li><code>orphans/abcd...</code> records when the last binary referring to a content was expunged</li>
+ * </ul>
+ * An upload is streamed to a temporary file of the store with NIO channel transfers while it is hashed,
+ * its reference is recorded and the file is only moved in place when no content with that hash is stored
+ * yet. Reads stream the content, or the part of it that was asked for, to the response, see
+ * {@link IBlobObjectStore#transferTo}.
+ * <p>
+ * Servers may share a store, so a content isn't deleted with its last reference, which another server may
+ * be adding again at the same time. The orphaned contents are swept in the background once they have had no
+ * reference for the grace period: a content is moved aside, and only dropped if there is still no reference
+ * to it once it is, otherwise it is moved back. As references are recorded before looking for the content,
+ * an upload which found the content before it was moved aside is seen by the sweep, and an upload which
+ * didn't stores the content again. Reads look for a content moved aside when it is missing.
+ */
+public class ContentAddressedBinaryStorageSvc extends BaseBinaryStorageSvcImpl implements IStreamingBinaryStorageSvc {
+
+	public static final String METRIC_DEDUPLICATED = "hapi.fhir.binary_storage.deduplicated";
+	public static final String METRIC_DEDUPLICATED_BYTES = "hapi.fhir.binary_storage.deduplicated.bytes";
+	public static final String METRIC_ORPHANS_DELETED = "hapi.fhir.binary_storage.orphans.deleted";
+
+	private static final Logger ourLog = LoggerFactory.getLogger(ContentAddressedBinaryStorageSvc.class);
+	private static final int TRANSFER_CHUNK_SIZE = 1024 * 1024;
+	private static final String ORPHANS_PREFIX = "orphans/";
+
+	private final IBlobObjectStore myStore;
+	private final long myOrphanGraceMillis;
+	private final ScheduledExecutorService mySweeper = Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder().namingPattern("binary-orphan-sweeper-%d").daemon(true).build());
+	private Counter myDeduplicatedCounter;
+	private Counter myDeduplicatedBytesCounter;
+	private Counter myOrphansDeletedCounter;
+
+	/**
+	 * @param theOrphanGrace how long a content is kept once no binary refers to it, and how often the orphaned contents are swept
+	 */
+	public ContentAddressedBinaryStorageSvc(IBlobObjectStore theStore, Duration theOrphanGrace) {
+		myStore = theStore;
+		myOrphanGraceMillis = Math.max(0, theOrphanGrace.toMillis());
+		long sweepMillis = Math.max(TimeUnit.SECONDS.toMillis(1), myOrphanGraceMillis);
+		mySweeper.scheduleWithFixedDelay(this::sweepOrphans, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public void registerMetrics(MeterRegistry theMeterRegistry) {
+		myDeduplicatedCounter = theMeterRegistry.counter(METRIC_DEDUPLICATED);
+		myDeduplicatedBytesCounter = theMeterRegistry.counter(METRIC_DEDUPLICATED_BYTES);
+		myOrphansDeletedCounter = theMeterRegistry.counter(METRIC_ORPHANS_DELETED);
+	}
+
+	@Nonnull
+	@Override
+	public StoredDetails storeBlob(IIdType theResourceId, String theBlobIdOrNull, String theContentType, InputStream theInputStream) throws IOException {
+		String blobId = isNotBlank(theBlobIdOrNull) ? theBlobIdOrNull : newBlobId();
+		Path temp = myStore.newTempFile();
+		try {
+			HashingInputStream hashingInputStream = createHashingInputStream(theInputStream);
+			CountingInputStream countingInputStream = createCountingInputStream(hashingInputStream);
+			spool(countingInputStream, temp);
+			StoredDetails retVal = new StoredDetails(blobId, countingInputStream.getByteCount(), theContentType, hashingInputStream, new Date());
+			String hash = retVal.getHash();
+
+			// Recorded first, so that a sweep moving the content aside from now on keeps it, see sweepOrphans()
+			myStore.putBytes(referenceKey(hash, blobId), new byte[0]);
+			try {
+				if (myStore.exists(contentKey(hash))) {
+					ourLog.debug("Binary {} of {} has the same content as a stored binary: {}", blobId, theResourceId, hash);
+					if (myDeduplicatedCounter != null) {
+						myDeduplicatedCounter.increment();
+						myDeduplicatedBytesCounter.increment(retVal.getBytes());
+					}
+				} else {
+					myStore.putFile(contentKey(hash), temp);
+				}
+			} catch (IOException | RuntimeException e) {
+				myStore.delete(referenceKey(hash, blobId));
+				throw e;
+			}
+
+			myStore.putBytes(detailsKey(blobId), JsonUtil.serialize(retVal, false).getBytes(StandardCharsets.UTF_8));
+			return retVal;
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	@Override
+	public StoredDetails fetchBlobDetails(IIdType theResourceId, String theBlobId) throws IOException {
+		byte[] details = myStore.getBytes(detailsKey(theBlobId));
+		if (details == null) {
+			return null;
+		}
+		return JsonUtil.deserialize(new String(details, StandardCharsets.UTF_8), StoredDetails.class);
+	}
+
+	@Override
+	public boolean writeBlob(IIdType theResourceId, String theBlobId, OutputStream theOutputStream) throws IOException {
+		StoredDetails details = fetchBlobDetails(theResourceId, theBlobId);
+		if (details == null) {
+			return false;
+		}
+		if (myStore.transferTo(contentKey(details.getHash()), theOutputStream)) {
+			return true;
+		}
+		for (String next : myStore.list(movedAsidePrefix(details.getHash()))) {
+			if (myStore.transferTo(next, theOutputStream)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public InputStream openBlob(IIdType theResourceId, String theBlobId, long theOffset, long theLength) throws IOException {
+		StoredDetails details = fetchBlobDetails(theResourceId, theBlobId);
+		if (details == null) {
+			return null;
+		}
+		InputStream retVal = myStore.openStream(contentKey(details.getHash()), theOffset, theLength);
+		if (retVal == null) {
+			for (String next : myStore.list(movedAsidePrefix(details.getHash()))) {
+				retVal = myStore.openStream(next, theOffset, theLength);
+				if (retVal != null) {
+					break;
+				}
+			}
+		}
+		return retVal;
+	}
+
+	@Override
+	public byte[] fetchBlob(IIdType theResourceId, String theBlobId) throws IOException {
+		StoredDetails details = fetchBlobDetails(theResourceId, theBlobId);
+		if (details == null) {
+			return null;
+		}
+		byte[] retVal = myStore.getBytes(contentKey(details.getHash()));
+		if (retVal == null) {
+			for (String next : myStore.list(movedAsidePrefix(details.getHash()))) {
+				retVal = myStore.getBytes(next);
+				if (retVal != null) {
+					break;
+				}
+			}
+		}
+		return retVal;
+	}
+
+	@Override
+	public void expungeBlob(IIdType theResourceId, String theBlobId) {
+		try {
+			StoredDetails details = fetchBlobDetails(theResourceId, theBlobId);
+			if (details == null) {
+				return;
+			}
+			myStore.delete(detailsKey(theBlobId));
+
+			String hash = details.getHash();
+			myStore.delete(referenceKey(hash, theBlobId));
+			if (myStore.list(referencesPrefix(hash)).isEmpty()) {
+				myStore.putBytes(orphanKey(hash), Long.toString(System.currentTimeMillis()).getBytes(StandardCharsets.UTF_8));
+			}
+		} catch (IOException e) {
+			ourLog.warn("Failed to expunge binary {} of {}: {}", theBlobId, theResourceId, e.toString());
+		}
+	}
+
+	/**
+	 * Deletes the contents which have had no reference for the grace period. Any server sharing the store may
+	 * sweep it, including several at the same time.
+	 */
+	public void sweepOrphans() {
+		try {
+			for (String next : myStore.list(ORPHANS_PREFIX)) {
+				String hash = next.substring(ORPHANS_PREFIX.length());
+				byte[] orphanedAt = myStore.getBytes(next);
+				if (orphanedAt == null || System.currentTimeMillis() - Long.parseLong(new String(orphanedAt, StandardCharsets.UTF_8)) < myOrphanGraceMillis) {
+					continue;
+				}
+				if (myStore.list(referencesPrefix(hash)).isEmpty()) {
+					deleteContent(hash);
+				}
+				myStore.delete(next);
+			}
+		} catch (IOException | RuntimeException e) {
+			ourLog.warn("Failed to sweep the orphaned binary contents: {}", e.toString());
+		}
+	}
+
+	public void shutdown() {
+		mySweeper.shutdownNow();
+	}
+
+	/**
+	 * Moves the content aside, under a key of its own so that concurrent sweeps don't interfere, and only drops
+	 * it if no reference was recorded meanwhile. A failure leaves the content moved aside, where it is still read.
+	 */
+	private void deleteContent(String theHash) throws IOException {
+		String movedAside = movedAsidePrefix(theHash) + UUID.randomUUID();
+		if (!myStore.copy(contentKey(theHash), movedAside)) {
+			return;
+		}
+		myStore.delete(contentKey(theHash));
+		if (myStore.list(referencesPrefix(theHash)).isEmpty()) {
+			ourLog.debug("Deleted the orphaned binary content {}", theHash);
+			if (myOrphansDeletedCounter != null) {
+				myOrphansDeletedCounter.increment();
+			}
+		} else {
+			ourLog.debug("Binary content {} was referred to again while being deleted, keeping it", theHash);
+			myStore.copy(movedAside, contentKey(theHash));
+		}
+		myStore.delete(movedAside);
+	}
+
+	private static void spool(InputStream theInputStream, Path theFile) throws IOException {
+		try (ReadableByteChannel source = Channels.newChannel(theInputStream);
+			  FileChannel target = FileChannel.open(theFile, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			long position = 0;
+			long transferred;
+			while ((transferred = target.transferFrom(source, position, TRANSFER_CHUNK_SIZE)) > 0) {
+				position += transferred;
+			}
+		}
+	}
+
+	private static String contentKey(String theHash) {
+		return "content/" + theHash.substring(0, 2) + "/" + theHash.substring(2, 4) + "/" + theHash;
+	}
+
+	private static String referencesPrefix(String theHash) {
+		return "refs/" + theHash + "/";
+	}
+
+	private static String referenceKey(String theHash, String theBlobId) {
+		return referencesPrefix(theHash) + theBlobId;
+	}
+
+	private static String orphanKey(String theHash) {
+		return ORPHANS_PREFIX + theHash;
+	}
+
+	private static String movedAsidePrefix(String theHash) {
+		return "sweeping/" + theHash + "/";
+	}
+
+	private static String detailsKey(String theBlobId) {
+		return "blobs/" + theBlobId + ".json";
+	}
+}
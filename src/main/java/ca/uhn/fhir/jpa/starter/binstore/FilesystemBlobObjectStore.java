@@ -0,0 +1,168 @@
+package ca.uhn.fhir.jpa.starter.binstore;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the objects as files of a local directory tree, e.g. a mounted volume.
+ * <p>
+ * Objects are first written to a <code>tmp</code> directory of the same tree and then moved in place,
+ * so a reader never sees a partial object. They are read with {@link FileChannel#transferTo}, which
+ * lets the operating system copy the file to the output channel without going through the heap.
+ */
+public class FilesystemBlobObjectStore implements IBlobObjectStore {
+
+	private static final int MAX_PUT_ATTEMPTS = 5;
+
+	private final Path myBaseDirectory;
+	private final Path myTempDirectory;
+
+	public FilesystemBlobObjectStore(Path theBaseDirectory) throws IOException {
+		myBaseDirectory = theBaseDirectory.toAbsolutePath();
+		myTempDirectory = myBaseDirectory.resolve("tmp");
+		Files.createDirectories(myTempDirectory);
+	}
+
+	@Override
+	public Path newTempFile() throws IOException {
+		return Files.createTempFile(myTempDirectory, "blob", ".tmp");
+	}
+
+	@Override
+	public boolean exists(String theKey) {
+		return Files.isRegularFile(resolve(theKey));
+	}
+
+	/**
+	 * The directories of the key are created again when {@link #delete} removes them before the file is moved
+	 * in place.
+	 */
+	@Override
+	public void putFile(String theKey, Path theFile) throws IOException {
+		Path target = resolve(theKey);
+		for (int attempt = 1; ; attempt++) {
+			Files.createDirectories(target.getParent());
+			try {
+				Files.move(theFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				return;
+			} catch (NoSuchFileException e) {
+				if (attempt >= MAX_PUT_ATTEMPTS || !Files.exists(theFile)) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	@Override
+	public void putBytes(String theKey, byte[] theBytes) throws IOException {
+		Path temp = newTempFile();
+		Files.write(temp, theBytes);
+		putFile(theKey, temp);
+	}
+
+	@Override
+	public byte[] getBytes(String theKey) throws IOException {
+		try {
+			return Files.readAllBytes(resolve(theKey));
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public boolean transferTo(String theKey, OutputStream theOutputStream) throws IOException {
+		try (FileChannel channel = FileChannel.open(resolve(theKey), StandardOpenOption.READ)) {
+			WritableByteChannel target = Channels.newChannel(theOutputStream);
+			long size = channel.size();
+			for (long position = 0; position < size; ) {
+				position += channel.transferTo(position, size - position, target);
+			}
+			return true;
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public InputStream openStream(String theKey, long theOffset, long theLength) throws IOException {
+		try {
+			FileChannel channel = FileChannel.open(resolve(theKey), StandardOpenOption.READ);
+			channel.position(theOffset);
+			return ByteStreams.limit(Channels.newInputStream(channel), theLength);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public boolean copy(String theSourceKey, String theTargetKey) throws IOException {
+		Path temp = newTempFile();
+		try {
+			Files.copy(resolve(theSourceKey), temp, StandardCopyOption.REPLACE_EXISTING);
+		} catch (NoSuchFileException e) {
+			Files.deleteIfExists(temp);
+			return false;
+		}
+		putFile(theTargetKey, temp);
+		return true;
+	}
+
+	@Override
+	public void delete(String theKey) throws IOException {
+		Path path = resolve(theKey);
+		Files.deleteIfExists(path);
+		// Leaves no empty directories behind, unless another object was just added to them
+		for (Path parent = path.getParent(); !parent.equals(myBaseDirectory); parent = parent.getParent()) {
+			try (Stream<Path> children = Files.list(parent)) {
+				if (children.findAny().isPresent()) {
+					break;
+				}
+			}
+			try {
+				Files.deleteIfExists(parent);
+			} catch (DirectoryNotEmptyException e) {
+				break;
+			}
+		}
+	}
+
+	@Override
+	public List<String> list(String thePrefix) throws IOException {
+		Path prefix = resolve(thePrefix);
+		Path directory = thePrefix.endsWith("/") ? prefix : prefix.getParent();
+		if (!Files.isDirectory(directory)) {
+			return Collections.emptyList();
+		}
+		try (Stream<Path> files = Files.walk(directory)) {
+			return files
+				.filter(Files::isRegularFile)
+				.map(next -> myBaseDirectory.relativize(next).toString().replace('\\', '/'))
+				.filter(next -> next.startsWith(thePrefix))
+				.collect(Collectors.toList());
+		}
+	}
+
+	private Path resolve(String theKey) {
+		Path retVal = myBaseDirectory.resolve(theKey).normalize();
+		if (!retVal.startsWith(myBaseDirectory)) {
+			throw new IllegalArgumentException("Invalid key " + theKey);
+		}
+		return retVal;
+	}
+}
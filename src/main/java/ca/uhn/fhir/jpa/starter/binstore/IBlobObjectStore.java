@@ -0,0 +1,62 @@
+package ca.uhn.fhir.jpa.starter.binstore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * A flat key/value store of objects, used by the {@link ContentAddressedBinaryStorageSvc} to keep the
+ * contents of binaries and what refers to them. Keys are relative paths using <code>/</code>.
+ */
+public interface IBlobObjectStore {
+
+	/**
+	 * @return a new empty file the content of a binary can be spooled to before being {@link #putFile(String, Path) put}
+	 */
+	Path newTempFile() throws IOException;
+
+	boolean exists(String theKey) throws IOException;
+
+	/**
+	 * Stores the given file under the given key, the file is moved or deleted.
+	 */
+	void putFile(String theKey, Path theFile) throws IOException;
+
+	void putBytes(String theKey, byte[] theBytes) throws IOException;
+
+	/**
+	 * @return the object, or <code>null</code> if there is none under the given key
+	 */
+	byte[] getBytes(String theKey) throws IOException;
+
+	/**
+	 * Streams the object to the given output without loading it in the heap.
+	 *
+	 * @return <code>false</code> if there is no object under the given key
+	 */
+	boolean transferTo(String theKey, OutputStream theOutputStream) throws IOException;
+
+	/**
+	 * Opens a part of the object, without loading it in the heap.
+	 *
+	 * @return the <code>theLength</code> bytes of the object starting at <code>theOffset</code>, or <code>null</code>
+	 * if there is no object under the given key
+	 */
+	InputStream openStream(String theKey, long theOffset, long theLength) throws IOException;
+
+	/**
+	 * Copies an object under another key, replacing the object stored under it, if any.
+	 *
+	 * @return <code>false</code> if there is no object under the source key
+	 */
+	boolean copy(String theSourceKey, String theTargetKey) throws IOException;
+
+	void delete(String theKey) throws IOException;
+
+	/**
+	 * @return the keys starting with the given prefix
+	 */
+	List<String> list(String thePrefix) throws IOException;
+}
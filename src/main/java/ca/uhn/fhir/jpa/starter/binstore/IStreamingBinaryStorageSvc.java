@@ -0,0 +1,19 @@
+package ca.uhn.fhir.jpa.starter.binstore;
+
+import ca.uhn.fhir.jpa.binary.api.IBinaryStorageSvc;
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A binary storage that can read a part of a binary without reading what comes before it.
+ */
+public interface IStreamingBinaryStorageSvc extends IBinaryStorageSvc {
+
+	/**
+	 * @return the <code>theLength</code> bytes of the binary starting at <code>theOffset</code>, or <code>null</code>
+	 * if the binary is not stored
+	 */
+	InputStream openBlob(IIdType theResourceId, String theBlobId, long theOffset, long theLength) throws IOException;
+}
@@ -0,0 +1,137 @@
+package ca.uhn.fhir.jpa.starter.binstore;
+
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.apache.commons.lang3.StringUtils.defaultString;
+
+/**
+ * Keeps the objects in a bucket of an S3 compatible object store (AWS S3, MinIO, Ceph...), under an
+ * optional key prefix.
+ * <p>
+ * Contents are spooled to a local temporary file first, so that they are uploaded with their length
+ * known and under the key of their hash, and are streamed from the object store to the response when
+ * read.
+ */
+public class S3BlobObjectStore implements IBlobObjectStore {
+
+	private final S3Client myClient;
+	private final String myBucket;
+	private final String myKeyPrefix;
+
+	public S3BlobObjectStore(S3Client theClient, String theBucket, String theKeyPrefix) {
+		myClient = theClient;
+		myBucket = theBucket;
+		String prefix = defaultString(theKeyPrefix);
+		myKeyPrefix = prefix.isEmpty() || prefix.endsWith("/") ? prefix : prefix + "/";
+	}
+
+	@Override
+	public Path newTempFile() throws IOException {
+		return Files.createTempFile("blob", ".tmp");
+	}
+
+	@Override
+	public boolean exists(String theKey) {
+		try {
+			myClient.headObject(b -> b.bucket(myBucket).key(myKeyPrefix + theKey));
+			return true;
+		} catch (NoSuchKeyException e) {
+			return false;
+		} catch (S3Exception e) {
+			if (e.statusCode() == 404) {
+				return false;
+			}
+			throw e;
+		}
+	}
+
+	@Override
+	public void putFile(String theKey, Path theFile) throws IOException {
+		try {
+			myClient.putObject(b -> b.bucket(myBucket).key(myKeyPrefix + theKey), RequestBody.fromFile(theFile));
+		} finally {
+			Files.deleteIfExists(theFile);
+		}
+	}
+
+	@Override
+	public void putBytes(String theKey, byte[] theBytes) {
+		myClient.putObject(b -> b.bucket(myBucket).key(myKeyPrefix + theKey), RequestBody.fromBytes(theBytes));
+	}
+
+	@Override
+	public byte[] getBytes(String theKey) {
+		try {
+			ResponseBytes<GetObjectResponse> response = myClient.getObjectAsBytes(b -> b.bucket(myBucket).key(myKeyPrefix + theKey));
+			return response.asByteArrayUnsafe();
+		} catch (NoSuchKeyException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public boolean transferTo(String theKey, OutputStream theOutputStream) {
+		try {
+			myClient.getObject(GetObjectRequest.builder().bucket(myBucket).key(myKeyPrefix + theKey).build(), ResponseTransformer.toOutputStream(theOutputStream));
+			return true;
+		} catch (NoSuchKeyException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public InputStream openStream(String theKey, long theOffset, long theLength) {
+		if (theLength <= 0) {
+			return exists(theKey) ? InputStream.nullInputStream() : null;
+		}
+		try {
+			return myClient.getObject(b -> b.bucket(myBucket).key(myKeyPrefix + theKey).range("bytes=" + theOffset + "-" + (theOffset + theLength - 1)));
+		} catch (NoSuchKeyException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Copied by the object store, up to the 5 GB a single copy allows.
+	 */
+	@Override
+	public boolean copy(String theSourceKey, String theTargetKey) {
+		try {
+			myClient.copyObject(b -> b.sourceBucket(myBucket).sourceKey(myKeyPrefix + theSourceKey).destinationBucket(myBucket).destinationKey(myKeyPrefix + theTargetKey));
+			return true;
+		} catch (NoSuchKeyException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public void delete(String theKey) {
+		myClient.deleteObject(b -> b.bucket(myBucket).key(myKeyPrefix + theKey));
+	}
+
+	@Override
+	public List<String> list(String thePrefix) {
+		ListObjectsV2Request request = ListObjectsV2Request.builder().bucket(myBucket).prefix(myKeyPrefix + thePrefix).build();
+		return myClient.listObjectsV2Paginator(request).contents().stream()
+			.map(S3Object::key)
+			.map(next -> next.substring(myKeyPrefix.length()))
+			.collect(Collectors.toList());
+	}
+}
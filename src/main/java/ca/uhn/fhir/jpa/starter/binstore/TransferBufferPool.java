@@ -0,0 +1,72 @@
+package ca.uhn.fhir.jpa.starter.binstore;
+
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import javax.servlet.http.HttpServletResponse;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of the buffers binaries are copied through, so that the memory used for transfers does
+ * not grow with the number of concurrent downloads or the size of the binaries.
+ * <p>
+ * Buffers are allocated on first use, up to the size of the pool. Once all are in use, a transfer waits
+ * for one to be released, and is answered with a 503 if none is within the configured time.
+ */
+public class TransferBufferPool {
+
+	public static final String METRIC_IN_USE = "hapi.fhir.binary_transfer.buffers.in_use";
+
+	private final BlockingQueue<byte[]> myFree;
+	private final int myBufferSize;
+	private final int myMaxBuffers;
+	private final long myAcquireTimeoutMillis;
+	private final AtomicInteger myAllocated = new AtomicInteger();
+	private final AtomicInteger myInUse = new AtomicInteger();
+
+	public TransferBufferPool(int theMaxBuffers, int theBufferSize, long theAcquireTimeoutMillis) {
+		myMaxBuffers = Math.max(1, theMaxBuffers);
+		myBufferSize = Math.max(1024, theBufferSize);
+		myAcquireTimeoutMillis = theAcquireTimeoutMillis;
+		myFree = new ArrayBlockingQueue<>(myMaxBuffers);
+	}
+
+	public void registerMetrics(MeterRegistry theMeterRegistry) {
+		Gauge.builder(METRIC_IN_USE, myInUse, AtomicInteger::get).register(theMeterRegistry);
+	}
+
+	public byte[] acquire() throws InterruptedException {
+		byte[] retVal = myFree.poll();
+		if (retVal == null && myAllocated.getAndUpdate(next -> next < myMaxBuffers ? next + 1 : next) < myMaxBuffers) {
+			retVal = new byte[myBufferSize];
+		}
+		if (retVal == null) {
+			retVal = myFree.poll(myAcquireTimeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		if (retVal == null) {
+			throw new UnclassifiedServerFailureException(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many binary transfers in progress");
+		}
+		myInUse.incrementAndGet();
+		return retVal;
+	}
+
+	public void release(byte[] theBuffer) {
+		myInUse.decrementAndGet();
+		myFree.offer(theBuffer);
+	}
+
+	/**
+	 * @return the number of buffers allocated so far, never more than the size of the pool
+	 */
+	public int getAllocated() {
+		return myAllocated.get();
+	}
+
+	public int getBufferSize() {
+		return myBufferSize;
+	}
+}
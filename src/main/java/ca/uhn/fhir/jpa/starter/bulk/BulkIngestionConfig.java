@@ -0,0 +1,74 @@
+package ca.uhn.fhir.jpa.starter.bulk;
+
+import ca.uhn.fhir.batch2.api.IJobCoordinator;
+import ca.uhn.fhir.batch2.jobs.imprt.BulkDataImportProvider;
+import ca.uhn.fhir.batch2.jobs.imprt.BulkImportAppCtx;
+import ca.uhn.fhir.batch2.jobs.imprt.BulkImportJobParameters;
+import ca.uhn.fhir.batch2.jobs.imprt.NdJsonFileJson;
+import ca.uhn.fhir.batch2.model.JobDefinition;
+import ca.uhn.fhir.jpa.starter.AppProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.Optional;
+
+/**
+ * High-volume ingestion mode for <code>$import</code>, enabled with
+ * <code>hapi.fhir.bulk_ingestion_enabled</code>.
+ * <p>
+ * Registers the {@link #JOB_BULK_INGESTION} Batch2 job, which works like HAPI's
+ * {@link BulkImportAppCtx#JOB_BULK_IMPORT_PULL} job: it splits the files the same way, but uses a
+ * default chunk size from the configuration and stores each chunk with
+ * {@link BulkIngestionConsumeFilesStep}. The {@link BulkDataImportProvider} starts this job for
+ * <code>$import</code> through a {@link BulkIngestionJobCoordinator}. The job has an id of its own,
+ * so it doesn't take the place of a version HAPI may add to its own job, and jobs already started
+ * carry on with the definition they were started with when the mode is switched on or off.
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "hapi.fhir", name = "bulk_ingestion_enabled", havingValue = "true")
+public class BulkIngestionConfig {
+
+	public static final String JOB_BULK_INGESTION = "STARTER_BULK_INGESTION_PULL";
+	public static final int JOB_DEFINITION_VERSION = 1;
+
+	/**
+	 * Takes the place of the server's coordinator wherever one is injected, including in the
+	 * {@link BulkDataImportProvider}. The server's own coordinator is injected here, as a bean is never
+	 * injected into itself.
+	 */
+	@Bean
+	@Primary
+	public IJobCoordinator bulkIngestionJobCoordinator(IJobCoordinator jobCoordinator) {
+		return new BulkIngestionJobCoordinator(jobCoordinator);
+	}
+
+	@Bean
+	public JobDefinition<BulkImportJobParameters> bulkIngestionJobDefinition(BulkIngestionFetchFilesStep bulkIngestionFetchFilesStep, BulkIngestionConsumeFilesStep bulkIngestionConsumeFilesStep) {
+		return JobDefinition
+			.newBuilder()
+			.setJobDefinitionId(JOB_BULK_INGESTION)
+			.setJobDescription("FHIR Bulk Import using pull-based data source, with batched writes")
+			.setJobDefinitionVersion(JOB_DEFINITION_VERSION)
+			.setParametersType(BulkImportJobParameters.class)
+			.addFirstStep("fetch-files", "Fetch files for import", NdJsonFileJson.class, bulkIngestionFetchFilesStep)
+			.addLastStep("process-files", "Process files", bulkIngestionConsumeFilesStep)
+			.build();
+	}
+
+	@Bean
+	public BulkIngestionFetchFilesStep bulkIngestionFetchFilesStep(AppProperties appProperties) {
+		return new BulkIngestionFetchFilesStep(appProperties.getBulk_ingestion_chunk_size());
+	}
+
+	@Bean
+	public BulkIngestionConsumeFilesStep bulkIngestionConsumeFilesStep(AppProperties appProperties, EntityManagerFactory entityManagerFactory, Optional<MeterRegistry> meterRegistry) {
+		BulkIngestionConsumeFilesStep step = new BulkIngestionConsumeFilesStep(appProperties.getBulk_ingestion_jdbc_batch_size());
+		step.registerRowCounting(entityManagerFactory);
+		meterRegistry.ifPresent(step::registerMetrics);
+		return step;
+	}
+}
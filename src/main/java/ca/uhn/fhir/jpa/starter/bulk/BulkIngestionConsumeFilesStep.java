@@ -0,0 +1,96 @@
+package ca.uhn.fhir.jpa.starter.bulk;
+
+import ca.uhn.fhir.batch2.jobs.imprt.ConsumeFilesStep;
+import ca.uhn.fhir.jpa.dao.tx.HapiTransactionService;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.api.server.storage.TransactionDetails;
+import ca.uhn.fhir.util.StopWatch;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.hibernate.Session;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceContext;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores a chunk of imported resources like {@link ConsumeFilesStep}, but with a JDBC batch size
+ * of its own for the chunk's transaction.
+ * <p>
+ * All resources of a chunk and their search index rows are written in one transaction and flushed
+ * at the end of it. Hibernate orders the inserts and updates by table (the server's defaults
+ * enable <code>hibernate.order_inserts</code> and <code>hibernate.order_updates</code>), so with a
+ * large batch size every index table is written in a few large JDBC batches instead of many small
+ * ones. The batch size is set on the chunk's session only, the rest of the server keeps using
+ * <code>hibernate.jdbc.batch_size</code>.
+ * <p>
+ * The number of resources and rows written, and the rows written per second, are logged for every chunk. The
+ * rows are the resources, their versions and their search index rows, as counted by Hibernate.
+ */
+public class BulkIngestionConsumeFilesStep extends ConsumeFilesStep {
+
+	public static final String METRIC_RESOURCES = "hapi.fhir.bulk_ingestion.resources";
+	public static final String METRIC_ROWS = "hapi.fhir.bulk_ingestion.rows";
+	public static final String METRIC_CHUNKS = "hapi.fhir.bulk_ingestion.chunks";
+
+	private static final Logger ourLog = LoggerFactory.getLogger(BulkIngestionConsumeFilesStep.class);
+
+	private final int myJdbcBatchSize;
+	private final RowCountingEventListener myRowCounter = new RowCountingEventListener();
+
+	@Autowired
+	private HapiTransactionService myTransactionService;
+	@PersistenceContext
+	private EntityManager myEntityManager;
+
+	private Counter myResourcesCounter;
+	private Counter myRowsCounter;
+	private Timer myChunkTimer;
+
+	public BulkIngestionConsumeFilesStep(int theJdbcBatchSize) {
+		myJdbcBatchSize = Math.max(1, theJdbcBatchSize);
+	}
+
+	/**
+	 * Counts the rows written for each chunk
+	 */
+	public void registerRowCounting(EntityManagerFactory theEntityManagerFactory) {
+		myRowCounter.register(theEntityManagerFactory);
+	}
+
+	public void registerMetrics(MeterRegistry theMeterRegistry) {
+		myResourcesCounter = theMeterRegistry.counter(METRIC_RESOURCES);
+		myRowsCounter = theMeterRegistry.counter(METRIC_ROWS);
+		myChunkTimer = theMeterRegistry.timer(METRIC_CHUNKS);
+	}
+
+	@Override
+	public void storeResources(List<IBaseResource> theResources) {
+		StopWatch sw = new StopWatch();
+		long rows = myRowCounter.count(() -> myTransactionService.execute(new SystemRequestDetails(), new TransactionDetails(), tx -> {
+			Session session = myEntityManager.unwrap(Session.class);
+			session.setJdbcBatchSize(myJdbcBatchSize);
+			// Joins this transaction, so everything is written with the batch size set above
+			super.storeResources(theResources);
+			session.flush();
+			return null;
+		}));
+
+		// A chunk is stored as a whole or fails as a whole
+		int resources = theResources.size();
+		long millis = sw.getMillis();
+		ourLog.info("Stored {} resources as {} rows in {}ms ({} rows/sec)", resources, rows, millis, sw.formatThroughput(rows, TimeUnit.SECONDS));
+		if (myResourcesCounter != null) {
+			myResourcesCounter.increment(resources);
+			myRowsCounter.increment(rows);
+			myChunkTimer.record(millis, TimeUnit.MILLISECONDS);
+		}
+	}
+}
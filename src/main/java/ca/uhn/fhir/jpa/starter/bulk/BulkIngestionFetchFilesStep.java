@@ -0,0 +1,38 @@
+package ca.uhn.fhir.jpa.starter.bulk;
+
+import ca.uhn.fhir.batch2.api.IJobDataSink;
+import ca.uhn.fhir.batch2.api.RunOutcome;
+import ca.uhn.fhir.batch2.api.StepExecutionDetails;
+import ca.uhn.fhir.batch2.api.VoidModel;
+import ca.uhn.fhir.batch2.jobs.imprt.BulkImportJobParameters;
+import ca.uhn.fhir.batch2.jobs.imprt.FetchFilesStep;
+import ca.uhn.fhir.batch2.jobs.imprt.NdJsonFileJson;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Fetches the NDJSON files of an import like {@link FetchFilesStep}, using the configured chunk
+ * size when the <code>$import</code> request doesn't ask for a <code>maxBatchResourceCount</code>.
+ */
+public class BulkIngestionFetchFilesStep extends FetchFilesStep {
+
+	private final Integer myDefaultChunkSize;
+
+	/**
+	 * @param theDefaultChunkSize the number of resources per chunk, or <code>null</code> for the
+	 *                            default of the bulk import job
+	 */
+	public BulkIngestionFetchFilesStep(Integer theDefaultChunkSize) {
+		myDefaultChunkSize = theDefaultChunkSize;
+	}
+
+	@Nonnull
+	@Override
+	public RunOutcome run(@Nonnull StepExecutionDetails<BulkImportJobParameters, VoidModel> theStepExecutionDetails, @Nonnull IJobDataSink<NdJsonFileJson> theDataSink) {
+		BulkImportJobParameters parameters = theStepExecutionDetails.getParameters();
+		if (myDefaultChunkSize != null && (parameters.getMaxBatchResourceCount() == null || parameters.getMaxBatchResourceCount() <= 0)) {
+			parameters.setMaxBatchResourceCount(myDefaultChunkSize);
+		}
+		return super.run(theStepExecutionDetails, theDataSink);
+	}
+}
@@ -0,0 +1,77 @@
+package ca.uhn.fhir.jpa.starter.bulk;
+
+import ca.uhn.fhir.batch2.api.IJobCoordinator;
+import ca.uhn.fhir.batch2.api.JobOperationResultJson;
+import ca.uhn.fhir.batch2.jobs.imprt.BulkImportAppCtx;
+import ca.uhn.fhir.batch2.model.JobInstance;
+import ca.uhn.fhir.batch2.model.JobInstanceStartRequest;
+import ca.uhn.fhir.batch2.model.StatusEnum;
+import ca.uhn.fhir.batch2.models.JobInstanceFetchRequest;
+import ca.uhn.fhir.jpa.batch.models.Batch2JobStartResponse;
+import org.springframework.data.domain.Page;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decorates the server's {@link IJobCoordinator}, so that the pull based bulk import jobs <code>$import</code>
+ * asks for are started as {@link BulkIngestionConfig#JOB_BULK_INGESTION} jobs instead. Everything else,
+ * including looking up the instances for <code>$import-poll-status</code>, goes straight to the server's
+ * coordinator.
+ */
+public class BulkIngestionJobCoordinator implements IJobCoordinator {
+
+	private final IJobCoordinator myJobCoordinator;
+
+	public BulkIngestionJobCoordinator(IJobCoordinator theJobCoordinator) {
+		myJobCoordinator = theJobCoordinator;
+	}
+
+	@Override
+	public Batch2JobStartResponse startInstance(JobInstanceStartRequest theStartRequest) {
+		if (BulkImportAppCtx.JOB_BULK_IMPORT_PULL.equals(theStartRequest.getJobDefinitionId())) {
+			theStartRequest.setJobDefinitionId(BulkIngestionConfig.JOB_BULK_INGESTION);
+		}
+		return myJobCoordinator.startInstance(theStartRequest);
+	}
+
+	@Override
+	public JobInstance getInstance(String theInstanceId) {
+		return myJobCoordinator.getInstance(theInstanceId);
+	}
+
+	@Override
+	public List<JobInstance> getInstances(int thePageSize, int thePageIndex) {
+		return myJobCoordinator.getInstances(thePageSize, thePageIndex);
+	}
+
+	@Override
+	public List<JobInstance> getRecentInstances(int theCount, int theStart) {
+		return myJobCoordinator.getRecentInstances(theCount, theStart);
+	}
+
+	@Override
+	public JobOperationResultJson cancelInstance(String theInstanceId) {
+		return myJobCoordinator.cancelInstance(theInstanceId);
+	}
+
+	@Override
+	public List<JobInstance> getInstancesbyJobDefinitionIdAndEndedStatus(String theJobDefId, Boolean theEnded, int theCount, int theStart) {
+		return myJobCoordinator.getInstancesbyJobDefinitionIdAndEndedStatus(theJobDefId, theEnded, theCount, theStart);
+	}
+
+	@Override
+	public List<JobInstance> getJobInstancesByJobDefinitionIdAndStatuses(String theJobDefinitionId, Set<StatusEnum> theStatuses, int theCount, int theStart) {
+		return myJobCoordinator.getJobInstancesByJobDefinitionIdAndStatuses(theJobDefinitionId, theStatuses, theCount, theStart);
+	}
+
+	@Override
+	public List<JobInstance> getJobInstancesByJobDefinitionId(String theJobDefinitionId, int theCount, int theStart) {
+		return myJobCoordinator.getJobInstancesByJobDefinitionId(theJobDefinitionId, theCount, theStart);
+	}
+
+	@Override
+	public Page<JobInstance> fetchAllJobInstances(JobInstanceFetchRequest theFetchRequest) {
+		return myJobCoordinator.fetchAllJobInstances(theFetchRequest);
+	}
+}
@@ -0,0 +1,72 @@
+package ca.uhn.fhir.jpa.starter.bulk;
+
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostDeleteEventListener;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.event.spi.PostUpdateEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * Counts the rows Hibernate inserts, updates and deletes on the current thread while {@link #count} runs, i.e.
+ * the resources, their versions and all their search index rows. The listener is registered with the session
+ * factory, and ignores the work of the threads which aren't counting.
+ */
+class RowCountingEventListener implements PostInsertEventListener, PostUpdateEventListener, PostDeleteEventListener {
+
+	private final ThreadLocal<long[]> myRows = new ThreadLocal<>();
+
+	void register(EntityManagerFactory theEntityManagerFactory) {
+		EventListenerRegistry registry = theEntityManagerFactory.unwrap(SessionFactoryImplementor.class).getServiceRegistry().getService(EventListenerRegistry.class);
+		registry.appendListeners(EventType.POST_INSERT, this);
+		registry.appendListeners(EventType.POST_UPDATE, this);
+		registry.appendListeners(EventType.POST_DELETE, this);
+	}
+
+	/**
+	 * @return the number of rows written while running the given work
+	 */
+	long count(Runnable theWork) {
+		long[] rows = new long[1];
+		myRows.set(rows);
+		try {
+			theWork.run();
+		} finally {
+			myRows.remove();
+		}
+		return rows[0];
+	}
+
+	@Override
+	public void onPostInsert(PostInsertEvent theEvent) {
+		increment();
+	}
+
+	@Override
+	public void onPostUpdate(PostUpdateEvent theEvent) {
+		increment();
+	}
+
+	@Override
+	public void onPostDelete(PostDeleteEvent theEvent) {
+		increment();
+	}
+
+	@Override
+	public boolean requiresPostCommitHanding(EntityPersister thePersister) {
+		return false;
+	}
+
+	private void increment() {
+		long[] rows = myRows.get();
+		if (rows != null) {
+			rows[0]++;
+		}
+	}
+}
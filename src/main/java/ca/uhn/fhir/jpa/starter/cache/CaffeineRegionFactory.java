@@ -0,0 +1,123 @@
+package ca.uhn.fhir.jpa.starter.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.hibernate.boot.spi.SessionFactoryOptions;
+import org.hibernate.cache.cfg.spi.DomainDataRegionBuildingContext;
+import org.hibernate.cache.cfg.spi.DomainDataRegionConfig;
+import org.hibernate.cache.spi.support.DomainDataStorageAccess;
+import org.hibernate.cache.spi.support.RegionFactoryTemplate;
+import org.hibernate.cache.spi.support.StorageAccess;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hibernate second-level cache provider keeping every region in a local, bounded Caffeine cache.
+ * <p>
+ * Entity and query result regions hold at most {@link #MAX_ENTRIES} entries each and, if
+ * {@link #EXPIRE_AFTER_WRITE_SECONDS} is set, drop entries that old. The expiry bounds how long a
+ * node can serve an entry another node of a cluster has changed or deleted, as the regions are not
+ * replicated. The update timestamps region is never evicted, as Hibernate relies on it to tell
+ * whether a cached query result is still current.
+ */
+public class CaffeineRegionFactory extends RegionFactoryTemplate {
+
+	public static final String MAX_ENTRIES = "hibernate.cache.caffeine.max_entries";
+	public static final String EXPIRE_AFTER_WRITE_SECONDS = "hibernate.cache.caffeine.expire_after_write_seconds";
+
+	private final Map<String, Cache<Object, Object>> myCaches = new ConcurrentHashMap<>();
+	private long myMaxEntries;
+	private Duration myExpireAfterWrite;
+
+	@Override
+	protected void prepareForUse(SessionFactoryOptions theSettings, @SuppressWarnings("rawtypes") Map theConfigValues) {
+		Object maxEntries = theConfigValues.get(MAX_ENTRIES);
+		myMaxEntries = maxEntries != null ? Long.parseLong(maxEntries.toString()) : 10000L;
+		Object expireAfterWrite = theConfigValues.get(EXPIRE_AFTER_WRITE_SECONDS);
+		myExpireAfterWrite = expireAfterWrite != null ? Duration.ofSeconds(Long.parseLong(expireAfterWrite.toString())) : null;
+	}
+
+	@Override
+	protected void releaseFromUse() {
+		myCaches.values().forEach(Cache::invalidateAll);
+		myCaches.clear();
+	}
+
+	@Override
+	protected DomainDataStorageAccess createDomainDataStorageAccess(DomainDataRegionConfig theRegionConfig, DomainDataRegionBuildingContext theBuildingContext) {
+		return new CaffeineStorageAccess(newRegionCache(theRegionConfig.getRegionName(), true));
+	}
+
+	@Override
+	protected StorageAccess createQueryResultsRegionStorageAccess(String theRegionName, SessionFactoryImplementor theSessionFactory) {
+		return new CaffeineStorageAccess(newRegionCache(theRegionName, true));
+	}
+
+	@Override
+	protected StorageAccess createTimestampsRegionStorageAccess(String theRegionName, SessionFactoryImplementor theSessionFactory) {
+		return new CaffeineStorageAccess(newRegionCache(theRegionName, false));
+	}
+
+	private Cache<Object, Object> newRegionCache(String theRegionName, boolean theBounded) {
+		Caffeine<Object, Object> builder = Caffeine.newBuilder().recordStats();
+		if (theBounded) {
+			builder.maximumSize(myMaxEntries);
+			if (myExpireAfterWrite != null) {
+				builder.expireAfterWrite(myExpireAfterWrite);
+			}
+		}
+		Cache<Object, Object> cache = builder.build();
+		myCaches.put(theRegionName, cache);
+		return cache;
+	}
+
+	/**
+	 * @return the cache of each region, by region name
+	 */
+	public Map<String, Cache<Object, Object>> getRegionCaches() {
+		return Collections.unmodifiableMap(myCaches);
+	}
+
+	private static final class CaffeineStorageAccess implements DomainDataStorageAccess {
+		private final Cache<Object, Object> myCache;
+
+		private CaffeineStorageAccess(Cache<Object, Object> theCache) {
+			myCache = theCache;
+		}
+
+		@Override
+		public Object getFromCache(Object theKey, SharedSessionContractImplementor theSession) {
+			return myCache.getIfPresent(theKey);
+		}
+
+		@Override
+		public void putIntoCache(Object theKey, Object theValue, SharedSessionContractImplementor theSession) {
+			myCache.put(theKey, theValue);
+		}
+
+		@Override
+		public boolean contains(Object theKey) {
+			return myCache.asMap().containsKey(theKey);
+		}
+
+		@Override
+		public void evictData() {
+			myCache.invalidateAll();
+		}
+
+		@Override
+		public void evictData(Object theKey) {
+			myCache.invalidate(theKey);
+		}
+
+		@Override
+		public void release() {
+			myCache.invalidateAll();
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package ca.uhn.fhir.jpa.starter.cache;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.HookParams;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListenerRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.jpa.starter.common.InvalidatingResourceChangeListener;
+import ca.uhn.fhir.jpa.starter.formatting.MachineClientFormattingInterceptor;
+import ca.uhn.fhir.rest.api.CacheControlDirective;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.IServerConformanceProvider;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import com.google.common.hash.Hashing;
+import org.hl7.fhir.instance.model.api.IBaseConformance;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves <code>/metadata</code> from a pre-encoded copy of the CapabilityStatement, one per server
+ * base, content type, pretty printing and <code>_summary</code>/<code>_elements</code> combination.
+ * <p>
+ * The statement is built by the server's conformance provider, passed through the
+ * {@link Pointcut#SERVER_CAPABILITY_STATEMENT_GENERATED} hooks and encoded once. Each copy carries a
+ * strong ETag derived from its bytes, so that clients sending <code>If-None-Match</code> get a 304.
+ * All copies are dropped whenever a SearchParameter or StructureDefinition is created, changed or
+ * deleted (which is also what installing an implementation guide does), or when {@link #invalidate()}
+ * is called. The supported resource types are fixed at startup, so they need no tracking.
+ * A request with <code>Cache-Control: no-cache</code> always rebuilds the statement. The resource
+ * counts reported in the statement are the ones from when it was last built.
+ */
+@Interceptor
+public class CapabilityStatementCacheInterceptor {
+
+	private static final Set<String> CACHEABLE_PARAMETERS = Set.of(Constants.PARAM_FORMAT, Constants.PARAM_PRETTY, Constants.PARAM_SUMMARY, Constants.PARAM_ELEMENTS);
+	private static final long REFRESH_INTERVAL_MILLIS = 60000L;
+
+	private final IServerConformanceProvider<?> myConformanceProvider;
+	private final ConcurrentMap<String, EncodedStatement> myStatements = new ConcurrentHashMap<>();
+	private final AtomicLong myGeneration = new AtomicLong();
+
+	public CapabilityStatementCacheInterceptor(IServerConformanceProvider<?> theConformanceProvider) {
+		myConformanceProvider = theConformanceProvider;
+	}
+
+	/**
+	 * Watches the resource types the CapabilityStatement is derived from, so that the cached copies
+	 * are dropped after they change.
+	 */
+	public void registerListeners(IResourceChangeListenerRegistry theResourceChangeListenerRegistry) {
+		for (String next : new String[]{"SearchParameter", "StructureDefinition"}) {
+			theResourceChangeListenerRegistry.registerResourceResourceChangeListener(next, SearchParameterMap.newSynchronous(), new InvalidatingResourceChangeListener(next, "cached CapabilityStatement", this::invalidate), REFRESH_INTERVAL_MILLIS);
+		}
+	}
+
+	public void invalidate() {
+		myGeneration.incrementAndGet();
+		myStatements.clear();
+	}
+
+	@Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+	public boolean serveCapabilityStatement(RequestDetails theRequestDetails, HttpServletRequest theServletRequest, HttpServletResponse theServletResponse) throws IOException {
+		if (theRequestDetails.getRestOperationType() != RestOperationTypeEnum.METADATA) {
+			return true;
+		}
+		String key = toKey(theRequestDetails, theServletRequest);
+		if (key == null) {
+			return true;
+		}
+
+		EncodedStatement statement = myStatements.get(key);
+		if (statement == null || new CacheControlDirective().parse(theRequestDetails.getHeaders(Constants.HEADER_CACHE_CONTROL)).isNoCache()) {
+			long generation = myGeneration.get();
+			statement = encode(theRequestDetails, theServletRequest);
+			// A statement built while the registry was changing may already be outdated
+			if (generation == myGeneration.get()) {
+				myStatements.put(key, statement);
+			}
+		}
+
+		theServletResponse.setHeader(Constants.HEADER_ETAG, statement.myETag);
+		if (statement.myETag.equals(theServletRequest.getHeader(Constants.HEADER_IF_NONE_MATCH))) {
+			theServletResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return false;
+		}
+		theServletResponse.setStatus(HttpServletResponse.SC_OK);
+		theServletResponse.setContentType(statement.myContentType);
+		theServletResponse.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+		theServletResponse.setContentLength(statement.myBody.length);
+		ServletOutputStream outputStream = theServletResponse.getOutputStream();
+		outputStream.write(statement.myBody);
+		outputStream.flush();
+		return false;
+	}
+
+	private EncodedStatement encode(RequestDetails theRequestDetails, HttpServletRequest theServletRequest) {
+		IBaseConformance conformance = (IBaseConformance) myConformanceProvider.getServerConformance(theServletRequest, theRequestDetails);
+		if (theRequestDetails.getInterceptorBroadcaster() != null) {
+			HookParams params = new HookParams();
+			params.add(IBaseConformance.class, conformance);
+			params.add(RequestDetails.class, theRequestDetails);
+			params.addIfMatchesType(ServletRequestDetails.class, theRequestDetails);
+			IBaseConformance outcome = (IBaseConformance) theRequestDetails.getInterceptorBroadcaster().callHooksAndReturnObject(Pointcut.SERVER_CAPABILITY_STATEMENT_GENERATED, params);
+			if (outcome != null) {
+				conformance = outcome;
+			}
+		}
+
+		FhirContext fhirContext = theRequestDetails.getFhirContext();
+		byte[] body = RestfulServerUtils.getNewParser(fhirContext, fhirContext.getVersion().getVersion(), theRequestDetails)
+			.setPrettyPrint(MachineClientFormattingInterceptor.prettyPrintResponse(theRequestDetails))
+			.encodeResourceToString(conformance)
+			.getBytes(StandardCharsets.UTF_8);
+		String eTag = "\"" + Hashing.sha256().hashBytes(body).toString().substring(0, 32) + "\"";
+		String contentType = RestfulServerUtils.determineResponseEncodingWithDefault(theRequestDetails).getResourceContentType();
+		return new EncodedStatement(body, contentType, eTag);
+	}
+
+	private static String toKey(RequestDetails theRequestDetails, HttpServletRequest theServletRequest) {
+		for (String next : theRequestDetails.getParameters().keySet()) {
+			if (!CACHEABLE_PARAMETERS.contains(next)) {
+				return null;
+			}
+		}
+		// Browsers get the statement rendered by the response highlighter
+		String accept = theServletRequest.getHeader(Constants.HEADER_ACCEPT);
+		String[] format = theRequestDetails.getParameters().get(Constants.PARAM_FORMAT);
+		if ((accept != null && accept.contains(Constants.CT_HTML))
+			|| (format != null && Arrays.stream(format).anyMatch(f -> f.contains("html")))) {
+			return null;
+		}
+
+		StringBuilder b = new StringBuilder();
+		b.append(theRequestDetails.getFhirServerBase()).append('|');
+		b.append(RestfulServerUtils.determineResponseEncodingWithDefault(theRequestDetails).getResourceContentType()).append('|');
+		b.append(MachineClientFormattingInterceptor.prettyPrintResponse(theRequestDetails));
+		for (String next : new String[]{Constants.PARAM_SUMMARY, Constants.PARAM_ELEMENTS}) {
+			String[] values = theRequestDetails.getParameters().get(next);
+			b.append('|').append(values != null ? String.join(",", values) : "");
+		}
+		return b.toString();
+	}
+
+	private static final class EncodedStatement {
+		private final byte[] myBody;
+		private final String myContentType;
+		private final String myETag;
+
+		private EncodedStatement(byte[] theBody, String theContentType, String theETag) {
+			myBody = theBody;
+			myContentType = theContentType;
+			myETag = theETag;
+		}
+	}
+}
@@ -0,0 +1,337 @@
+package ca.uhn.fhir.jpa.starter.cache;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.starter.formatting.MachineClientFormattingInterceptor;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.hash.Hashing;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the encoded response bodies of <code>read</code> and <code>vread</code> requests, so that
+ * repeated reads of the same resource skip loading, parsing and encoding it.
+ * <p>
+ * Entries are grouped per resource id, and each group holds one response per variant: version, tenant,
+ * content type, pretty printing, <code>_summary</code>, <code>_elements</code> and the credentials of
+ * the client. The cache is bounded by the total size of the cached bodies and evicts least recently
+ * used resources, and every entry expires after a fixed time to live. Any create, update or delete of a
+ * resource drops all its variants, once when the change is about to be committed and again after the
+ * transaction completes. A read that was in flight while some resource changed is not cached, so a
+ * response loaded before a commit can't be stored after the invalidation. Invalidation only reaches the
+ * cache of this JVM: when several replicas share a database, a replica serves the previous version of a
+ * resource written through another replica until the entry expires, so the time to live is the bound on
+ * staleness there.
+ * <p>
+ * A hit is written straight to the servlet response, bypassing the rest of the request processing,
+ * including authorization, consent and any interceptors that look at the outgoing response. That's why
+ * the credentials (the <code>Authorization</code> and <code>Cookie</code> headers and the authenticated
+ * user) are part of the variant: a client is only ever served a response that was built, authorized
+ * and filtered for the same credentials, no older than the time to live. Access rules that depend on
+ * anything else about the request, such as the client address, can't be combined with this cache.
+ * Requests for HTML, for <code>Binary</code> resources or with parameters other than the ones above
+ * always go through the normal processing. The interceptor has to be registered with the server as
+ * well as with the JPA interceptor service, so that writes made outside of a server request invalidate
+ * entries too.
+ */
+@Interceptor
+public class ReadResponseCacheInterceptor {
+
+	public static final String CACHE_NAME = "hapi.fhir.read_response_cache";
+
+	private static final String USER_DATA_PENDING = ReadResponseCacheInterceptor.class.getName() + "_PENDING";
+	private static final Set<String> CACHEABLE_PARAMETERS = Set.of(Constants.PARAM_FORMAT, Constants.PARAM_PRETTY, Constants.PARAM_SUMMARY, Constants.PARAM_ELEMENTS, Constants.PARAM_ELEMENTS + Constants.PARAM_ELEMENTS_EXCLUDE_MODIFIER);
+
+	private final Cache<String, Map<String, CachedResponse>> myCache;
+	private final long myMaximumEntryBytes;
+	private final AtomicLong myWriteEpoch = new AtomicLong();
+
+	/**
+	 * @param theTimeToLive how long a response is served after it was cached, the longest a response
+	 *                      may be stale when another replica writes the resource
+	 */
+	public ReadResponseCacheInterceptor(long theMaximumBytes, Duration theTimeToLive) {
+		myCache = Caffeine.newBuilder()
+			.maximumWeight(theMaximumBytes)
+			.weigher((String theKey, Map<String, CachedResponse> theVariants) -> theVariants.values().stream().mapToInt(CachedResponse::getWeight).sum())
+			.expireAfterWrite(theTimeToLive)
+			.recordStats()
+			.build();
+		// A single huge resource shouldn't flush the whole cache
+		myMaximumEntryBytes = Math.max(1, theMaximumBytes / 10);
+	}
+
+	public void registerMetrics(MeterRegistry theMeterRegistry) {
+		CaffeineCacheMetrics.monitor(theMeterRegistry, myCache, CACHE_NAME);
+	}
+
+	@Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+	public boolean serveFromCache(RequestDetails theRequestDetails, HttpServletRequest theServletRequest, HttpServletResponse theServletResponse) throws IOException {
+		String resourceKey = toResourceKey(theRequestDetails);
+		if (resourceKey == null) {
+			return true;
+		}
+		String variantKey = toVariantKey(theRequestDetails, theServletRequest);
+		if (variantKey == null) {
+			return true;
+		}
+
+		Map<String, CachedResponse> variants = myCache.getIfPresent(resourceKey);
+		CachedResponse cached = variants != null ? variants.get(variantKey) : null;
+		if (cached == null) {
+			theRequestDetails.getUserData().put(USER_DATA_PENDING, new PendingResponse(resourceKey, variantKey, myWriteEpoch.get()));
+			return true;
+		}
+
+		cached.writeTo(theServletRequest, theServletResponse);
+		return false;
+	}
+
+	@Hook(Pointcut.SERVER_OUTGOING_WRITER_CREATED)
+	public Writer captureResponse(Writer theWriter, RequestDetails theRequestDetails, ServletRequestDetails theServletRequestDetails) {
+		PendingResponse pending = (PendingResponse) theRequestDetails.getUserData().remove(USER_DATA_PENDING);
+		if (pending == null || theServletRequestDetails == null) {
+			return theWriter;
+		}
+		return new CapturingWriter(theWriter, pending, theServletRequestDetails.getServletResponse());
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+	public void resourceCreated(IBaseResource theResource) {
+		invalidate(theResource.getIdElement());
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+	public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+		invalidate(theNewResource.getIdElement());
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+	public void resourceDeleted(IBaseResource theResource) {
+		invalidate(theResource.getIdElement());
+	}
+
+	@Hook(Pointcut.STORAGE_PRESTORAGE_EXPUNGE_RESOURCE)
+	public void resourceExpunged(IIdType theId) {
+		invalidate(theId);
+	}
+
+	@Hook(Pointcut.STORAGE_PRESTORAGE_EXPUNGE_EVERYTHING)
+	public void everythingExpunged() {
+		myWriteEpoch.incrementAndGet();
+		myCache.invalidateAll();
+	}
+
+	private void invalidate(IIdType theId) {
+		if (theId == null || !theId.hasResourceType() || !theId.hasIdPart()) {
+			return;
+		}
+		String resourceKey = theId.getResourceType() + "/" + theId.getIdPart();
+		doInvalidate(resourceKey);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCompletion(int theStatus) {
+					doInvalidate(resourceKey);
+				}
+			});
+		}
+	}
+
+	private void doInvalidate(String theResourceKey) {
+		myWriteEpoch.incrementAndGet();
+		myCache.invalidate(theResourceKey);
+	}
+
+	private void store(PendingResponse thePending, CachedResponse theResponse) {
+		myCache.asMap().compute(thePending.myResourceKey, (theKey, theVariants) -> {
+			// Checked inside compute() so that it is atomic with respect to a concurrent invalidation
+			if (myWriteEpoch.get() != thePending.myEpoch) {
+				return theVariants;
+			}
+			Map<String, CachedResponse> retVal = theVariants != null ? new HashMap<>(theVariants) : new HashMap<>();
+			retVal.put(thePending.myVariantKey, theResponse);
+			return Collections.unmodifiableMap(retVal);
+		});
+	}
+
+	private static String toResourceKey(RequestDetails theRequestDetails) {
+		RestOperationTypeEnum operation = theRequestDetails.getRestOperationType();
+		if (operation != RestOperationTypeEnum.READ && operation != RestOperationTypeEnum.VREAD) {
+			return null;
+		}
+		IIdType id = theRequestDetails.getId();
+		if (id == null || !id.hasIdPart() || "Binary".equals(theRequestDetails.getResourceName())) {
+			return null;
+		}
+		return theRequestDetails.getResourceName() + "/" + id.getIdPart();
+	}
+
+	private static String toVariantKey(RequestDetails theRequestDetails, HttpServletRequest theServletRequest) {
+		for (String next : theRequestDetails.getParameters().keySet()) {
+			if (!CACHEABLE_PARAMETERS.contains(next)) {
+				return null;
+			}
+		}
+		// Leave conditional reads and browsers (the response highlighter) to the normal processing
+		String accept = theServletRequest.getHeader(Constants.HEADER_ACCEPT);
+		String[] format = theRequestDetails.getParameters().get(Constants.PARAM_FORMAT);
+		if (theServletRequest.getHeader(Constants.HEADER_IF_MODIFIED_SINCE) != null
+			|| (accept != null && accept.contains(Constants.CT_HTML))
+			|| (format != null && Arrays.stream(format).anyMatch(f -> f.contains("html")))) {
+			return null;
+		}
+
+		StringBuilder b = new StringBuilder();
+		b.append(toCredentialsKey(theServletRequest)).append('|');
+		b.append(theRequestDetails.getTenantId()).append('|');
+		b.append(theRequestDetails.getId().getVersionIdPart()).append('|');
+		b.append(RestfulServerUtils.determineResponseEncodingWithDefault(theRequestDetails).getResourceContentType()).append('|');
+		b.append(MachineClientFormattingInterceptor.prettyPrintResponse(theRequestDetails));
+		for (String next : new String[]{Constants.PARAM_SUMMARY, Constants.PARAM_ELEMENTS, Constants.PARAM_ELEMENTS + Constants.PARAM_ELEMENTS_EXCLUDE_MODIFIER}) {
+			String[] values = theRequestDetails.getParameters().get(next);
+			b.append('|').append(values != null ? String.join(",", values) : "");
+		}
+		return b.toString();
+	}
+
+	/**
+	 * Hashes whatever the client authenticates with, so that the cache doesn't hold the credentials themselves
+	 */
+	private static String toCredentialsKey(HttpServletRequest theServletRequest) {
+		String authorization = theServletRequest.getHeader(Constants.HEADER_AUTHORIZATION);
+		String cookie = theServletRequest.getHeader(Constants.HEADER_COOKIE);
+		String user = theServletRequest.getRemoteUser();
+		if (authorization == null && cookie == null && user == null) {
+			return "";
+		}
+		return Hashing.sha256().newHasher()
+			.putString(String.valueOf(authorization), StandardCharsets.UTF_8).putChar('\n')
+			.putString(String.valueOf(cookie), StandardCharsets.UTF_8).putChar('\n')
+			.putString(String.valueOf(user), StandardCharsets.UTF_8)
+			.hash()
+			.toString();
+	}
+
+	private static final class PendingResponse {
+		private final String myResourceKey;
+		private final String myVariantKey;
+		private final long myEpoch;
+
+		private PendingResponse(String theResourceKey, String theVariantKey, long theEpoch) {
+			myResourceKey = theResourceKey;
+			myVariantKey = theVariantKey;
+			myEpoch = theEpoch;
+		}
+	}
+
+	private static final class CachedResponse {
+		private final byte[] myBody;
+		private final String myContentType;
+		private final String myETag;
+		private final String myLastModified;
+		private final String myContentLocation;
+
+		private CachedResponse(byte[] theBody, String theContentType, String theETag, String theLastModified, String theContentLocation) {
+			myBody = theBody;
+			myContentType = theContentType;
+			myETag = theETag;
+			myLastModified = theLastModified;
+			myContentLocation = theContentLocation;
+		}
+
+		private int getWeight() {
+			return myBody.length + 256;
+		}
+
+		private void writeTo(HttpServletRequest theServletRequest, HttpServletResponse theServletResponse) throws IOException {
+			if (myETag != null) {
+				theServletResponse.setHeader(Constants.HEADER_ETAG, myETag);
+			}
+			if (myLastModified != null) {
+				theServletResponse.setHeader(Constants.HEADER_LAST_MODIFIED, myLastModified);
+			}
+			if (myContentLocation != null) {
+				theServletResponse.setHeader(Constants.HEADER_CONTENT_LOCATION, myContentLocation);
+			}
+			if (myETag != null && myETag.equals(theServletRequest.getHeader(Constants.HEADER_IF_NONE_MATCH))) {
+				theServletResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
+			theServletResponse.setStatus(HttpServletResponse.SC_OK);
+			theServletResponse.setContentType(myContentType);
+			theServletResponse.setContentLength(myBody.length);
+			ServletOutputStream outputStream = theServletResponse.getOutputStream();
+			outputStream.write(myBody);
+			outputStream.flush();
+		}
+	}
+
+	/**
+	 * Passes the response through while keeping a copy of it, which is stored once the response is
+	 * complete and turned out to be a plain successful one.
+	 */
+	private final class CapturingWriter extends Writer {
+		private final Writer myDelegate;
+		private final PendingResponse myPending;
+		private final HttpServletResponse myServletResponse;
+		private StringBuilder myCopy = new StringBuilder();
+
+		private CapturingWriter(Writer theDelegate, PendingResponse thePending, HttpServletResponse theServletResponse) {
+			myDelegate = theDelegate;
+			myPending = thePending;
+			myServletResponse = theServletResponse;
+		}
+
+		@Override
+		public void write(char[] theBuffer, int theOffset, int theLength) throws IOException {
+			myDelegate.write(theBuffer, theOffset, theLength);
+			if (myCopy != null) {
+				myCopy.append(theBuffer, theOffset, theLength);
+				if (myCopy.length() > myMaximumEntryBytes) {
+					myCopy = null;
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			myDelegate.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			myDelegate.close();
+			if (myCopy != null && myServletResponse.getStatus() == HttpServletResponse.SC_OK) {
+				byte[] body = myCopy.toString().getBytes(StandardCharsets.UTF_8);
+				myCopy = null;
+				store(myPending, new CachedResponse(body, myServletResponse.getContentType(), myServletResponse.getHeader(Constants.HEADER_ETAG), myServletResponse.getHeader(Constants.HEADER_LAST_MODIFIED), myServletResponse.getHeader(Constants.HEADER_CONTENT_LOCATION)));
+			}
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package ca.uhn.fhir.jpa.starter.cache;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.hibernate.cache.spi.RegionFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+
+import javax.annotation.Nonnull;
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * Publishes the size, hits, misses and evictions of every second-level cache region held by a
+ * {@link CaffeineRegionFactory}, tagged with the region name (<code>cache.gets{cache=&lt;region&gt;}</code>
+ * and so on), so that the hit ratio of each region can be followed.
+ */
+public class SecondLevelCacheMetrics implements MeterBinder {
+
+	private final EntityManagerFactory myEntityManagerFactory;
+
+	public SecondLevelCacheMetrics(EntityManagerFactory theEntityManagerFactory) {
+		myEntityManagerFactory = theEntityManagerFactory;
+	}
+
+	@Override
+	public void bindTo(@Nonnull MeterRegistry theRegistry) {
+		RegionFactory regionFactory = myEntityManagerFactory.unwrap(SessionFactoryImplementor.class).getCache().getRegionFactory();
+		if (regionFactory instanceof CaffeineRegionFactory) {
+			((CaffeineRegionFactory) regionFactory).getRegionCaches().forEach((name, cache) -> CaffeineCacheMetrics.monitor(theRegistry, cache, name));
+		}
+	}
+}
@@ -2,12 +2,18 @@ package ca.uhn.fhir.jpa.starter.common;
 
 import ca.uhn.fhir.jpa.api.config.DaoConfig;
 import ca.uhn.fhir.jpa.binary.api.IBinaryStorageSvc;
+import ca.uhn.fhir.jpa.binstore.BaseBinaryStorageSvcImpl;
 import ca.uhn.fhir.jpa.binstore.DatabaseBlobBinaryStorageSvcImpl;
 import ca.uhn.fhir.jpa.config.HibernatePropertiesProvider;
 import ca.uhn.fhir.jpa.model.config.PartitionSettings;
 import ca.uhn.fhir.jpa.model.config.PartitionSettings.CrossPartitionReferenceMode;
 import ca.uhn.fhir.jpa.model.entity.ModelConfig;
+import ca.uhn.fhir.jpa.model.entity.ResourceEncodingEnum;
 import ca.uhn.fhir.jpa.starter.AppProperties;
+import ca.uhn.fhir.jpa.starter.binstore.ContentAddressedBinaryStorageSvc;
+import ca.uhn.fhir.jpa.starter.binstore.FilesystemBlobObjectStore;
+import ca.uhn.fhir.jpa.starter.binstore.IBlobObjectStore;
+import ca.uhn.fhir.jpa.starter.binstore.S3BlobObjectStore;
 import ca.uhn.fhir.jpa.starter.util.JpaHibernatePropertiesProvider;
 import ca.uhn.fhir.jpa.subscription.channel.subscription.SubscriptionDeliveryHandlerFactory;
 import ca.uhn.fhir.jpa.subscription.match.deliver.email.EmailSenderImpl;
@@ -16,6 +22,7 @@ import ca.uhn.fhir.rest.server.mail.IMailSvc;
 import ca.uhn.fhir.rest.server.mail.MailConfig;
 import ca.uhn.fhir.rest.server.mail.MailSvc;
 import com.google.common.base.Strings;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.hl7.fhir.r4.model.Bundle.BundleType;
 import org.hl7.fhir.dstu2.model.Subscription;
 import org.springframework.boot.env.YamlPropertySourceLoader;
@@ -25,7 +32,18 @@ import org.springframework.context.annotation.Lazy;
 import org.springframework.context.annotation.Primary;
 import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
 import org.springframework.transaction.annotation.EnableTransactionManagement;
-
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3ClientBuilder;
+import software.amazon.awssdk.services.s3.S3Configuration;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.HashSet;
 import java.util.Optional;
 import java.util.stream.Collectors;
@@ -136,6 +154,10 @@ public class FhirServerConfigCommon {
 	  if(appProperties.getInline_resource_storage_below_size() != 0){
 		  daoConfig.setInlineResourceTextBelowSize(appProperties.getInline_resource_storage_below_size());
 	  }
+	  if (appProperties.getResource_compression_enabled()) {
+		  // The resource text is compressed by the ResourceTextCompressionIntegrator, rather than gzipped by HAPI
+		  daoConfig.setResourceEncoding(ResourceEncodingEnum.JSON);
+	  }
 
 	  daoConfig.setStoreResourceInHSearchIndex(appProperties.getStore_resource_in_lucene_index_enabled());
 	  daoConfig.getModelConfig().setNormalizedQuantitySearchLevel(appProperties.getNormalized_quantity_search_level());
@@ -156,7 +178,7 @@ public class FhirServerConfigCommon {
     }
     //Parallel Batch GET execution settings
 	  daoConfig.setBundleBatchPoolSize(appProperties.getBundle_batch_pool_size());
-	  daoConfig.setBundleBatchPoolSize(appProperties.getBundle_batch_pool_max_size());
+	  daoConfig.setBundleBatchMaxPoolSize(appProperties.getBundle_batch_pool_max_size());
 
 
     return daoConfig;
@@ -208,10 +230,36 @@ public class FhirServerConfigCommon {
     return modelConfig;
   }
 
+  /**
+   * Binaries are stored in database blobs unless <code>hapi.fhir.binary_storage_backend</code> selects a local
+   * directory (<code>binary_storage_directory</code>) or an S3 compatible bucket (<code>binary_storage_s3</code>),
+   * see {@link ContentAddressedBinaryStorageSvc}.
+   */
   @Lazy
   @Bean
-  public IBinaryStorageSvc binaryStorageSvc(AppProperties appProperties) {
-    DatabaseBlobBinaryStorageSvcImpl binaryStorageSvc = new DatabaseBlobBinaryStorageSvcImpl();
+  public IBinaryStorageSvc binaryStorageSvc(AppProperties appProperties, Optional<MeterRegistry> meterRegistry) throws IOException {
+    BaseBinaryStorageSvcImpl binaryStorageSvc;
+    switch (appProperties.getBinary_storage_backend()) {
+      case FILESYSTEM:
+        if (Strings.isNullOrEmpty(appProperties.getBinary_storage_directory())) {
+          throw new IllegalStateException("hapi.fhir.binary_storage_directory is required with the FILESYSTEM binary storage backend");
+        }
+        ourLog.info("Storing binaries in {}", appProperties.getBinary_storage_directory());
+        binaryStorageSvc = newContentAddressedBinaryStorageSvc(new FilesystemBlobObjectStore(Paths.get(appProperties.getBinary_storage_directory())), appProperties, meterRegistry);
+        break;
+      case S3:
+        AppProperties.BinaryStorageS3 s3 = appProperties.getBinary_storage_s3();
+        if (Strings.isNullOrEmpty(s3.getBucket())) {
+          throw new IllegalStateException("hapi.fhir.binary_storage_s3.bucket is required with the S3 binary storage backend");
+        }
+        ourLog.info("Storing binaries in the S3 bucket {} at {}", s3.getBucket(), Strings.isNullOrEmpty(s3.getEndpoint()) ? "AWS" : s3.getEndpoint());
+        binaryStorageSvc = newContentAddressedBinaryStorageSvc(new S3BlobObjectStore(newS3Client(s3), s3.getBucket(), s3.getKey_prefix()), appProperties, meterRegistry);
+        break;
+      case DATABASE:
+      default:
+        binaryStorageSvc = new DatabaseBlobBinaryStorageSvcImpl();
+        break;
+    }
 
     if (appProperties.getMax_binary_size() != null) {
       binaryStorageSvc.setMaximumBinarySize(appProperties.getMax_binary_size());
@@ -220,6 +268,31 @@ public class FhirServerConfigCommon {
     return binaryStorageSvc;
   }
 
+  private static ContentAddressedBinaryStorageSvc newContentAddressedBinaryStorageSvc(IBlobObjectStore theStore, AppProperties theAppProperties, Optional<MeterRegistry> theMeterRegistry) {
+    ContentAddressedBinaryStorageSvc retVal = new ContentAddressedBinaryStorageSvc(theStore, Duration.ofSeconds(theAppProperties.getBinary_storage_orphan_grace_seconds()));
+    theMeterRegistry.ifPresent(retVal::registerMetrics);
+    return retVal;
+  }
+
+  /**
+   * Uses the static credentials when they are set, the default AWS credentials chain (environment, profile,
+   * instance role...) otherwise.
+   */
+  private static S3Client newS3Client(AppProperties.BinaryStorageS3 theS3) {
+    S3ClientBuilder builder = S3Client.builder()
+      .region(Region.of(theS3.getRegion()))
+      .serviceConfiguration(S3Configuration.builder().pathStyleAccessEnabled(theS3.getPath_style_access()).build());
+    if (!Strings.isNullOrEmpty(theS3.getEndpoint())) {
+      builder.endpointOverride(URI.create(theS3.getEndpoint()));
+    }
+    if (!Strings.isNullOrEmpty(theS3.getAccess_key())) {
+      builder.credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create(theS3.getAccess_key(), theS3.getSecret_key())));
+    } else {
+      builder.credentialsProvider(DefaultCredentialsProvider.create());
+    }
+    return builder.build();
+  }
+
   @Bean
   public IEmailSender emailSender(AppProperties appProperties, Optional<SubscriptionDeliveryHandlerFactory> subscriptionDeliveryHandlerFactory) {
     if (appProperties.getSubscription() != null && appProperties.getSubscription().getEmail() != null) {
@@ -0,0 +1,44 @@
+package ca.uhn.fhir.jpa.starter.common;
+
+import ca.uhn.fhir.jpa.cache.IResourceChangeEvent;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListener;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+
+/**
+ * Drops a cache derived from the resources of a type, once when the listener is registered and then
+ * whenever one of them is created, changed or deleted.
+ */
+public class InvalidatingResourceChangeListener implements IResourceChangeListener {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(InvalidatingResourceChangeListener.class);
+
+	private final String myResourceType;
+	private final String myCacheDescription;
+	private final Runnable myInvalidation;
+
+	/**
+	 * @param theCacheDescription what is dropped, for the log, e.g. <code>cached validation outcomes</code>
+	 */
+	public InvalidatingResourceChangeListener(String theResourceType, String theCacheDescription, Runnable theInvalidation) {
+		myResourceType = theResourceType;
+		myCacheDescription = theCacheDescription;
+		myInvalidation = theInvalidation;
+	}
+
+	@Override
+	public void handleInit(Collection<IIdType> theResourceIds) {
+		myInvalidation.run();
+	}
+
+	@Override
+	public void handleChange(IResourceChangeEvent theResourceChangeEvent) {
+		if (!theResourceChangeEvent.isEmpty()) {
+			ourLog.info("{} resources changed, dropping the {}", myResourceType, myCacheDescription);
+			myInvalidation.run();
+		}
+	}
+}
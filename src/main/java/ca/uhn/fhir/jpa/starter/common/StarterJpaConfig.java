@@ -10,19 +10,22 @@ import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.FhirVersionEnum;
 import ca.uhn.fhir.context.support.IValidationSupport;
 import ca.uhn.fhir.interceptor.api.IInterceptorBroadcaster;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
 import ca.uhn.fhir.jpa.api.IDaoRegistry;
 import ca.uhn.fhir.jpa.api.config.DaoConfig;
 import ca.uhn.fhir.jpa.api.config.ThreadPoolFactoryConfig;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.api.dao.IFhirSystemDao;
+import ca.uhn.fhir.jpa.binary.api.IBinaryStorageSvc;
 import ca.uhn.fhir.jpa.binary.interceptor.BinaryStorageInterceptor;
 import ca.uhn.fhir.jpa.binary.provider.BinaryAccessProvider;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListenerRegistry;
 import ca.uhn.fhir.jpa.bulk.export.provider.BulkDataExportProvider;
 import ca.uhn.fhir.jpa.config.util.HapiEntityManagerFactoryUtil;
 import ca.uhn.fhir.jpa.config.util.ResourceCountCacheUtil;
-import ca.uhn.fhir.jpa.config.util.ValidationSupportConfigUtil;
 import ca.uhn.fhir.jpa.dao.FulltextSearchSvcImpl;
 import ca.uhn.fhir.jpa.dao.IFulltextSearchSvc;
+import ca.uhn.fhir.jpa.dao.data.INpmPackageVersionDao;
 import ca.uhn.fhir.jpa.dao.mdm.MdmLinkDaoJpaImpl;
 import ca.uhn.fhir.jpa.dao.search.HSearchSortHelperImpl;
 import ca.uhn.fhir.jpa.dao.search.IHSearchSortHelper;
@@ -31,19 +34,50 @@ import ca.uhn.fhir.jpa.graphql.GraphQLProvider;
 import ca.uhn.fhir.jpa.interceptor.CascadingDeleteInterceptor;
 import ca.uhn.fhir.jpa.interceptor.validation.RepositoryValidatingInterceptor;
 import ca.uhn.fhir.jpa.ips.provider.IpsOperationProvider;
+import ca.uhn.fhir.jpa.packages.IHapiPackageCacheManager;
 import ca.uhn.fhir.jpa.packages.IPackageInstallerSvc;
 import ca.uhn.fhir.jpa.packages.PackageInstallationSpec;
+import ca.uhn.fhir.jpa.packages.loader.PackageLoaderSvc;
 import ca.uhn.fhir.jpa.partition.PartitionManagementProvider;
 import ca.uhn.fhir.jpa.provider.*;
 import ca.uhn.fhir.jpa.provider.dstu3.JpaConformanceProviderDstu3;
 import ca.uhn.fhir.jpa.search.DatabaseBackedPagingProvider;
 import ca.uhn.fhir.jpa.search.IStaleSearchDeletingSvc;
 import ca.uhn.fhir.jpa.search.StaleSearchDeletingSvcImpl;
+import ca.uhn.fhir.jpa.search.cache.ISearchResultCacheSvc;
+import ca.uhn.fhir.jpa.model.entity.ModelConfig;
+import ca.uhn.fhir.jpa.searchparam.MatchUrlService;
+import ca.uhn.fhir.jpa.searchparam.extractor.ISearchParamExtractor;
 import ca.uhn.fhir.jpa.starter.AppProperties;
 import ca.uhn.fhir.jpa.starter.annotations.OnCorsPresent;
 import ca.uhn.fhir.jpa.starter.annotations.OnImplementationGuidesPresent;
+import ca.uhn.fhir.jpa.starter.binstore.BinaryRangeStreamingInterceptor;
+import ca.uhn.fhir.jpa.starter.binstore.TransferBufferPool;
+import ca.uhn.fhir.jpa.starter.cache.CapabilityStatementCacheInterceptor;
+import ca.uhn.fhir.jpa.starter.cache.ReadResponseCacheInterceptor;
+import ca.uhn.fhir.jpa.starter.cache.SecondLevelCacheMetrics;
+import ca.uhn.fhir.jpa.starter.common.validation.AsyncResponseValidatingInterceptor;
 import ca.uhn.fhir.jpa.starter.common.validation.IRepositoryValidationInterceptorFactory;
+import ca.uhn.fhir.jpa.starter.common.validation.ListenableCachingValidationSupport;
+import ca.uhn.fhir.jpa.starter.common.validation.ValidationResultCachingModule;
+import ca.uhn.fhir.jpa.starter.common.validation.ValidatorWarmup;
+import ca.uhn.fhir.jpa.starter.formatting.BrowserResponseHighlighterInterceptor;
+import ca.uhn.fhir.jpa.starter.formatting.MachineClientFormattingInterceptor;
+import ca.uhn.fhir.jpa.starter.ig.DeferredPackageInstallation;
+import ca.uhn.fhir.jpa.starter.ig.PackageDirectoryCache;
+import ca.uhn.fhir.jpa.starter.ig.PackageInstallationGateInterceptor;
+import ca.uhn.fhir.jpa.starter.ig.ParallelPackageInstaller;
 import ca.uhn.fhir.jpa.starter.ips.IpsConfigCondition;
+import ca.uhn.fhir.jpa.starter.logging.AsyncAccessLogInterceptor;
+import ca.uhn.fhir.jpa.starter.metrics.RequestMetricsInterceptor;
+import ca.uhn.fhir.jpa.starter.metrics.StageTimingDataSource;
+import ca.uhn.fhir.jpa.starter.metrics.StageTimingValidatorModule;
+import ca.uhn.fhir.jpa.starter.paging.KeysetSearchResultCacheSvc;
+import ca.uhn.fhir.jpa.starter.paging.SearchPageHotTier;
+import ca.uhn.fhir.jpa.starter.paging.StarterPagingProvider;
+import ca.uhn.fhir.jpa.starter.search.NdjsonSearchStreamingInterceptor;
+import ca.uhn.fhir.jpa.starter.transaction.ParallelTransactionIndexingInterceptor;
+import ca.uhn.fhir.jpa.starter.transaction.PrecomputingSearchParamExtractor;
 import ca.uhn.fhir.jpa.starter.util.EnvironmentHelper;
 import ca.uhn.fhir.jpa.subscription.util.SubscriptionDebugLogInterceptor;
 import ca.uhn.fhir.jpa.util.ResourceCountCache;
@@ -64,9 +98,11 @@ import ca.uhn.fhir.validation.IValidatorModule;
 import ca.uhn.fhir.validation.ResultSeverityEnum;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.hl7.fhir.common.hapi.validation.support.CachingValidationSupport;
 import org.springframework.beans.factory.NoSuchBeanDefinitionException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.ApplicationContext;
@@ -75,14 +111,20 @@ import org.springframework.core.env.ConfigurableEnvironment;
 import org.springframework.http.HttpHeaders;
 import org.springframework.orm.jpa.JpaTransactionManager;
 import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.web.cors.CorsConfiguration;
 
 import javax.persistence.EntityManagerFactory;
 import javax.sql.DataSource;
 
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.*;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import static ca.uhn.fhir.jpa.starter.common.validation.IRepositoryValidationInterceptorFactory.ENABLE_REPOSITORY_VALIDATING_INTERCEPTOR;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
 @Configuration
 //allow users to configure custom packages to scan for additional beans
@@ -107,7 +149,45 @@ public class StarterJpaConfig {
 	@Primary
 	@Bean
 	public CachingValidationSupport validationSupportChain(JpaValidationSupportChain theJpaValidationSupportChain) {
-		return ValidationSupportConfigUtil.newCachingValidationSupport(theJpaValidationSupportChain);
+		return new ListenableCachingValidationSupport(theJpaValidationSupportChain, CachingValidationSupport.CacheTimeouts.defaultValues().setTranslateCodeMillis(1000L));
+	}
+
+	/**
+	 * Wraps the instance validator used by the request and response validating interceptors, so
+	 * that content validated before reuses the outcome.
+	 */
+	@Bean
+	@Primary
+	@ConditionalOnProperty(prefix = "hapi.fhir.validation", name = "cache_enabled", havingValue = "true")
+	public ValidationResultCachingModule validationResultCachingModule(@Qualifier("myInstanceValidator") IValidatorModule instanceValidator, AppProperties appProperties, INpmPackageVersionDao npmPackageVersionDao, CachingValidationSupport validationSupportChain, IResourceChangeListenerRegistry resourceChangeListenerRegistry, Optional<MeterRegistry> meterRegistry) {
+		Supplier<String> packageVersions = () -> npmPackageVersionDao.findAll().stream()
+			.map(next -> next.getPackageId() + "#" + next.getVersionId())
+			.sorted()
+			.collect(Collectors.joining(","));
+		ValidationResultCachingModule module = new ValidationResultCachingModule(instanceValidator, packageVersions, appProperties.getValidation().getCache_max_entries());
+		if (validationSupportChain instanceof ListenableCachingValidationSupport) {
+			((ListenableCachingValidationSupport) validationSupportChain).addInvalidationListener(module::invalidate);
+		}
+		module.registerListeners(resourceChangeListenerRegistry);
+		meterRegistry.ifPresent(module::registerMetrics);
+		return module;
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.validation", name = "responses_async", havingValue = "true")
+	public AsyncResponseValidatingInterceptor asyncResponseValidatingInterceptor(FhirContext fhirContext, IValidatorModule validatorModule, AppProperties appProperties, Optional<MeterRegistry> meterRegistry) {
+		AppProperties.Validation validation = appProperties.getValidation();
+		AsyncResponseValidatingInterceptor interceptor = new AsyncResponseValidatingInterceptor(fhirContext, validatorModule, validation.getResponses_sample_rate(), validation.getResponses_async_threads(), validation.getResponses_async_queue_size());
+		meterRegistry.ifPresent(interceptor::registerMetrics);
+		return interceptor;
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.validation", name = "warmup_enabled", havingValue = "true")
+	public ValidatorWarmup validatorWarmup(FhirContext fhirContext, DaoRegistry daoRegistry, CachingValidationSupport validationSupportChain, @Qualifier("myInstanceValidator") IValidatorModule instanceValidator, AppProperties appProperties, Optional<MeterRegistry> meterRegistry) {
+		ValidatorWarmup warmup = new ValidatorWarmup(fhirContext, daoRegistry, validationSupportChain, instanceValidator, appProperties.getValidation().getWarmup_threads());
+		meterRegistry.ifPresent(warmup::registerMetrics);
+		return warmup;
 	}
 
 
@@ -117,15 +197,100 @@ public class StarterJpaConfig {
 	/**
 	 * Customize the default/max page sizes for search results. You can set these however
 	 * you want, although very large page sizes will require a lot of RAM.
+	 * <p>
+	 * When <code>search_page_hot_tier_size</code> is set, recently served pages are kept in
+	 * memory (as resource PIDs) in front of the database backed search results. When
+	 * <code>search_keyset_paging_enabled</code> is set, pages are linked with cursors.
 	 */
 	@Bean
-	public DatabaseBackedPagingProvider databaseBackedPagingProvider(AppProperties appProperties) {
-		DatabaseBackedPagingProvider pagingProvider = new DatabaseBackedPagingProvider();
+	public DatabaseBackedPagingProvider databaseBackedPagingProvider(AppProperties appProperties, Optional<MeterRegistry> meterRegistry) {
+		SearchPageHotTier hotTier = null;
+		if (appProperties.getSearch_page_hot_tier_size() > 0) {
+			hotTier = new SearchPageHotTier(appProperties.getSearch_page_hot_tier_size(), Duration.ofMinutes(appProperties.getRetain_cached_searches_mins()));
+			meterRegistry.ifPresent(hotTier::registerMetrics);
+			ourLog.info("Search pages are kept in an in-memory hot tier of up to {} resource PIDs", appProperties.getSearch_page_hot_tier_size());
+		}
+		boolean keysetPaging = appProperties.getSearch_keyset_paging_enabled();
+
+		DatabaseBackedPagingProvider pagingProvider;
+		if (hotTier != null || keysetPaging) {
+			pagingProvider = new StarterPagingProvider(hotTier, keysetPaging);
+		} else {
+			pagingProvider = new DatabaseBackedPagingProvider();
+		}
 		pagingProvider.setDefaultPageSize(appProperties.getDefault_page_size());
 		pagingProvider.setMaximumPageSize(appProperties.getMax_page_size());
 		return pagingProvider;
 	}
 
+	/**
+	 * With keyset paging, stored search results are read with a seek query on the search result
+	 * order instead of an OFFSET query.
+	 */
+	@Bean
+	@Primary
+	@ConditionalOnProperty(prefix = "hapi.fhir", name = "search_keyset_paging_enabled", havingValue = "true")
+	public ISearchResultCacheSvc keysetSearchResultCacheSvc() {
+		return new KeysetSearchResultCacheSvc();
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir", name = "search_ndjson_streaming_enabled", havingValue = "true")
+	public NdjsonSearchStreamingInterceptor ndjsonSearchStreamingInterceptor(DaoRegistry daoRegistry, MatchUrlService matchUrlService, AppProperties appProperties) {
+		return new NdjsonSearchStreamingInterceptor(daoRegistry, matchUrlService, appProperties.getDefault_page_size());
+	}
+
+	/**
+	 * Only used when binary storage is enabled, see {@link #restfulServer}.
+	 */
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir", name = "binary_range_requests_enabled", havingValue = "true")
+	public BinaryRangeStreamingInterceptor binaryRangeStreamingInterceptor(FhirContext fhirContext, DaoRegistry daoRegistry, IBinaryStorageSvc binaryStorageSvc, AppProperties appProperties, Optional<MeterRegistry> meterRegistry) {
+		TransferBufferPool bufferPool = new TransferBufferPool(appProperties.getBinary_transfer_buffers(), appProperties.getBinary_transfer_buffer_size(), appProperties.getBinary_transfer_timeout_millis());
+		meterRegistry.ifPresent(bufferPool::registerMetrics);
+		return new BinaryRangeStreamingInterceptor(fhirContext, daoRegistry, binaryStorageSvc, bufferPool);
+	}
+
+	/**
+	 * The read cache is registered with the JPA interceptor service here, so that every write
+	 * invalidates it, and with the server in {@link #restfulServer}.
+	 */
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir", name = "read_cache_enabled", havingValue = "true")
+	public ReadResponseCacheInterceptor readResponseCacheInterceptor(AppProperties appProperties, IInterceptorService interceptorService, Optional<MeterRegistry> meterRegistry) {
+		ReadResponseCacheInterceptor interceptor = new ReadResponseCacheInterceptor(appProperties.getRead_cache_max_bytes(), Duration.ofSeconds(appProperties.getRead_cache_ttl_seconds()));
+		meterRegistry.ifPresent(interceptor::registerMetrics);
+		interceptorService.registerInterceptor(interceptor);
+		return interceptor;
+	}
+
+	/**
+	 * Wraps the search parameter extractor of the FHIR version in use, so that the index rows of
+	 * transaction entries computed by {@link #parallelTransactionIndexingInterceptor} are picked up.
+	 */
+	@Bean
+	@Primary
+	@ConditionalOnProperty(prefix = "hapi.fhir", name = "transaction_parallel_indexing_enabled", havingValue = "true")
+	public PrecomputingSearchParamExtractor precomputingSearchParamExtractor(@Qualifier("searchParamExtractor") ISearchParamExtractor searchParamExtractor, FhirContext fhirContext, ModelConfig modelConfig, Optional<MeterRegistry> meterRegistry) {
+		PrecomputingSearchParamExtractor extractor = new PrecomputingSearchParamExtractor(searchParamExtractor, fhirContext, modelConfig);
+		meterRegistry.ifPresent(extractor::registerMetrics);
+		return extractor;
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir", name = "transaction_parallel_indexing_enabled", havingValue = "true")
+	public ParallelTransactionIndexingInterceptor parallelTransactionIndexingInterceptor(FhirContext fhirContext, PrecomputingSearchParamExtractor precomputingSearchParamExtractor, AppProperties appProperties, IInterceptorService interceptorService) {
+		ParallelTransactionIndexingInterceptor interceptor = new ParallelTransactionIndexingInterceptor(fhirContext, precomputingSearchParamExtractor, appProperties.getBundle_batch_pool_size(), appProperties.getTransaction_parallel_indexing_min_entries());
+		interceptorService.registerInterceptor(interceptor);
+		return interceptor;
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir", name = "second_level_cache_enabled", havingValue = "true")
+	public SecondLevelCacheMetrics secondLevelCacheMetrics(EntityManagerFactory entityManagerFactory) {
+		return new SecondLevelCacheMetrics(entityManagerFactory);
+	}
+
 
 	@Bean
 	public IResourceSupportedSvc resourceSupportedSvc(IDaoRegistry theDaoRegistry) {
@@ -139,12 +304,12 @@ public class StarterJpaConfig {
 
 	@Primary
 	@Bean
-	public LocalContainerEntityManagerFactoryBean entityManagerFactory(DataSource myDataSource, ConfigurableListableBeanFactory myConfigurableListableBeanFactory, FhirContext theFhirContext) {
+	public LocalContainerEntityManagerFactoryBean entityManagerFactory(DataSource myDataSource, ConfigurableListableBeanFactory myConfigurableListableBeanFactory, FhirContext theFhirContext, AppProperties appProperties) {
 		LocalContainerEntityManagerFactoryBean retVal = HapiEntityManagerFactoryUtil.newEntityManagerFactory(myConfigurableListableBeanFactory, theFhirContext);
 		retVal.setPersistenceUnitName("HAPI_PU");
 
 		try {
-			retVal.setDataSource(myDataSource);
+			retVal.setDataSource(appProperties.getRequest_metrics_enabled() ? StageTimingDataSource.wrap(myDataSource) : myDataSource);
 		} catch (Exception e) {
 			throw new ConfigurationException("Could not set the data source due to a configuration issue", e);
 		}
@@ -187,13 +352,33 @@ public class StarterJpaConfig {
 		return loggingInterceptor;
 	}
 
-	@Bean("packageInstaller")
-	@Primary
-	@Conditional(OnImplementationGuidesPresent.class)
-	public IPackageInstallerSvc packageInstaller(AppProperties appProperties, JobDefinition<ReindexJobParameters> reindexJobParametersJobDefinition, JobDefinitionRegistry jobDefinitionRegistry, IPackageInstallerSvc packageInstallerSvc)
-	{
-		jobDefinitionRegistry.addJobDefinitionIfNotRegistered(reindexJobParametersJobDefinition);
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir", name = "request_metrics_enabled", havingValue = "true")
+	public RequestMetricsInterceptor requestMetricsInterceptor(Optional<MeterRegistry> meterRegistry) {
+		RequestMetricsInterceptor interceptor = new RequestMetricsInterceptor();
+		meterRegistry.ifPresent(interceptor::registerMetrics);
+		return interceptor;
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.logger", name = "async_enabled", havingValue = "true")
+	public AsyncAccessLogInterceptor asyncAccessLogInterceptor(AppProperties appProperties, Optional<MeterRegistry> meterRegistry) {
+		AppProperties.Logger logger = appProperties.getLogger();
+		AsyncAccessLogInterceptor interceptor = new AsyncAccessLogInterceptor(logger.getName(), logger.getLog_exceptions(), logger.getBuffer_size(), logger.getBatch_size(), logger.getOverflow_policy() == AppProperties.AccessLogOverflowPolicy.BLOCK, logger.getTrusted_proxies());
+		meterRegistry.ifPresent(interceptor::registerMetrics);
+		return interceptor;
+	}
 
+	/**
+	 * Installs the implementation guides configured in <code>hapi.fhir.implementationguides</code>,
+	 * <code>hapi.fhir.ig_install_threads</code> of them at a time, see {@link ParallelPackageInstaller}. The packages
+	 * found in <code>hapi.fhir.ig_package_directory</code> are not fetched. With <code>hapi.fhir.ig_install_deferred</code>
+	 * they are installed by a Batch2 job once the server is started instead, see {@link DeferredPackageInstallation}.
+	 */
+	@Bean
+	@Conditional(OnImplementationGuidesPresent.class)
+	public ParallelPackageInstaller parallelPackageInstaller(FhirContext fhirContext, @Qualifier("npmInstallerSvc") IPackageInstallerSvc packageInstallerSvc, IHapiPackageCacheManager packageCacheManager, PackageLoaderSvc packageLoaderSvc, INpmPackageVersionDao npmPackageVersionDao, DaoRegistry daoRegistry, PlatformTransactionManager transactionManager, AppProperties appProperties, Optional<MeterRegistry> meterRegistry) {
+		List<PackageInstallationSpec> packageInstallationSpecs = new ArrayList<>();
 		if (appProperties.getImplementationGuides() != null) {
 			Map<String, AppProperties.ImplementationGuide> guides = appProperties.getImplementationGuides();
 			for (Map.Entry<String, AppProperties.ImplementationGuide> guide : guides.entrySet()) {
@@ -202,9 +387,24 @@ public class StarterJpaConfig {
 					packageInstallationSpec.setFetchDependencies(true);
 					packageInstallationSpec.setDependencyExcludes(ImmutableList.of("hl7.fhir.r2.core", "hl7.fhir.r3.core", "hl7.fhir.r4.core", "hl7.fhir.r5.core"));
 				}
-				packageInstallerSvc.install(packageInstallationSpec);
+				packageInstallationSpecs.add(packageInstallationSpec);
 			}
 		}
+		ParallelPackageInstaller installer = new ParallelPackageInstaller(fhirContext, packageInstallerSvc, packageCacheManager, packageLoaderSvc, npmPackageVersionDao, daoRegistry, transactionManager, appProperties.getIg_install_threads(), packageInstallationSpecs);
+		meterRegistry.ifPresent(installer::registerMetrics);
+		installer.setInstallOnStartup(!appProperties.getIg_install_deferred());
+		if (isNotBlank(appProperties.getIg_package_directory())) {
+			installer.setPackageDirectory(new PackageDirectoryCache(Paths.get(appProperties.getIg_package_directory())));
+		}
+		return installer;
+	}
+
+	@Bean("packageInstaller")
+	@Primary
+	@Conditional(OnImplementationGuidesPresent.class)
+	public IPackageInstallerSvc packageInstaller(JobDefinition<ReindexJobParameters> reindexJobParametersJobDefinition, JobDefinitionRegistry jobDefinitionRegistry, IPackageInstallerSvc packageInstallerSvc)
+	{
+		jobDefinitionRegistry.addJobDefinitionIfNotRegistered(reindexJobParametersJobDefinition);
 		return packageInstallerSvc;
 	}
 
@@ -240,7 +440,7 @@ public class StarterJpaConfig {
 	}
 
 	@Bean
-	public RestfulServer restfulServer(IFhirSystemDao<?, ?> fhirSystemDao, AppProperties appProperties, DaoRegistry daoRegistry, Optional<MdmProviderLoader> mdmProviderProvider, IJpaSystemProvider jpaSystemProvider, ResourceProviderFactory resourceProviderFactory, DaoConfig daoConfig, ISearchParamRegistry searchParamRegistry, IValidationSupport theValidationSupport, DatabaseBackedPagingProvider databaseBackedPagingProvider, LoggingInterceptor loggingInterceptor, Optional<TerminologyUploaderProvider> terminologyUploaderProvider, Optional<SubscriptionTriggeringProvider> subscriptionTriggeringProvider, Optional<CorsInterceptor> corsInterceptor, IInterceptorBroadcaster interceptorBroadcaster, Optional<BinaryAccessProvider> binaryAccessProvider, BinaryStorageInterceptor binaryStorageInterceptor, IValidatorModule validatorModule, Optional<GraphQLProvider> graphQLProvider, BulkDataExportProvider bulkDataExportProvider, BulkDataImportProvider bulkDataImportProvider, ValueSetOperationProvider theValueSetOperationProvider, ReindexProvider reindexProvider, PartitionManagementProvider partitionManagementProvider, Optional<RepositoryValidatingInterceptor> repositoryValidatingInterceptor, IPackageInstallerSvc packageInstallerSvc, ThreadSafeResourceDeleterSvc theThreadSafeResourceDeleterSvc, ApplicationContext appContext, Optional<IpsOperationProvider> theIpsOperationProvider) {
+	public RestfulServer restfulServer(IFhirSystemDao<?, ?> fhirSystemDao, AppProperties appProperties, DaoRegistry daoRegistry, Optional<MdmProviderLoader> mdmProviderProvider, IJpaSystemProvider jpaSystemProvider, ResourceProviderFactory resourceProviderFactory, DaoConfig daoConfig, ISearchParamRegistry searchParamRegistry, IValidationSupport theValidationSupport, DatabaseBackedPagingProvider databaseBackedPagingProvider, LoggingInterceptor loggingInterceptor, Optional<AsyncAccessLogInterceptor> asyncAccessLogInterceptor, Optional<RequestMetricsInterceptor> requestMetricsInterceptor, Optional<TerminologyUploaderProvider> terminologyUploaderProvider, Optional<SubscriptionTriggeringProvider> subscriptionTriggeringProvider, Optional<CorsInterceptor> corsInterceptor, Optional<NdjsonSearchStreamingInterceptor> ndjsonSearchStreamingInterceptor, Optional<ReadResponseCacheInterceptor> readResponseCacheInterceptor, Optional<PackageInstallationGateInterceptor> packageInstallationGateInterceptor, IInterceptorBroadcaster interceptorBroadcaster, Optional<BinaryAccessProvider> binaryAccessProvider, Optional<BinaryRangeStreamingInterceptor> binaryRangeStreamingInterceptor, BinaryStorageInterceptor binaryStorageInterceptor, IValidatorModule validatorModule, Optional<AsyncResponseValidatingInterceptor> asyncResponseValidatingInterceptor, Optional<GraphQLProvider> graphQLProvider, BulkDataExportProvider bulkDataExportProvider, BulkDataImportProvider bulkDataImportProvider, ValueSetOperationProvider theValueSetOperationProvider, ReindexProvider reindexProvider, PartitionManagementProvider partitionManagementProvider, Optional<RepositoryValidatingInterceptor> repositoryValidatingInterceptor, IPackageInstallerSvc packageInstallerSvc, ThreadSafeResourceDeleterSvc theThreadSafeResourceDeleterSvc, ApplicationContext appContext, Optional<IpsOperationProvider> theIpsOperationProvider, IResourceChangeListenerRegistry resourceChangeListenerRegistry) {
 		RestfulServer fhirServer = new RestfulServer(fhirSystemDao.getContext());
 
 		List<String> supportedResourceTypes = appProperties.getSupported_resource_types();
@@ -262,7 +462,18 @@ public class StarterJpaConfig {
 
 		fhirServer.registerProviders(resourceProviderFactory.createProviders());
 		fhirServer.registerProvider(jpaSystemProvider);
-		fhirServer.setServerConformanceProvider(calculateConformanceProvider(fhirSystemDao, fhirServer, daoConfig, searchParamRegistry, theValidationSupport));
+		IServerConformanceProvider<?> conformanceProvider = calculateConformanceProvider(fhirSystemDao, fhirServer, daoConfig, searchParamRegistry, theValidationSupport);
+		fhirServer.setServerConformanceProvider(conformanceProvider);
+
+		/*
+		 * Serve /metadata from a pre-encoded copy instead of building and encoding the
+		 * CapabilityStatement over and over
+		 */
+		if (appProperties.getCapability_statement_cache_enabled()) {
+			CapabilityStatementCacheInterceptor capabilityStatementCache = new CapabilityStatementCacheInterceptor(conformanceProvider);
+			capabilityStatementCache.registerListeners(resourceChangeListenerRegistry);
+			fhirServer.registerInterceptor(capabilityStatementCache);
+		}
 
 		/*
 		 * ETag Support
@@ -295,13 +506,28 @@ public class StarterJpaConfig {
 		 * HTML output when the request is detected to come from a
 		 * browser.
 		 */
-		fhirServer.registerInterceptor(new ResponseHighlighterInterceptor());
+		if (appProperties.getResponse_highlighter_enabled()) {
+			ResponseHighlighterInterceptor responseHighlighterInterceptor = new ResponseHighlighterInterceptor();
+			if (appProperties.getMachine_client_formatting_enabled()) {
+				fhirServer.registerInterceptor(new BrowserResponseHighlighterInterceptor(responseHighlighterInterceptor));
+			} else {
+				fhirServer.registerInterceptor(responseHighlighterInterceptor);
+			}
+		}
+		if (appProperties.getMachine_client_formatting_enabled()) {
+			fhirServer.registerInterceptor(new MachineClientFormattingInterceptor());
+		}
 
 		if (appProperties.getFhirpath_interceptor_enabled()) {
 			fhirServer.registerInterceptor(new FhirPathFilterInterceptor());
 		}
 
-		fhirServer.registerInterceptor(loggingInterceptor);
+		if (asyncAccessLogInterceptor.isPresent()) {
+			fhirServer.registerInterceptor(asyncAccessLogInterceptor.get());
+		} else {
+			fhirServer.registerInterceptor(loggingInterceptor);
+		}
+		requestMetricsInterceptor.ifPresent(fhirServer::registerInterceptor);
 
 		/*
 		 * If you are hosting this server at a specific DNS name, the server will try to
@@ -338,6 +564,12 @@ public class StarterJpaConfig {
 
 		corsInterceptor.ifPresent(fhirServer::registerInterceptor);
 
+		ndjsonSearchStreamingInterceptor.ifPresent(fhirServer::registerInterceptor);
+
+		readResponseCacheInterceptor.ifPresent(fhirServer::registerInterceptor);
+
+		packageInstallationGateInterceptor.ifPresent(fhirServer::registerInterceptor);
+
 		if (daoConfig.getSupportedSubscriptionTypes().size() > 0) {
 			// Subscription debug logging
 			fhirServer.registerInterceptor(new SubscriptionDebugLogInterceptor());
@@ -352,10 +584,14 @@ public class StarterJpaConfig {
 		if (appProperties.getBinary_storage_enabled() && binaryAccessProvider.isPresent()) {
 			fhirServer.registerProvider(binaryAccessProvider.get());
 			fhirServer.registerInterceptor(binaryStorageInterceptor);
+			binaryRangeStreamingInterceptor.ifPresent(fhirServer::registerInterceptor);
 		}
 
 		// Validation
 
+		if (validatorModule != null && requestMetricsInterceptor.isPresent()) {
+			validatorModule = new StageTimingValidatorModule(validatorModule);
+		}
 		if (validatorModule != null) {
 			if (appProperties.getValidation().getRequests_enabled()) {
 				RequestValidatingInterceptor interceptor = new RequestValidatingInterceptor();
@@ -363,7 +599,9 @@ public class StarterJpaConfig {
 				interceptor.setValidatorModules(Collections.singletonList(validatorModule));
 				fhirServer.registerInterceptor(interceptor);
 			}
-			if (appProperties.getValidation().getResponses_enabled()) {
+			if (appProperties.getValidation().getResponses_enabled() && asyncResponseValidatingInterceptor.isPresent()) {
+				fhirServer.registerInterceptor(asyncResponseValidatingInterceptor.get());
+			} else if (appProperties.getValidation().getResponses_enabled()) {
 				ResponseValidatingInterceptor interceptor = new ResponseValidatingInterceptor();
 				interceptor.setFailOnSeverity(ResultSeverityEnum.ERROR);
 				interceptor.setValidatorModules(Collections.singletonList(validatorModule));
@@ -0,0 +1,133 @@
+package ca.uhn.fhir.jpa.starter.common;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.jetty.JettyServletWebServerFactory;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the requests of the embedded servlet container on virtual threads instead of its platform thread
+ * pool when <code>hapi.fhir.virtual_threads_enabled</code> is set. A request blocked on JDBC then no
+ * longer holds on to a scarce pool thread. The number of requests talking to the database at the same
+ * time is bounded by the Hikari pool (<code>spring.datasource.hikari.maximum-pool-size</code>) only:
+ * requests beyond that wait for a connection for up to <code>connection-timeout</code>, so the pool acts
+ * as a semaphore in front of the database.
+ * <p>
+ * The container itself hands the requests to virtual threads, so they are processed synchronously as
+ * usual, with the container's own timeouts:
+ * <ul>
+ *    <li>on the embedded Tomcat, the executor of the connector's protocol handler is a virtual thread per
+ *    task executor</li>
+ *    <li>on the embedded Jetty, the <code>QueuedThreadPool</code> runs the blocking work on virtual threads
+ *    (Jetty 10.0.12 or 11.0.12 and later), its own threads only accept and select</li>
+ * </ul>
+ * The setting has no effect in an external container, whose executor is configured with the container.
+ * The starter is compiled for Java 11, so the virtual thread executor is looked up reflectively. On a
+ * runtime without virtual threads (before JDK 21) the setting is ignored with a warning.
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "hapi.fhir", name = "virtual_threads_enabled", havingValue = "true")
+public class VirtualThreadConfig {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(VirtualThreadConfig.class);
+
+	/**
+	 * @return a virtual thread per task executor, or <code>null</code> if the runtime has no virtual threads
+	 */
+	static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (NoSuchMethodException e) {
+			ourLog.warn("Virtual threads were requested, but Java {} doesn't support them, using the platform thread pool", Runtime.version().feature());
+		} catch (InvocationTargetException | IllegalAccessException e) {
+			// On JDK 19 and 20 virtual threads are a preview feature
+			ourLog.warn("Virtual threads were requested, but are not available, using the platform thread pool: {}", e.getCause() != null ? e.getCause().toString() : e.toString());
+		}
+		return null;
+	}
+
+	@Configuration
+	@ConditionalOnClass(name = "org.apache.catalina.startup.Tomcat")
+	static class TomcatVirtualThreads {
+
+		@Bean
+		public TomcatVirtualThreadCustomizer virtualThreadTomcatCustomizer() {
+			return new TomcatVirtualThreadCustomizer(newVirtualThreadPerTaskExecutor());
+		}
+	}
+
+	static class TomcatVirtualThreadCustomizer implements WebServerFactoryCustomizer<TomcatServletWebServerFactory> {
+
+		private final ExecutorService myExecutor;
+
+		TomcatVirtualThreadCustomizer(ExecutorService theExecutor) {
+			myExecutor = theExecutor;
+		}
+
+		@Override
+		public void customize(TomcatServletWebServerFactory theFactory) {
+			if (myExecutor != null) {
+				ourLog.info("Running Tomcat requests on virtual threads");
+				theFactory.addProtocolHandlerCustomizers(theProtocolHandler -> theProtocolHandler.setExecutor(myExecutor));
+			}
+		}
+
+		/**
+		 * Tomcat only stops the executors it created itself
+		 */
+		public void shutdown() {
+			if (myExecutor != null) {
+				myExecutor.shutdown();
+			}
+		}
+	}
+
+	@Configuration
+	@ConditionalOnClass(name = "org.eclipse.jetty.server.Server")
+	static class JettyVirtualThreads {
+
+		@Bean
+		public WebServerFactoryCustomizer<JettyServletWebServerFactory> virtualThreadJettyCustomizer() {
+			return theFactory -> theFactory.addServerCustomizers(JettyVirtualThreads::useVirtualThreads);
+		}
+
+		private static void useVirtualThreads(Server theServer) {
+			ThreadPool threadPool = theServer.getThreadPool();
+			if (!(threadPool instanceof QueuedThreadPool)) {
+				ourLog.warn("Virtual threads were requested, but Jetty uses a {} rather than a QueuedThreadPool, using the platform thread pool", threadPool.getClass().getName());
+				return;
+			}
+			Method setter;
+			try {
+				setter = QueuedThreadPool.class.getMethod("setVirtualThreadsExecutor", Executor.class);
+			} catch (NoSuchMethodException e) {
+				ourLog.warn("Virtual threads were requested, but this version of Jetty can't run requests on them, using the platform thread pool");
+				return;
+			}
+			ExecutorService executor = newVirtualThreadPerTaskExecutor();
+			if (executor == null) {
+				return;
+			}
+			try {
+				setter.invoke(threadPool, executor);
+				ourLog.info("Running Jetty requests on virtual threads");
+			} catch (InvocationTargetException | IllegalAccessException e) {
+				ourLog.warn("Virtual threads were requested, but Jetty refused them, using the platform thread pool: {}", e.getCause() != null ? e.getCause().toString() : e.toString());
+			}
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package ca.uhn.fhir.jpa.starter.common.validation;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.IValidatorModule;
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.validation.ValidationResult;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validates a sample of the resources returned by the server on a background executor, instead of
+ * validating every response on the request thread like
+ * {@link ca.uhn.fhir.rest.server.interceptor.ResponseValidatingInterceptor} does.
+ * <p>
+ * A sampled response is encoded on the request thread, so that later changes to the resource can't
+ * affect what gets validated, and queued. Findings never fail or delay the response: each one is
+ * logged to the {@link #LOG_NAME} logger and counted by severity. When the queue is full, the
+ * response isn't validated and is counted as dropped.
+ */
+@Interceptor
+public class AsyncResponseValidatingInterceptor {
+
+	public static final String LOG_NAME = "fhir.response_validation";
+	public static final String METRIC_RESPONSES = "hapi.fhir.validation.responses";
+	public static final String METRIC_FINDINGS = "hapi.fhir.validation.response_findings";
+	public static final String METRIC_DURATION = "hapi.fhir.validation.response_duration";
+
+	private static final Logger ourLog = LoggerFactory.getLogger(LOG_NAME);
+
+	private final FhirContext myFhirContext;
+	private final FhirValidator myValidator;
+	private final double mySampleRate;
+	private final ThreadPoolExecutor myExecutor;
+
+	private Counter myValidatedCounter;
+	private Counter myDroppedCounter;
+	private Timer myDurationTimer;
+	private final Map<ResultSeverityEnum, Counter> myFindingCounters = new EnumMap<>(ResultSeverityEnum.class);
+
+	/**
+	 * @param theSampleRate the share of responses to validate, between 0 and 1
+	 * @param theThreads    the number of threads validating responses
+	 * @param theQueueSize  the number of responses waiting to be validated, beyond which responses are dropped
+	 */
+	public AsyncResponseValidatingInterceptor(FhirContext theFhirContext, IValidatorModule theValidatorModule, double theSampleRate, int theThreads, int theQueueSize) {
+		myFhirContext = theFhirContext;
+		myValidator = theFhirContext.newValidator();
+		myValidator.registerValidatorModule(theValidatorModule);
+		mySampleRate = theSampleRate;
+		BasicThreadFactory threadFactory = new BasicThreadFactory.Builder().namingPattern("response-validation-%d").daemon(true).build();
+		myExecutor = new ThreadPoolExecutor(theThreads, theThreads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(theQueueSize), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	public void registerMetrics(MeterRegistry theMeterRegistry) {
+		myValidatedCounter = theMeterRegistry.counter(METRIC_RESPONSES, "result", "validated");
+		myDroppedCounter = theMeterRegistry.counter(METRIC_RESPONSES, "result", "dropped");
+		myDurationTimer = theMeterRegistry.timer(METRIC_DURATION);
+		for (ResultSeverityEnum next : ResultSeverityEnum.values()) {
+			myFindingCounters.put(next, theMeterRegistry.counter(METRIC_FINDINGS, "severity", next.getCode()));
+		}
+		theMeterRegistry.gaugeCollectionSize(METRIC_RESPONSES + ".queued", Tags.empty(), myExecutor.getQueue());
+	}
+
+	@Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
+	public void sampleResponse(RequestDetails theRequestDetails, IBaseResource theResponseObject) {
+		if (theResponseObject == null || mySampleRate <= 0 || ThreadLocalRandom.current().nextDouble() >= mySampleRate) {
+			return;
+		}
+
+		String encoded = myFhirContext.newJsonParser().encodeResourceToString(theResponseObject);
+		String requestPath = theRequestDetails.getRequestType() + " " + theRequestDetails.getCompleteUrl();
+		try {
+			myExecutor.execute(() -> validate(requestPath, encoded));
+		} catch (RejectedExecutionException e) {
+			ourLog.debug("Response validation queue is full, not validating the response to {}", requestPath);
+			if (myDroppedCounter != null) {
+				myDroppedCounter.increment();
+			}
+		}
+	}
+
+	private void validate(String theRequestPath, String theEncodedResource) {
+		long start = System.nanoTime();
+		ValidationResult result;
+		try {
+			result = myValidator.validateWithResult(theEncodedResource);
+		} catch (Exception e) {
+			ourLog.warn("Failed to validate the response to {}: {}", theRequestPath, e.toString());
+			return;
+		}
+		long nanos = System.nanoTime() - start;
+
+		for (SingleValidationMessage next : result.getMessages()) {
+			if (next.getSeverity() == null) {
+				continue;
+			}
+			if (next.getSeverity().ordinal() >= ResultSeverityEnum.WARNING.ordinal()) {
+				ourLog.warn("{} in response to {} at {}: {}", next.getSeverity().getCode(), theRequestPath, next.getLocationString(), next.getMessage());
+			} else {
+				ourLog.debug("{} in response to {} at {}: {}", next.getSeverity().getCode(), theRequestPath, next.getLocationString(), next.getMessage());
+			}
+			Counter counter = myFindingCounters.get(next.getSeverity());
+			if (counter != null) {
+				counter.increment();
+			}
+		}
+
+		if (myValidatedCounter != null) {
+			myValidatedCounter.increment();
+			myDurationTimer.record(nanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	public void shutdown() {
+		myExecutor.shutdownNow();
+	}
+}
@@ -0,0 +1,31 @@
+package ca.uhn.fhir.jpa.starter.common.validation;
+
+import ca.uhn.fhir.context.support.IValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.CachingValidationSupport;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A {@link CachingValidationSupport} that tells its listeners whenever its caches are invalidated,
+ * e.g. after the terminology service finished pre-expanding a ValueSet, so that anything derived
+ * from the validation support chain can be dropped at the same time.
+ */
+public class ListenableCachingValidationSupport extends CachingValidationSupport {
+
+	private final List<Runnable> myInvalidationListeners = new CopyOnWriteArrayList<>();
+
+	public ListenableCachingValidationSupport(IValidationSupport theWrap, CacheTimeouts theCacheTimeouts) {
+		super(theWrap, theCacheTimeouts);
+	}
+
+	public void addInvalidationListener(Runnable theListener) {
+		myInvalidationListeners.add(theListener);
+	}
+
+	@Override
+	public void invalidateCaches() {
+		super.invalidateCaches();
+		myInvalidationListeners.forEach(Runnable::run);
+	}
+}
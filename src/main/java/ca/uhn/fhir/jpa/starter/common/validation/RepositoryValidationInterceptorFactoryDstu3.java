@@ -3,21 +3,17 @@ package ca.uhn.fhir.jpa.starter.common.validation;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListenerRegistry;
 import ca.uhn.fhir.jpa.interceptor.validation.IRepositoryValidatingRule;
 import ca.uhn.fhir.jpa.interceptor.validation.RepositoryValidatingInterceptor;
 import ca.uhn.fhir.jpa.interceptor.validation.RepositoryValidatingRuleBuilder;
-import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
 import ca.uhn.fhir.jpa.starter.annotations.OnDSTU3Condition;
-import ca.uhn.fhir.rest.api.server.IBundleProvider;
-import ca.uhn.fhir.rest.param.TokenParam;
-import org.hl7.fhir.dstu3.model.StructureDefinition;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
 
 import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
 
 import static ca.uhn.fhir.jpa.starter.common.validation.IRepositoryValidationInterceptorFactory.ENABLE_REPOSITORY_VALIDATING_INTERCEPTOR;
 
@@ -34,37 +30,29 @@ import static ca.uhn.fhir.jpa.starter.common.validation.IRepositoryValidationInt
 public class RepositoryValidationInterceptorFactoryDstu3 implements IRepositoryValidationInterceptorFactory {
 
 	private final FhirContext fhirContext;
-	private final RepositoryValidatingRuleBuilder repositoryValidatingRuleBuilder;
+	private final ObjectProvider<RepositoryValidatingRuleBuilder> repositoryValidatingRuleBuilderProvider;
 	private final IFhirResourceDao structureDefinitionResourceProvider;
+	private final IResourceChangeListenerRegistry resourceChangeListenerRegistry;
 
-	public RepositoryValidationInterceptorFactoryDstu3(RepositoryValidatingRuleBuilder repositoryValidatingRuleBuilder, DaoRegistry daoRegistry) {
-		this.repositoryValidatingRuleBuilder = repositoryValidatingRuleBuilder;
+	public RepositoryValidationInterceptorFactoryDstu3(ObjectProvider<RepositoryValidatingRuleBuilder> repositoryValidatingRuleBuilderProvider, DaoRegistry daoRegistry, IResourceChangeListenerRegistry resourceChangeListenerRegistry) {
+		this.repositoryValidatingRuleBuilderProvider = repositoryValidatingRuleBuilderProvider;
+		this.resourceChangeListenerRegistry = resourceChangeListenerRegistry;
 		this.fhirContext = daoRegistry.getSystemDao().getContext();
 		structureDefinitionResourceProvider = daoRegistry.getResourceDao("StructureDefinition");
 
 	}
 
 	public RepositoryValidatingInterceptor buildUsingStoredStructureDefinitions() {
-
-		IBundleProvider results = structureDefinitionResourceProvider.search(new SearchParameterMap().add(StructureDefinition.SP_KIND, new TokenParam("resource")));
-		Map<String, List<StructureDefinition>> structureDefintions = results.getResources(0, results.size())
-			.stream()
-			.map(StructureDefinition.class::cast)
-			.collect(Collectors.groupingBy(StructureDefinition::getType));
-
-		structureDefintions.forEach((key, value) -> {
-			String[] urls = value.stream().map(StructureDefinition::getUrl).toArray(String[]::new);
-			repositoryValidatingRuleBuilder.forResourcesOfType(key).requireAtLeastOneProfileOf(urls).and().requireValidationToDeclaredProfiles();
-		});
-
-		List<IRepositoryValidatingRule> rules = repositoryValidatingRuleBuilder.build();
-		return new RepositoryValidatingInterceptor(fhirContext, rules);
+		StoredProfileRepositoryValidatingInterceptor interceptor = new StoredProfileRepositoryValidatingInterceptor(fhirContext, structureDefinitionResourceProvider, repositoryValidatingRuleBuilderProvider::getObject);
+		interceptor.start(resourceChangeListenerRegistry);
+		return interceptor;
 	}
 
 	public RepositoryValidatingInterceptor build() {
 
 		// Customize the ruleBuilder here to have the rules you want! We will give a simple example
 		// of enabling validation for all Patient resources
+		RepositoryValidatingRuleBuilder repositoryValidatingRuleBuilder = repositoryValidatingRuleBuilderProvider.getObject();
 		repositoryValidatingRuleBuilder.forResourcesOfType("Patient").requireAtLeastProfile("http://hl7.org/fhir/us/core/StructureDefinition/us-core-patient").and().requireValidationToDeclaredProfiles();
 
 		// Do not customize below this line
@@ -0,0 +1,252 @@
+package ca.uhn.fhir.jpa.starter.common.validation;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.cache.IResourceChangeEvent;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListener;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListenerCache;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListenerRegistry;
+import ca.uhn.fhir.jpa.interceptor.validation.IRepositoryValidatingRule;
+import ca.uhn.fhir.jpa.interceptor.validation.RepositoryValidatingInterceptor;
+import ca.uhn.fhir.jpa.interceptor.validation.RepositoryValidatingRuleBuilder;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.util.ExtensionUtil;
+import ca.uhn.fhir.util.FhirTerser;
+import ca.uhn.fhir.util.HapiExtensions;
+import org.hl7.fhir.instance.model.api.IAnyResource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * A {@link RepositoryValidatingInterceptor} requiring resources to declare, and to be valid against,
+ * at least one of the StructureDefinitions of kind <code>resource</code> stored on the server for
+ * their type, that keeps its rules current as StructureDefinitions are created, updated or deleted.
+ * <p>
+ * The stored StructureDefinitions are watched through the resource change listener registry. Only
+ * the type and URL of each one is kept, and they are read a page at a time, so the StructureDefinitions
+ * themselves are never all held in memory. When some of them change, the rules of the resource types
+ * they constrain are rebuilt, and the new rule set replaces the old one in a single step: resources
+ * being stored meanwhile are checked against either the old or the new rules, never waiting for a
+ * rebuild. A refresh is requested as soon as a StructureDefinition stored through this server is
+ * committed, changes made on another server sharing the database are picked up within a minute.
+ */
+@Interceptor
+public class StoredProfileRepositoryValidatingInterceptor extends RepositoryValidatingInterceptor implements IResourceChangeListener {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(StoredProfileRepositoryValidatingInterceptor.class);
+	private static final String STRUCTURE_DEFINITION = "StructureDefinition";
+	private static final long REFRESH_INTERVAL_MILLIS = 60000L;
+	private static final int PAGE_SIZE = 100;
+
+	private final FhirContext myFhirContext;
+	private final IFhirResourceDao<?> myStructureDefinitionDao;
+	private final Supplier<RepositoryValidatingRuleBuilder> myRuleBuilderSupplier;
+	private final Map<String, StoredProfile> myProfiles = new HashMap<>();
+	private volatile Map<String, List<IRepositoryValidatingRule>> myRulesByType = Collections.emptyMap();
+	private IResourceChangeListenerCache myCache;
+
+	/**
+	 * @param theRuleBuilderSupplier supplies a new, empty rule builder on every call
+	 */
+	public StoredProfileRepositoryValidatingInterceptor(FhirContext theFhirContext, IFhirResourceDao<?> theStructureDefinitionDao, Supplier<RepositoryValidatingRuleBuilder> theRuleBuilderSupplier) {
+		myFhirContext = theFhirContext;
+		myStructureDefinitionDao = theStructureDefinitionDao;
+		myRuleBuilderSupplier = theRuleBuilderSupplier;
+		setFhirContext(theFhirContext);
+	}
+
+	/**
+	 * Starts watching the stored StructureDefinitions, and builds the rules for the ones stored now
+	 * before returning.
+	 */
+	public void start(IResourceChangeListenerRegistry theResourceChangeListenerRegistry) {
+		SearchParameterMap resourceProfiles = SearchParameterMap.newSynchronous().add("kind", new TokenParam("resource"));
+		myCache = theResourceChangeListenerRegistry.registerResourceResourceChangeListener(STRUCTURE_DEFINITION, resourceProfiles, this, REFRESH_INTERVAL_MILLIS);
+		myCache.forceRefresh();
+	}
+
+	/**
+	 * The rules are derived from the stored StructureDefinitions, so rules set here are ignored, use
+	 * {@link #start(IResourceChangeListenerRegistry)} instead.
+	 */
+	@Override
+	public void setRules(List<IRepositoryValidatingRule> theRules) {
+		ourLog.warn("Ignoring {} repository validation rules, the rules are derived from the stored StructureDefinitions", theRules != null ? theRules.size() : 0);
+	}
+
+	@Nonnull
+	@Override
+	public String describeRules() {
+		return " * " + myRulesByType.values().stream().flatMap(Collection::stream).map(Object::toString).sorted().collect(Collectors.joining("\n * "));
+	}
+
+	@Hook(Pointcut.STORAGE_PRESTORAGE_RESOURCE_CREATED)
+	public void resourceCreated(RequestDetails theRequestDetails, IBaseResource theResource) {
+		checkRules(theRequestDetails, theResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRESTORAGE_RESOURCE_UPDATED)
+	public void resourceUpdated(RequestDetails theRequestDetails, IBaseResource theOldResource, IBaseResource theNewResource) {
+		checkRules(theRequestDetails, theNewResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+	public void resourceCreatedPrecommit(IBaseResource theResource) {
+		requestRefreshIfProfile(theResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+	public void resourceUpdatedPrecommit(IBaseResource theOldResource, IBaseResource theNewResource) {
+		requestRefreshIfProfile(theNewResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+	public void resourceDeletedPrecommit(IBaseResource theResource) {
+		requestRefreshIfProfile(theResource);
+	}
+
+	/**
+	 * Refreshing before the transaction commits would not see the change, and push the next refresh
+	 * back by a whole interval, so the refresh is only requested once it has committed.
+	 */
+	private void requestRefreshIfProfile(IBaseResource theResource) {
+		if (myCache == null || !STRUCTURE_DEFINITION.equals(myFhirContext.getResourceType(theResource))) {
+			return;
+		}
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCommit() {
+					myCache.requestRefresh();
+				}
+			});
+		} else {
+			myCache.requestRefresh();
+		}
+	}
+
+	private void checkRules(RequestDetails theRequestDetails, IBaseResource theResource) {
+		if (ExtensionUtil.hasExtension(theResource, HapiExtensions.EXT_RESOURCE_PLACEHOLDER)) {
+			return;
+		}
+		List<IRepositoryValidatingRule> rules = myRulesByType.getOrDefault(myFhirContext.getResourceType(theResource), Collections.emptyList());
+		for (IRepositoryValidatingRule next : rules) {
+			IRepositoryValidatingRule.RuleEvaluation outcome = next.evaluate(theRequestDetails, theResource);
+			if (!outcome.isPasses()) {
+				handleFailure(outcome);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void handleInit(Collection<IIdType> theResourceIds) {
+		Set<String> changedTypes = new HashSet<>();
+		Set<String> ids = theResourceIds.stream().map(next -> next.toUnqualifiedVersionless().getIdPart()).collect(Collectors.toSet());
+		myProfiles.entrySet().removeIf(next -> {
+			if (ids.contains(next.getKey())) {
+				return false;
+			}
+			changedTypes.add(next.getValue().myType);
+			return true;
+		});
+		load(ids, changedTypes);
+		rebuild(changedTypes);
+	}
+
+	@Override
+	public synchronized void handleChange(IResourceChangeEvent theResourceChangeEvent) {
+		Set<String> changedTypes = new HashSet<>();
+		for (IIdType next : theResourceChangeEvent.getDeletedResourceIds()) {
+			StoredProfile removed = myProfiles.remove(next.getIdPart());
+			if (removed != null) {
+				changedTypes.add(removed.myType);
+			}
+		}
+		Set<String> ids = new HashSet<>();
+		theResourceChangeEvent.getCreatedResourceIds().forEach(next -> ids.add(next.getIdPart()));
+		theResourceChangeEvent.getUpdatedResourceIds().forEach(next -> ids.add(next.getIdPart()));
+		load(ids, changedTypes);
+		rebuild(changedTypes);
+	}
+
+	/**
+	 * Reads the type and URL of the given StructureDefinitions, a page at a time.
+	 */
+	private void load(Collection<String> theIds, Set<String> theChangedTypes) {
+		FhirTerser terser = myFhirContext.newTerser();
+		List<String> ids = new ArrayList<>(theIds);
+		for (int from = 0; from < ids.size(); from += PAGE_SIZE) {
+			TokenOrListParam page = new TokenOrListParam();
+			ids.subList(from, Math.min(from + PAGE_SIZE, ids.size())).forEach(next -> page.addOr(new TokenParam(next)));
+			IBundleProvider results = myStructureDefinitionDao.search(SearchParameterMap.newSynchronous().add(IAnyResource.SP_RES_ID, page));
+			for (IBaseResource next : results.getResources(0, PAGE_SIZE)) {
+				String id = next.getIdElement().getIdPart();
+				StoredProfile profile = new StoredProfile(terser.getSinglePrimitiveValueOrNull(next, "type"), terser.getSinglePrimitiveValueOrNull(next, "url"));
+				StoredProfile previous = myProfiles.put(id, profile);
+				if (previous != null) {
+					theChangedTypes.add(previous.myType);
+				}
+				theChangedTypes.add(profile.myType);
+			}
+		}
+	}
+
+	private void rebuild(Set<String> theTypes) {
+		theTypes.remove(null);
+		if (theTypes.isEmpty()) {
+			return;
+		}
+
+		Map<String, List<IRepositoryValidatingRule>> rulesByType = new HashMap<>(myRulesByType);
+		for (String type : theTypes) {
+			String[] urls = myProfiles.values().stream()
+				.filter(next -> type.equals(next.myType) && next.myUrl != null)
+				.map(next -> next.myUrl)
+				.distinct()
+				.sorted()
+				.toArray(String[]::new);
+			if (urls.length == 0) {
+				rulesByType.remove(type);
+			} else {
+				RepositoryValidatingRuleBuilder builder = myRuleBuilderSupplier.get();
+				builder.forResourcesOfType(type).requireAtLeastOneProfileOf(urls).and().requireValidationToDeclaredProfiles();
+				rulesByType.put(type, List.copyOf(builder.build()));
+			}
+		}
+		myRulesByType = Collections.unmodifiableMap(rulesByType);
+		ourLog.info("Rebuilt the repository validation rules of {}, the rules are now:\n{}", theTypes, describeRules());
+	}
+
+	private static final class StoredProfile {
+		private final String myType;
+		private final String myUrl;
+
+		private StoredProfile(String theType, String theUrl) {
+			myType = theType;
+			myUrl = theUrl;
+		}
+	}
+}
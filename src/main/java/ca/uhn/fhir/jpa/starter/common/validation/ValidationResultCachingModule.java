@@ -0,0 +1,171 @@
+package ca.uhn.fhir.jpa.starter.common.validation;
+
+import ca.uhn.fhir.jpa.cache.IResourceChangeListenerRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.jpa.starter.common.InvalidatingResourceChangeListener;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.validation.IValidationContext;
+import ca.uhn.fhir.validation.IValidatorModule;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Remembers the outcome of the validator module it wraps, so that resources submitted again with
+ * the same content, e.g. retries of a failed request, are not validated again.
+ * <p>
+ * Outcomes are keyed by a hash of the resource content, the profiles it is validated against and
+ * the implementation guide packages installed when it was validated. JSON content is normalized
+ * first, so that a resource differing only in whitespace or formatting shares the outcome; other
+ * content is hashed as submitted. Line and column numbers are only reported for the exact content
+ * they were computed from. The cache holds a bounded number of outcomes and is cleared whenever the
+ * caches of the validation support chain are invalidated, or whenever a conformance resource the
+ * validator relies on is created, changed or deleted.
+ */
+public class ValidationResultCachingModule implements IValidatorModule {
+
+	public static final String CACHE_NAME = "hapi.fhir.validation_result_cache";
+
+	private static final Logger ourLog = LoggerFactory.getLogger(ValidationResultCachingModule.class);
+	private static final String[] CONFORMANCE_RESOURCE_TYPES = {"StructureDefinition", "ValueSet", "CodeSystem", "ConceptMap"};
+	private static final long REFRESH_INTERVAL_MILLIS = 60000L;
+
+	private final IValidatorModule myDelegate;
+	private final Supplier<String> myPackageVersionsSupplier;
+	private final Cache<String, CachedOutcome> myCache;
+	private final ObjectMapper myObjectMapper = new ObjectMapper().enable(JsonParser.Feature.STRICT_DUPLICATE_DETECTION);
+	private final AtomicLong myGeneration = new AtomicLong();
+	private volatile String myPackageVersions;
+
+	/**
+	 * @param theDelegate               the validator module doing the actual validation
+	 * @param thePackageVersionsSupplier lists the installed implementation guide packages and their versions
+	 * @param theMaximumEntries         the number of outcomes to keep
+	 */
+	public ValidationResultCachingModule(IValidatorModule theDelegate, Supplier<String> thePackageVersionsSupplier, long theMaximumEntries) {
+		myDelegate = theDelegate;
+		myPackageVersionsSupplier = thePackageVersionsSupplier;
+		myCache = Caffeine.newBuilder().maximumSize(theMaximumEntries).recordStats().build();
+	}
+
+	public void registerMetrics(MeterRegistry theMeterRegistry) {
+		CaffeineCacheMetrics.monitor(theMeterRegistry, myCache, CACHE_NAME);
+	}
+
+	/**
+	 * Watches the conformance resources the validator relies on, so that the cached outcomes are
+	 * dropped after they change.
+	 */
+	public void registerListeners(IResourceChangeListenerRegistry theResourceChangeListenerRegistry) {
+		for (String next : CONFORMANCE_RESOURCE_TYPES) {
+			theResourceChangeListenerRegistry.registerResourceResourceChangeListener(next, SearchParameterMap.newSynchronous(), new InvalidatingResourceChangeListener(next, "cached validation outcomes", this::invalidate), REFRESH_INTERVAL_MILLIS);
+		}
+	}
+
+	public void invalidate() {
+		myGeneration.incrementAndGet();
+		myPackageVersions = null;
+		myCache.invalidateAll();
+	}
+
+	@Override
+	public void validateResource(IValidationContext<IBaseResource> theContext) {
+		long generation = myGeneration.get();
+		String content = theContext.getResourceAsString();
+		EncodingEnum encoding = theContext.getResourceAsStringEncoding();
+		String contentHash = hash(content);
+		String key = toKey(normalize(content, encoding), encoding, theContext);
+
+		CachedOutcome outcome = myCache.getIfPresent(key);
+		if (outcome != null) {
+			boolean sameContent = outcome.myContentHash.equals(contentHash);
+			outcome.myMessages.forEach(next -> theContext.addValidationMessage(copy(next, sameContent)));
+			return;
+		}
+
+		int messagesBefore = theContext.getMessages().size();
+		myDelegate.validateResource(theContext);
+		List<SingleValidationMessage> messages = theContext.getMessages().subList(messagesBefore, theContext.getMessages().size());
+
+		// Don't keep an outcome computed against conformance resources that changed in the meantime
+		if (myGeneration.get() == generation) {
+			List<SingleValidationMessage> copies = new ArrayList<>(messages.size());
+			messages.forEach(next -> copies.add(copy(next, true)));
+			myCache.put(key, new CachedOutcome(contentHash, copies));
+			if (myGeneration.get() != generation) {
+				myCache.invalidate(key);
+			}
+		}
+	}
+
+	private String toKey(String theNormalizedContent, EncodingEnum theEncoding, IValidationContext<IBaseResource> theContext) {
+		String packageVersions = myPackageVersions;
+		if (packageVersions == null) {
+			packageVersions = myPackageVersionsSupplier.get();
+			myPackageVersions = packageVersions;
+		}
+
+		Hasher hasher = Hashing.sha256().newHasher();
+		hasher.putString(String.valueOf(theEncoding), StandardCharsets.UTF_8).putChar('\n');
+		new TreeSet<>(theContext.getOptions().getProfiles()).forEach(next -> hasher.putString(next, StandardCharsets.UTF_8).putChar('\n'));
+		hasher.putString(packageVersions, StandardCharsets.UTF_8).putChar('\n');
+		hasher.putString(theNormalizedContent, StandardCharsets.UTF_8);
+		return hasher.hash().toString();
+	}
+
+	private String normalize(String theContent, EncodingEnum theEncoding) {
+		if (theEncoding == EncodingEnum.JSON) {
+			try {
+				return myObjectMapper.writeValueAsString(myObjectMapper.readTree(theContent));
+			} catch (IOException e) {
+				// Not well formed, the validator reports why
+				ourLog.trace("Could not normalize JSON content", e);
+			}
+		}
+		return theContent;
+	}
+
+	private static String hash(String theContent) {
+		return Hashing.sha256().hashString(theContent, StandardCharsets.UTF_8).toString();
+	}
+
+	private static SingleValidationMessage copy(SingleValidationMessage theMessage, boolean theIncludeLineAndColumn) {
+		SingleValidationMessage retVal = new SingleValidationMessage();
+		retVal.setLocationString(theMessage.getLocationString());
+		retVal.setMessage(theMessage.getMessage());
+		retVal.setMessageId(theMessage.getMessageId());
+		retVal.setSeverity(theMessage.getSeverity());
+		if (theIncludeLineAndColumn) {
+			retVal.setLocationLine(theMessage.getLocationLine());
+			retVal.setLocationCol(theMessage.getLocationCol());
+		}
+		return retVal;
+	}
+
+	private static final class CachedOutcome {
+		private final String myContentHash;
+		private final List<SingleValidationMessage> myMessages;
+
+		private CachedOutcome(String theContentHash, List<SingleValidationMessage> theMessages) {
+			myContentHash = theContentHash;
+			myMessages = theMessages;
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package ca.uhn.fhir.jpa.starter.common.validation;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.util.FhirTerser;
+import ca.uhn.fhir.util.StopWatch;
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.IValidatorModule;
+import ca.uhn.fhir.validation.ValidationOptions;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Prepares the validator for the profiles stored on the server before it starts accepting traffic,
+ * so that the first requests validated against them don't pay for loading them.
+ * <p>
+ * Runs as an {@link ApplicationRunner}: Spring Boot only reports the application as ready, i.e.
+ * <code>/readyz</code> only succeeds, once all runners have completed, while the server is already
+ * reported as live. Every StructureDefinition stored on the server is loaded through the validation
+ * support chain, which caches it. The stored StructureDefinitions are read a page at a time, only
+ * their URL and type are kept. This includes the profiles of the implementation guides installed at
+ * startup, as they are stored when installed. When they are installed in the background, with
+ * <code>hapi.fhir.ig_install_deferred</code>, the warm-up runs again once they are. A minimal instance of every resource profile is then
+ * validated against it, which makes the validator convert the profile, generate its snapshot if it
+ * has none, and compile the FHIRPath constraints it evaluates. Profiles are processed in parallel, and
+ * failures are logged without stopping the startup.
+ * <p>
+ * The time taken by the whole warm-up and by each profile is published as
+ * <code>hapi.fhir.validation.warmup</code> and <code>hapi.fhir.validation.warmup.profile</code>, the
+ * slowest profiles are logged by URL.
+ */
+public class ValidatorWarmup implements ApplicationRunner {
+
+	public static final String METRIC_WARMUP = "hapi.fhir.validation.warmup";
+	public static final String METRIC_PROFILE = "hapi.fhir.validation.warmup.profile";
+
+	private static final Logger ourLog = LoggerFactory.getLogger(ValidatorWarmup.class);
+	private static final int PAGE_SIZE = 100;
+
+	private final FhirContext myFhirContext;
+	private final DaoRegistry myDaoRegistry;
+	private final IValidationSupport myValidationSupport;
+	private final FhirValidator myValidator;
+	private final int myThreads;
+	private final Map<String, Long> myProfileMillis = new ConcurrentHashMap<>();
+	private Timer myProfileTimer;
+	private MeterRegistry myMeterRegistry;
+
+	public ValidatorWarmup(FhirContext theFhirContext, DaoRegistry theDaoRegistry, IValidationSupport theValidationSupport, IValidatorModule theValidatorModule, int theThreads) {
+		myFhirContext = theFhirContext;
+		myDaoRegistry = theDaoRegistry;
+		myValidationSupport = theValidationSupport;
+		myValidator = theFhirContext.newValidator();
+		myValidator.registerValidatorModule(theValidatorModule);
+		myThreads = Math.max(1, theThreads);
+	}
+
+	public void registerMetrics(MeterRegistry theMeterRegistry) {
+		myMeterRegistry = theMeterRegistry;
+		myProfileTimer = Timer.builder(METRIC_PROFILE).register(theMeterRegistry);
+	}
+
+	@Override
+	public void run(ApplicationArguments theArgs) throws InterruptedException {
+		warmUpStoredProfiles();
+	}
+
+	/**
+	 * Warms up the validator for the profiles currently stored, e.g. again once implementation guides installed
+	 * after the startup are stored.
+	 */
+	public void warmUpStoredProfiles() throws InterruptedException {
+		StopWatch sw = new StopWatch();
+		Map<String, String> profiles = loadStoredProfiles();
+		ourLog.info("Warming up the validator for {} profiles with {} threads", profiles.size(), myThreads);
+
+		ExecutorService executor = Executors.newFixedThreadPool(myThreads, new BasicThreadFactory.Builder().namingPattern("validator-warmup-%d").build());
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			profiles.forEach((url, type) -> futures.add(executor.submit(() -> warmUp(url, type))));
+			for (Future<?> next : futures) {
+				try {
+					next.get();
+				} catch (ExecutionException e) {
+					ourLog.warn("Failed to warm up the validator: {}", e.getCause().toString());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		long millis = sw.getMillis();
+		if (myMeterRegistry != null) {
+			Timer.builder(METRIC_WARMUP).register(myMeterRegistry).record(millis, TimeUnit.MILLISECONDS);
+		}
+		ourLog.info("Warmed up the validator for {} profiles in {}ms, slowest: {}", profiles.size(), millis, slowestProfiles(5));
+	}
+
+	/**
+	 * @return the time taken to warm up each profile, by profile URL
+	 */
+	public Map<String, Long> getProfileMillis() {
+		return myProfileMillis;
+	}
+
+	private Map<String, String> loadStoredProfiles() {
+		Map<String, String> retVal = new LinkedHashMap<>();
+		if (!myDaoRegistry.isResourceTypeSupported("StructureDefinition")) {
+			return retVal;
+		}
+		// Not a synchronous search, which would load all of them at once, nor the results of an earlier search
+		SystemRequestDetails requestDetails = new SystemRequestDetails();
+		requestDetails.addHeader(Constants.HEADER_CACHE_CONTROL, Constants.CACHE_CONTROL_NO_CACHE);
+		IBundleProvider structureDefinitions = myDaoRegistry.getResourceDao("StructureDefinition").search(new SearchParameterMap(), requestDetails);
+		FhirTerser terser = myFhirContext.newTerser();
+		for (int from = 0; ; from += PAGE_SIZE) {
+			List<IBaseResource> page = structureDefinitions.getResources(from, from + PAGE_SIZE);
+			if (page.isEmpty()) {
+				return retVal;
+			}
+			for (IBaseResource next : page) {
+				String url = terser.getSinglePrimitiveValueOrNull(next, "url");
+				if (url != null) {
+					// Only profiles of resources can be checked with an instance, the others are loaded only
+					boolean resourceProfile = "resource".equals(terser.getSinglePrimitiveValueOrNull(next, "kind")) && !"true".equals(terser.getSinglePrimitiveValueOrNull(next, "abstract"));
+					retVal.put(url, resourceProfile ? terser.getSinglePrimitiveValueOrNull(next, "type") : null);
+				}
+			}
+		}
+	}
+
+	private void warmUp(String theUrl, String theResourceType) {
+		StopWatch sw = new StopWatch();
+		myValidationSupport.fetchStructureDefinition(theUrl);
+		if (theResourceType != null && myFhirContext.getResourceTypes().contains(theResourceType)) {
+			IBaseResource instance = myFhirContext.getResourceDefinition(theResourceType).newInstance();
+			instance.getMeta().addProfile(theUrl);
+			myValidator.validateWithResult(instance, new ValidationOptions().addProfile(theUrl));
+		}
+
+		long millis = sw.getMillis();
+		myProfileMillis.put(theUrl, millis);
+		if (myProfileTimer != null) {
+			myProfileTimer.record(millis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private String slowestProfiles(int theCount) {
+		return myProfileMillis.entrySet().stream()
+			.sorted(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder()))
+			.limit(theCount)
+			.map(next -> next.getKey() + " (" + next.getValue() + "ms)")
+			.collect(Collectors.joining(", "));
+	}
+}
@@ -0,0 +1,395 @@
+package ca.uhn.fhir.jpa.starter.compression;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A response whose body is compressed once it turns out to be worth it.
+ * <p>
+ * The first <code>min_size</code> bytes are held in a pooled buffer. A response that ends within them, and
+ * any response that isn't text, JSON or XML, already has a <code>Content-Encoding</code> or is a partial
+ * content, is sent as is. Otherwise it is deflated, as gzip or zlib data, through a pooled compressor and
+ * output buffer, so compressing a response allocates nothing once the pool is warm. A flush before the
+ * buffer is full, as when streaming search results, compresses the response right away, and each later
+ * flush sends what was compressed so far.
+ */
+class CompressingResponse extends HttpServletResponseWrapper {
+
+	private static final ThreadMXBean ourThreads = ManagementFactory.getThreadMXBean();
+	private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+	private final String myEncoding;
+	private final int myMinSize;
+	private final CompressionPool myPool;
+	private final ResponseCompressionFilter.Meters myMeters;
+	private long myContentLength = -1;
+	private CompressingOutputStream myOutputStream;
+	private PrintWriter myWriter;
+
+	CompressingResponse(HttpServletResponse theResponse, String theEncoding, int theMinSize, CompressionPool thePool, ResponseCompressionFilter.Meters theMeters) {
+		super(theResponse);
+		myEncoding = theEncoding;
+		myMinSize = theMinSize;
+		myPool = thePool;
+		myMeters = theMeters;
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream() throws IOException {
+		if (myWriter != null) {
+			throw new IllegalStateException("getWriter() has already been called");
+		}
+		return outputStream();
+	}
+
+	@Override
+	public PrintWriter getWriter() throws IOException {
+		if (myWriter == null) {
+			if (myOutputStream != null) {
+				throw new IllegalStateException("getOutputStream() has already been called");
+			}
+			myWriter = new PrintWriter(new OutputStreamWriter(outputStream(), getCharacterEncoding()));
+		}
+		return myWriter;
+	}
+
+	@Override
+	public void flushBuffer() throws IOException {
+		if (myWriter != null) {
+			myWriter.flush();
+		} else if (myOutputStream != null) {
+			myOutputStream.flush();
+		} else {
+			super.flushBuffer();
+		}
+	}
+
+	@Override
+	public void resetBuffer() {
+		super.resetBuffer();
+		if (myOutputStream != null) {
+			myOutputStream.resetPending();
+		}
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		myContentLength = -1;
+		if (myOutputStream != null) {
+			myOutputStream.resetPending();
+		}
+	}
+
+	@Override
+	public void setContentLength(int theLength) {
+		setContentLengthLong(theLength);
+	}
+
+	@Override
+	public void setContentLengthLong(long theLength) {
+		if (myOutputStream != null && myOutputStream.myState == State.IDENTITY) {
+			super.setContentLengthLong(theLength);
+		} else {
+			myContentLength = theLength;
+		}
+	}
+
+	@Override
+	public void setHeader(String theName, String theValue) {
+		if ("Content-Length".equalsIgnoreCase(theName)) {
+			setContentLengthLong(Long.parseLong(theValue));
+		} else {
+			super.setHeader(theName, theValue);
+		}
+	}
+
+	@Override
+	public void addHeader(String theName, String theValue) {
+		if ("Content-Length".equalsIgnoreCase(theName)) {
+			setContentLengthLong(Long.parseLong(theValue));
+		} else {
+			super.addHeader(theName, theValue);
+		}
+	}
+
+	/**
+	 * Sends what is left of the response, and returns the compressor and buffers to the pool.
+	 */
+	void finish() throws IOException {
+		if (myWriter != null) {
+			myWriter.close();
+		} else if (myOutputStream != null) {
+			myOutputStream.close();
+		} else if (myContentLength >= 0) {
+			super.setContentLengthLong(myContentLength);
+		}
+	}
+
+	private CompressingOutputStream outputStream() throws IOException {
+		if (myOutputStream == null) {
+			myOutputStream = new CompressingOutputStream(super.getOutputStream());
+		}
+		return myOutputStream;
+	}
+
+	private boolean isCompressible() {
+		int status = getStatus();
+		if (status < 200 || status == SC_NO_CONTENT || status == SC_PARTIAL_CONTENT || status == SC_NOT_MODIFIED) {
+			return false;
+		}
+		if (getHeader("Content-Encoding") != null || getHeader("Content-Range") != null) {
+			return false;
+		}
+		if (myContentLength >= 0 && myContentLength < myMinSize) {
+			return false;
+		}
+		String contentType = getContentType();
+		if (contentType == null) {
+			return false;
+		}
+		contentType = contentType.toLowerCase(Locale.ROOT);
+		return contentType.startsWith("text/") || contentType.contains("json") || contentType.contains("xml") || contentType.contains("javascript");
+	}
+
+	private enum State {
+		PENDING, IDENTITY, COMPRESSING, CLOSED
+	}
+
+	private class CompressingOutputStream extends ServletOutputStream {
+
+		private final ServletOutputStream myTarget;
+		private final boolean myGzip = ResponseCompressionFilter.GZIP.equals(myEncoding);
+		private State myState = State.PENDING;
+		private byte[] myPending;
+		private int myPendingCount;
+		private Deflater myDeflater;
+		private byte[] myOutput;
+		private CRC32 myCrc;
+		private long myBytesIn;
+		private long myBytesOut;
+		private long myCpuNanos;
+		private boolean myWallClock;
+
+		private CompressingOutputStream(ServletOutputStream theTarget) {
+			myTarget = theTarget;
+		}
+
+		@Override
+		public void write(int theByte) throws IOException {
+			write(new byte[]{(byte) theByte}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] theBytes, int theOffset, int theLength) throws IOException {
+			switch (myState) {
+				case PENDING:
+					if (myPending == null) {
+						myPending = myPool.acquireBuffer();
+					}
+					if (myPendingCount + theLength <= myMinSize) {
+						System.arraycopy(theBytes, theOffset, myPending, myPendingCount, theLength);
+						myPendingCount += theLength;
+						return;
+					}
+					start(false);
+					write(theBytes, theOffset, theLength);
+					return;
+				case IDENTITY:
+					myTarget.write(theBytes, theOffset, theLength);
+					return;
+				case COMPRESSING:
+					deflate(theBytes, theOffset, theLength, Deflater.NO_FLUSH);
+					return;
+				case CLOSED:
+				default:
+					throw new IOException("The response is closed");
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (myState == State.PENDING && myPendingCount > 0) {
+				start(false);
+			}
+			if (myState == State.COMPRESSING) {
+				deflate(myPending, 0, 0, Deflater.SYNC_FLUSH);
+			}
+			if (myState != State.CLOSED) {
+				myTarget.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				if (myState == State.PENDING) {
+					start(true);
+				}
+				if (myState == State.COMPRESSING) {
+					long start = now();
+					myDeflater.finish();
+					while (!myDeflater.finished()) {
+						writeCompressed(myDeflater.deflate(myOutput));
+					}
+					addCpuTime(start, now());
+					if (myGzip) {
+						writeGzipTrailer();
+					}
+					recordMetrics();
+				}
+				if (myState != State.CLOSED) {
+					myState = State.CLOSED;
+					myTarget.close();
+				}
+			} finally {
+				release();
+			}
+		}
+
+		@Override
+		public boolean isReady() {
+			return myTarget.isReady();
+		}
+
+		@Override
+		public void setWriteListener(WriteListener theWriteListener) {
+			myTarget.setWriteListener(theWriteListener);
+		}
+
+		private void resetPending() {
+			if (myState == State.PENDING) {
+				myPendingCount = 0;
+			}
+		}
+
+		/**
+		 * Decides whether to compress, and sends what is pending.
+		 *
+		 * @param theComplete whether the pending bytes are the whole response
+		 */
+		private void start(boolean theComplete) throws IOException {
+			if ((theComplete && myPendingCount < myMinSize) || !isCompressible()) {
+				myState = State.IDENTITY;
+				if (theComplete) {
+					CompressingResponse.super.setContentLengthLong(myPendingCount);
+				} else if (myContentLength >= 0) {
+					CompressingResponse.super.setContentLengthLong(myContentLength);
+				}
+				if (myPendingCount > 0) {
+					myTarget.write(myPending, 0, myPendingCount);
+				}
+				return;
+			}
+
+			myState = State.COMPRESSING;
+			myWallClock = cpuTime() == -1;
+			CompressingResponse.super.setHeader("Content-Encoding", myEncoding);
+			myDeflater = myPool.acquireDeflater(myGzip);
+			myOutput = myPool.acquireBuffer();
+			if (myGzip) {
+				myCrc = new CRC32();
+				myTarget.write(GZIP_HEADER);
+				myBytesOut += GZIP_HEADER.length;
+			}
+			if (myPendingCount > 0) {
+				deflate(myPending, 0, myPendingCount, Deflater.NO_FLUSH);
+			}
+		}
+
+		private void deflate(byte[] theBytes, int theOffset, int theLength, int theFlush) throws IOException {
+			long start = now();
+			if (theLength > 0) {
+				if (myGzip) {
+					myCrc.update(theBytes, theOffset, theLength);
+				}
+				myBytesIn += theLength;
+				myDeflater.setInput(theBytes, theOffset, theLength);
+			}
+			int length;
+			do {
+				length = myDeflater.deflate(myOutput, 0, myOutput.length, theFlush);
+				writeCompressed(length);
+			} while (length == myOutput.length || !myDeflater.needsInput());
+			addCpuTime(start, now());
+		}
+
+		private long now() {
+			return myWallClock ? System.nanoTime() : cpuTime();
+		}
+
+		/**
+		 * Leaves out the intervals the CPU time wasn't measured for, e.g. once the response is written from a
+		 * virtual thread
+		 */
+		private void addCpuTime(long theStart, long theEnd) {
+			if (theStart != -1 && theEnd != -1) {
+				myCpuNanos += theEnd - theStart;
+			}
+		}
+
+		private void writeCompressed(int theLength) throws IOException {
+			if (theLength > 0) {
+				myTarget.write(myOutput, 0, theLength);
+				myBytesOut += theLength;
+			}
+		}
+
+		private void writeGzipTrailer() throws IOException {
+			long crc = myCrc.getValue();
+			long size = myBytesIn & 0xffffffffL;
+			byte[] trailer = {
+				(byte) crc, (byte) (crc >> 8), (byte) (crc >> 16), (byte) (crc >> 24),
+				(byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24)
+			};
+			myTarget.write(trailer);
+			myBytesOut += trailer.length;
+		}
+
+		private void recordMetrics() {
+			if (myMeters != null) {
+				myMeters.myBytesIn.increment(myBytesIn);
+				myMeters.myBytesOut.increment(myBytesOut);
+				myMeters.myBytesSaved.increment(Math.max(0, myBytesIn - myBytesOut));
+				myMeters.myCpu.record(myCpuNanos, TimeUnit.NANOSECONDS);
+			}
+		}
+
+		private void release() {
+			if (myDeflater != null) {
+				myPool.releaseDeflater(myDeflater, myGzip);
+				myDeflater = null;
+			}
+			if (myOutput != null) {
+				myPool.releaseBuffer(myOutput);
+				myOutput = null;
+			}
+			if (myPending != null) {
+				myPool.releaseBuffer(myPending);
+				myPending = null;
+			}
+		}
+	}
+
+	/**
+	 * The CPU time of the current thread, as compressing doesn't block, or -1 if the JVM doesn't measure it, as
+	 * for virtual threads or when CPU time measurement is disabled. A response is then timed with the wall clock.
+	 */
+	private static long cpuTime() {
+		if (!ourThreads.isCurrentThreadCpuTimeSupported() || !ourThreads.isThreadCpuTimeEnabled()) {
+			return -1;
+		}
+		return ourThreads.getCurrentThreadCpuTime();
+	}
+}
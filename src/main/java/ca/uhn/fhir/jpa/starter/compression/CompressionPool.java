@@ -0,0 +1,59 @@
+package ca.uhn.fhir.jpa.starter.compression;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * Keeps the compressors and buffers of responses between requests, as a {@link Deflater} holds a few
+ * hundred KB of native memory that is costly to set up and to release.
+ * <p>
+ * The pool holds at most <code>theMaxIdle</code> of each. When more responses are compressed at the same
+ * time, the extra compressors and buffers are created for them and dropped once they are done, so a burst
+ * never waits for a compressor.
+ */
+public class CompressionPool {
+
+	private final int myLevel;
+	private final int myBufferSize;
+	private final BlockingQueue<Deflater> myRawDeflaters;
+	private final BlockingQueue<Deflater> myZlibDeflaters;
+	private final BlockingQueue<byte[]> myBuffers;
+
+	public CompressionPool(int theLevel, int theBufferSize, int theMaxIdle) {
+		myLevel = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, theLevel));
+		myBufferSize = Math.max(1024, theBufferSize);
+		int maxIdle = Math.max(1, theMaxIdle);
+		myRawDeflaters = new ArrayBlockingQueue<>(maxIdle);
+		myZlibDeflaters = new ArrayBlockingQueue<>(maxIdle);
+		myBuffers = new ArrayBlockingQueue<>(maxIdle * 2);
+	}
+
+	/**
+	 * @param theRaw <code>true</code> for raw deflate data as wrapped by gzip, <code>false</code> for zlib data
+	 */
+	public Deflater acquireDeflater(boolean theRaw) {
+		Deflater retVal = (theRaw ? myRawDeflaters : myZlibDeflaters).poll();
+		return retVal != null ? retVal : new Deflater(myLevel, theRaw);
+	}
+
+	public void releaseDeflater(Deflater theDeflater, boolean theRaw) {
+		theDeflater.reset();
+		if (!(theRaw ? myRawDeflaters : myZlibDeflaters).offer(theDeflater)) {
+			theDeflater.end();
+		}
+	}
+
+	public byte[] acquireBuffer() {
+		byte[] retVal = myBuffers.poll();
+		return retVal != null ? retVal : new byte[myBufferSize];
+	}
+
+	public void releaseBuffer(byte[] theBuffer) {
+		myBuffers.offer(theBuffer);
+	}
+
+	public int getBufferSize() {
+		return myBufferSize;
+	}
+}
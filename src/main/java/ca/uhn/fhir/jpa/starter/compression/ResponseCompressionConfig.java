@@ -0,0 +1,43 @@
+package ca.uhn.fhir.jpa.starter.compression;
+
+import ca.uhn.fhir.jpa.starter.AppProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+
+import javax.servlet.Filter;
+import java.util.Optional;
+
+/**
+ * Compresses the responses of the FHIR {@link ca.uhn.fhir.rest.server.RestfulServer} when
+ * <code>hapi.fhir.response_compression.enabled</code> is set, see {@link ResponseCompressionFilter}.
+ * <p>
+ * The filter runs after the other filters in front of <code>/fhir/*</code>, closest to the servlet.
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "hapi.fhir.response_compression", name = "enabled", havingValue = "true")
+public class ResponseCompressionConfig {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(ResponseCompressionConfig.class);
+
+	@Bean
+	public FilterRegistrationBean<Filter> responseCompressionFilter(AppProperties appProperties, Optional<MeterRegistry> meterRegistry) {
+		AppProperties.ResponseCompression properties = appProperties.getResponse_compression();
+		CompressionPool pool = new CompressionPool(properties.getLevel(), properties.getBuffer_size(), properties.getPool_size());
+		ResponseCompressionFilter filter = new ResponseCompressionFilter(properties.getEncodings(), properties.getMin_size(), pool);
+		meterRegistry.ifPresent(filter::registerMetrics);
+		ourLog.info("Compressing FHIR responses of at least {} bytes with {} at level {}", properties.getMin_size(), properties.getEncodings(), properties.getLevel());
+
+		FilterRegistrationBean<Filter> registrationBean = new FilterRegistrationBean<>();
+		registrationBean.setFilter(filter);
+		registrationBean.addUrlPatterns("/fhir/*");
+		registrationBean.setAsyncSupported(true);
+		registrationBean.setOrder(Ordered.LOWEST_PRECEDENCE);
+		return registrationBean;
+	}
+}
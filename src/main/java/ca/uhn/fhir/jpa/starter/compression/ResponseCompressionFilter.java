@@ -0,0 +1,164 @@
+package ca.uhn.fhir.jpa.starter.compression;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Compresses FHIR responses with the encoding the client prefers among the configured ones, see
+ * {@link CompressingResponse}.
+ * <p>
+ * The <code>Accept-Encoding</code> of a request is hidden from the {@link ca.uhn.fhir.rest.server.RestfulServer},
+ * which would otherwise gzip the response itself, without a minimum size and with a new compressor each time.
+ */
+public class ResponseCompressionFilter implements Filter {
+
+	public static final String GZIP = "gzip";
+	public static final String DEFLATE = "deflate";
+	public static final String METRIC_BYTES_IN = "hapi.fhir.response_compression.bytes.in";
+	public static final String METRIC_BYTES_OUT = "hapi.fhir.response_compression.bytes.out";
+	public static final String METRIC_BYTES_SAVED = "hapi.fhir.response_compression.bytes.saved";
+	public static final String METRIC_CPU = "hapi.fhir.response_compression.cpu";
+
+	private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+
+	private final List<String> myEncodings;
+	private final int myMinSize;
+	private final CompressionPool myPool;
+	private final Map<String, Meters> myMeters = new HashMap<>();
+
+	public ResponseCompressionFilter(List<String> theEncodings, int theMinSize, CompressionPool thePool) {
+		myEncodings = theEncodings.stream()
+			.map(next -> next.trim().toLowerCase(Locale.ROOT))
+			.filter(next -> next.equals(GZIP) || next.equals(DEFLATE))
+			.collect(Collectors.toList());
+		myMinSize = Math.min(Math.max(0, theMinSize), thePool.getBufferSize());
+		myPool = thePool;
+	}
+
+	public void registerMetrics(MeterRegistry theMeterRegistry) {
+		for (String encoding : myEncodings) {
+			Meters meters = new Meters();
+			meters.myBytesIn = theMeterRegistry.counter(METRIC_BYTES_IN, "encoding", encoding);
+			meters.myBytesOut = theMeterRegistry.counter(METRIC_BYTES_OUT, "encoding", encoding);
+			meters.myBytesSaved = theMeterRegistry.counter(METRIC_BYTES_SAVED, "encoding", encoding);
+			meters.myCpu = Timer.builder(METRIC_CPU)
+				.description("CPU time spent compressing responses, or wall clock time where the JVM doesn't measure the CPU time of the thread, e.g. on virtual threads")
+				.tag("encoding", encoding)
+				.register(theMeterRegistry);
+			myMeters.put(encoding, meters);
+		}
+	}
+
+	@Override
+	public void init(FilterConfig theFilterConfig) {
+		// nothing
+	}
+
+	@Override
+	public void destroy() {
+		// nothing
+	}
+
+	@Override
+	public void doFilter(ServletRequest theRequest, ServletResponse theResponse, FilterChain theChain) throws IOException, ServletException {
+		if (!(theRequest instanceof HttpServletRequest)) {
+			theChain.doFilter(theRequest, theResponse);
+			return;
+		}
+		HttpServletRequest request = (HttpServletRequest) theRequest;
+		HttpServletResponse response = (HttpServletResponse) theResponse;
+		String encoding = negotiate(request.getHeader(HEADER_ACCEPT_ENCODING));
+		if (encoding == null || "HEAD".equals(request.getMethod())) {
+			theChain.doFilter(theRequest, theResponse);
+			return;
+		}
+
+		response.addHeader("Vary", HEADER_ACCEPT_ENCODING);
+		CompressingResponse compressingResponse = new CompressingResponse(response, encoding, myMinSize, myPool, myMeters.get(encoding));
+		try {
+			theChain.doFilter(new IdentityEncodingRequest(request), compressingResponse);
+		} finally {
+			compressingResponse.finish();
+		}
+	}
+
+	/**
+	 * @return the first configured encoding the given <code>Accept-Encoding</code> accepts, or <code>null</code>
+	 */
+	String negotiate(String theAcceptEncoding) {
+		if (theAcceptEncoding == null || theAcceptEncoding.isBlank()) {
+			return null;
+		}
+		Map<String, Double> accepted = new HashMap<>();
+		for (String next : theAcceptEncoding.split(",")) {
+			String[] parts = next.split(";");
+			String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+			double quality = 1.0;
+			for (int i = 1; i < parts.length; i++) {
+				String parameter = parts[i].trim();
+				if (parameter.startsWith("q=")) {
+					try {
+						quality = Double.parseDouble(parameter.substring(2));
+					} catch (NumberFormatException e) {
+						quality = 0;
+					}
+				}
+			}
+			accepted.put(coding.equals("x-gzip") ? GZIP : coding, quality);
+		}
+		String retVal = null;
+		double best = 0;
+		for (String encoding : myEncodings) {
+			double quality = accepted.getOrDefault(encoding, accepted.getOrDefault("*", 0.0));
+			if (quality > best) {
+				retVal = encoding;
+				best = quality;
+			}
+		}
+		return retVal;
+	}
+
+	static class Meters {
+
+		Counter myBytesIn;
+		Counter myBytesOut;
+		Counter myBytesSaved;
+		Timer myCpu;
+	}
+
+	private static class IdentityEncodingRequest extends HttpServletRequestWrapper {
+
+		IdentityEncodingRequest(HttpServletRequest theRequest) {
+			super(theRequest);
+		}
+
+		@Override
+		public String getHeader(String theName) {
+			return HEADER_ACCEPT_ENCODING.equalsIgnoreCase(theName) ? null : super.getHeader(theName);
+		}
+
+		@Override
+		public Enumeration<String> getHeaders(String theName) {
+			return HEADER_ACCEPT_ENCODING.equalsIgnoreCase(theName) ? Collections.emptyEnumeration() : super.getHeaders(theName);
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package ca.uhn.fhir.jpa.starter.formatting;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.InterceptorOrders;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.interceptor.ResponseHighlighterInterceptor;
+import org.hl7.fhir.instance.model.api.IBaseConformance;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Runs the {@link ResponseHighlighterInterceptor} for the requests of browsers only, see {@link RequestClientClassifier},
+ * so that responses to machine clients skip its browser detection altogether.
+ */
+@Interceptor
+public class BrowserResponseHighlighterInterceptor {
+
+	private final ResponseHighlighterInterceptor myHighlighter;
+
+	public BrowserResponseHighlighterInterceptor(ResponseHighlighterInterceptor theHighlighter) {
+		myHighlighter = theHighlighter;
+	}
+
+	@Hook(value = Pointcut.SERVER_OUTGOING_RESPONSE, order = InterceptorOrders.RESPONSE_HIGHLIGHTER_INTERCEPTOR)
+	public boolean outgoingResponse(RequestDetails theRequestDetails, ResponseDetails theResponseDetails, HttpServletRequest theServletRequest, HttpServletResponse theServletResponse) {
+		if (!RequestClientClassifier.isBrowser(theRequestDetails)) {
+			return true;
+		}
+		return myHighlighter.outgoingResponse(theRequestDetails, theResponseDetails, theServletRequest, theServletResponse);
+	}
+
+	@Hook(value = Pointcut.SERVER_HANDLE_EXCEPTION, order = InterceptorOrders.RESPONSE_HIGHLIGHTER_INTERCEPTOR)
+	public boolean handleException(RequestDetails theRequestDetails, BaseServerResponseException theException, HttpServletRequest theServletRequest, HttpServletResponse theServletResponse) {
+		if (!RequestClientClassifier.isBrowser(theRequestDetails)) {
+			return true;
+		}
+		return myHighlighter.handleException(theRequestDetails, theException, theServletRequest, theServletResponse);
+	}
+
+	@Hook(Pointcut.SERVER_CAPABILITY_STATEMENT_GENERATED)
+	public void capabilityStatementGenerated(RequestDetails theRequestDetails, IBaseConformance theCapabilityStatement) {
+		// Advertises the HTML formats to every client, as the plain highlighter does
+		myHighlighter.capabilityStatementGenerated(theRequestDetails, theCapabilityStatement);
+	}
+}
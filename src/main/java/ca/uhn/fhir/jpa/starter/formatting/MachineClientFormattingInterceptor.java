@@ -0,0 +1,58 @@
+package ca.uhn.fhir.jpa.starter.formatting;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+
+import java.util.List;
+
+/**
+ * Sends the responses of machine clients without indentation, whatever <code>hapi.fhir.default_pretty_print</code>
+ * says, enabled with <code>hapi.fhir.machine_client_formatting_enabled</code>. A client still gets a pretty printed
+ * response by asking for it with <code>_pretty=true</code> or an <code>Accept</code> header with <code>pretty=true</code>.
+ * Browsers, see {@link RequestClientClassifier}, keep the default.
+ * <p>
+ * The client is classified when the request is processed, and the outcome kept in the request's user data, see
+ * {@link #prettyPrintResponse(RequestDetails)}. HAPI only takes the preference from the request parameters, so
+ * <code>_pretty=false</code> is added to them once the response is built, and before it is written. The links
+ * of the Bundles built for the response don't carry it.
+ */
+@Interceptor
+public class MachineClientFormattingInterceptor {
+
+	private static final String USER_DATA_COMPACT = MachineClientFormattingInterceptor.class.getName() + "_COMPACT";
+
+	/**
+	 * Classified before the interceptors which depend on the formatting of the response, e.g. the read cache
+	 */
+	@Hook(value = Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED, order = -100)
+	public boolean classifyClient(RequestDetails theRequestDetails) {
+		if (theRequestDetails.getParameters().containsKey(Constants.PARAM_PRETTY) || RequestClientClassifier.isBrowser(theRequestDetails)) {
+			return true;
+		}
+		List<String> accepts = theRequestDetails.getHeaders(Constants.HEADER_ACCEPT);
+		if (accepts != null && accepts.stream().anyMatch(next -> next.contains("pretty=true"))) {
+			return true;
+		}
+		theRequestDetails.getUserData().put(USER_DATA_COMPACT, Boolean.TRUE);
+		return true;
+	}
+
+	@Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
+	public boolean compactResponse(RequestDetails theRequestDetails) {
+		if (Boolean.TRUE.equals(theRequestDetails.getUserData().get(USER_DATA_COMPACT))) {
+			theRequestDetails.addParameter(Constants.PARAM_PRETTY, new String[]{Constants.PARAM_PRETTY_VALUE_FALSE});
+		}
+		return true;
+	}
+
+	/**
+	 * @return whether the response to the given request is pretty printed, once the client was classified
+	 */
+	public static boolean prettyPrintResponse(RequestDetails theRequestDetails) {
+		return !Boolean.TRUE.equals(theRequestDetails.getUserData().get(USER_DATA_COMPACT)) && RestfulServerUtils.prettyPrintResponse(theRequestDetails.getServer(), theRequestDetails);
+	}
+}
@@ -0,0 +1,52 @@
+package ca.uhn.fhir.jpa.starter.formatting;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Tells requests from a browser, which get the HTML rendering of the {@link ca.uhn.fhir.rest.server.interceptor.ResponseHighlighterInterceptor},
+ * from requests of machine clients, in the same way as the highlighter does: a request comes from a browser
+ * if it asks for <code>_format=html</code> (or <code>html/json</code>, <code>html/xml</code>), or accepts
+ * <code>text/html</code>. The outcome is kept with the request, so it is worked out once per request.
+ */
+public final class RequestClientClassifier {
+
+	private static final String USER_DATA_KEY = RequestClientClassifier.class.getName();
+	private static final Set<String> HTML_FORMATS = Set.of(Constants.FORMATS_HTML, Constants.CT_HTML, Constants.FORMATS_HTML_JSON, Constants.FORMATS_HTML_XML);
+
+	private RequestClientClassifier() {
+	}
+
+	public static boolean isBrowser(RequestDetails theRequestDetails) {
+		Object retVal = theRequestDetails.getUserData().get(USER_DATA_KEY);
+		if (retVal == null) {
+			retVal = classify(theRequestDetails);
+			theRequestDetails.getUserData().put(USER_DATA_KEY, retVal);
+		}
+		return (Boolean) retVal;
+	}
+
+	private static boolean classify(RequestDetails theRequestDetails) {
+		String[] formats = theRequestDetails.getParameters().get(Constants.PARAM_FORMAT);
+		if (formats != null) {
+			for (String format : formats) {
+				if (HTML_FORMATS.contains(format.trim().toLowerCase(Locale.ROOT))) {
+					return true;
+				}
+			}
+		}
+		List<String> accepts = theRequestDetails.getHeaders(Constants.HEADER_ACCEPT);
+		if (accepts != null) {
+			for (String accept : accepts) {
+				if (accept.toLowerCase(Locale.ROOT).contains(Constants.CT_HTML)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,238 @@
+package ca.uhn.fhir.jpa.starter.ig;
+
+import ca.uhn.fhir.batch2.api.IJobCoordinator;
+import ca.uhn.fhir.batch2.model.JobInstance;
+import ca.uhn.fhir.batch2.model.JobInstanceStartRequest;
+import ca.uhn.fhir.batch2.model.StatusEnum;
+import ca.uhn.fhir.jpa.batch.models.Batch2JobStartResponse;
+import ca.uhn.fhir.jpa.starter.AppProperties.PackageInstallationGate;
+import ca.uhn.fhir.jpa.starter.common.validation.ValidatorWarmup;
+import ca.uhn.fhir.util.JsonUtil;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+
+import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Installs the implementation guides in a {@link DeferredPackageInstallationConfig#JOB_PACKAGE_INSTALLATION}
+ * Batch2 job once the server has started, instead of while the application context is created, which is
+ * enabled with <code>hapi.fhir.ig_install_deferred</code>.
+ * <p>
+ * The server serves requests as soon as it is started, and the features listed in
+ * <code>hapi.fhir.ig_install_deferred_gates</code> wait for the job to end:
+ * <ul>
+ *    <li>{@link PackageInstallationGate#READINESS}: the application is reported as refusing traffic, i.e. <code>/readyz</code> fails</li>
+ *    <li>{@link PackageInstallationGate#WRITES}: creates, updates, patches, deletes, transactions and the operations which write are
+ *    answered with a 503, see {@link PackageInstallationGateInterceptor}</li>
+ *    <li>{@link PackageInstallationGate#VALIDATION}: <code>$validate</code> is answered with a 503</li>
+ * </ul>
+ * All the nodes of a cluster follow a single job: a node reuses the job another node started for the same
+ * packages while it is still running, and when nodes start theirs at the same time, they all follow the one
+ * created first and the others are cancelled. A job which ended is never reused, as the contents of the
+ * packages may have changed since. A job that fails or is cancelled is logged as an error and opens the gates, the server
+ * then runs without the packages that weren't installed rather than refusing traffic until it is restarted.
+ * <p>
+ * The job is polled until it ends, and its status, including the packages installed by whichever node ran the
+ * installation, is available from the <code>packageinstall</code> actuator endpoint. Once the job completes,
+ * the {@link ValidatorWarmup}, if enabled, runs again for the profiles of the packages before the gates open.
+ */
+public class DeferredPackageInstallation implements ApplicationRunner, DisposableBean {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(DeferredPackageInstallation.class);
+	private static final int MAX_RUNNING_INSTANCES = 100;
+	private static final Comparator<JobInstance> FIRST_CREATED = Comparator
+		.comparing(JobInstance::getCreateTime, Comparator.nullsLast(Comparator.<Date>naturalOrder()))
+		.thenComparing(JobInstance::getInstanceId);
+
+	private final IJobCoordinator myJobCoordinator;
+	private final ParallelPackageInstaller myPackageInstaller;
+	private final ApplicationEventPublisher myEventPublisher;
+	private final Set<PackageInstallationGate> myGates;
+	private final long myPollIntervalMillis;
+	private final ValidatorWarmup myValidatorWarmup;
+	private final ScheduledExecutorService myPoller = Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder().namingPattern("package-install-poller-%d").daemon(true).build());
+	private String myParameters;
+	private String myStartedInstanceId;
+	private volatile String myInstanceId;
+	private volatile JobInstance myInstance;
+	private volatile InstalledPackagesJson myInstalledPackages;
+	private volatile boolean myComplete;
+	private volatile boolean myEnded;
+
+	/**
+	 * @param theValidatorWarmup warms up the validator once the packages are installed, or <code>null</code>
+	 */
+	public DeferredPackageInstallation(IJobCoordinator theJobCoordinator, ParallelPackageInstaller thePackageInstaller, ApplicationEventPublisher theEventPublisher, List<PackageInstallationGate> theGates, long thePollIntervalMillis, ValidatorWarmup theValidatorWarmup) {
+		myJobCoordinator = theJobCoordinator;
+		myPackageInstaller = thePackageInstaller;
+		myEventPublisher = theEventPublisher;
+		myGates = theGates.isEmpty() ? EnumSet.noneOf(PackageInstallationGate.class) : EnumSet.copyOf(theGates);
+		myPollIntervalMillis = Math.max(100, thePollIntervalMillis);
+		myValidatorWarmup = theValidatorWarmup;
+	}
+
+	@Override
+	public void run(ApplicationArguments theArgs) {
+		JobInstanceStartRequest request = new JobInstanceStartRequest();
+		request.setJobDefinitionId(DeferredPackageInstallationConfig.JOB_PACKAGE_INSTALLATION);
+		request.setParameters(PackageInstallationJobParameters.fromSpecs(myPackageInstaller.getSpecs()));
+		myParameters = request.getParameters();
+		// Only a job still running is reused, a job which ended installed the packages as they were back then
+		Optional<JobInstance> running = findFirstCreatedRunningInstance();
+		if (running.isPresent()) {
+			myInstanceId = running.get().getInstanceId();
+		} else {
+			Batch2JobStartResponse response = myJobCoordinator.startInstance(request);
+			myStartedInstanceId = response.getJobId();
+			myInstanceId = myStartedInstanceId;
+			followFirstCreatedInstance();
+		}
+		ourLog.info("Following package installation job {}, waiting for it: {}", myInstanceId, myGates);
+		myPoller.scheduleWithFixedDelay(this::poll, myPollIntervalMillis, myPollIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Keeps the application out of the load balancer until the packages are installed, as Spring Boot reports
+	 * it as accepting traffic once it is started.
+	 */
+	@EventListener
+	public void onReadinessChange(AvailabilityChangeEvent<ReadinessState> theEvent) {
+		if (theEvent.getState() == ReadinessState.ACCEPTING_TRAFFIC && myGates.contains(PackageInstallationGate.READINESS) && !myEnded) {
+			AvailabilityChangeEvent.publish(myEventPublisher, this, ReadinessState.REFUSING_TRAFFIC);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the given feature can be used, i.e. it doesn't wait for the packages or the job has ended
+	 */
+	public boolean isOpen(PackageInstallationGate theGate) {
+		return myEnded || !myGates.contains(theGate);
+	}
+
+	/**
+	 * @return <code>true</code> once the job has completed and the packages are installed
+	 */
+	public boolean isComplete() {
+		return myComplete;
+	}
+
+	/**
+	 * @return <code>true</code> once the job has completed, failed or was cancelled
+	 */
+	public boolean isEnded() {
+		return myEnded;
+	}
+
+	public Map<String, Object> getStatus() {
+		Map<String, Object> retVal = new LinkedHashMap<>();
+		retVal.put("jobId", myInstanceId);
+		JobInstance instance = myInstance;
+		if (instance != null) {
+			retVal.put("status", instance.getStatus());
+			retVal.put("progress", instance.getProgress());
+			retVal.put("startTime", instance.getStartTime());
+			retVal.put("endTime", instance.getEndTime());
+			retVal.put("errorMessage", instance.getErrorMessage());
+		}
+		retVal.put("complete", myComplete);
+		retVal.put("waiting", myGates.stream().filter(next -> !isOpen(next)).toArray());
+		InstalledPackagesJson installed = myInstalledPackages;
+		if (installed != null) {
+			retVal.put("packageMillis", installed.getPackageMillis());
+			retVal.put("skippedPackages", installed.getSkippedPackages());
+		}
+		return retVal;
+	}
+
+	@Override
+	public void destroy() {
+		myPoller.shutdownNow();
+	}
+
+	private void poll() {
+		try {
+			followFirstCreatedInstance();
+			JobInstance instance = myJobCoordinator.getInstance(myInstanceId);
+			myInstance = instance;
+			if (instance.getStatus() == StatusEnum.COMPLETED) {
+				ourLog.info("Package installation job {} completed", myInstanceId);
+				if (instance.getReport() != null) {
+					myInstalledPackages = JsonUtil.deserialize(instance.getReport(), InstalledPackagesJson.class);
+				}
+				warmUpValidator();
+				myComplete = true;
+				end();
+			} else if (instance.getStatus() == StatusEnum.FAILED || instance.getStatus() == StatusEnum.CANCELLED) {
+				ourLog.error("Package installation job {} ended as {}, opening {} without the packages: {}", myInstanceId, instance.getStatus(), myGates, instance.getErrorMessage());
+				end();
+			}
+		} catch (RuntimeException e) {
+			ourLog.warn("Failed to poll package installation job {}: {}", myInstanceId, e.toString());
+		}
+	}
+
+	/**
+	 * Nodes starting at the same time may each start a job before seeing the others', they all settle on the
+	 * job created first, and the node which started another one cancels it.
+	 */
+	private void followFirstCreatedInstance() {
+		Optional<JobInstance> first = findFirstCreatedRunningInstance();
+		if (first.isEmpty() || first.get().getInstanceId().equals(myInstanceId)) {
+			return;
+		}
+
+		String previous = myInstanceId;
+		myInstanceId = first.get().getInstanceId();
+		ourLog.info("Package installation job {} was started first, following it instead of {}", myInstanceId, previous);
+		if (previous.equals(myStartedInstanceId)) {
+			myJobCoordinator.cancelInstance(previous);
+		}
+	}
+
+	private Optional<JobInstance> findFirstCreatedRunningInstance() {
+		List<JobInstance> running = myJobCoordinator.getInstancesbyJobDefinitionIdAndEndedStatus(DeferredPackageInstallationConfig.JOB_PACKAGE_INSTALLATION, false, MAX_RUNNING_INSTANCES, 0);
+		return running
+			.stream()
+			.filter(next -> myParameters.equals(next.getParameters()))
+			.min(FIRST_CREATED);
+	}
+
+		private void warmUpValidator() {
+		if (myValidatorWarmup == null) {
+			return;
+		}
+		try {
+			myValidatorWarmup.warmUpStoredProfiles();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			ourLog.warn("Failed to warm up the validator for the installed packages: {}", e.toString());
+		}
+	}
+
+	private void end() {
+		myEnded = true;
+		if (myGates.contains(PackageInstallationGate.READINESS)) {
+			AvailabilityChangeEvent.publish(myEventPublisher, this, ReadinessState.ACCEPTING_TRAFFIC);
+		}
+		myPoller.shutdown();
+	}
+}
@@ -0,0 +1,56 @@
+package ca.uhn.fhir.jpa.starter.ig;
+
+import ca.uhn.fhir.batch2.api.IJobCoordinator;
+import ca.uhn.fhir.batch2.model.JobDefinition;
+import ca.uhn.fhir.jpa.starter.AppProperties;
+import ca.uhn.fhir.jpa.starter.annotations.OnImplementationGuidesPresent;
+import ca.uhn.fhir.jpa.starter.common.validation.ValidatorWarmup;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Conditional;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.Optional;
+
+/**
+ * Fast-start mode, enabled with <code>hapi.fhir.ig_install_deferred</code>: the implementation guides
+ * are installed by a Batch2 job once the server is started, see {@link DeferredPackageInstallation}.
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "hapi.fhir", name = "ig_install_deferred", havingValue = "true")
+@Conditional(OnImplementationGuidesPresent.class)
+public class DeferredPackageInstallationConfig {
+
+	public static final String JOB_PACKAGE_INSTALLATION = "STARTER_PACKAGE_INSTALLATION";
+
+	@Bean
+	public JobDefinition<PackageInstallationJobParameters> packageInstallationJobDefinition(ParallelPackageInstaller parallelPackageInstaller) {
+		return JobDefinition
+			.newBuilder()
+			.setJobDefinitionId(JOB_PACKAGE_INSTALLATION)
+			.setJobDescription("Install the configured implementation guides")
+			.setJobDefinitionVersion(1)
+			.setParametersType(PackageInstallationJobParameters.class)
+			// Reduction steps are only accepted on gated jobs
+			.gatedExecution()
+			.addFirstStep("install-packages", "Install packages", InstalledPackagesJson.class, new InstallPackagesStep(parallelPackageInstaller))
+			.addFinalReducerStep("report-packages", "Report installed packages", InstalledPackagesJson.class, new ReportInstalledPackagesStep())
+			.build();
+	}
+
+	@Bean
+	public DeferredPackageInstallation deferredPackageInstallation(IJobCoordinator jobCoordinator, ParallelPackageInstaller parallelPackageInstaller, ApplicationEventPublisher eventPublisher, AppProperties appProperties, Optional<ValidatorWarmup> validatorWarmup) {
+		return new DeferredPackageInstallation(jobCoordinator, parallelPackageInstaller, eventPublisher, appProperties.getIg_install_deferred_gates(), appProperties.getIg_install_deferred_poll_millis(), validatorWarmup.orElse(null));
+	}
+
+	@Bean
+	public PackageInstallationGateInterceptor packageInstallationGateInterceptor(DeferredPackageInstallation deferredPackageInstallation, AppProperties appProperties) {
+		return new PackageInstallationGateInterceptor(deferredPackageInstallation, (int) Math.max(1, appProperties.getIg_install_deferred_poll_millis() / 1000));
+	}
+
+	@Bean
+	public PackageInstallationEndpoint packageInstallationEndpoint(DeferredPackageInstallation deferredPackageInstallation) {
+		return new PackageInstallationEndpoint(deferredPackageInstallation);
+	}
+}
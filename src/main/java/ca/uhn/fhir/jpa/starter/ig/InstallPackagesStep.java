@@ -0,0 +1,41 @@
+package ca.uhn.fhir.jpa.starter.ig;
+
+import ca.uhn.fhir.batch2.api.IJobDataSink;
+import ca.uhn.fhir.batch2.api.IJobStepWorker;
+import ca.uhn.fhir.batch2.api.JobExecutionFailedException;
+import ca.uhn.fhir.batch2.api.RunOutcome;
+import ca.uhn.fhir.batch2.api.StepExecutionDetails;
+import ca.uhn.fhir.batch2.api.VoidModel;
+import ca.uhn.fhir.jpa.packages.ImplementationGuideInstallationException;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Installs the packages of the job with the {@link ParallelPackageInstaller}. A package that cannot be
+ * installed fails the job rather than being retried, as retrying would fetch and fail the same way.
+ */
+public class InstallPackagesStep implements IJobStepWorker<PackageInstallationJobParameters, VoidModel, InstalledPackagesJson> {
+
+	private final ParallelPackageInstaller myPackageInstaller;
+
+	public InstallPackagesStep(ParallelPackageInstaller thePackageInstaller) {
+		myPackageInstaller = thePackageInstaller;
+	}
+
+	@Nonnull
+	@Override
+	public RunOutcome run(@Nonnull StepExecutionDetails<PackageInstallationJobParameters, VoidModel> theStepExecutionDetails, @Nonnull IJobDataSink<InstalledPackagesJson> theDataSink) {
+		PackageInstallationJobParameters parameters = theStepExecutionDetails.getParameters();
+		try {
+			myPackageInstaller.install(parameters.toSpecs());
+		} catch (ImplementationGuideInstallationException e) {
+			throw new JobExecutionFailedException(e.getMessage(), e);
+		}
+
+		InstalledPackagesJson installed = new InstalledPackagesJson();
+		installed.getPackageMillis().putAll(myPackageInstaller.getPackageMillis());
+		installed.getSkippedPackages().addAll(myPackageInstaller.getSkippedPackages());
+		theDataSink.accept(installed);
+		return new RunOutcome(installed.getPackageMillis().size());
+	}
+}
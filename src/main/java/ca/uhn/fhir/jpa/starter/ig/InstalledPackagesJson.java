@@ -0,0 +1,28 @@
+package ca.uhn.fhir.jpa.starter.ig;
+
+import ca.uhn.fhir.model.api.IModelJson;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of the installation step of a {@link DeferredPackageInstallationConfig#JOB_PACKAGE_INSTALLATION} job, also kept as the report of the job instance.
+ */
+public class InstalledPackagesJson implements IModelJson {
+
+	@JsonProperty("packageMillis")
+	private Map<String, Long> myPackageMillis = new LinkedHashMap<>();
+	@JsonProperty("skippedPackages")
+	private List<String> mySkippedPackages = new ArrayList<>();
+
+	public Map<String, Long> getPackageMillis() {
+		return myPackageMillis;
+	}
+
+	public List<String> getSkippedPackages() {
+		return mySkippedPackages;
+	}
+}
@@ -0,0 +1,137 @@
+package ca.uhn.fhir.jpa.starter.ig;
+
+import ca.uhn.fhir.jpa.packages.ImplementationGuideInstallationException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A directory of NPM package tarballs named <code>id-version.tgz</code>, e.g. a volume seeded when the
+ * image is built, which is looked up before the package registry or the URL of a package.
+ * <p>
+ * Packages are hashed through a memory mapping of their tarball, and only their <code>package.json</code>
+ * is read, by streaming the tarball, to find their version and dependencies. A package is only loaded in
+ * the heap when it needs to be installed.
+ */
+public class PackageDirectoryCache {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(PackageDirectoryCache.class);
+	private static final String MANIFEST_ENTRY = "package/package.json";
+
+	private final Path myDirectory;
+	private final ObjectMapper myObjectMapper = new ObjectMapper();
+
+	public PackageDirectoryCache(Path theDirectory) {
+		myDirectory = theDirectory;
+	}
+
+	/**
+	 * @return the tarball of the given package, or <code>null</code> if the directory does not hold it
+	 */
+	public Path find(String theId, String theVersion) {
+		Path retVal = myDirectory.resolve(theId + "-" + theVersion + ".tgz");
+		return Files.isRegularFile(retVal) ? retVal : null;
+	}
+
+	/**
+	 * @return the SHA-256 hash of the given tarball, computed the same way as for a package held in memory
+	 */
+	public String hash(Path theArchive) throws IOException {
+		try (FileChannel channel = FileChannel.open(theArchive, StandardOpenOption.READ)) {
+			Hasher hasher = Hashing.sha256().newHasher();
+			long size = channel.size();
+			// A mapping is limited to 2GB
+			for (long position = 0; position < size; position += Integer.MAX_VALUE) {
+				hasher.putBytes(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(Integer.MAX_VALUE, size - position)));
+			}
+			return hasher.hash().toString();
+		}
+	}
+
+	/**
+	 * Reads the version and the dependencies of the given tarball, without extracting anything else.
+	 */
+	public PackageManifest readManifest(Path theArchive) throws IOException {
+		try (TarArchiveInputStream tar = new TarArchiveInputStream(new GZIPInputStream(new BufferedInputStream(Files.newInputStream(theArchive))))) {
+			TarArchiveEntry entry;
+			while ((entry = tar.getNextTarEntry()) != null) {
+				if (MANIFEST_ENTRY.equals(entry.getName())) {
+					return parseManifest(tar);
+				}
+			}
+		}
+		throw new ImplementationGuideInstallationException("Package " + theArchive + " has no " + MANIFEST_ENTRY);
+	}
+
+	public byte[] readContents(Path theArchive) throws IOException {
+		return Files.readAllBytes(theArchive);
+	}
+
+	/**
+	 * Adds a package fetched elsewhere to the directory, so that the next start does not need to fetch it.
+	 * A read-only directory is left as it is.
+	 */
+	public void store(String theId, String theVersion, byte[] theContents) {
+		Path target = myDirectory.resolve(theId + "-" + theVersion + ".tgz");
+		try {
+			Files.createDirectories(myDirectory);
+			Path temp = Files.createTempFile(myDirectory, theId, ".tgz.tmp");
+			Files.write(temp, theContents);
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			ourLog.info("Stored package {}#{} in {}", theId, theVersion, myDirectory);
+		} catch (IOException | UnsupportedOperationException e) {
+			ourLog.warn("Could not store package {}#{} in {}: {}", theId, theVersion, myDirectory, e.toString());
+		}
+	}
+
+	private PackageManifest parseManifest(InputStream theInputStream) throws IOException {
+		JsonNode json = myObjectMapper.readTree(theInputStream);
+		List<String> dependencies = new ArrayList<>();
+		Iterator<Map.Entry<String, JsonNode>> fields = json.path("dependencies").fields();
+		while (fields.hasNext()) {
+			Map.Entry<String, JsonNode> next = fields.next();
+			dependencies.add(next.getKey() + "#" + next.getValue().asText());
+		}
+		return new PackageManifest(json.path("version").asText(), dependencies);
+	}
+
+	public static final class PackageManifest {
+		private final String myVersion;
+		private final List<String> myDependencies;
+
+		private PackageManifest(String theVersion, List<String> theDependencies) {
+			myVersion = theVersion;
+			myDependencies = theDependencies;
+		}
+
+		public String version() {
+			return myVersion;
+		}
+
+		/**
+		 * @return the dependencies as <code>id#version</code>, like {@link org.hl7.fhir.utilities.npm.NpmPackage#dependencies()}
+		 */
+		public List<String> dependencies() {
+			return myDependencies;
+		}
+	}
+}
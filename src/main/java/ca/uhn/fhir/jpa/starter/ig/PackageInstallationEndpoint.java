@@ -0,0 +1,24 @@
+package ca.uhn.fhir.jpa.starter.ig;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+
+import java.util.Map;
+
+/**
+ * Exposes the status of the {@link DeferredPackageInstallation} at <code>/actuator/packageinstall</code>.
+ */
+@Endpoint(id = "packageinstall")
+public class PackageInstallationEndpoint {
+
+	private final DeferredPackageInstallation myPackageInstallation;
+
+	public PackageInstallationEndpoint(DeferredPackageInstallation thePackageInstallation) {
+		myPackageInstallation = thePackageInstallation;
+	}
+
+	@ReadOperation
+	public Map<String, Object> status() {
+		return myPackageInstallation.getStatus();
+	}
+}
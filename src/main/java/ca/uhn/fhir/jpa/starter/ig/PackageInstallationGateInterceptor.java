@@ -0,0 +1,92 @@
+package ca.uhn.fhir.jpa.starter.ig;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.starter.AppProperties;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+
+import javax.servlet.http.HttpServletResponse;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Answers the requests using a feature that waits for the {@link DeferredPackageInstallation} with a
+ * 503 and a <code>Retry-After</code> header until the packages are installed.
+ * <p>
+ * Operations invoked with a POST count as writes, as the operations which aren't idempotent can only be
+ * invoked with a POST, except for the read-only operations in {@link #READ_OPERATIONS}, which are often
+ * posted as their parameters don't fit in a URL.
+ */
+@Interceptor
+public class PackageInstallationGateInterceptor {
+
+	private static final Set<RestOperationTypeEnum> WRITES = EnumSet.of(
+		RestOperationTypeEnum.CREATE,
+		RestOperationTypeEnum.UPDATE,
+		RestOperationTypeEnum.PATCH,
+		RestOperationTypeEnum.DELETE,
+		RestOperationTypeEnum.TRANSACTION,
+		RestOperationTypeEnum.META_ADD,
+		RestOperationTypeEnum.META_DELETE);
+
+	private static final Set<RestOperationTypeEnum> OPERATIONS = EnumSet.of(
+		RestOperationTypeEnum.EXTENDED_OPERATION_SERVER,
+		RestOperationTypeEnum.EXTENDED_OPERATION_TYPE,
+		RestOperationTypeEnum.EXTENDED_OPERATION_INSTANCE);
+
+	private static final Set<String> READ_OPERATIONS = Set.of(
+		"$everything",
+		"$expand",
+		"$lookup",
+		"$validate-code",
+		"$subsumes",
+		"$translate",
+		"$match",
+		"$summary",
+		"$document",
+		"$lastn");
+
+	private final DeferredPackageInstallation myPackageInstallation;
+	private final int myRetryAfterSeconds;
+
+	public PackageInstallationGateInterceptor(DeferredPackageInstallation thePackageInstallation, int theRetryAfterSeconds) {
+		myPackageInstallation = thePackageInstallation;
+		myRetryAfterSeconds = theRetryAfterSeconds;
+	}
+
+	@Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+	public boolean checkGates(RequestDetails theRequestDetails) {
+		if (myPackageInstallation.isEnded()) {
+			return true;
+		}
+		RestOperationTypeEnum operation = theRequestDetails.getRestOperationType();
+		if (isWrite(theRequestDetails) && !myPackageInstallation.isOpen(AppProperties.PackageInstallationGate.WRITES)) {
+			throw unavailable("Writes are unavailable until the implementation guides are installed");
+		}
+		if (operation == RestOperationTypeEnum.VALIDATE && !myPackageInstallation.isOpen(AppProperties.PackageInstallationGate.VALIDATION)) {
+			throw unavailable("Validation is unavailable until the implementation guides are installed");
+		}
+		return true;
+	}
+
+	private static boolean isWrite(RequestDetails theRequestDetails) {
+		RestOperationTypeEnum operation = theRequestDetails.getRestOperationType();
+		if (WRITES.contains(operation)) {
+			return true;
+		}
+		return OPERATIONS.contains(operation)
+			&& theRequestDetails.getRequestType() == RequestTypeEnum.POST
+			&& !READ_OPERATIONS.contains(theRequestDetails.getOperation());
+	}
+
+	private UnclassifiedServerFailureException unavailable(String theMessage) {
+		UnclassifiedServerFailureException retVal = new UnclassifiedServerFailureException(HttpServletResponse.SC_SERVICE_UNAVAILABLE, theMessage);
+		retVal.addResponseHeader(Constants.HEADER_RETRY_AFTER, Integer.toString(myRetryAfterSeconds));
+		return retVal;
+	}
+}
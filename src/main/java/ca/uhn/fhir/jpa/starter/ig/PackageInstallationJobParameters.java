@@ -0,0 +1,66 @@
+package ca.uhn.fhir.jpa.starter.ig;
+
+import ca.uhn.fhir.jpa.packages.PackageInstallationSpec;
+import ca.uhn.fhir.model.api.IModelJson;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * The packages installed by a {@link DeferredPackageInstallationConfig#JOB_PACKAGE_INSTALLATION} job.
+ */
+public class PackageInstallationJobParameters implements IModelJson {
+
+	@JsonProperty("packages")
+	private List<PackageJson> myPackages = new ArrayList<>();
+
+	public static PackageInstallationJobParameters fromSpecs(List<PackageInstallationSpec> theSpecs) {
+		PackageInstallationJobParameters retVal = new PackageInstallationJobParameters();
+		theSpecs.forEach(next -> retVal.myPackages.add(PackageJson.fromSpec(next)));
+		return retVal;
+	}
+
+	public List<PackageInstallationSpec> toSpecs() {
+		return myPackages.stream().map(PackageJson::toSpec).collect(Collectors.toList());
+	}
+
+	public List<PackageJson> getPackages() {
+		return myPackages;
+	}
+
+	public static class PackageJson implements IModelJson {
+
+		@JsonProperty("name")
+		private String myName;
+		@JsonProperty("version")
+		private String myVersion;
+		@JsonProperty("url")
+		private String myUrl;
+		@JsonProperty("fetchDependencies")
+		private boolean myFetchDependencies;
+		@JsonProperty("dependencyExcludes")
+		private List<String> myDependencyExcludes = new ArrayList<>();
+
+		static PackageJson fromSpec(PackageInstallationSpec theSpec) {
+			PackageJson retVal = new PackageJson();
+			retVal.myName = theSpec.getName();
+			retVal.myVersion = theSpec.getVersion();
+			retVal.myUrl = theSpec.getPackageUrl();
+			retVal.myFetchDependencies = theSpec.isFetchDependencies();
+			retVal.myDependencyExcludes = new ArrayList<>(theSpec.getDependencyExcludes());
+			return retVal;
+		}
+
+		PackageInstallationSpec toSpec() {
+			PackageInstallationSpec retVal = new PackageInstallationSpec()
+				.setName(myName)
+				.setVersion(myVersion)
+				.setPackageUrl(myUrl)
+				.setFetchDependencies(myFetchDependencies);
+			retVal.setDependencyExcludes(myDependencyExcludes);
+			return retVal;
+		}
+	}
+}
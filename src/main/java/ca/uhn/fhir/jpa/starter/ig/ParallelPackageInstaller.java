@@ -0,0 +1,447 @@
+package ca.uhn.fhir.jpa.starter.ig;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.dao.data.INpmPackageVersionDao;
+import ca.uhn.fhir.jpa.packages.IHapiPackageCacheManager;
+import ca.uhn.fhir.jpa.packages.IPackageInstallerSvc;
+import ca.uhn.fhir.jpa.packages.ImplementationGuideInstallationException;
+import ca.uhn.fhir.jpa.packages.PackageInstallationSpec;
+import ca.uhn.fhir.jpa.packages.loader.PackageLoaderSvc;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.util.StopWatch;
+import com.google.common.hash.Hashing;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.hl7.fhir.instance.model.api.IBaseCoding;
+import org.hl7.fhir.instance.model.api.IBaseMetaType;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+/**
+ * Installs implementation guide packages concurrently, each one after the packages it depends on.
+ * <p>
+ * The configured packages are installed once all singletons are created, before the server starts
+ * accepting requests, unless their installation is deferred to a {@link DeferredPackageInstallation}.
+ * Installing them while beans are still being created would have the threads installing them wait for
+ * the bean factory, which is locked until the bean being created is done.
+ * <p>
+ * The packages and, when requested, their dependencies are first fetched into the package cache
+ * concurrently, which gives the whole dependency graph. They are then installed a level of the graph
+ * at a time: the packages of a level only depend on packages of the previous levels, so they are
+ * parsed and stored concurrently. Packages sharing conformance resources that none of their common
+ * dependencies provide may race to create them, which is why <code>ig_install_threads</code> defaults
+ * to 1, installing one package at a time.
+ * <p>
+ * Once a package is installed, the SHA-256 hash of its content is recorded as a tag of the Binary
+ * holding it in the package cache. A package whose content has the recorded hash is skipped, so
+ * restarting the server only installs the packages that are new or changed. Packages fetched from a
+ * URL are compared with the content served at that URL, and replace the cached package when it
+ * differs.
+ * <p>
+ * When a package directory is configured, the packages it holds are used instead of fetching them,
+ * see {@link PackageDirectoryCache}, and the packages fetched are added to it.
+ * <p>
+ * The time taken to fetch and to install each package is logged, and published as
+ * <code>hapi.fhir.packages.fetch{package}</code> and <code>hapi.fhir.packages.install{package}</code>.
+ */
+public class ParallelPackageInstaller implements SmartInitializingSingleton {
+
+	public static final String METRIC_FETCH = "hapi.fhir.packages.fetch";
+	public static final String METRIC_INSTALL = "hapi.fhir.packages.install";
+	public static final String INSTALLED_HASH_TAG_SYSTEM = "https://hapifhir.io/fhir/jpa-starter/installed-package-sha256";
+
+	private static final Logger ourLog = LoggerFactory.getLogger(ParallelPackageInstaller.class);
+
+	private final FhirContext myFhirContext;
+	private final IPackageInstallerSvc myPackageInstallerSvc;
+	private final IHapiPackageCacheManager myPackageCacheManager;
+	private final PackageLoaderSvc myPackageLoaderSvc;
+	private final INpmPackageVersionDao myPackageVersionDao;
+	private final DaoRegistry myDaoRegistry;
+	private final TransactionTemplate myTxTemplate;
+	private final int myThreads;
+	private final List<PackageInstallationSpec> mySpecs;
+	private final Map<String, Long> myPackageMillis = new ConcurrentHashMap<>();
+	private final Set<String> mySkippedPackages = ConcurrentHashMap.newKeySet();
+	private MeterRegistry myMeterRegistry;
+	private PackageDirectoryCache myPackageDirectory;
+	private boolean myInstallOnStartup = true;
+
+	public ParallelPackageInstaller(FhirContext theFhirContext, IPackageInstallerSvc thePackageInstallerSvc, IHapiPackageCacheManager thePackageCacheManager, PackageLoaderSvc thePackageLoaderSvc, INpmPackageVersionDao thePackageVersionDao, DaoRegistry theDaoRegistry, PlatformTransactionManager theTxManager, int theThreads, List<PackageInstallationSpec> theSpecs) {
+		myFhirContext = theFhirContext;
+		myPackageInstallerSvc = thePackageInstallerSvc;
+		myPackageCacheManager = thePackageCacheManager;
+		myPackageLoaderSvc = thePackageLoaderSvc;
+		myPackageVersionDao = thePackageVersionDao;
+		myDaoRegistry = theDaoRegistry;
+		myTxTemplate = new TransactionTemplate(theTxManager);
+		myThreads = Math.max(1, theThreads);
+		mySpecs = theSpecs;
+	}
+
+	public void registerMetrics(MeterRegistry theMeterRegistry) {
+		myMeterRegistry = theMeterRegistry;
+	}
+
+	/**
+	 * Looks packages up in the given directory before fetching them, and adds the packages fetched to it
+	 */
+	public void setPackageDirectory(PackageDirectoryCache thePackageDirectory) {
+		myPackageDirectory = thePackageDirectory;
+	}
+
+	/**
+	 * @param theInstallOnStartup <code>false</code> to leave the installation of the configured packages to
+	 *                            a {@link DeferredPackageInstallation}
+	 */
+	public void setInstallOnStartup(boolean theInstallOnStartup) {
+		myInstallOnStartup = theInstallOnStartup;
+	}
+
+	/**
+	 * @return the configured packages
+	 */
+	public List<PackageInstallationSpec> getSpecs() {
+		return Collections.unmodifiableList(mySpecs);
+	}
+
+	@Override
+	public void afterSingletonsInstantiated() {
+		if (myInstallOnStartup) {
+			install(mySpecs);
+		}
+	}
+
+	/**
+	 * Installs the given packages, and their dependencies if the specifications ask for them.
+	 *
+	 * @throws ImplementationGuideInstallationException if a package could not be fetched or installed, the
+	 *                                                  packages depending on it are not installed
+	 */
+	public void install(Collection<PackageInstallationSpec> theSpecs) {
+		StopWatch sw = new StopWatch();
+		// Only the last installation is reported
+		myPackageMillis.clear();
+		mySkippedPackages.clear();
+		ExecutorService executor = Executors.newFixedThreadPool(myThreads, new BasicThreadFactory.Builder().namingPattern("package-install-%d").build());
+		try {
+			Map<String, PackageNode> packages = fetchAll(theSpecs, executor);
+			List<List<PackageNode>> levels = sortByDependencies(packages);
+			ourLog.info("Installing {} packages in {} steps with {} threads", packages.size(), levels.size(), myThreads);
+			for (List<PackageNode> level : levels) {
+				awaitAll(level.stream().map(next -> CompletableFuture.runAsync(() -> install(next), executor)).collect(Collectors.toList()));
+			}
+			ourLog.info("Installed {} packages in {}ms: {}", packages.size(), sw.getMillis(), describe(packages.values()));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return the time taken to fetch and install each package of the last installation, by <code>id#version</code>
+	 */
+	public Map<String, Long> getPackageMillis() {
+		return Collections.unmodifiableMap(myPackageMillis);
+	}
+
+	/**
+	 * @return the <code>id#version</code> of the packages of the last installation that were already installed
+	 */
+	public Set<String> getSkippedPackages() {
+		return Collections.unmodifiableSet(mySkippedPackages);
+	}
+
+	private Map<String, PackageNode> fetchAll(Collection<PackageInstallationSpec> theSpecs, ExecutorService theExecutor) {
+		Map<String, CompletableFuture<PackageNode>> fetches = new ConcurrentHashMap<>();
+
+		// The requested packages are known before any dependency is looked up, so that a dependency
+		// requested with its own URL is never fetched from the registry instead
+		Map<String, PackageInstallationSpec> requested = new LinkedHashMap<>();
+		theSpecs.forEach(next -> requested.put(key(next.getName(), next.getVersion()), next));
+		requested.forEach((key, spec) -> fetches.put(key, new CompletableFuture<>()));
+		requested.forEach((key, spec) -> CompletableFuture.supplyAsync(() -> fetch(spec, fetches, theExecutor), theExecutor).whenComplete((node, error) -> {
+			if (error != null) {
+				fetches.get(key).completeExceptionally(error);
+			} else {
+				fetches.get(key).complete(node);
+			}
+		}));
+
+		// Dependencies are added as they are discovered, before the package depending on them is done
+		List<CompletableFuture<PackageNode>> awaited;
+		do {
+			awaited = new ArrayList<>(fetches.values());
+			awaitAll(awaited);
+		} while (awaited.size() != fetches.size());
+
+		Map<String, PackageNode> retVal = new LinkedHashMap<>();
+		fetches.forEach((key, future) -> retVal.put(key, future.join()));
+		return retVal;
+	}
+
+	private PackageNode fetch(PackageInstallationSpec theSpec, Map<String, CompletableFuture<PackageNode>> theFetches, ExecutorService theExecutor) {
+		StopWatch sw = new StopWatch();
+		String id = theSpec.getName();
+		try {
+			Path archive = myPackageDirectory != null ? myPackageDirectory.find(id, theSpec.getVersion()) : null;
+			if (archive != null) {
+				PackageDirectoryCache.PackageManifest manifest = myPackageDirectory.readManifest(archive);
+				PackageNode retVal = new PackageNode(id, manifest.version(), myPackageDirectory.hash(archive));
+				retVal.myArchive = archive;
+				return fetched(retVal, manifest.dependencies(), theSpec, sw, theFetches, theExecutor);
+			}
+
+			byte[] contents;
+			NpmPackage npmPackage;
+			IHapiPackageCacheManager.PackageContents cached = myPackageCacheManager.loadPackageContents(id, theSpec.getVersion());
+			if (isNotBlank(theSpec.getPackageUrl())) {
+				contents = myPackageLoaderSvc.loadPackageUrlContents(theSpec.getPackageUrl());
+				if (cached != null && !hash(cached.getBytes()).equals(hash(contents))) {
+					ourLog.info("Package {}#{} served at {} has changed, replacing the cached package", id, theSpec.getVersion(), theSpec.getPackageUrl());
+					myPackageCacheManager.uninstallPackage(id, theSpec.getVersion());
+					cached = null;
+				}
+				if (cached == null) {
+					myPackageCacheManager.installPackage(new PackageInstallationSpec().setName(id).setVersion(theSpec.getVersion()).setPackageContents(contents));
+				}
+				npmPackage = NpmPackage.fromPackage(new ByteArrayInputStream(contents));
+			} else {
+				if (cached == null) {
+					// Fetches the package from the registry, and resolves versions such as "current"
+					NpmPackage fetched = myPackageCacheManager.loadPackage(id, theSpec.getVersion());
+					cached = myPackageCacheManager.loadPackageContents(id, fetched.version());
+				}
+				contents = cached.getBytes();
+				npmPackage = NpmPackage.fromPackage(new ByteArrayInputStream(contents));
+			}
+			if (myPackageDirectory != null) {
+				myPackageDirectory.store(id, npmPackage.version(), contents);
+			}
+
+			return fetched(new PackageNode(id, npmPackage.version(), hash(contents)), npmPackage.dependencies(), theSpec, sw, theFetches, theExecutor);
+		} catch (IOException e) {
+			throw new ImplementationGuideInstallationException("Could not load NPM package " + key(id, theSpec.getVersion()), e);
+		}
+	}
+
+	private PackageNode fetched(PackageNode theNode, List<String> theDependencies, PackageInstallationSpec theSpec, StopWatch theStopWatch, Map<String, CompletableFuture<PackageNode>> theFetches, ExecutorService theExecutor) {
+		theNode.myInstalled = theNode.myHash.equals(loadInstalledHash(theNode.myId, theNode.myVersion));
+		theNode.myFetchMillis = theStopWatch.getMillis();
+		if (myMeterRegistry != null) {
+			Timer.builder(METRIC_FETCH).tag("package", theNode.toString()).register(myMeterRegistry).record(theNode.myFetchMillis, TimeUnit.MILLISECONDS);
+		}
+
+		if (theSpec.isFetchDependencies()) {
+			for (String next : theDependencies) {
+				String dependencyId = next.substring(0, next.indexOf('#'));
+				String dependencyVersion = next.substring(next.indexOf('#') + 1);
+				if (theSpec.getDependencyExcludes().stream().anyMatch(dependencyId::matches)) {
+					continue;
+				}
+				String key = key(dependencyId, dependencyVersion);
+				theNode.myDependencies.add(key);
+				theFetches.computeIfAbsent(key, k -> {
+					PackageInstallationSpec dependency = new PackageInstallationSpec()
+						.setName(dependencyId)
+						.setVersion(dependencyVersion)
+						.setFetchDependencies(true);
+					dependency.setDependencyExcludes(theSpec.getDependencyExcludes());
+					return CompletableFuture.supplyAsync(() -> fetch(dependency, theFetches, theExecutor), theExecutor);
+				});
+			}
+		}
+		return theNode;
+	}
+
+	/**
+	 * @return the packages grouped in levels, the packages of a level only depending on the packages of the previous levels
+	 */
+	private List<List<PackageNode>> sortByDependencies(Map<String, PackageNode> thePackages) {
+		List<List<PackageNode>> retVal = new ArrayList<>();
+		Set<String> sorted = new HashSet<>();
+		Map<String, PackageNode> remaining = new LinkedHashMap<>(thePackages);
+		while (!remaining.isEmpty()) {
+			List<String> level = remaining.entrySet().stream()
+				.filter(next -> sorted.containsAll(next.getValue().myDependencies))
+				.map(Map.Entry::getKey)
+				.collect(Collectors.toList());
+			if (level.isEmpty()) {
+				throw new ImplementationGuideInstallationException("Circular dependency between the packages " + remaining.keySet());
+			}
+			retVal.add(level.stream().map(remaining::remove).collect(Collectors.toList()));
+			sorted.addAll(level);
+		}
+		return retVal;
+	}
+
+	private void install(PackageNode thePackage) {
+		if (thePackage.myInstalled) {
+			ourLog.info("Package {} is already installed, skipping it", thePackage);
+			mySkippedPackages.add(thePackage.toString());
+			myPackageMillis.put(thePackage.toString(), thePackage.myFetchMillis);
+			return;
+		}
+
+		StopWatch sw = new StopWatch();
+		if (thePackage.myArchive != null) {
+			storeInPackageCache(thePackage);
+		}
+		myPackageInstallerSvc.install(new PackageInstallationSpec()
+			.setName(thePackage.myId)
+			.setVersion(thePackage.myVersion)
+			.setInstallMode(PackageInstallationSpec.InstallModeEnum.STORE_AND_INSTALL));
+		saveInstalledHash(thePackage);
+		thePackage.myInstallMillis = sw.getMillis();
+
+		myPackageMillis.put(thePackage.toString(), thePackage.myFetchMillis + thePackage.myInstallMillis);
+		if (myMeterRegistry != null) {
+			Timer.builder(METRIC_INSTALL).tag("package", thePackage.toString()).register(myMeterRegistry).record(thePackage.myInstallMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Copies a package of the package directory to the package cache the installer reads it from, only
+	 * loading it in the heap when the package cache does not already hold the same content.
+	 */
+	private void storeInPackageCache(PackageNode thePackage) {
+		try {
+			IHapiPackageCacheManager.PackageContents cached = myPackageCacheManager.loadPackageContents(thePackage.myId, thePackage.myVersion);
+			if (cached != null && hash(cached.getBytes()).equals(thePackage.myHash)) {
+				return;
+			}
+			if (cached != null) {
+				ourLog.info("Package {} in {} has changed, replacing the cached package", thePackage, thePackage.myArchive);
+				myPackageCacheManager.uninstallPackage(thePackage.myId, thePackage.myVersion);
+			}
+			myPackageCacheManager.installPackage(new PackageInstallationSpec()
+				.setName(thePackage.myId)
+				.setVersion(thePackage.myVersion)
+				.setPackageContents(myPackageDirectory.readContents(thePackage.myArchive)));
+		} catch (IOException e) {
+			throw new ImplementationGuideInstallationException("Could not load NPM package " + thePackage + " from " + thePackage.myArchive, e);
+		}
+	}
+
+	private String loadInstalledHash(String theId, String theVersion) {
+		IIdType binaryId = findPackageBinary(theId, theVersion);
+		if (binaryId == null) {
+			return null;
+		}
+		IBaseMetaType meta = getBinaryDao().metaGetOperation(getMetaType(), binaryId, newSystemRequestDetails());
+		return meta.getTag().stream()
+			.filter(next -> INSTALLED_HASH_TAG_SYSTEM.equals(next.getSystem()))
+			.map(IBaseCoding::getCode)
+			.findFirst()
+			.orElse(null);
+	}
+
+	private void saveInstalledHash(PackageNode thePackage) {
+		IIdType binaryId = findPackageBinary(thePackage.myId, thePackage.myVersion);
+		if (binaryId == null) {
+			return;
+		}
+		IBaseMetaType meta = (IBaseMetaType) myFhirContext.getElementDefinition("Meta").newInstance();
+		meta.addTag().setSystem(INSTALLED_HASH_TAG_SYSTEM).setCode(thePackage.myHash);
+		getBinaryDao().metaAddOperation(binaryId, meta, newSystemRequestDetails());
+	}
+
+	private IIdType findPackageBinary(String theId, String theVersion) {
+		return myTxTemplate.execute(tx -> myPackageVersionDao.findByPackageIdAndVersion(theId, theVersion)
+			.map(next -> next.getPackageBinary().getIdDt().toUnqualifiedVersionless())
+			.orElse(null));
+	}
+
+	private IFhirResourceDao<?> getBinaryDao() {
+		return myDaoRegistry.getResourceDao("Binary");
+	}
+
+	@SuppressWarnings("unchecked")
+	private Class<IBaseMetaType> getMetaType() {
+		return (Class<IBaseMetaType>) myFhirContext.getElementDefinition("Meta").getImplementingClass();
+	}
+
+	private static SystemRequestDetails newSystemRequestDetails() {
+		return new SystemRequestDetails().setRequestPartitionId(RequestPartitionId.defaultPartition());
+	}
+
+	private static void awaitAll(List<? extends CompletableFuture<?>> theFutures) {
+		try {
+			CompletableFuture.allOf(theFutures.toArray(new CompletableFuture[0])).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new ImplementationGuideInstallationException("Failed to install packages", e.getCause());
+		}
+	}
+
+	private static String describe(Collection<PackageNode> thePackages) {
+		return thePackages.stream()
+			.sorted(Comparator.comparingLong((PackageNode next) -> next.myFetchMillis + next.myInstallMillis).reversed())
+			.map(next -> next.myInstalled
+				? next + " (skipped)"
+				: next + " (fetched in " + next.myFetchMillis + "ms, installed in " + next.myInstallMillis + "ms)")
+			.collect(Collectors.joining(", "));
+	}
+
+	private static String hash(byte[] theContents) {
+		return Hashing.sha256().hashBytes(theContents).toString();
+	}
+
+	private static String key(String theId, String theVersion) {
+		return theId + "#" + theVersion;
+	}
+
+	private static final class PackageNode {
+		private final String myId;
+		private final String myVersion;
+		private final String myHash;
+		private final List<String> myDependencies = new ArrayList<>();
+		private Path myArchive;
+		private boolean myInstalled;
+		private long myFetchMillis;
+		private volatile long myInstallMillis;
+
+		private PackageNode(String theId, String theVersion, String theHash) {
+			myId = theId;
+			myVersion = theVersion;
+			myHash = theHash;
+		}
+
+		@Override
+		public String toString() {
+			return key(myId, myVersion);
+		}
+	}
+}
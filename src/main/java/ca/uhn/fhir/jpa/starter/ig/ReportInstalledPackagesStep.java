@@ -0,0 +1,42 @@
+package ca.uhn.fhir.jpa.starter.ig;
+
+import ca.uhn.fhir.batch2.api.ChunkExecutionDetails;
+import ca.uhn.fhir.batch2.api.IJobDataSink;
+import ca.uhn.fhir.batch2.api.IReductionStepWorker;
+import ca.uhn.fhir.batch2.api.RunOutcome;
+import ca.uhn.fhir.batch2.api.StepExecutionDetails;
+import ca.uhn.fhir.batch2.model.ChunkOutcome;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Logs the packages installed by the job, whichever node of the cluster ran the installation, and stores
+ * them as the report of the job instance, so that every node can report them.
+ */
+public class ReportInstalledPackagesStep implements IReductionStepWorker<PackageInstallationJobParameters, InstalledPackagesJson, InstalledPackagesJson> {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(ReportInstalledPackagesStep.class);
+
+	private InstalledPackagesJson myInstalled = new InstalledPackagesJson();
+
+	@Nonnull
+	@Override
+	public ChunkOutcome consume(ChunkExecutionDetails<PackageInstallationJobParameters, InstalledPackagesJson> theChunkDetails) {
+		InstalledPackagesJson installed = theChunkDetails.getData();
+		myInstalled.getPackageMillis().putAll(installed.getPackageMillis());
+		myInstalled.getSkippedPackages().addAll(installed.getSkippedPackages());
+		return ChunkOutcome.SUCCESS();
+	}
+
+	@Nonnull
+	@Override
+	public RunOutcome run(@Nonnull StepExecutionDetails<PackageInstallationJobParameters, InstalledPackagesJson> theStepExecutionDetails, @Nonnull IJobDataSink<InstalledPackagesJson> theDataSink) {
+		InstalledPackagesJson installed = myInstalled;
+		myInstalled = new InstalledPackagesJson();
+		ourLog.info("Package installation job {} installed {} packages, skipped {}: {}", theStepExecutionDetails.getInstance().getInstanceId(), installed.getPackageMillis().size() - installed.getSkippedPackages().size(), installed.getSkippedPackages().size(), installed.getPackageMillis());
+		theDataSink.accept(installed);
+		return RunOutcome.SUCCESS;
+	}
+}
@@ -0,0 +1,164 @@
+package ca.uhn.fhir.jpa.starter.logging;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+import java.time.Instant;
+import java.util.Set;
+
+/**
+ * One slot of the {@link AccessLogRingBuffer}. The request thread only copies references and numbers into it,
+ * see {@link #capture}, the JSON is written later by the writer thread, see {@link #appendJson}, and the slot
+ * is then reused for another request.
+ */
+class AccessLogEntry {
+
+	private static final String HEADER_X_FORWARDED_FOR = "X-Forwarded-For";
+
+	private long myTimestamp;
+	private String myRequestId;
+	private String myTenant;
+	private String myVerb;
+	private String myPath;
+	private String myQuery;
+	private String myOperation;
+	private String myOperationName;
+	private String myResourceType;
+	private String myResourceId;
+	private int myStatus;
+	private long myDurationMillis;
+	private String mySource;
+	private String myUserAgent;
+	private String myError;
+
+	/**
+	 * Set by the request thread once the entry is captured, cleared by the writer thread once it is written
+	 */
+	volatile boolean myPublished;
+
+	/**
+	 * @param theTrustedProxies the addresses of the proxies whose <code>X-Forwarded-For</code> header is taken as the source
+	 */
+	void capture(RequestDetails theRequestDetails, ServletRequestDetails theServletRequestDetails, Set<String> theTrustedProxies, int theStatus, String theError) {
+		myTimestamp = System.currentTimeMillis();
+		myRequestId = theRequestDetails.getRequestId();
+		myTenant = theRequestDetails.getTenantId();
+		myVerb = theRequestDetails.getRequestType() != null ? theRequestDetails.getRequestType().name() : null;
+		myPath = theRequestDetails.getRequestPath();
+		myOperation = theRequestDetails.getRestOperationType() != null ? theRequestDetails.getRestOperationType().getCode() : null;
+		myOperationName = theRequestDetails.getOperation();
+		myResourceType = theRequestDetails.getResourceName();
+		myResourceId = theRequestDetails.getId() != null ? theRequestDetails.getId().getIdPart() : null;
+		myStatus = theStatus;
+		myDurationMillis = theRequestDetails.getRequestStopwatch() != null ? theRequestDetails.getRequestStopwatch().getMillis() : -1;
+		myUserAgent = theRequestDetails.getHeader(Constants.HEADER_USER_AGENT);
+		myError = theError;
+
+		mySource = null;
+		myQuery = null;
+		if (theServletRequestDetails != null && theServletRequestDetails.getServletRequest() != null) {
+			myQuery = theServletRequestDetails.getServletRequest().getQueryString();
+			mySource = source(theServletRequestDetails.getServletRequest().getRemoteAddr(), theRequestDetails.getHeader(HEADER_X_FORWARDED_FOR), theTrustedProxies);
+		}
+	}
+
+	/**
+	 * Walks the <code>X-Forwarded-For</code> header back from the peer as long as the addresses are trusted proxies,
+	 * as anything a client sends itself is forwarded as is, so that only the address seen by the first trusted proxy
+	 * is taken as the source.
+	 */
+	static String source(String theRemoteAddr, String theForwardedFor, Set<String> theTrustedProxies) {
+		String retVal = theRemoteAddr;
+		if (theForwardedFor == null || theTrustedProxies.isEmpty()) {
+			return retVal;
+		}
+		String[] forwarded = theForwardedFor.split(",");
+		for (int i = forwarded.length - 1; i >= 0 && theTrustedProxies.contains(retVal); i--) {
+			String next = forwarded[i].trim();
+			if (next.isEmpty()) {
+				break;
+			}
+			retVal = next;
+		}
+		return retVal;
+	}
+
+	/**
+	 * Appends this entry as a single line JSON object, leaving out the fields without a value
+	 */
+	void appendJson(StringBuilder theBuilder) {
+		theBuilder.append("{\"timestamp\":\"").append(Instant.ofEpochMilli(myTimestamp)).append('"');
+		appendField(theBuilder, "request_id", myRequestId);
+		appendField(theBuilder, "tenant", myTenant);
+		appendField(theBuilder, "verb", myVerb);
+		appendField(theBuilder, "path", myPath);
+		appendField(theBuilder, "query", myQuery);
+		appendField(theBuilder, "operation", myOperation);
+		appendField(theBuilder, "operation_name", myOperationName);
+		appendField(theBuilder, "resource_type", myResourceType);
+		appendField(theBuilder, "resource_id", myResourceId);
+		if (myStatus > 0) {
+			theBuilder.append(",\"status\":").append(myStatus);
+		}
+		if (myDurationMillis >= 0) {
+			theBuilder.append(",\"duration_ms\":").append(myDurationMillis);
+		}
+		appendField(theBuilder, "source", mySource);
+		appendField(theBuilder, "user_agent", myUserAgent);
+		appendField(theBuilder, "error", myError);
+		theBuilder.append('}');
+	}
+
+	/**
+	 * Drops the references to the request, so that a slot doesn't keep them alive until it is reused
+	 */
+	void clear() {
+		myRequestId = null;
+		myTenant = null;
+		myVerb = null;
+		myPath = null;
+		myQuery = null;
+		myOperation = null;
+		myOperationName = null;
+		myResourceType = null;
+		myResourceId = null;
+		mySource = null;
+		myUserAgent = null;
+		myError = null;
+	}
+
+	private static void appendField(StringBuilder theBuilder, String theName, String theValue) {
+		if (theValue == null || theValue.isEmpty()) {
+			return;
+		}
+		theBuilder.append(",\"").append(theName).append("\":\"");
+		for (int i = 0; i < theValue.length(); i++) {
+			char next = theValue.charAt(i);
+			switch (next) {
+				case '"':
+					theBuilder.append("\\\"");
+					break;
+				case '\\':
+					theBuilder.append("\\\\");
+					break;
+				case '\n':
+					theBuilder.append("\\n");
+					break;
+				case '\r':
+					theBuilder.append("\\r");
+					break;
+				case '\t':
+					theBuilder.append("\\t");
+					break;
+				default:
+					if (next < 0x20) {
+						theBuilder.append(String.format("\\u%04x", (int) next));
+					} else {
+						theBuilder.append(next);
+					}
+			}
+		}
+		theBuilder.append('"');
+	}
+}
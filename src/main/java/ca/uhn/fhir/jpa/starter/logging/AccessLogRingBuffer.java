@@ -0,0 +1,157 @@
+package ca.uhn.fhir.jpa.starter.logging;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed number of preallocated {@link AccessLogEntry} slots, filled by many request threads and emptied in
+ * order by a single writer thread.
+ * <p>
+ * The lock is only held to claim or release slots: a request thread claims the next free slot, fills it without
+ * the lock and then marks it published. The writer takes the published slots at the head of the buffer, writes
+ * them without the lock and releases them all at once.
+ */
+class AccessLogRingBuffer {
+
+	private final AccessLogEntry[] mySlots;
+	private final ReentrantLock myLock = new ReentrantLock();
+	private final Condition myNotEmpty = myLock.newCondition();
+	private final Condition myNotFull = myLock.newCondition();
+
+	/**
+	 * Both guarded by {@link #myLock}. The claimed slots run from {@link #myHead} for {@link #myClaimed} slots,
+	 * some of which may not be published yet.
+	 */
+	private int myHead;
+	private int myClaimed;
+
+	AccessLogRingBuffer(int theSize) {
+		mySlots = new AccessLogEntry[theSize];
+		for (int i = 0; i < theSize; i++) {
+			mySlots[i] = new AccessLogEntry();
+		}
+	}
+
+	/**
+	 * @param theBlockWhenFull whether to wait for the writer to release a slot when all are claimed
+	 * @return the claimed slot, to be published once filled, or <code>null</code> if the buffer is full and
+	 * <code>theBlockWhenFull</code> is false
+	 */
+	AccessLogEntry claim(boolean theBlockWhenFull) throws InterruptedException {
+		myLock.lock();
+		try {
+			while (myClaimed == mySlots.length) {
+				if (!theBlockWhenFull) {
+					return null;
+				}
+				myNotFull.await();
+			}
+			AccessLogEntry retVal = mySlots[(myHead + myClaimed) % mySlots.length];
+			myClaimed++;
+			myNotEmpty.signal();
+			return retVal;
+		} finally {
+			myLock.unlock();
+		}
+	}
+
+	/**
+	 * Waits up to the given time for at least one slot to be claimed.
+	 *
+	 * @return whether any slot is claimed
+	 */
+	boolean awaitClaimed(long theTimeout, TimeUnit theUnit) throws InterruptedException {
+		myLock.lock();
+		try {
+			long nanos = theUnit.toNanos(theTimeout);
+			while (myClaimed == 0) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = myNotEmpty.awaitNanos(nanos);
+			}
+			return true;
+		} finally {
+			myLock.unlock();
+		}
+	}
+
+	/**
+	 * Hands the published slots at the head of the buffer, up to the given number, to the given writer, and
+	 * releases them. Stops at the first slot that is claimed but not published yet, so that the entries are
+	 * always written in the order their slots were claimed.
+	 *
+	 * @return the number of entries written
+	 */
+	int drain(int theMaxEntries, EntryWriter theWriter) {
+		int head;
+		int available;
+		myLock.lock();
+		try {
+			head = myHead;
+			available = Math.min(myClaimed, theMaxEntries);
+		} finally {
+			myLock.unlock();
+		}
+
+		// Slots below myHead + myClaimed are not handed to another request thread until released below
+		int count = 0;
+		try {
+			while (count < available) {
+				AccessLogEntry next = mySlots[(head + count) % mySlots.length];
+				if (!next.myPublished) {
+					break;
+				}
+				try {
+					theWriter.write(next);
+				} finally {
+					next.clear();
+					next.myPublished = false;
+					count++;
+				}
+			}
+		} finally {
+			release(count);
+		}
+
+		if (count == 0 && available > 0) {
+			// The head slot is being filled by a request thread, which only takes a few field copies
+			LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+		}
+		return count;
+	}
+
+	private void release(int theCount) {
+		if (theCount == 0) {
+			return;
+		}
+		myLock.lock();
+		try {
+			myHead = (myHead + theCount) % mySlots.length;
+			myClaimed -= theCount;
+			myNotFull.signalAll();
+		} finally {
+			myLock.unlock();
+		}
+	}
+
+	int size() {
+		myLock.lock();
+		try {
+			return myClaimed;
+		} finally {
+			myLock.unlock();
+		}
+	}
+
+	int capacity() {
+		return mySlots.length;
+	}
+
+	@FunctionalInterface
+	interface EntryWriter {
+		void write(AccessLogEntry theEntry);
+	}
+}
@@ -0,0 +1,163 @@
+package ca.uhn.fhir.jpa.starter.logging;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logs every request as a single line JSON object, as a replacement for the
+ * {@link ca.uhn.fhir.rest.server.interceptor.LoggingInterceptor} which formats its template on the request thread.
+ * <p>
+ * The request thread only copies the request metadata into a preallocated slot of an {@link AccessLogRingBuffer}.
+ * A single writer thread turns the slots into JSON in batches of up to <code>batchSize</code> and logs them to
+ * the access logger, in the order the requests completed. When all slots are taken, the entry is either dropped
+ * and counted, or the request thread waits for the writer to catch up, depending on <code>blockWhenFull</code>.
+ * <p>
+ * The source of a request is the address of the peer, unless the peer is one of the <code>trustedProxies</code>,
+ * in which case it is taken from the <code>X-Forwarded-For</code> header the proxy added.
+ */
+@Interceptor
+public class AsyncAccessLogInterceptor {
+
+	public static final String METRIC_ENTRIES = "hapi.fhir.access_log.entries";
+
+	private static final Logger ourLog = LoggerFactory.getLogger(AsyncAccessLogInterceptor.class);
+	private static final long IDLE_WAIT_MILLIS = 200;
+	private static final long SHUTDOWN_WAIT_MILLIS = 5000;
+
+	private final Logger myAccessLog;
+	private final boolean myLogExceptions;
+	private final boolean myBlockWhenFull;
+	private final int myBatchSize;
+	private final Set<String> myTrustedProxies;
+	private final AccessLogRingBuffer myBuffer;
+	private final AtomicLong myDropped = new AtomicLong();
+	private final Thread myWriterThread;
+
+	private volatile boolean myRunning = true;
+	private long myReportedDropped;
+	private Counter myWrittenCounter;
+	private Counter myDroppedCounter;
+
+	/**
+	 * @param theLoggerName    the logger the JSON lines are written to
+	 * @param theLogExceptions whether to log the requests which failed, as the {@link ca.uhn.fhir.rest.server.interceptor.LoggingInterceptor} does
+	 * @param theBufferSize    the number of entries waiting to be written, beyond which the overflow policy applies
+	 * @param theBatchSize     the maximum number of entries written at a time
+	 * @param theBlockWhenFull whether request threads wait for a free slot instead of dropping their entry
+	 * @param theTrustedProxies the addresses of the proxies whose <code>X-Forwarded-For</code> header is trusted
+	 */
+	public AsyncAccessLogInterceptor(String theLoggerName, boolean theLogExceptions, int theBufferSize, int theBatchSize, boolean theBlockWhenFull, Collection<String> theTrustedProxies) {
+		myAccessLog = LoggerFactory.getLogger(theLoggerName);
+		myLogExceptions = theLogExceptions;
+		myBlockWhenFull = theBlockWhenFull;
+		myBatchSize = Math.max(1, theBatchSize);
+		myTrustedProxies = Set.copyOf(theTrustedProxies);
+		myBuffer = new AccessLogRingBuffer(Math.max(1, theBufferSize));
+		myWriterThread = new BasicThreadFactory.Builder().namingPattern("access-log-writer-%d").daemon(true).build().newThread(this::writeEntries);
+		myWriterThread.start();
+	}
+
+	public void registerMetrics(MeterRegistry theMeterRegistry) {
+		myWrittenCounter = theMeterRegistry.counter(METRIC_ENTRIES, "result", "written");
+		myDroppedCounter = theMeterRegistry.counter(METRIC_ENTRIES, "result", "dropped");
+		theMeterRegistry.gauge(METRIC_ENTRIES + ".queued", myBuffer, AccessLogRingBuffer::size);
+	}
+
+	@Hook(Pointcut.SERVER_PROCESSING_COMPLETED_NORMALLY)
+	public void processingCompletedNormally(ServletRequestDetails theRequestDetails) {
+		int status = theRequestDetails.getServletResponse() != null ? theRequestDetails.getServletResponse().getStatus() : 0;
+		publish(theRequestDetails, theRequestDetails, status, null);
+	}
+
+	@Hook(Pointcut.SERVER_HANDLE_EXCEPTION)
+	public boolean handleException(RequestDetails theRequestDetails, ServletRequestDetails theServletRequestDetails, BaseServerResponseException theException) {
+		if (myLogExceptions) {
+			publish(theRequestDetails, theServletRequestDetails, theException.getStatusCode(), theException.getMessage());
+		}
+		return true;
+	}
+
+	private void publish(RequestDetails theRequestDetails, ServletRequestDetails theServletRequestDetails, int theStatus, String theError) {
+		AccessLogEntry entry;
+		try {
+			entry = myBuffer.claim(myBlockWhenFull);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			entry = null;
+		}
+		if (entry == null) {
+			myDropped.incrementAndGet();
+			if (myDroppedCounter != null) {
+				myDroppedCounter.increment();
+			}
+			return;
+		}
+
+		try {
+			entry.capture(theRequestDetails, theServletRequestDetails, myTrustedProxies, theStatus, theError);
+		} finally {
+			// A slot which stays unpublished would hold back every entry behind it
+			entry.myPublished = true;
+		}
+	}
+
+	private void writeEntries() {
+		StringBuilder line = new StringBuilder(512);
+		AccessLogRingBuffer.EntryWriter writer = entry -> {
+			line.setLength(0);
+			entry.appendJson(line);
+			myAccessLog.info(line.toString());
+		};
+
+		while (myRunning || myBuffer.size() > 0) {
+			try {
+				if (myBuffer.awaitClaimed(IDLE_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+					int written = myBuffer.drain(myBatchSize, writer);
+					if (myWrittenCounter != null && written > 0) {
+						myWrittenCounter.increment(written);
+					}
+				}
+				reportDropped();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (RuntimeException e) {
+				ourLog.warn("Failed to write access log entries: {}", e.toString());
+			}
+		}
+	}
+
+	private void reportDropped() {
+		long dropped = myDropped.get();
+		if (dropped > myReportedDropped) {
+			ourLog.warn("Dropped {} access log entries as all {} slots were taken", dropped - myReportedDropped, myBuffer.capacity());
+			myReportedDropped = dropped;
+		}
+	}
+
+	/**
+	 * Waits for the writer to log the entries taken so far, and stops it
+	 */
+	public void shutdown() {
+		myRunning = false;
+		try {
+			myWriterThread.join(SHUTDOWN_WAIT_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
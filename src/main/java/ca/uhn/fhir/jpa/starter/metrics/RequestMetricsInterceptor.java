@@ -0,0 +1,182 @@
+package ca.uhn.fhir.jpa.starter.metrics;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how long the server takes to serve each resource type and interaction, as a
+ * {@link #METRIC_REQUESTS} timer with a percentile histogram, and how much of that went to each
+ * {@link RequestStageTimes.Stage}, as {@link #METRIC_STAGES} timers.
+ * <p>
+ * The interaction is the code of the {@link RestOperationTypeEnum} (<code>read</code>, <code>search-type</code>,
+ * <code>create</code>, <code>transaction</code>...), or the operation name for extended operations. Requests
+ * are timed from the point the server knows which method serves them to the point the response is written.
+ * Parsing is timed between the interceptors that run before and after the request is parsed, serialization
+ * from the last interceptor seeing the response; JDBC and validation are added up by the
+ * {@link StageTimingDataSource} and {@link StageTimingValidatorModule} while the request thread does the work,
+ * so JDBC time may overlap the other stages, and work handed to other threads is not counted. Requests answered
+ * by an interceptor before they reach a method, such as cached reads, are recorded once their response is written.
+ */
+@Interceptor
+public class RequestMetricsInterceptor {
+
+	public static final String METRIC_REQUESTS = "hapi.fhir.requests";
+	public static final String METRIC_STAGES = "hapi.fhir.request.stages";
+
+	private static final String USER_DATA_KEY = RequestMetricsInterceptor.class.getName();
+	private static final String NO_RESOURCE_TYPE = "system";
+
+	private final Map<String, Timer> myTimers = new ConcurrentHashMap<>();
+	private MeterRegistry myMeterRegistry;
+
+	public void registerMetrics(MeterRegistry theMeterRegistry) {
+		myMeterRegistry = theMeterRegistry;
+	}
+
+	@Hook(value = Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED, order = Integer.MIN_VALUE)
+	public boolean requestStarted(RequestDetails theRequestDetails) {
+		RequestStageTimes times = new RequestStageTimes(System.nanoTime());
+		theRequestDetails.getUserData().put(USER_DATA_KEY, times);
+		RequestStageTimes.setCurrent(times);
+		return true;
+	}
+
+	@Hook(value = Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED, order = Integer.MAX_VALUE)
+	public boolean parsingStarted(RequestDetails theRequestDetails) {
+		RequestStageTimes times = getTimes(theRequestDetails);
+		if (times != null) {
+			times.myParsingStartNanos = System.nanoTime();
+		}
+		return true;
+	}
+
+	@Hook(value = Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED, order = Integer.MIN_VALUE)
+	public void parsingCompleted(RequestDetails theRequestDetails) {
+		RequestStageTimes times = getTimes(theRequestDetails);
+		if (times != null && times.myParsingStartNanos != 0) {
+			times.add(RequestStageTimes.Stage.PARSING, System.nanoTime() - times.myParsingStartNanos);
+			times.myParsingStartNanos = 0;
+		}
+	}
+
+	@Hook(value = Pointcut.SERVER_OUTGOING_RESPONSE, order = Integer.MAX_VALUE)
+	public boolean serializationStarted(RequestDetails theRequestDetails) {
+		RequestStageTimes times = getTimes(theRequestDetails);
+		if (times != null) {
+			times.mySerializationStartNanos = System.nanoTime();
+		}
+		return true;
+	}
+
+	@Hook(Pointcut.SERVER_PROCESSING_COMPLETED_NORMALLY)
+	public void processingCompletedNormally(ServletRequestDetails theRequestDetails) {
+		int status = theRequestDetails.getServletResponse() != null ? theRequestDetails.getServletResponse().getStatus() : 200;
+		complete(theRequestDetails, status);
+	}
+
+	@Hook(Pointcut.SERVER_HANDLE_EXCEPTION)
+	public boolean handleException(RequestDetails theRequestDetails, BaseServerResponseException theException) {
+		complete(theRequestDetails, theException.getStatusCode());
+		return true;
+	}
+
+	/**
+	 * Records the requests answered by an interceptor, e.g. from a cache, which complete neither normally nor
+	 * with an exception, and clears the times from the request thread whichever way the request ended.
+	 */
+	@Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+	public void processingCompleted(RequestDetails theRequestDetails, ServletRequestDetails theServletRequestDetails) {
+		try {
+			if (getTimes(theRequestDetails) != null) {
+				int status = theServletRequestDetails != null && theServletRequestDetails.getServletResponse() != null ? theServletRequestDetails.getServletResponse().getStatus() : 200;
+				complete(theRequestDetails, status);
+			}
+		} finally {
+			RequestStageTimes.setCurrent(null);
+		}
+	}
+
+	private void complete(RequestDetails theRequestDetails, int theStatus) {
+		// Removed so that a request is recorded once
+		RequestStageTimes times = (RequestStageTimes) theRequestDetails.getUserData().remove(USER_DATA_KEY);
+		RequestStageTimes.setCurrent(null);
+		if (times == null || myMeterRegistry == null) {
+			return;
+		}
+
+		long now = System.nanoTime();
+		if (times.mySerializationStartNanos != 0) {
+			times.add(RequestStageTimes.Stage.SERIALIZATION, now - times.mySerializationStartNanos);
+		}
+
+		String resourceType = theRequestDetails.getResourceName() != null ? theRequestDetails.getResourceName() : NO_RESOURCE_TYPE;
+		String interaction = getInteraction(theRequestDetails);
+		getRequestTimer(resourceType, interaction, getOutcome(theStatus)).record(now - times.getStartNanos(), TimeUnit.NANOSECONDS);
+		for (RequestStageTimes.Stage next : RequestStageTimes.Stage.values()) {
+			getStageTimer(resourceType, interaction, next).record(times.getNanos(next), TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private Timer getRequestTimer(String theResourceType, String theInteraction, String theOutcome) {
+		return myTimers.computeIfAbsent(METRIC_REQUESTS + "|" + theResourceType + "|" + theInteraction + "|" + theOutcome, k -> Timer.builder(METRIC_REQUESTS)
+			.tag("resource_type", theResourceType)
+			.tag("interaction", theInteraction)
+			.tag("outcome", theOutcome)
+			.publishPercentileHistogram()
+			.minimumExpectedValue(Duration.ofMillis(1))
+			.maximumExpectedValue(Duration.ofMinutes(1))
+			.register(myMeterRegistry));
+	}
+
+	private Timer getStageTimer(String theResourceType, String theInteraction, RequestStageTimes.Stage theStage) {
+		return myTimers.computeIfAbsent(METRIC_STAGES + "|" + theResourceType + "|" + theInteraction + "|" + theStage, k -> Timer.builder(METRIC_STAGES)
+			.tag("resource_type", theResourceType)
+			.tag("interaction", theInteraction)
+			.tag("stage", theStage.getTagValue())
+			.register(myMeterRegistry));
+	}
+
+	private static RequestStageTimes getTimes(RequestDetails theRequestDetails) {
+		return (RequestStageTimes) theRequestDetails.getUserData().get(USER_DATA_KEY);
+	}
+
+	private static String getInteraction(RequestDetails theRequestDetails) {
+		RestOperationTypeEnum operationType = theRequestDetails.getRestOperationType();
+		if (operationType == null) {
+			return "unknown";
+		}
+		switch (operationType) {
+			case EXTENDED_OPERATION_SERVER:
+			case EXTENDED_OPERATION_TYPE:
+			case EXTENDED_OPERATION_INSTANCE:
+				String operation = theRequestDetails.getOperation();
+				if (operation != null) {
+					return operation.startsWith("$") ? operation : "$" + operation;
+				}
+				return operationType.getCode();
+			default:
+				return operationType.getCode();
+		}
+	}
+
+	private static String getOutcome(int theStatus) {
+		if (theStatus >= 500) {
+			return "SERVER_ERROR";
+		} else if (theStatus >= 400) {
+			return "CLIENT_ERROR";
+		}
+		return "SUCCESS";
+	}
+}
@@ -0,0 +1,75 @@
+package ca.uhn.fhir.jpa.starter.metrics;
+
+import java.util.Locale;
+
+/**
+ * The time a request spends in each {@link Stage}, added up by the code doing the work on the request thread,
+ * which finds the request it works for through {@link #current()}.
+ */
+public final class RequestStageTimes {
+
+	public enum Stage {
+		/**
+		 * Executing SQL statements, see {@link StageTimingDataSource}
+		 */
+		JDBC,
+		/**
+		 * Parsing the request into the arguments of the method serving it, the body included
+		 */
+		PARSING,
+		/**
+		 * Validating the request and response, see {@link StageTimingValidatorModule}
+		 */
+		VALIDATION,
+		/**
+		 * Encoding and writing the response
+		 */
+		SERIALIZATION;
+
+		public String getTagValue() {
+			return name().toLowerCase(Locale.ROOT);
+		}
+	}
+
+	private static final ThreadLocal<RequestStageTimes> ourCurrent = new ThreadLocal<>();
+
+	private final long myStartNanos;
+	private final long[] myStageNanos = new long[Stage.values().length];
+
+	/**
+	 * When the stages timed by the {@link RequestMetricsInterceptor} itself started, 0 until they do
+	 */
+	long myParsingStartNanos;
+	long mySerializationStartNanos;
+
+	RequestStageTimes(long theStartNanos) {
+		myStartNanos = theStartNanos;
+	}
+
+	/**
+	 * @return the times of the request the current thread works for, or <code>null</code> if it doesn't work for one
+	 */
+	public static RequestStageTimes current() {
+		return ourCurrent.get();
+	}
+
+	static void setCurrent(RequestStageTimes theTimes) {
+		if (theTimes == null) {
+			ourCurrent.remove();
+		} else {
+			ourCurrent.set(theTimes);
+		}
+	}
+
+	public void add(Stage theStage, long theNanos) {
+		myStageNanos[theStage.ordinal()] += theNanos;
+	}
+
+	public long getNanos(Stage theStage) {
+		return myStageNanos[theStage.ordinal()];
+	}
+
+	long getStartNanos() {
+		return myStartNanos;
+	}
+}
@@ -0,0 +1,89 @@
+package ca.uhn.fhir.jpa.starter.metrics;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+
+/**
+ * Wraps a {@link DataSource} so that the time spent executing statements is added to the
+ * {@link RequestStageTimes.Stage#JDBC} stage of the request the calling thread works for, if any.
+ * <p>
+ * Only the <code>execute*</code> methods of statements are timed: fetching rows from a result set is
+ * mostly done from buffers the driver filled while executing.
+ */
+public final class StageTimingDataSource {
+
+	private StageTimingDataSource() {
+	}
+
+	public static DataSource wrap(DataSource theDataSource) {
+		return proxy(DataSource.class, theDataSource, (theTarget, theMethod, theArgs) -> {
+			Object retVal = theMethod.invoke(theTarget, theArgs);
+			if (retVal instanceof Connection && theMethod.getName().equals("getConnection")) {
+				return wrapConnection((Connection) retVal);
+			}
+			return retVal;
+		});
+	}
+
+	private static Connection wrapConnection(Connection theConnection) {
+		return proxy(Connection.class, theConnection, (theTarget, theMethod, theArgs) -> {
+			Object retVal = theMethod.invoke(theTarget, theArgs);
+			if (retVal instanceof CallableStatement) {
+				return wrapStatement(CallableStatement.class, (CallableStatement) retVal);
+			} else if (retVal instanceof PreparedStatement) {
+				return wrapStatement(PreparedStatement.class, (PreparedStatement) retVal);
+			} else if (retVal instanceof Statement) {
+				return wrapStatement(Statement.class, (Statement) retVal);
+			}
+			return retVal;
+		});
+	}
+
+	private static <T extends Statement> T wrapStatement(Class<T> theType, T theStatement) {
+		return proxy(theType, theStatement, (theTarget, theMethod, theArgs) -> {
+			RequestStageTimes times = RequestStageTimes.current();
+			if (times == null || !theMethod.getName().startsWith("execute")) {
+				return theMethod.invoke(theTarget, theArgs);
+			}
+			long start = System.nanoTime();
+			try {
+				return theMethod.invoke(theTarget, theArgs);
+			} finally {
+				times.add(RequestStageTimes.Stage.JDBC, System.nanoTime() - start);
+			}
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T proxy(Class<T> theType, T theTarget, Delegation theDelegation) {
+		InvocationHandler handler = (theProxy, theMethod, theArgs) -> {
+			switch (theMethod.getName()) {
+				case "equals":
+					return theArgs[0] == theProxy;
+				case "hashCode":
+					return System.identityHashCode(theProxy);
+				case "toString":
+					return theTarget.toString();
+				default:
+					try {
+						return theDelegation.invoke(theTarget, theMethod, theArgs);
+					} catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+			}
+		};
+		return (T) Proxy.newProxyInstance(StageTimingDataSource.class.getClassLoader(), new Class<?>[]{theType}, handler);
+	}
+
+	@FunctionalInterface
+	private interface Delegation {
+		Object invoke(Object theTarget, Method theMethod, Object[] theArgs) throws Throwable;
+	}
+}
@@ -0,0 +1,33 @@
+package ca.uhn.fhir.jpa.starter.metrics;
+
+import ca.uhn.fhir.validation.IValidationContext;
+import ca.uhn.fhir.validation.IValidatorModule;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Wraps the validator module used by the request and response validating interceptors, so that the time spent
+ * validating is added to the {@link RequestStageTimes.Stage#VALIDATION} stage of the request being served.
+ */
+public class StageTimingValidatorModule implements IValidatorModule {
+
+	private final IValidatorModule myDelegate;
+
+	public StageTimingValidatorModule(IValidatorModule theDelegate) {
+		myDelegate = theDelegate;
+	}
+
+	@Override
+	public void validateResource(IValidationContext<IBaseResource> theContext) {
+		RequestStageTimes times = RequestStageTimes.current();
+		if (times == null) {
+			myDelegate.validateResource(theContext);
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			myDelegate.validateResource(theContext);
+		} finally {
+			times.add(RequestStageTimes.Stage.VALIDATION, System.nanoTime() - start);
+		}
+	}
+}
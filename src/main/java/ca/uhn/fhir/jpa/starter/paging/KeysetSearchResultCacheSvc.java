@@ -0,0 +1,39 @@
+package ca.uhn.fhir.jpa.starter.paging;
+
+import ca.uhn.fhir.jpa.entity.Search;
+import ca.uhn.fhir.jpa.model.dao.JpaPid;
+import ca.uhn.fhir.jpa.search.cache.DatabaseSearchResultCacheSvcImpl;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Fetches pages of stored search results with a keyset (seek) query on the
+ * <code>(SEARCH_PID, SEARCH_ORDER)</code> unique index instead of an <code>OFFSET</code>, so that
+ * reading a page costs the same whatever its depth. The search result order is dense and starts at
+ * zero, so the requested index range maps directly onto a range of sort keys.
+ */
+public class KeysetSearchResultCacheSvc extends DatabaseSearchResultCacheSvcImpl {
+
+	@PersistenceContext
+	private EntityManager myEntityManager;
+
+	@Override
+	@Transactional(propagation = Propagation.REQUIRED)
+	public List<JpaPid> fetchResultPids(Search theSearch, int theFrom, int theTo) {
+		if (theTo <= theFrom) {
+			return Collections.emptyList();
+		}
+		List<Long> retVal = myEntityManager
+			.createQuery("SELECT r.myResourcePid FROM SearchResult r WHERE r.mySearchPid = :search AND r.myOrder >= :from AND r.myOrder < :to ORDER BY r.myOrder ASC", Long.class)
+			.setParameter("search", theSearch.getId())
+			.setParameter("from", theFrom)
+			.setParameter("to", theTo)
+			.getResultList();
+		return JpaPid.fromLongList(retVal);
+	}
+}
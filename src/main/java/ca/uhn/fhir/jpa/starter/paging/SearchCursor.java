@@ -0,0 +1,70 @@
+package ca.uhn.fhir.jpa.starter.paging;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Opaque position within a persisted search, handed out as the <code>_pageId</code> of keyset paging
+ * links.
+ * <p>
+ * A cursor holds the sort key (the search result order) of the first row of the page it points at,
+ * the page size, and optionally the PID of the resource right before it. The PID lets the server
+ * check that the page still continues where the previous one ended instead of silently skipping or
+ * repeating rows.
+ */
+public final class SearchCursor {
+
+	private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+	private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+	private final int myOffset;
+	private final int myCount;
+	private final Long myPrecedingPid;
+
+	public SearchCursor(int theOffset, int theCount, Long thePrecedingPid) {
+		myOffset = theOffset;
+		myCount = theCount;
+		myPrecedingPid = thePrecedingPid;
+	}
+
+	public int getOffset() {
+		return myOffset;
+	}
+
+	public int getCount() {
+		return myCount;
+	}
+
+	/**
+	 * @return the PID of the resource at <code>offset - 1</code>, or <code>null</code> if the cursor
+	 * was not created from the page before it
+	 */
+	public Long getPrecedingPid() {
+		return myPrecedingPid;
+	}
+
+	public String encode() {
+		String value = myOffset + "." + myCount + (myPrecedingPid != null ? "." + myPrecedingPid : "");
+		return ENCODER.encodeToString(value.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	public static SearchCursor decode(String thePageId) {
+		try {
+			String[] parts = new String(DECODER.decode(thePageId), StandardCharsets.US_ASCII).split("\\.");
+			if (parts.length < 2 || parts.length > 3) {
+				throw new IllegalArgumentException();
+			}
+			int offset = Integer.parseInt(parts[0]);
+			int count = Integer.parseInt(parts[1]);
+			if (offset < 0 || count <= 0) {
+				throw new IllegalArgumentException();
+			}
+			Long precedingPid = parts.length == 3 ? Long.valueOf(parts[2]) : null;
+			return new SearchCursor(offset, count, precedingPid);
+		} catch (IllegalArgumentException e) {
+			throw new InvalidRequestException("Invalid _pageId: " + thePageId);
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package ca.uhn.fhir.jpa.starter.paging;
+
+import ca.uhn.fhir.jpa.entity.Search;
+import ca.uhn.fhir.jpa.entity.SearchTypeEnum;
+import ca.uhn.fhir.jpa.model.dao.JpaPid;
+import ca.uhn.fhir.jpa.model.search.SearchStatusEnum;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+/**
+ * Bounded in-heap store of recently served search pages, keyed by search UUID and page range.
+ * <p>
+ * Pages are held as the plain resource PIDs the search coordinator returned for the range, packed
+ * into a <code>long[]</code>, so a hit only has to load the resource bodies and skips the lookups
+ * against the search and search result tables. The tier is sized by the total number of PIDs it
+ * holds and evicts by size.
+ * <p>
+ * Pages served from the tier don't touch the search in the database, so they don't push back its
+ * expiry. Every entry therefore expires when the search it comes from would expire as of the time the
+ * entry was added: at the expiry set on the search, or the configured retention after the search was
+ * last returned by the database. A search the database has expired is never served from the tier.
+ */
+public class SearchPageHotTier {
+
+	public static final String CACHE_NAME_PAGES = "hapi.fhir.search_page_hot_tier";
+	public static final String CACHE_NAME_SEARCHES = "hapi.fhir.search_page_hot_tier.searches";
+
+	private final Cache<PageKey, Page> myPages;
+	private final Cache<String, Search> mySearches;
+	private final Duration mySearchRetention;
+
+	/**
+	 * @param theSearchRetention how long the database keeps a search after it was last returned
+	 */
+	public SearchPageHotTier(long theMaximumPids, Duration theSearchRetention) {
+		mySearchRetention = theSearchRetention;
+		myPages = Caffeine.newBuilder()
+			.maximumWeight(theMaximumPids)
+			.weigher((PageKey theKey, Page thePage) -> Math.max(1, thePage.myPids.length))
+			.expireAfter(new UntilDeadline<PageKey, Page>(thePage -> thePage.myDeadlineMillis))
+			.recordStats()
+			.build();
+
+		// Only the finished search entities are kept here, roughly one per actively paged search
+		mySearches = Caffeine.newBuilder()
+			.maximumSize(Math.max(1, theMaximumPids / 100))
+			.expireAfter(new UntilDeadline<String, Search>(this::getSearchDeadlineMillis))
+			.recordStats()
+			.build();
+	}
+
+	public void registerMetrics(MeterRegistry theMeterRegistry) {
+		CaffeineCacheMetrics.monitor(theMeterRegistry, myPages, CACHE_NAME_PAGES);
+		CaffeineCacheMetrics.monitor(theMeterRegistry, mySearches, CACHE_NAME_SEARCHES);
+	}
+
+	/**
+	 * @return the PIDs of the given page, or <code>null</code> if the page is not held in the tier
+	 */
+	public List<JpaPid> getPage(String theSearchUuid, int theFromIndex, int theToIndex) {
+		Page page = myPages.getIfPresent(new PageKey(theSearchUuid, theFromIndex, theToIndex));
+		if (page == null) {
+			return null;
+		}
+		List<JpaPid> retVal = new ArrayList<>(page.myPids.length);
+		for (long next : page.myPids) {
+			retVal.add(JpaPid.fromId(next));
+		}
+		return retVal;
+	}
+
+	/**
+	 * @param theSearch the search the page belongs to, which decides when the page expires
+	 */
+	public void putPage(Search theSearch, int theFromIndex, int theToIndex, List<JpaPid> thePids) {
+		long deadline = getSearchDeadlineMillis(theSearch);
+		if (deadline <= System.currentTimeMillis()) {
+			return;
+		}
+		long[] pids = new long[thePids.size()];
+		for (int i = 0; i < pids.length; i++) {
+			pids[i] = thePids.get(i).getId();
+		}
+		myPages.put(new PageKey(theSearch.getUuid(), theFromIndex, theToIndex), new Page(pids, deadline));
+	}
+
+	/**
+	 * @return the search entity if it has been remembered, or <code>null</code>
+	 */
+	public Search getSearch(String theSearchUuid) {
+		return mySearches.getIfPresent(theSearchUuid);
+	}
+
+	/**
+	 * Remembers the search entity so that later page requests don't have to reload it. Only finished
+	 * searches are held: their entity no longer changes, so it can be shared between requests.
+	 */
+	public void putSearchIfFinished(Search theSearch) {
+		if (theSearch != null
+			&& theSearch.getStatus() == SearchStatusEnum.FINISHED
+			&& theSearch.getSearchType() != SearchTypeEnum.HISTORY) {
+			mySearches.put(theSearch.getUuid(), theSearch);
+		}
+	}
+
+	/**
+	 * When the database may expire the search, going by the given entity. An entity loaded earlier only
+	 * gives an earlier time, as the database only ever moves the last returned time forward.
+	 */
+	private long getSearchDeadlineMillis(Search theSearch) {
+		if (theSearch.getExpiryOrNull() != null) {
+			return theSearch.getExpiryOrNull().getTime();
+		}
+		Date lastReturned = theSearch.getSearchLastReturned() != null ? theSearch.getSearchLastReturned() : theSearch.getCreated();
+		if (lastReturned == null) {
+			return System.currentTimeMillis() + mySearchRetention.toMillis();
+		}
+		return lastReturned.getTime() + mySearchRetention.toMillis();
+	}
+
+	private static final class Page {
+		private final long[] myPids;
+		private final long myDeadlineMillis;
+
+		private Page(long[] thePids, long theDeadlineMillis) {
+			myPids = thePids;
+			myDeadlineMillis = theDeadlineMillis;
+		}
+	}
+
+	/**
+	 * Expires an entry at a wall clock deadline taken from its value, which reads and updates don't move
+	 */
+	private static final class UntilDeadline<K, V> implements Expiry<K, V> {
+		private final ToLongFunction<V> myDeadline;
+
+		private UntilDeadline(ToLongFunction<V> theDeadline) {
+			myDeadline = theDeadline;
+		}
+
+		@Override
+		public long expireAfterCreate(K theKey, V theValue, long theCurrentTime) {
+			return TimeUnit.MILLISECONDS.toNanos(Math.max(0, myDeadline.applyAsLong(theValue) - System.currentTimeMillis()));
+		}
+
+		@Override
+		public long expireAfterUpdate(K theKey, V theValue, long theCurrentTime, long theCurrentDuration) {
+			return expireAfterCreate(theKey, theValue, theCurrentTime);
+		}
+
+		@Override
+		public long expireAfterRead(K theKey, V theValue, long theCurrentTime, long theCurrentDuration) {
+			return theCurrentDuration;
+		}
+	}
+
+	private static final class PageKey {
+		private final String mySearchUuid;
+		private final int myFromIndex;
+		private final int myToIndex;
+
+		private PageKey(String theSearchUuid, int theFromIndex, int theToIndex) {
+			mySearchUuid = theSearchUuid;
+			myFromIndex = theFromIndex;
+			myToIndex = theToIndex;
+		}
+
+		@Override
+		public boolean equals(Object theO) {
+			if (this == theO) {
+				return true;
+			}
+			if (!(theO instanceof PageKey)) {
+				return false;
+			}
+			PageKey that = (PageKey) theO;
+			return myFromIndex == that.myFromIndex && myToIndex == that.myToIndex && mySearchUuid.equals(that.mySearchUuid);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(mySearchUuid, myFromIndex, myToIndex);
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package ca.uhn.fhir.jpa.starter.paging;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.api.svc.ISearchCoordinatorSvc;
+import ca.uhn.fhir.jpa.dao.ISearchBuilder;
+import ca.uhn.fhir.jpa.dao.SearchBuilderFactory;
+import ca.uhn.fhir.jpa.entity.Search;
+import ca.uhn.fhir.jpa.model.dao.JpaPid;
+import ca.uhn.fhir.jpa.model.search.SearchStatusEnum;
+import ca.uhn.fhir.jpa.search.PersistedJpaBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A {@link PersistedJpaBundleProvider} used for the pages following the first one of a search.
+ * <p>
+ * If a {@link SearchPageHotTier} is given, the PIDs of a page are looked up there before asking the
+ * search coordinator, and every page that is fetched feeds the tier.
+ * <p>
+ * In keyset mode the provider hands out {@link SearchCursor cursors} as page ids, so the
+ * <code>next</code> and <code>previous</code> links point at a position in the search instead of an
+ * offset. A provider created for a cursor serves the page the cursor points at, whatever range the
+ * server asks it for.
+ */
+public class StarterBundleProvider extends PersistedJpaBundleProvider {
+
+	private final SearchPageHotTier myHotTier;
+	private final boolean myKeysetPaging;
+	private final SearchCursor myCursor;
+
+	private int myPageFromIndex = -1;
+	private int myPageToIndex = -1;
+	private List<JpaPid> myPagePids = Collections.emptyList();
+
+	@Autowired
+	private ISearchCoordinatorSvc<JpaPid> mySearchCoordinatorSvc;
+	@Autowired
+	private SearchBuilderFactory<JpaPid> mySearchBuilderFactory;
+	@Autowired
+	private DaoRegistry myDaoRegistry;
+	@Autowired
+	private FhirContext myContext;
+
+	public StarterBundleProvider(RequestDetails theRequest, String theSearchUuid, SearchPageHotTier theHotTier, boolean theKeysetPaging, SearchCursor theCursor) {
+		super(theRequest, theSearchUuid);
+		myHotTier = theHotTier;
+		myKeysetPaging = theKeysetPaging;
+		myCursor = theCursor;
+	}
+
+	public StarterBundleProvider(RequestDetails theRequest, Search theSearch, SearchPageHotTier theHotTier, boolean theKeysetPaging, SearchCursor theCursor) {
+		super(theRequest, theSearch);
+		myHotTier = theHotTier;
+		myKeysetPaging = theKeysetPaging;
+		myCursor = theCursor;
+	}
+
+	@Nonnull
+	@Override
+	public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+		if (myCursor != null) {
+			// A page id link doesn't carry _count, so the cursor decides which page is returned
+			return super.getResources(myCursor.getOffset(), myCursor.getOffset() + myCursor.getCount());
+		}
+		return super.getResources(theFromIndex, theToIndex);
+	}
+
+	@Override
+	protected List<IBaseResource> doSearchOrEverything(int theFromIndex, int theToIndex) {
+		Search search = getSearchEntity();
+		if (search.getTotalCount() != null && search.getNumFound() <= 0) {
+			return Collections.emptyList();
+		}
+
+		String resourceName = search.getResourceType();
+		Class<? extends IBaseResource> resourceType = myContext.getResourceDefinition(resourceName).getImplementingClass();
+		IFhirResourceDao<?> dao = myDaoRegistry.getResourceDao(resourceName);
+		ISearchBuilder<JpaPid> searchBuilder = mySearchBuilderFactory.newSearchBuilder(dao, resourceName, resourceType);
+
+		List<JpaPid> pids;
+		if (myCursor != null && myCursor.getPrecedingPid() != null && theFromIndex > 0) {
+			// Fetch one row more to check that the page carries on right after the one the cursor was made from
+			pids = fetchPids(search, theFromIndex - 1, theToIndex);
+			if (pids.isEmpty() || pids.get(0).getId() != myCursor.getPrecedingPid().longValue()) {
+				throw new InvalidRequestException("The _pageId no longer matches search " + getUuid());
+			}
+			pids = pids.subList(1, pids.size());
+		} else {
+			pids = fetchPids(search, theFromIndex, theToIndex);
+		}
+
+		myPageFromIndex = theFromIndex;
+		myPageToIndex = theToIndex;
+		myPagePids = pids;
+
+		// toResourceList() appends the _include targets to the list it is given
+		List<JpaPid> pidsSubList = new ArrayList<>(pids);
+		return myTxService.withRequest(myRequest).execute(() -> toResourceList(searchBuilder, pidsSubList));
+	}
+
+	private List<JpaPid> fetchPids(Search theSearch, int theFromIndex, int theToIndex) {
+		List<JpaPid> pids = myHotTier != null ? myHotTier.getPage(getUuid(), theFromIndex, theToIndex) : null;
+		if (pids == null) {
+			pids = mySearchCoordinatorSvc.getResources(getUuid(), theFromIndex, theToIndex, myRequest);
+			// A short page of a search that is still loading may grow later, so only final pages are kept
+			if (myHotTier != null && (pids.size() == theToIndex - theFromIndex || theSearch.getStatus() == SearchStatusEnum.FINISHED)) {
+				myHotTier.putPage(theSearch, theFromIndex, theToIndex, pids);
+			}
+		}
+		return pids;
+	}
+
+	@Override
+	public String getCurrentPageId() {
+		if (!isKeysetPage()) {
+			return null;
+		}
+		return new SearchCursor(myPageFromIndex, myPageToIndex - myPageFromIndex, null).encode();
+	}
+
+	@Override
+	public String getNextPageId() {
+		if (!isKeysetPage() || myPagePids.size() < myPageToIndex - myPageFromIndex) {
+			return null;
+		}
+		Integer size = size();
+		if (size != null && myPageToIndex >= size) {
+			return null;
+		}
+		Long lastPid = myPagePids.isEmpty() ? null : myPagePids.get(myPagePids.size() - 1).getId();
+		return new SearchCursor(myPageToIndex, myPageToIndex - myPageFromIndex, lastPid).encode();
+	}
+
+	@Override
+	public String getPreviousPageId() {
+		if (!isKeysetPage() || myPageFromIndex <= 0) {
+			return null;
+		}
+		int count = myPageToIndex - myPageFromIndex;
+		return new SearchCursor(Math.max(0, myPageFromIndex - count), count, null).encode();
+	}
+
+	/**
+	 * Cursors are only handed out once a search page has been served. History pages never go
+	 * through {@link #doSearchOrEverything(int, int)} and keep their offset links.
+	 */
+	private boolean isKeysetPage() {
+		return myKeysetPaging && myPageFromIndex >= 0;
+	}
+
+	void rememberSearchEntity() {
+		if (myHotTier != null) {
+			myHotTier.putSearchIfFinished(getSearchEntity());
+		}
+	}
+}
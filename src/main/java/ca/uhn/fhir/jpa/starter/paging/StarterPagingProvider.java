@@ -0,0 +1,82 @@
+package ca.uhn.fhir.jpa.starter.paging;
+
+import ca.uhn.fhir.jpa.entity.Search;
+import ca.uhn.fhir.jpa.partition.IRequestPartitionHelperSvc;
+import ca.uhn.fhir.jpa.search.DatabaseBackedPagingProvider;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
+
+/**
+ * Paging provider for the pages following the first one of a search, with two optional features:
+ * <ul>
+ *    <li>a {@link SearchPageHotTier}: next-page requests are first served from the in-heap tier and
+ *    fall back to the database backed search results on a miss</li>
+ *    <li>keyset paging: the <code>next</code> and <code>previous</code> links carry an opaque
+ *    {@link SearchCursor} (<code>_pageId</code>) instead of <code>_getpagesoffset</code></li>
+ * </ul>
+ * Unlike its parent this provider is not synchronized, so concurrent clients paging through
+ * different searches don't queue up behind each other.
+ */
+public class StarterPagingProvider extends DatabaseBackedPagingProvider {
+
+	private final SearchPageHotTier myHotTier;
+	private final boolean myKeysetPaging;
+
+	@Autowired
+	private IRequestPartitionHelperSvc myRequestPartitionHelperSvc;
+	@Autowired
+	private AutowireCapableBeanFactory myBeanFactory;
+
+	/**
+	 * @param theHotTier     the hot tier to serve pages from, or <code>null</code> to always go to the database
+	 * @param theKeysetPaging whether to link pages with cursors rather than offsets
+	 */
+	public StarterPagingProvider(SearchPageHotTier theHotTier, boolean theKeysetPaging) {
+		myHotTier = theHotTier;
+		myKeysetPaging = theKeysetPaging;
+	}
+
+	@Override
+	public IBundleProvider retrieveResultList(RequestDetails theRequestDetails, String theId) {
+		return retrieveResultList(theRequestDetails, theId, (SearchCursor) null);
+	}
+
+	@Override
+	public IBundleProvider retrieveResultList(RequestDetails theRequestDetails, String theSearchId, String thePageId) {
+		if (!myKeysetPaging) {
+			return super.retrieveResultList(theRequestDetails, theSearchId, thePageId);
+		}
+		return retrieveResultList(theRequestDetails, theSearchId, SearchCursor.decode(thePageId));
+	}
+
+	private IBundleProvider retrieveResultList(RequestDetails theRequestDetails, String theId, SearchCursor theCursor) {
+		myRequestPartitionHelperSvc.determineReadPartitionForRequestForSearchType(theRequestDetails, "Bundle", null, null);
+
+		Search search = myHotTier != null ? myHotTier.getSearch(theId) : null;
+		StarterBundleProvider provider;
+		if (search != null) {
+			provider = new StarterBundleProvider(theRequestDetails, search, myHotTier, myKeysetPaging, theCursor);
+		} else {
+			provider = new StarterBundleProvider(theRequestDetails, theId, myHotTier, myKeysetPaging, theCursor);
+		}
+		myBeanFactory.autowireBean(provider);
+
+		if (!provider.ensureSearchEntityLoaded()) {
+			return null;
+		}
+		if (search == null) {
+			provider.rememberSearchEntity();
+		}
+		return provider;
+	}
+
+	public SearchPageHotTier getHotTier() {
+		return myHotTier;
+	}
+
+	public boolean isKeysetPaging() {
+		return myKeysetPaging;
+	}
+}
@@ -0,0 +1,149 @@
+package ca.uhn.fhir.jpa.starter.search;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.MatchUrlService;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationInterceptor;
+import ca.uhn.fhir.rest.server.interceptor.auth.SearchNarrowingInterceptor;
+import ca.uhn.fhir.rest.server.interceptor.consent.ConsentInterceptor;
+import ca.uhn.fhir.rest.server.method.SortParameter;
+import ca.uhn.fhir.util.UrlUtil;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Streams the results of a type level search as NDJSON when the client asks for
+ * <code>_format=ndjson</code> (or <code>application/fhir+ndjson</code>), or sends
+ * <code>Accept: application/fhir+ndjson</code>.
+ * <p>
+ * The search is run through the resource DAO like any other search, but instead of collecting the
+ * matches into a Bundle, the resources are loaded and written to the servlet output stream one chunk
+ * at a time, and flushed after every chunk. Memory per request therefore depends on the chunk size
+ * only, not on the number of matches. All matches are streamed, unless <code>_count</code> is given,
+ * in which case it caps the number of matches written. <code>_include</code>d resources are
+ * written right after the chunk that references them.
+ * <p>
+ * As the response never goes through the normal response pipeline, interceptors hooking the outgoing
+ * response (for instance the response highlighter) don't see it. The stream is written before HAPI
+ * authorizes the request, so nothing is streamed while an {@link AuthorizationInterceptor},
+ * {@link ConsentInterceptor} or {@link SearchNarrowingInterceptor} is registered on the server: the
+ * search is then answered as a normal Bundle, which those interceptors check.
+ */
+@Interceptor
+public class NdjsonSearchStreamingInterceptor {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(NdjsonSearchStreamingInterceptor.class);
+
+	private final DaoRegistry myDaoRegistry;
+	private final MatchUrlService myMatchUrlService;
+	private final int myChunkSize;
+	private final AtomicBoolean myAccessControlWarned = new AtomicBoolean();
+
+	public NdjsonSearchStreamingInterceptor(DaoRegistry theDaoRegistry, MatchUrlService theMatchUrlService, int theChunkSize) {
+		myDaoRegistry = theDaoRegistry;
+		myMatchUrlService = theMatchUrlService;
+		myChunkSize = Math.max(1, theChunkSize);
+	}
+
+	@Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+	public boolean streamSearch(RequestDetails theRequestDetails, HttpServletResponse theServletResponse) throws IOException {
+		if (theRequestDetails.getRestOperationType() != RestOperationTypeEnum.SEARCH_TYPE || !isNdjsonRequested(theRequestDetails)) {
+			return true;
+		}
+		if (hasAccessControlInterceptor(theRequestDetails)) {
+			if (myAccessControlWarned.compareAndSet(false, true)) {
+				ourLog.warn("Not streaming searches as NDJSON, the server has an interceptor controlling access to the search results");
+			}
+			return true;
+		}
+
+		FhirContext fhirContext = theRequestDetails.getFhirContext();
+		String resourceName = theRequestDetails.getResourceName();
+		IFhirResourceDao<?> dao = myDaoRegistry.getResourceDao(resourceName);
+
+		SearchParameterMap map = myMatchUrlService.translateMatchUrl(toMatchUrl(theRequestDetails), fhirContext.getResourceDefinition(resourceName), MatchUrlService.processIncludes());
+		SortSpec sort = (SortSpec) new SortParameter(fhirContext).translateQueryParametersIntoServerArgument(theRequestDetails, null);
+		map.setSort(sort);
+		Integer limit = map.getCount();
+
+		IBundleProvider results = dao.search(map, theRequestDetails);
+
+		theServletResponse.setStatus(HttpServletResponse.SC_OK);
+		theServletResponse.setContentType(Constants.CT_FHIR_NDJSON);
+		theServletResponse.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+
+		IParser parser = fhirContext.newJsonParser().setPrettyPrint(false);
+		Writer writer = theServletResponse.getWriter();
+		int written = 0;
+		for (int from = 0; limit == null || from < limit; from += myChunkSize) {
+			int to = limit != null ? Math.min(from + myChunkSize, limit) : from + myChunkSize;
+			List<IBaseResource> chunk = results.getResources(from, to);
+			if (chunk.isEmpty()) {
+				break;
+			}
+			for (IBaseResource next : chunk) {
+				parser.encodeResourceToWriter(next, writer);
+				writer.write('\n');
+			}
+			writer.flush();
+			written += chunk.size();
+
+			Integer size = results.size();
+			if (size != null && to >= size) {
+				break;
+			}
+		}
+		ourLog.debug("Streamed {} resources of {} search {} as NDJSON", written, resourceName, results.getUuid());
+		return false;
+	}
+
+	private static boolean hasAccessControlInterceptor(RequestDetails theRequestDetails) {
+		for (Object next : theRequestDetails.getServer().getInterceptorService().getAllRegisteredInterceptors()) {
+			if (next instanceof AuthorizationInterceptor || next instanceof ConsentInterceptor || next instanceof SearchNarrowingInterceptor) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isNdjsonRequested(RequestDetails theRequestDetails) {
+		String[] format = theRequestDetails.getParameters().get(Constants.PARAM_FORMAT);
+		if (format != null && format.length > 0) {
+			return Constants.CTS_NDJSON.contains(format[0]);
+		}
+		String accept = theRequestDetails.getHeader(Constants.HEADER_ACCEPT);
+		return accept != null && accept.trim().startsWith(Constants.CT_FHIR_NDJSON);
+	}
+
+	private static String toMatchUrl(RequestDetails theRequestDetails) {
+		StringBuilder b = new StringBuilder(theRequestDetails.getResourceName()).append('?');
+		for (Map.Entry<String, String[]> next : theRequestDetails.getParameters().entrySet()) {
+			if (Constants.PARAM_FORMAT.equals(next.getKey())) {
+				continue;
+			}
+			for (String value : next.getValue()) {
+				b.append(UrlUtil.escapeUrlParam(next.getKey())).append('=').append(UrlUtil.escapeUrlParam(value)).append('&');
+			}
+		}
+		return b.toString();
+	}
+}
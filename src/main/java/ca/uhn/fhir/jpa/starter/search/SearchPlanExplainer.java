@@ -0,0 +1,138 @@
+package ca.uhn.fhir.jpa.starter.search;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+import java.util.StringJoiner;
+
+/**
+ * Asks the database how it runs a captured statement, without running it. The statements carry <code>?</code>
+ * placeholders rather than the values of the search, so the plans are the ones the database picks for any value:
+ * <ul>
+ *    <li>on H2, <code>EXPLAIN</code> with every parameter set to <code>NULL</code></li>
+ *    <li>on PostgreSQL, <code>EXPLAIN EXECUTE</code> of the statement prepared with a generic plan forced, as the
+ *    plan of a generic prepared statement doesn't depend on the values it is executed with</li>
+ * </ul>
+ * Only <code>SELECT</code> statements are explained.
+ */
+public class SearchPlanExplainer {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(SearchPlanExplainer.class);
+	private static final String STATEMENT_NAME = "hapi_slow_search_plan";
+
+	enum Database {
+		H2,
+		POSTGRESQL
+	}
+
+	private final DataSource myDataSource;
+	private final Database myDatabase;
+
+	private SearchPlanExplainer(DataSource theDataSource, Database theDatabase) {
+		myDataSource = theDataSource;
+		myDatabase = theDatabase;
+	}
+
+	/**
+	 * @return an explainer for the database behind the given data source, or <code>null</code> if it can't explain its plans
+	 */
+	public static SearchPlanExplainer forDataSource(DataSource theDataSource) {
+		String product;
+		try (Connection connection = theDataSource.getConnection()) {
+			product = connection.getMetaData().getDatabaseProductName();
+		} catch (SQLException e) {
+			ourLog.warn("Not explaining slow searches, failed to find out which database is used: {}", e.toString());
+			return null;
+		}
+		if ("H2".equalsIgnoreCase(product)) {
+			return new SearchPlanExplainer(theDataSource, Database.H2);
+		} else if ("PostgreSQL".equalsIgnoreCase(product)) {
+			return new SearchPlanExplainer(theDataSource, Database.POSTGRESQL);
+		}
+		ourLog.warn("Not explaining slow searches, plans can only be explained on H2 and PostgreSQL, not on {}", product);
+		return null;
+	}
+
+	public boolean canExplain(String theSql) {
+		return theSql.stripLeading().toLowerCase(Locale.ROOT).startsWith("select");
+	}
+
+	public String explain(String theSql) throws SQLException {
+		try (Connection connection = myDataSource.getConnection()) {
+			connection.setReadOnly(true);
+			if (myDatabase == Database.H2) {
+				return explainOnH2(connection, theSql);
+			}
+			return explainOnPostgres(connection, theSql);
+		}
+	}
+
+	private String explainOnH2(Connection theConnection, String theSql) throws SQLException {
+		try (PreparedStatement statement = theConnection.prepareStatement("EXPLAIN " + theSql)) {
+			int parameters = statement.getParameterMetaData().getParameterCount();
+			for (int i = 1; i <= parameters; i++) {
+				statement.setObject(i, null);
+			}
+			return readPlan(statement.executeQuery());
+		}
+	}
+
+	private String explainOnPostgres(Connection theConnection, String theSql) throws SQLException {
+		int parameters = 0;
+		StringBuilder numbered = new StringBuilder(theSql.length() + 16);
+		boolean inLiteral = false;
+		for (int i = 0; i < theSql.length(); i++) {
+			char next = theSql.charAt(i);
+			if (next == '\'') {
+				inLiteral = !inLiteral;
+			}
+			if (next == '?' && !inLiteral) {
+				numbered.append('$').append(++parameters);
+			} else {
+				numbered.append(next);
+			}
+		}
+
+		StringJoiner arguments = new StringJoiner(",", "(", ")");
+		for (int i = 0; i < parameters; i++) {
+			arguments.add("NULL");
+		}
+
+		// The session goes back to the pool, so whatever is set on it is undone even if a statement fails
+		try (Statement statement = theConnection.createStatement()) {
+			boolean prepared = false;
+			try {
+				statement.execute("SET plan_cache_mode = force_generic_plan");
+				statement.execute("PREPARE " + STATEMENT_NAME + " AS " + numbered);
+				prepared = true;
+				String execute = "EXPLAIN EXECUTE " + STATEMENT_NAME + (parameters > 0 ? arguments.toString() : "");
+				return readPlan(statement.executeQuery(execute));
+			} finally {
+				try {
+					if (prepared) {
+						statement.execute("DEALLOCATE " + STATEMENT_NAME);
+					}
+				} finally {
+					statement.execute("RESET plan_cache_mode");
+				}
+			}
+		}
+	}
+
+	private static String readPlan(ResultSet theResultSet) throws SQLException {
+		try (theResultSet) {
+			StringJoiner retVal = new StringJoiner("\n");
+			while (theResultSet.next()) {
+				retVal.add(theResultSet.getString(1));
+			}
+			return retVal.toString();
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package ca.uhn.fhir.jpa.starter.search;
+
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.jpa.starter.AppProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.sql.DataSource;
+import java.util.Optional;
+
+/**
+ * Records slow searches when <code>hapi.fhir.slow_search.enabled</code> is set, see {@link SlowSearchRecorder}.
+ * The {@link SqlStatementCapture} is handed to Hibernate by
+ * {@link ca.uhn.fhir.jpa.starter.util.EnvironmentHelper#getHibernateProperties}.
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "hapi.fhir.slow_search", name = "enabled", havingValue = "true")
+public class SlowSearchConfig {
+
+	@Bean
+	public SqlStatementCapture sqlStatementCapture(AppProperties appProperties) {
+		return new SqlStatementCapture(appProperties.getSlow_search().getStatements_per_thread());
+	}
+
+	@Bean
+	public SlowSearchRecorder slowSearchRecorder(SqlStatementCapture sqlStatementCapture, DataSource dataSource, AppProperties appProperties, IInterceptorService interceptorService, Optional<MeterRegistry> meterRegistry) {
+		AppProperties.SlowSearch properties = appProperties.getSlow_search();
+		SearchPlanExplainer explainer = properties.getExplain() ? SearchPlanExplainer.forDataSource(dataSource) : null;
+		SlowSearchRecorder recorder = new SlowSearchRecorder(sqlStatementCapture, properties.getThreshold_millis(), properties.getMax_entries(), explainer);
+		meterRegistry.ifPresent(recorder::registerMetrics);
+		interceptorService.registerInterceptor(recorder);
+		return recorder;
+	}
+
+	@Bean
+	public SlowSearchEndpoint slowSearchEndpoint(SlowSearchRecorder slowSearchRecorder) {
+		return new SlowSearchEndpoint(slowSearchRecorder);
+	}
+}
@@ -0,0 +1,31 @@
+package ca.uhn.fhir.jpa.starter.search;
+
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+
+import java.util.List;
+
+/**
+ * Exposes the searches kept by the {@link SlowSearchRecorder} at <code>/actuator/slowsearches</code>, a
+ * <code>DELETE</code> forgets them.
+ */
+@Endpoint(id = "slowsearches")
+public class SlowSearchEndpoint {
+
+	private final SlowSearchRecorder mySlowSearchRecorder;
+
+	public SlowSearchEndpoint(SlowSearchRecorder theSlowSearchRecorder) {
+		mySlowSearchRecorder = theSlowSearchRecorder;
+	}
+
+	@ReadOperation
+	public List<SlowSearchRecorder.SlowSearch> slowSearches() {
+		return mySlowSearchRecorder.getSlowSearches();
+	}
+
+	@DeleteOperation
+	public void clear() {
+		mySlowSearchRecorder.clear();
+	}
+}
@@ -0,0 +1,190 @@
+package ca.uhn.fhir.jpa.starter.search;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.model.search.SearchRuntimeDetails;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the searches whose database query took longer than a threshold, with the FHIR search, how long it took
+ * and the SQL statements it ran, see {@link SqlStatementCapture}, for the <code>/actuator/slowsearches</code>
+ * endpoint. Only the last <code>maxEntries</code> slow searches are kept.
+ * <p>
+ * Searches are reported by the {@link Pointcut#JPA_PERFTRACE_SEARCH_SELECT_COMPLETE} hook, on the thread which ran
+ * the query, whether it's the request thread or a search coordinator thread. When a {@link SearchPlanExplainer} is
+ * given, the plans of the distinct statements of a slow search are added in the background, on a single thread
+ * with a small queue, so that a burst of slow searches doesn't load the database with plans to explain.
+ */
+@Interceptor
+public class SlowSearchRecorder {
+
+	public static final String METRIC_SLOW_SEARCHES = "hapi.fhir.slow_searches";
+
+	private static final Logger ourLog = LoggerFactory.getLogger(SlowSearchRecorder.class);
+	private static final int MAX_EXPLAINED_STATEMENTS = 5;
+	private static final int EXPLAIN_QUEUE_SIZE = 16;
+
+	private final SqlStatementCapture myStatementCapture;
+	private final long myThresholdMillis;
+	private final int myMaxEntries;
+	private final SearchPlanExplainer myExplainer;
+	private final ThreadPoolExecutor myExplainExecutor;
+	private final Deque<SlowSearch> mySlowSearches = new ArrayDeque<>();
+
+	private Counter mySlowSearchCounter;
+
+	/**
+	 * @param theExplainer explains the statements of slow searches, or <code>null</code> not to explain them
+	 */
+	public SlowSearchRecorder(SqlStatementCapture theStatementCapture, long theThresholdMillis, int theMaxEntries, SearchPlanExplainer theExplainer) {
+		myStatementCapture = theStatementCapture;
+		myThresholdMillis = theThresholdMillis;
+		myMaxEntries = Math.max(1, theMaxEntries);
+		myExplainer = theExplainer;
+		if (theExplainer != null) {
+			BasicThreadFactory threadFactory = new BasicThreadFactory.Builder().namingPattern("slow-search-explain-%d").daemon(true).build();
+			myExplainExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(EXPLAIN_QUEUE_SIZE), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+		} else {
+			myExplainExecutor = null;
+		}
+	}
+
+	public void registerMetrics(MeterRegistry theMeterRegistry) {
+		mySlowSearchCounter = theMeterRegistry.counter(METRIC_SLOW_SEARCHES);
+	}
+
+	@Hook(Pointcut.JPA_PERFTRACE_SEARCH_SELECT_COMPLETE)
+	public void searchSelectComplete(RequestDetails theRequestDetails, SearchRuntimeDetails theSearchRuntimeDetails) {
+		long millis = theSearchRuntimeDetails.getQueryStopwatch().getMillis();
+		if (millis < myThresholdMillis) {
+			return;
+		}
+
+		// The stopwatch only has millisecond precision, so look a millisecond further back for the statements
+		long startNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(millis + 1);
+		List<SqlStatementCapture.CapturedStatement> statements = myStatementCapture.getStatementsSince(startNanos);
+		String search = theRequestDetails != null ? theRequestDetails.getCompleteUrl() : theSearchRuntimeDetails.getQueryString();
+		SlowSearch slowSearch = new SlowSearch(Instant.now(), search, theSearchRuntimeDetails.getSearchUuid(), millis, theSearchRuntimeDetails.getFoundMatchesCount(), statements);
+		ourLog.info("Search {} took {}ms to query the database with {} statements", search, millis, statements.size());
+
+		synchronized (mySlowSearches) {
+			mySlowSearches.addFirst(slowSearch);
+			while (mySlowSearches.size() > myMaxEntries) {
+				mySlowSearches.removeLast();
+			}
+		}
+		if (mySlowSearchCounter != null) {
+			mySlowSearchCounter.increment();
+		}
+		if (myExplainExecutor != null) {
+			try {
+				myExplainExecutor.execute(() -> explain(slowSearch));
+			} catch (RejectedExecutionException e) {
+				ourLog.debug("Too many slow searches waiting to be explained, not explaining {}", search);
+			}
+		}
+	}
+
+	private void explain(SlowSearch theSlowSearch) {
+		Set<String> explained = new HashSet<>();
+		for (SqlStatementCapture.CapturedStatement next : theSlowSearch.getStatements()) {
+			if (explained.size() >= MAX_EXPLAINED_STATEMENTS) {
+				break;
+			}
+			if (!myExplainer.canExplain(next.getSql()) || !explained.add(next.getSql())) {
+				continue;
+			}
+			try {
+				next.setPlan(myExplainer.explain(next.getSql()));
+			} catch (Exception e) {
+				ourLog.debug("Failed to explain {}", next.getSql(), e);
+				next.setPlan("Failed to explain the statement: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * @return the slow searches kept, the latest first
+	 */
+	public List<SlowSearch> getSlowSearches() {
+		synchronized (mySlowSearches) {
+			return new ArrayList<>(mySlowSearches);
+		}
+	}
+
+	public void clear() {
+		synchronized (mySlowSearches) {
+			mySlowSearches.clear();
+		}
+	}
+
+	public void shutdown() {
+		if (myExplainExecutor != null) {
+			myExplainExecutor.shutdownNow();
+		}
+	}
+
+	public static class SlowSearch {
+
+		private final Instant myTimestamp;
+		private final String mySearch;
+		private final String mySearchUuid;
+		private final long myQueryMillis;
+		private final int myFoundMatches;
+		private final List<SqlStatementCapture.CapturedStatement> myStatements;
+
+		SlowSearch(Instant theTimestamp, String theSearch, String theSearchUuid, long theQueryMillis, int theFoundMatches, List<SqlStatementCapture.CapturedStatement> theStatements) {
+			myTimestamp = theTimestamp;
+			mySearch = theSearch;
+			mySearchUuid = theSearchUuid;
+			myQueryMillis = theQueryMillis;
+			myFoundMatches = theFoundMatches;
+			myStatements = theStatements;
+		}
+
+		public String getTimestamp() {
+			return myTimestamp.toString();
+		}
+
+		/**
+		 * @return the request URL of the search, or its normalized query string if it didn't run for a request
+		 */
+		public String getSearch() {
+			return mySearch;
+		}
+
+		public String getSearchUuid() {
+			return mySearchUuid;
+		}
+
+		public long getQueryMillis() {
+			return myQueryMillis;
+		}
+
+		public int getFoundMatches() {
+			return myFoundMatches;
+		}
+
+		public List<SqlStatementCapture.CapturedStatement> getStatements() {
+			return myStatements;
+		}
+	}
+}
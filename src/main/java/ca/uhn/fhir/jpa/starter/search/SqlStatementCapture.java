@@ -0,0 +1,106 @@
+package ca.uhn.fhir.jpa.starter.search;
+
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the last SQL statements Hibernate prepared on each thread, along with when it prepared them, so that
+ * the {@link SlowSearchRecorder} can tell which statements a slow search ran. Set up as the Hibernate
+ * statement inspector by {@link ca.uhn.fhir.jpa.starter.util.EnvironmentHelper#getHibernateProperties}.
+ */
+public class SqlStatementCapture implements StatementInspector {
+
+	private final int myStatementsPerThread;
+	private final ThreadLocal<StatementLog> myLogs;
+
+	/**
+	 * @param theStatementsPerThread the number of statements kept for each thread, the older ones are overwritten
+	 */
+	public SqlStatementCapture(int theStatementsPerThread) {
+		myStatementsPerThread = Math.max(1, theStatementsPerThread);
+		myLogs = ThreadLocal.withInitial(() -> new StatementLog(myStatementsPerThread));
+	}
+
+	@Override
+	public String inspect(String theSql) {
+		myLogs.get().add(theSql, System.nanoTime());
+		return theSql;
+	}
+
+	/**
+	 * @return the statements the current thread prepared from the given {@link System#nanoTime()} on, oldest first
+	 */
+	List<CapturedStatement> getStatementsSince(long theStartNanos) {
+		return myLogs.get().since(theStartNanos);
+	}
+
+	/**
+	 * A ring of statements, only ever used by its own thread
+	 */
+	private static class StatementLog {
+
+		private final String[] mySql;
+		private final long[] myNanos;
+		private int myNext;
+		private int mySize;
+
+		StatementLog(int theCapacity) {
+			mySql = new String[theCapacity];
+			myNanos = new long[theCapacity];
+		}
+
+		void add(String theSql, long theNanos) {
+			mySql[myNext] = theSql;
+			myNanos[myNext] = theNanos;
+			myNext = (myNext + 1) % mySql.length;
+			mySize = Math.min(mySize + 1, mySql.length);
+		}
+
+		List<CapturedStatement> since(long theStartNanos) {
+			List<CapturedStatement> retVal = new ArrayList<>();
+			for (int i = mySize; i > 0; i--) {
+				int index = Math.floorMod(myNext - i, mySql.length);
+				if (myNanos[index] - theStartNanos >= 0) {
+					retVal.add(new CapturedStatement(mySql[index], (myNanos[index] - theStartNanos) / 1_000_000));
+				}
+			}
+			return retVal;
+		}
+	}
+
+	/**
+	 * A statement run by a slow search, and the plan of the database for it when it was explained
+	 */
+	public static class CapturedStatement {
+
+		private final String mySql;
+		private final long myStartedAtMillis;
+		private volatile String myPlan;
+
+		CapturedStatement(String theSql, long theStartedAtMillis) {
+			mySql = theSql;
+			myStartedAtMillis = theStartedAtMillis;
+		}
+
+		public String getSql() {
+			return mySql;
+		}
+
+		/**
+		 * @return when the statement was prepared, counted from the start of the search
+		 */
+		public long getStartedAtMillis() {
+			return myStartedAtMillis;
+		}
+
+		public String getPlan() {
+			return myPlan;
+		}
+
+		void setPlan(String thePlan) {
+			myPlan = thePlan;
+		}
+	}
+}
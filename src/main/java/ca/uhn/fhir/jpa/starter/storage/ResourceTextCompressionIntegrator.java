@@ -0,0 +1,135 @@
+package ca.uhn.fhir.jpa.starter.storage;
+
+import ca.uhn.fhir.jpa.entity.ResourceSearchView;
+import ca.uhn.fhir.jpa.model.entity.ResourceHistoryTable;
+import org.apache.commons.lang3.ArrayUtils;
+import org.hibernate.boot.Metadata;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.event.spi.PostUpdateEventListener;
+import org.hibernate.event.spi.PreInsertEvent;
+import org.hibernate.event.spi.PreInsertEventListener;
+import org.hibernate.event.spi.PreLoadEvent;
+import org.hibernate.event.spi.PreLoadEventListener;
+import org.hibernate.event.spi.PreUpdateEvent;
+import org.hibernate.event.spi.PreUpdateEventListener;
+import org.hibernate.integrator.spi.Integrator;
+import org.hibernate.jpa.boot.spi.IntegratorProvider;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.service.spi.SessionFactoryServiceRegistry;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compresses the resource text of stored resource versions with a {@link ResourceTextCompressor}, and
+ * decompresses it when they are loaded, enabled with <code>hapi.fhir.resource_compression_enabled</code>.
+ * <p>
+ * The text is swapped in the state Hibernate writes and reads, never in the entities, so HAPI only ever
+ * sees uncompressed JSON and Hibernate doesn't take the entities for modified: the compressed text is
+ * put in the state before an insert or update and the text put back once it is written. Text stored
+ * inline (<code>hapi.fhir.inline_resource_storage_below_size</code>), and text stored before compression
+ * was enabled, is read as is.
+ */
+public class ResourceTextCompressionIntegrator implements Integrator, IntegratorProvider, PreLoadEventListener, PreInsertEventListener, PostInsertEventListener, PreUpdateEventListener, PostUpdateEventListener {
+
+	private static final String RESOURCE_TEXT_PROPERTY = "myResource";
+
+	private final ResourceTextCompressor myCompressor;
+
+	public ResourceTextCompressionIntegrator(ResourceTextCompressor theCompressor) {
+		myCompressor = theCompressor;
+	}
+
+	@Override
+	public List<Integrator> getIntegrators() {
+		return Collections.singletonList(this);
+	}
+
+	@Override
+	public void integrate(Metadata theMetadata, SessionFactoryImplementor theSessionFactory, SessionFactoryServiceRegistry theServiceRegistry) {
+		EventListenerRegistry registry = theServiceRegistry.getService(EventListenerRegistry.class);
+		registry.appendListeners(EventType.PRE_LOAD, this);
+		registry.appendListeners(EventType.PRE_INSERT, this);
+		registry.appendListeners(EventType.POST_INSERT, this);
+		registry.appendListeners(EventType.PRE_UPDATE, this);
+		registry.appendListeners(EventType.POST_UPDATE, this);
+	}
+
+	@Override
+	public void disintegrate(SessionFactoryImplementor theSessionFactory, SessionFactoryServiceRegistry theServiceRegistry) {
+		// nothing to release
+	}
+
+	@Override
+	public void onPreLoad(PreLoadEvent theEvent) {
+		if (theEvent.getEntity() instanceof ResourceHistoryTable || theEvent.getEntity() instanceof ResourceSearchView) {
+			int index = resourceTextIndex(theEvent.getPersister());
+			if (index >= 0 && theEvent.getState()[index] instanceof byte[]) {
+				theEvent.getState()[index] = myCompressor.decompress((byte[]) theEvent.getState()[index]);
+			}
+		}
+	}
+
+	@Override
+	public boolean onPreInsert(PreInsertEvent theEvent) {
+		compress(theEvent.getEntity(), theEvent.getPersister(), theEvent.getState());
+		return false;
+	}
+
+	@Override
+	public void onPostInsert(PostInsertEvent theEvent) {
+		restore(theEvent.getEntity(), theEvent.getPersister(), theEvent.getState());
+	}
+
+	@Override
+	public boolean onPreUpdate(PreUpdateEvent theEvent) {
+		compress(theEvent.getEntity(), theEvent.getPersister(), theEvent.getState());
+		return false;
+	}
+
+	@Override
+	public void onPostUpdate(PostUpdateEvent theEvent) {
+		restore(theEvent.getEntity(), theEvent.getPersister(), theEvent.getState());
+	}
+
+	@SuppressWarnings("deprecation")
+	public boolean requiresPostCommitHanding(EntityPersister thePersister) {
+		return false;
+	}
+
+	public boolean requiresPostCommitHandling(EntityPersister thePersister) {
+		return false;
+	}
+
+	private void compress(Object theEntity, EntityPersister thePersister, Object[] theState) {
+		if (theEntity instanceof ResourceHistoryTable) {
+			int index = resourceTextIndex(thePersister);
+			if (index >= 0 && theState[index] instanceof byte[]) {
+				theState[index] = myCompressor.compress((byte[]) theState[index]);
+			}
+		}
+	}
+
+	/**
+	 * Hibernate keeps the written state as the loaded state of the entity, which must hold the text the
+	 * entity has for the entity not to be taken for modified.
+	 */
+	private void restore(Object theEntity, EntityPersister thePersister, Object[] theState) {
+		if (theEntity instanceof ResourceHistoryTable) {
+			int index = resourceTextIndex(thePersister);
+			if (index >= 0 && ResourceTextCompressor.isCompressed((byte[]) theState[index])) {
+				byte[] text = ((ResourceHistoryTable) theEntity).getResource();
+				theState[index] = text != null ? text.clone() : null;
+			}
+		}
+	}
+
+	private static int resourceTextIndex(EntityPersister thePersister) {
+		return ArrayUtils.indexOf(thePersister.getPropertyNames(), RESOURCE_TEXT_PROPERTY);
+	}
+}
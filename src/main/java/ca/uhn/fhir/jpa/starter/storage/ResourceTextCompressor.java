@@ -0,0 +1,315 @@
+package ca.uhn.fhir.jpa.starter.storage;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the JSON text of stored resources with deflate, primed with a dictionary per resource type.
+ * <p>
+ * The dictionary of a resource type holds the JSON keys of its elements, down to the elements of their
+ * datatypes, and the values FHIR JSON repeats most (coding systems, extension and profile URLs...). It is
+ * derived from the structure definitions of the FHIR version, so it needs not be stored with the text. As
+ * deflate refers to the last 32 KB it has seen, even a small resource compresses to a fraction of its size.
+ * <p>
+ * A dictionary is identified by the SHA-256 hash of its content, which the compressed text records: as
+ * deflate inflates with any dictionary, text read with another dictionary than it was compressed with,
+ * e.g. after an upgrade changed the structure definitions, would silently turn into garbage. Text whose
+ * dictionary isn't the one derived by this server is read with the dictionaries kept in the dictionary
+ * directory, if one is given, where every dictionary compressed with is saved. When its dictionary can't
+ * be found, reading the text fails.
+ * <p>
+ * Compressed text starts with {@link #MAGIC}, followed by the format version, the length of the text,
+ * the dictionary hash, and the resource type, which is empty when no dictionary was used. Text of the
+ * first format version, without a dictionary hash, is read with the dictionary derived by this server.
+ */
+public class ResourceTextCompressor {
+
+	static final byte[] MAGIC = {(byte) 0xC5, (byte) 0x7A};
+	private static final Logger ourLog = LoggerFactory.getLogger(ResourceTextCompressor.class);
+	private static final byte FORMAT_VERSION = 2;
+	private static final byte FORMAT_VERSION_WITHOUT_DICTIONARY_ID = 1;
+	private static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+	private static final int MAX_DEPTH = 2;
+	private static final byte[] RESOURCE_TYPE_PREFIX = "{\"resourceType\":\"".getBytes(StandardCharsets.UTF_8);
+	private static final List<String> COMMON_TOKENS = List.of(
+		"\"extension\":[{\"url\":\"http://hl7.org/fhir/StructureDefinition/",
+		"\"profile\":[\"http://hl7.org/fhir/StructureDefinition/",
+		"\"system\":\"http://terminology.hl7.org/CodeSystem/",
+		"\"system\":\"http://snomed.info/sct\"",
+		"\"system\":\"http://loinc.org\"",
+		"\"system\":\"urn:ietf:rfc:3986\"",
+		"\"identifier\":[{\"system\":\"",
+		"\"valueCodeableConcept\":{\"coding\":[{\"system\":\"",
+		"\"valueQuantity\":{\"value\":",
+		"\"unit\":\"",
+		"\"valueString\":\"",
+		"\"valueReference\":{\"reference\":\"",
+		"\"period\":{\"start\":\"",
+		"\"end\":\"",
+		"\"text\":{\"status\":\"generated\",\"div\":\"<div xmlns=\\\"http://www.w3.org/1999/xhtml\\\">",
+		"</div>\"}",
+		"\"display\":\"",
+		"\"reference\":\"",
+		"\"value\":\"",
+		"\"status\":\"",
+		"\"coding\":[{\"system\":\"",
+		"\"code\":\"",
+		"\"meta\":{\"versionId\":\"",
+		"\",\"lastUpdated\":\"",
+		"T00:00:00.000+00:00\"",
+		"\"}]},{\"",
+		"\"}],\"",
+		"\"},{\"",
+		"\"},\"");
+
+	private final FhirContext myFhirContext;
+	private final int myLevel;
+	private final boolean myUseDictionaries;
+	private final Path myDictionaryDirectory;
+	private final Map<String, Dictionary> myDictionaries = new ConcurrentHashMap<>();
+	private final Map<Long, Dictionary> mySavedDictionaries = new ConcurrentHashMap<>();
+	private final ThreadLocal<Deflater> myDeflater;
+	private final ThreadLocal<Inflater> myInflater = ThreadLocal.withInitial(() -> new Inflater(true));
+
+	/**
+	 * @param theLevel the deflate level, 0 stores new text uncompressed while still reading compressed text
+	 * @param theDictionaryDirectory where the dictionaries are saved and looked up, or <code>null</code>
+	 */
+	public ResourceTextCompressor(FhirContext theFhirContext, int theLevel, boolean theUseDictionaries, Path theDictionaryDirectory) {
+		myFhirContext = theFhirContext;
+		myLevel = Math.max(Deflater.NO_COMPRESSION, Math.min(Deflater.BEST_COMPRESSION, theLevel));
+		myUseDictionaries = theUseDictionaries;
+		myDictionaryDirectory = theDictionaryDirectory;
+		myDeflater = ThreadLocal.withInitial(() -> new Deflater(myLevel, true));
+	}
+
+	public static boolean isCompressed(byte[] theStored) {
+		return theStored != null && theStored.length > MAGIC.length && theStored[0] == MAGIC[0] && theStored[1] == MAGIC[1];
+	}
+
+	/**
+	 * @return the compressed text, or the given text if compressing it doesn't make it smaller
+	 */
+	public byte[] compress(byte[] theText) {
+		if (myLevel == Deflater.NO_COMPRESSION || theText == null || theText.length == 0 || isCompressed(theText)) {
+			return theText;
+		}
+		String resourceType = myUseDictionaries ? resourceType(theText) : "";
+		byte[] type = resourceType.getBytes(StandardCharsets.US_ASCII);
+		int headerLength = MAGIC.length + 1 + Integer.BYTES + Long.BYTES + 1 + type.length;
+
+		Deflater deflater = myDeflater.get();
+		deflater.reset();
+		long dictionaryId = 0;
+		if (!resourceType.isEmpty()) {
+			Dictionary dictionary = dictionary(resourceType);
+			deflater.setDictionary(dictionary.myContent);
+			dictionaryId = dictionary.myId;
+		}
+		deflater.setInput(theText);
+		deflater.finish();
+		byte[] retVal = new byte[theText.length];
+		int length = headerLength;
+		while (!deflater.finished() && length < retVal.length) {
+			length += deflater.deflate(retVal, length, retVal.length - length);
+		}
+		if (!deflater.finished()) {
+			return theText;
+		}
+
+		ByteBuffer.wrap(retVal)
+			.put(MAGIC)
+			.put(FORMAT_VERSION)
+			.putInt(theText.length)
+			.putLong(dictionaryId)
+			.put((byte) type.length)
+			.put(type);
+		return Arrays.copyOf(retVal, length);
+	}
+
+	/**
+	 * @return the text of the given compressed text, or the given text if it isn't compressed
+	 */
+	public byte[] decompress(byte[] theStored) {
+		if (!isCompressed(theStored)) {
+			return theStored;
+		}
+		ByteBuffer header = ByteBuffer.wrap(theStored, MAGIC.length, theStored.length - MAGIC.length);
+		byte version = header.get();
+		if (version != FORMAT_VERSION && version != FORMAT_VERSION_WITHOUT_DICTIONARY_ID) {
+			throw new IllegalStateException("Unknown compressed resource text format " + version);
+		}
+		byte[] retVal = new byte[header.getInt()];
+		long dictionaryId = version == FORMAT_VERSION ? header.getLong() : 0;
+		byte[] type = new byte[header.get()];
+		header.get(type);
+
+		Inflater inflater = myInflater.get();
+		inflater.reset();
+		if (type.length > 0) {
+			String resourceType = new String(type, StandardCharsets.US_ASCII);
+			Dictionary dictionary = version == FORMAT_VERSION ? dictionary(resourceType, dictionaryId) : dictionary(resourceType);
+			inflater.setDictionary(dictionary.myContent);
+		}
+		inflater.setInput(theStored, header.position(), header.remaining());
+		try {
+			int length = 0;
+			while (!inflater.finished() && length < retVal.length) {
+				int inflated = inflater.inflate(retVal, length, retVal.length - length);
+				if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				length += inflated;
+			}
+			if (length != retVal.length) {
+				throw new IllegalStateException("Compressed resource text is truncated, expected " + retVal.length + " bytes but got " + length);
+			}
+		} catch (DataFormatException e) {
+			throw new IllegalStateException("Compressed resource text is corrupt: " + e.getMessage(), e);
+		}
+		return retVal;
+	}
+
+	Dictionary dictionary(String theResourceType) {
+		return myDictionaries.computeIfAbsent(theResourceType, next -> save(new Dictionary(next, newDictionary(next))));
+	}
+
+	private Dictionary dictionary(String theResourceType, long theId) {
+		Dictionary retVal = dictionary(theResourceType);
+		if (retVal.myId == theId) {
+			return retVal;
+		}
+		retVal = mySavedDictionaries.computeIfAbsent(theId, next -> load(theResourceType, next));
+		if (retVal == null) {
+			throw new IllegalStateException(String.format("Resource text was compressed with %s dictionary %016x, which isn't the one of this server (%016x) and isn't in the dictionary directory %s", theResourceType, theId, dictionary(theResourceType).myId, myDictionaryDirectory));
+		}
+		return retVal;
+	}
+
+	private Dictionary save(Dictionary theDictionary) {
+		if (myDictionaryDirectory == null) {
+			return theDictionary;
+		}
+		Path file = myDictionaryDirectory.resolve(theDictionary.getFileName());
+		try {
+			if (!Files.exists(file)) {
+				Files.createDirectories(myDictionaryDirectory);
+				Path temp = Files.createTempFile(myDictionaryDirectory, "dictionary", ".tmp");
+				Files.write(temp, theDictionary.myContent);
+				Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				ourLog.info("Saved the {} compression dictionary to {}", theDictionary.myResourceType, file);
+			}
+		} catch (IOException e) {
+			ourLog.warn("Failed to save the {} compression dictionary to {}: {}", theDictionary.myResourceType, file, e.toString());
+		}
+		return theDictionary;
+	}
+
+	/**
+	 * @return the saved dictionary with the given hash, or <code>null</code> if there is none
+	 */
+	private Dictionary load(String theResourceType, long theId) {
+		if (myDictionaryDirectory == null) {
+			return null;
+		}
+		Path file = myDictionaryDirectory.resolve(Dictionary.getFileName(theResourceType, theId));
+		try {
+			Dictionary retVal = new Dictionary(theResourceType, Files.readAllBytes(file));
+			if (retVal.myId != theId) {
+				throw new IllegalStateException("Compression dictionary " + file + " doesn't have the hash of its name");
+			}
+			return retVal;
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to read compression dictionary " + file + ": " + e.getMessage(), e);
+		}
+	}
+
+	private byte[] newDictionary(String theResourceType) {
+		// Deflate finds the closest matches cheapest, so the most frequent tokens go last
+		Set<String> tokens = new LinkedHashSet<>();
+		if (myFhirContext.getResourceTypes().contains(theResourceType)) {
+			addElementTokens(myFhirContext.getResourceDefinition(theResourceType), 0, tokens);
+		}
+		List<String> ordered = new ArrayList<>(tokens);
+		ordered.removeAll(COMMON_TOKENS);
+		ordered.addAll(COMMON_TOKENS);
+		ordered.add("{\"resourceType\":\"" + theResourceType + "\",\"id\":\"");
+
+		byte[] retVal = String.join("", ordered).getBytes(StandardCharsets.UTF_8);
+		return retVal.length > MAX_DICTIONARY_SIZE ? Arrays.copyOfRange(retVal, retVal.length - MAX_DICTIONARY_SIZE, retVal.length) : retVal;
+	}
+
+	private static void addElementTokens(BaseRuntimeElementCompositeDefinition<?> theDefinition, int theDepth, Set<String> theTokens) {
+		List<String> names = new ArrayList<>();
+		for (BaseRuntimeChildDefinition child : theDefinition.getChildren()) {
+			for (String name : child.getValidChildNames()) {
+				BaseRuntimeElementDefinition<?> childDefinition = child.getChildByName(name);
+				if (theDepth < MAX_DEPTH && childDefinition instanceof BaseRuntimeElementCompositeDefinition) {
+					addElementTokens((BaseRuntimeElementCompositeDefinition<?>) childDefinition, theDepth + 1, theTokens);
+				}
+				names.add("\"" + name + "\":");
+			}
+		}
+		// The elements of the resource itself are added after those of its datatypes, closer to the end
+		theTokens.addAll(names);
+	}
+
+	private static String resourceType(byte[] theText) {
+		int prefixLength = RESOURCE_TYPE_PREFIX.length;
+		if (theText.length <= prefixLength || !Arrays.equals(theText, 0, prefixLength, RESOURCE_TYPE_PREFIX, 0, prefixLength)) {
+			return "";
+		}
+		for (int i = prefixLength; i < Math.min(theText.length, prefixLength + 64); i++) {
+			if (theText[i] == '"') {
+				return new String(theText, prefixLength, i - prefixLength, StandardCharsets.US_ASCII);
+			}
+		}
+		return "";
+	}
+
+	static class Dictionary {
+
+		private final String myResourceType;
+		private final byte[] myContent;
+		private final long myId;
+
+		Dictionary(String theResourceType, byte[] theContent) {
+			myResourceType = theResourceType;
+			myContent = theContent;
+			myId = Hashing.sha256().hashBytes(theContent).asLong();
+		}
+
+		String getFileName() {
+			return getFileName(myResourceType, myId);
+		}
+
+		static String getFileName(String theResourceType, long theId) {
+			return String.format("%s-%016x.dict", theResourceType, theId);
+		}
+	}
+}
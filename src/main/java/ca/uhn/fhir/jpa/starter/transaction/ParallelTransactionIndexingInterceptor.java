@@ -0,0 +1,153 @@
+package ca.uhn.fhir.jpa.starter.transaction;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.util.BundleUtil;
+import ca.uhn.fhir.util.FhirTerser;
+import ca.uhn.fhir.util.ResourceReferenceInfo;
+import ca.uhn.fhir.util.StopWatch;
+import ca.uhn.fhir.util.bundle.BundleEntryParts;
+import com.google.common.collect.MapMaker;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+/**
+ * Indexes the independent entries of a transaction bundle on a worker pool before the transaction
+ * is processed.
+ * <p>
+ * The transaction itself still stores its entries one at a time within a single database
+ * transaction, as the persistence context can't be shared between threads. What can be done up front
+ * is the search parameter extraction of entries whose content the transaction won't change, which
+ * is most of the CPU time spent on a bundle of many unrelated resources (a lab feed of Observations
+ * for instance). An entry is independent if it creates or updates a resource that doesn't reference
+ * a placeholder id, a conditional URL or any other entry of the bundle. The precomputed index rows are
+ * picked up by {@link PrecomputingSearchParamExtractor} when the entry gets stored, and the ones that
+ * weren't asked for are dropped once the transaction has been processed.
+ */
+@Interceptor
+public class ParallelTransactionIndexingInterceptor {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(ParallelTransactionIndexingInterceptor.class);
+
+	private final FhirContext myContext;
+	private final PrecomputingSearchParamExtractor myExtractor;
+	private final ExecutorService myExecutor;
+	private final int myMinEntries;
+	private final Map<IBaseBundle, List<IBaseResource>> myPrecomputedResources = new MapMaker().weakKeys().makeMap();
+
+	/**
+	 * @param theThreads    the number of worker threads
+	 * @param theMinEntries bundles with fewer independent entries than this are left alone
+	 */
+	public ParallelTransactionIndexingInterceptor(FhirContext theContext, PrecomputingSearchParamExtractor theExtractor, int theThreads, int theMinEntries) {
+		myContext = theContext;
+		myExtractor = theExtractor;
+		myMinEntries = Math.max(2, theMinEntries);
+		myExecutor = Executors.newFixedThreadPool(Math.max(1, theThreads), new BasicThreadFactory.Builder()
+			.namingPattern("transaction-indexing-%d")
+			.daemon(true)
+			.build());
+	}
+
+	@Hook(Pointcut.STORAGE_TRANSACTION_PROCESSING)
+	public void indexIndependentEntries(IBaseBundle theBundle) {
+		if (!"transaction".equals(BundleUtil.getBundleType(myContext, theBundle))) {
+			return;
+		}
+		List<IBaseResource> resources = findIndependentResources(BundleUtil.toListOfEntries(myContext, theBundle));
+		if (resources.size() < myMinEntries) {
+			return;
+		}
+
+		myPrecomputedResources.put(theBundle, resources);
+		StopWatch sw = new StopWatch();
+		List<Future<?>> futures = new ArrayList<>(resources.size());
+		for (IBaseResource next : resources) {
+			futures.add(myExecutor.submit(() -> myExtractor.precompute(next)));
+		}
+		for (Future<?> next : futures) {
+			try {
+				next.get();
+			} catch (InterruptedException e) {
+				futures.forEach(t -> t.cancel(true));
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				// The entry will fail again while being stored, with the error reported the usual way
+				ourLog.debug("Failed to index a transaction entry ahead of time", e.getCause());
+			}
+		}
+		ourLog.debug("Indexed {} independent transaction entries in {}", resources.size(), sw);
+	}
+
+	@Hook(Pointcut.STORAGE_TRANSACTION_PROCESSED)
+	public void forgetUnusedIndexes(IBaseBundle theBundle) {
+		List<IBaseResource> resources = myPrecomputedResources.remove(theBundle);
+		if (resources != null) {
+			resources.forEach(myExtractor::forget);
+		}
+	}
+
+	private List<IBaseResource> findIndependentResources(List<BundleEntryParts> theEntries) {
+		Set<String> entryIds = new HashSet<>();
+		for (BundleEntryParts next : theEntries) {
+			if (isBlank(next.getFullUrl())) {
+				continue;
+			}
+			entryIds.add(next.getFullUrl());
+			IIdType id = myContext.getVersion().newIdType().setValue(next.getFullUrl());
+			if (id.hasResourceType() && id.hasIdPart()) {
+				entryIds.add(id.toUnqualifiedVersionless().getValue());
+			}
+		}
+
+		FhirTerser terser = myContext.newTerser();
+		List<IBaseResource> retVal = new ArrayList<>();
+		for (BundleEntryParts next : theEntries) {
+			IBaseResource resource = next.getResource();
+			if (resource != null
+				&& (next.getRequestType() == RequestTypeEnum.POST || next.getRequestType() == RequestTypeEnum.PUT)
+				&& !referencesOtherEntries(terser, resource, entryIds)) {
+				retVal.add(resource);
+			}
+		}
+		return retVal;
+	}
+
+	private boolean referencesOtherEntries(FhirTerser theTerser, IBaseResource theResource, Set<String> theEntryIds) {
+		for (ResourceReferenceInfo next : theTerser.getAllResourceReferences(theResource)) {
+			IIdType reference = next.getResourceReference().getReferenceElement();
+			String value = reference.getValue();
+			if (isBlank(value) || reference.isLocal()) {
+				continue;
+			}
+			if (value.startsWith("urn:") || value.contains("?") || theEntryIds.contains(value) || theEntryIds.contains(reference.toUnqualifiedVersionless().getValue())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public void shutdown() {
+		myExecutor.shutdownNow();
+	}
+}
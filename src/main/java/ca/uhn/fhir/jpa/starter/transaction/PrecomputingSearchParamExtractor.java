@@ -0,0 +1,280 @@
+package ca.uhn.fhir.jpa.starter.transaction;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.jpa.model.entity.BaseResourceIndexedSearchParam;
+import ca.uhn.fhir.jpa.model.entity.ModelConfig;
+import ca.uhn.fhir.jpa.model.entity.NormalizedQuantitySearchLevel;
+import ca.uhn.fhir.jpa.model.entity.ResourceIndexedComboStringUnique;
+import ca.uhn.fhir.jpa.model.entity.ResourceIndexedComboTokenNonUnique;
+import ca.uhn.fhir.jpa.model.entity.ResourceIndexedSearchParamDate;
+import ca.uhn.fhir.jpa.model.entity.ResourceIndexedSearchParamNumber;
+import ca.uhn.fhir.jpa.model.entity.ResourceIndexedSearchParamQuantity;
+import ca.uhn.fhir.jpa.model.entity.ResourceIndexedSearchParamQuantityNormalized;
+import ca.uhn.fhir.jpa.model.entity.ResourceIndexedSearchParamString;
+import ca.uhn.fhir.jpa.model.entity.ResourceIndexedSearchParamToken;
+import ca.uhn.fhir.jpa.model.entity.ResourceIndexedSearchParamUri;
+import ca.uhn.fhir.jpa.searchparam.extractor.BaseSearchParamExtractor;
+import ca.uhn.fhir.jpa.searchparam.extractor.ISearchParamExtractor;
+import ca.uhn.fhir.jpa.searchparam.extractor.PathAndRef;
+import ca.uhn.fhir.jpa.searchparam.extractor.ResourceIndexedSearchParamComposite;
+import ca.uhn.fhir.jpa.searchparam.extractor.ResourceIndexedSearchParams;
+import com.google.common.collect.MapMaker;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Search parameter extractor that can compute the index rows of a resource ahead of time, on another
+ * thread, and hands them out when the resource is indexed later on. Everything else is passed on
+ * to the extractor of the FHIR version in use.
+ * <p>
+ * Rows are keyed by the identity of the resource instance and handed out for the version the instance
+ * is stored as next: each kind of row is handed out once, in whatever order the indexing asks for them,
+ * and {@link #forget} drops whatever is left once the transaction is done, so a later write of the same
+ * instance is indexed the usual way. The rows are computed from the resource as submitted, so only
+ * resources the transaction won't change may be precomputed: {@link ParallelTransactionIndexingInterceptor}
+ * leaves out entries with references to other entries, and resources of a type with references the
+ * server versions automatically are never precomputed. Interceptors changing searchable content in the
+ * <code>STORAGE_PRESTORAGE_RESOURCE_*</code> hooks don't go together with precomputed rows. Rows are held
+ * with weak keys, so rows that are never asked for go away with the resource.
+ */
+public class PrecomputingSearchParamExtractor implements ISearchParamExtractor {
+
+	public static final String METRIC_NAME = "hapi.fhir.transaction.precomputed_indexes";
+
+	private static final String STRINGS = "strings";
+	private static final String NUMBERS = "numbers";
+	private static final String QUANTITIES = "quantities";
+	private static final String QUANTITIES_NORMALIZED = "quantitiesNormalized";
+	private static final String DATES = "dates";
+	private static final String URIS = "uris";
+	private static final String TOKENS = "tokens";
+	private static final String COMPOSITES = "composites";
+	private static final String SPECIALS = "specials";
+	private static final String LINKS = "links";
+
+	private final ISearchParamExtractor myDelegate;
+	private final FhirContext myContext;
+	private final ModelConfig myModelConfig;
+	private final ConcurrentMap<IBaseResource, PrecomputedIndexes> myPrecomputed = new MapMaker().weakKeys().makeMap();
+	private Counter myUsedCounter;
+
+	public PrecomputingSearchParamExtractor(ISearchParamExtractor theDelegate, FhirContext theContext, ModelConfig theModelConfig) {
+		myDelegate = theDelegate;
+		myContext = theContext;
+		myModelConfig = theModelConfig;
+	}
+
+	public void registerMetrics(MeterRegistry theMeterRegistry) {
+		myUsedCounter = theMeterRegistry.counter(METRIC_NAME, "result", "used");
+	}
+
+	/**
+	 * Extracts the index rows of the given resource the same way the indexing of a stored resource
+	 * does, and keeps them until the resource is indexed. Safe to call from any thread.
+	 */
+	public void precompute(IBaseResource theResource) {
+		String resourceType = myContext.getResourceType(theResource);
+		if (!myModelConfig.getAutoVersionReferenceAtPathsByResourceType(resourceType).isEmpty()) {
+			// The transaction adds versions to the references of such resources before storing them
+			return;
+		}
+		Map<String, SearchParamSet<?>> sets = new ConcurrentHashMap<>();
+		sets.put(STRINGS, myDelegate.extractSearchParamStrings(theResource));
+		sets.put(NUMBERS, myDelegate.extractSearchParamNumber(theResource));
+		sets.put(QUANTITIES, myDelegate.extractSearchParamQuantity(theResource));
+		NormalizedQuantitySearchLevel normalizedQuantitySearchLevel = myModelConfig.getNormalizedQuantitySearchLevel();
+		if (normalizedQuantitySearchLevel == NormalizedQuantitySearchLevel.NORMALIZED_QUANTITY_STORAGE_SUPPORTED || normalizedQuantitySearchLevel == NormalizedQuantitySearchLevel.NORMALIZED_QUANTITY_SEARCH_SUPPORTED) {
+			sets.put(QUANTITIES_NORMALIZED, myDelegate.extractSearchParamQuantityNormalized(theResource));
+		}
+		sets.put(DATES, myDelegate.extractSearchParamDates(theResource));
+		sets.put(URIS, myDelegate.extractSearchParamUri(theResource));
+		sets.put(TOKENS, myDelegate.extractSearchParamTokens(theResource));
+		if (myContext.getVersion().getVersion().isEqualOrNewerThan(FhirVersionEnum.DSTU3)) {
+			sets.put(COMPOSITES, myDelegate.extractSearchParamComposites(theResource));
+		}
+		sets.put(SPECIALS, myDelegate.extractSearchParamSpecial(theResource));
+		sets.put(LINKS, myDelegate.extractResourceLinks(theResource, false));
+		myPrecomputed.put(theResource, new PrecomputedIndexes(sets));
+	}
+
+	/**
+	 * Drops the rows of the given resource that weren't asked for
+	 */
+	public void forget(IBaseResource theResource) {
+		myPrecomputed.remove(theResource);
+	}
+
+	@Override
+	public SearchParamSet<ResourceIndexedSearchParamString> extractSearchParamStrings(IBaseResource theResource) {
+		return take(theResource, STRINGS, () -> myDelegate.extractSearchParamStrings(theResource));
+	}
+
+	@Override
+	public SearchParamSet<ResourceIndexedSearchParamNumber> extractSearchParamNumber(IBaseResource theResource) {
+		return take(theResource, NUMBERS, () -> myDelegate.extractSearchParamNumber(theResource));
+	}
+
+	@Override
+	public SearchParamSet<ResourceIndexedSearchParamQuantity> extractSearchParamQuantity(IBaseResource theResource) {
+		return take(theResource, QUANTITIES, () -> myDelegate.extractSearchParamQuantity(theResource));
+	}
+
+	@Override
+	public SearchParamSet<ResourceIndexedSearchParamQuantityNormalized> extractSearchParamQuantityNormalized(IBaseResource theResource) {
+		return take(theResource, QUANTITIES_NORMALIZED, () -> myDelegate.extractSearchParamQuantityNormalized(theResource));
+	}
+
+	@Override
+	public SearchParamSet<ResourceIndexedSearchParamDate> extractSearchParamDates(IBaseResource theResource) {
+		return take(theResource, DATES, () -> myDelegate.extractSearchParamDates(theResource));
+	}
+
+	@Override
+	public SearchParamSet<ResourceIndexedSearchParamUri> extractSearchParamUri(IBaseResource theResource) {
+		return take(theResource, URIS, () -> myDelegate.extractSearchParamUri(theResource));
+	}
+
+	@Override
+	public SearchParamSet<BaseResourceIndexedSearchParam> extractSearchParamTokens(IBaseResource theResource) {
+		return take(theResource, TOKENS, () -> myDelegate.extractSearchParamTokens(theResource));
+	}
+
+	@Override
+	public SearchParamSet<ResourceIndexedSearchParamComposite> extractSearchParamComposites(IBaseResource theResource) {
+		return take(theResource, COMPOSITES, () -> myDelegate.extractSearchParamComposites(theResource));
+	}
+
+	@Override
+	public SearchParamSet<BaseResourceIndexedSearchParam> extractSearchParamSpecial(IBaseResource theResource) {
+		return take(theResource, SPECIALS, () -> myDelegate.extractSearchParamSpecial(theResource));
+	}
+
+	@Override
+	public SearchParamSet<PathAndRef> extractResourceLinks(IBaseResource theResource, boolean theWantLocalReferences) {
+		if (theWantLocalReferences) {
+			return myDelegate.extractResourceLinks(theResource, true);
+		}
+		return take(theResource, LINKS, () -> myDelegate.extractResourceLinks(theResource, false));
+	}
+
+	/**
+	 * Hands out the precomputed rows of the given kind once, the rows are changed by the indexing
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> SearchParamSet<T> take(IBaseResource theResource, String theKind, Supplier<SearchParamSet<T>> theExtractor) {
+		PrecomputedIndexes precomputed = myPrecomputed.get(theResource);
+		SearchParamSet<?> retVal = precomputed != null ? precomputed.mySets.remove(theKind) : null;
+		if (retVal == null) {
+			return theExtractor.get();
+		}
+		if (precomputed.myUsed.compareAndSet(false, true)) {
+			increment(myUsedCounter);
+		}
+		if (precomputed.mySets.isEmpty()) {
+			myPrecomputed.remove(theResource, precomputed);
+		}
+		return (SearchParamSet<T>) retVal;
+	}
+
+	private static void increment(Counter theCounter) {
+		if (theCounter != null) {
+			theCounter.increment();
+		}
+	}
+
+	@Override
+	public SearchParamSet<BaseResourceIndexedSearchParam> extractSearchParamTokens(IBaseResource theResource, RuntimeSearchParam theSearchParam) {
+		return myDelegate.extractSearchParamTokens(theResource, theSearchParam);
+	}
+
+	@Override
+	public SearchParamSet<ResourceIndexedComboStringUnique> extractSearchParamComboUnique(String theResourceType, ResourceIndexedSearchParams theParams) {
+		return myDelegate.extractSearchParamComboUnique(theResourceType, theParams);
+	}
+
+	@Override
+	public SearchParamSet<ResourceIndexedComboTokenNonUnique> extractSearchParamComboNonUnique(String theResourceType, ResourceIndexedSearchParams theParams) {
+		return myDelegate.extractSearchParamComboNonUnique(theResourceType, theParams);
+	}
+
+	@Override
+	public String[] split(String theExpression) {
+		return myDelegate.split(theExpression);
+	}
+
+	@Override
+	public List<String> extractParamValuesAsStrings(RuntimeSearchParam theActiveSearchParam, IBaseResource theResource) {
+		return myDelegate.extractParamValuesAsStrings(theActiveSearchParam, theResource);
+	}
+
+	@Override
+	public List<IBase> extractValues(String thePaths, IBase theResource) {
+		return myDelegate.extractValues(thePaths, theResource);
+	}
+
+	@Override
+	public String toRootTypeName(IBase nextObject) {
+		return myDelegate.toRootTypeName(nextObject);
+	}
+
+	@Override
+	public String toTypeName(IBase nextObject) {
+		return myDelegate.toTypeName(nextObject);
+	}
+
+	@Override
+	public PathAndRef extractReferenceLinkFromResource(IBase theValue, String thePath) {
+		return myDelegate.extractReferenceLinkFromResource(theValue, thePath);
+	}
+
+	@Override
+	public Date extractDateFromResource(IBase theValue, String thePath) {
+		return myDelegate.extractDateFromResource(theValue, thePath);
+	}
+
+	@Override
+	public ResourceIndexedSearchParamToken createSearchParamForCoding(String theResourceType, RuntimeSearchParam theSearchParam, IBase theValue) {
+		return myDelegate.createSearchParamForCoding(theResourceType, theSearchParam, theValue);
+	}
+
+	@Override
+	public String getDisplayTextForCoding(IBase theValue) {
+		return myDelegate.getDisplayTextForCoding(theValue);
+	}
+
+	@Override
+	public BaseSearchParamExtractor.IValueExtractor getPathValueExtractor(IBase theResource, String theSinglePath) {
+		return myDelegate.getPathValueExtractor(theResource, theSinglePath);
+	}
+
+	@Override
+	public List<IBase> getCodingsFromCodeableConcept(IBase theValue) {
+		return myDelegate.getCodingsFromCodeableConcept(theValue);
+	}
+
+	@Override
+	public String getDisplayTextFromCodeableConcept(IBase theValue) {
+		return myDelegate.getDisplayTextFromCodeableConcept(theValue);
+	}
+
+	private static final class PrecomputedIndexes {
+		private final Map<String, SearchParamSet<?>> mySets;
+		private final AtomicBoolean myUsed = new AtomicBoolean();
+
+		private PrecomputedIndexes(Map<String, SearchParamSet<?>> theSets) {
+			mySets = theSets;
+		}
+	}
+}
@@ -1,11 +1,20 @@
 package ca.uhn.fhir.jpa.starter.util;
 
+import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.config.HapiFhirLocalContainerEntityManagerFactoryBean;
 import ca.uhn.fhir.jpa.search.HapiHSearchAnalysisConfigurers;
 import ca.uhn.fhir.jpa.search.elastic.ElasticsearchHibernatePropertiesBuilder;
+import ca.uhn.fhir.jpa.starter.AppProperties;
+import ca.uhn.fhir.jpa.starter.cache.CaffeineRegionFactory;
+import ca.uhn.fhir.jpa.starter.search.SqlStatementCapture;
+import ca.uhn.fhir.jpa.starter.storage.ResourceTextCompressionIntegrator;
+import ca.uhn.fhir.jpa.starter.storage.ResourceTextCompressor;
 import org.apache.lucene.util.Version;
 import org.hibernate.boot.model.naming.CamelCaseToUnderscoresNamingStrategy;
 import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.integrator.spi.Integrator;
+import org.hibernate.jpa.boot.internal.EntityManagerFactoryBuilderImpl;
+import org.hibernate.jpa.boot.spi.IntegratorProvider;
 import org.hibernate.search.backend.elasticsearch.cfg.ElasticsearchBackendSettings;
 import org.hibernate.search.backend.elasticsearch.index.IndexStatus;
 import org.hibernate.search.backend.lucene.cfg.LuceneBackendSettings;
@@ -16,6 +25,7 @@ import org.hibernate.search.mapper.orm.automaticindexing.session.AutomaticIndexi
 import org.hibernate.search.mapper.orm.cfg.HibernateOrmMapperSettings;
 import org.hibernate.search.mapper.orm.schema.management.SchemaManagementStrategyName;
 import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.boot.context.properties.bind.Binder;
 import org.springframework.boot.orm.jpa.hibernate.SpringImplicitNamingStrategy;
 import org.springframework.boot.orm.jpa.hibernate.SpringPhysicalNamingStrategy;
 import org.springframework.core.env.CompositePropertySource;
@@ -23,8 +33,11 @@ import org.springframework.core.env.ConfigurableEnvironment;
 import org.springframework.core.env.EnumerablePropertySource;
 import org.springframework.core.env.PropertySource;
 
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
@@ -52,6 +65,29 @@ public class EnvironmentHelper {
 		Map<String, Object> hapiJpaPropertyMap = new HapiFhirLocalContainerEntityManagerFactoryBean(myConfigurableListableBeanFactory).getJpaPropertyMap();
 		hapiJpaPropertyMap.forEach(properties::putIfAbsent);
 
+		//hapi-fhir-jpaserver-starter read-optimized profile
+		AppProperties appProperties = Binder.get(environment).bindOrCreate("hapi.fhir", AppProperties.class);
+		if (appProperties.getSecond_level_cache_enabled()) {
+			properties.putIfAbsent(AvailableSettings.USE_SECOND_LEVEL_CACHE, true);
+			properties.putIfAbsent(AvailableSettings.CACHE_REGION_FACTORY, CaffeineRegionFactory.class.getName());
+			properties.putIfAbsent(CaffeineRegionFactory.MAX_ENTRIES, appProperties.getSecond_level_cache_max_entries());
+			if (appProperties.getSecond_level_cache_expire_after_write_seconds() != null) {
+				properties.putIfAbsent(CaffeineRegionFactory.EXPIRE_AFTER_WRITE_SECONDS, appProperties.getSecond_level_cache_expire_after_write_seconds());
+			}
+			for (String entity : appProperties.getSecond_level_cache_entities()) {
+				properties.putIfAbsent(AvailableSettings.CLASS_CACHE_PREFIX + "." + entity, "read-write");
+			}
+		}
+
+		if (appProperties.getResource_compression_enabled()) {
+			ResourceTextCompressor compressor = new ResourceTextCompressor(FhirContext.forCached(appProperties.getFhir_version()), appProperties.getResource_compression_level(), appProperties.getResource_compression_dictionaries(), appProperties.getResource_compression_dictionary_directory() != null ? Paths.get(appProperties.getResource_compression_dictionary_directory()) : null);
+			properties.put(EntityManagerFactoryBuilderImpl.INTEGRATOR_PROVIDER, withIntegrators(properties.get(EntityManagerFactoryBuilderImpl.INTEGRATOR_PROVIDER), new ResourceTextCompressionIntegrator(compressor)));
+		}
+
+		if (appProperties.getSlow_search().getEnabled()) {
+			properties.putIfAbsent(AvailableSettings.STATEMENT_INSPECTOR, myConfigurableListableBeanFactory.getBean(SqlStatementCapture.class));
+		}
+
 		//hapi-fhir-jpaserver-starter defaults
 		properties.putIfAbsent(AvailableSettings.FORMAT_SQL, false);
 		properties.putIfAbsent(AvailableSettings.SHOW_SQL, false);
@@ -105,6 +141,32 @@ public class EnvironmentHelper {
 		return properties;
 	}
 
+	/**
+	 * Adds the integrators of the given provider to those of the provider already configured, if any, which
+	 * may be given as an instance, a class or a class name, as Hibernate accepts.
+	 */
+	private static IntegratorProvider withIntegrators(Object theConfigured, IntegratorProvider theProvider) {
+		if (theConfigured == null) {
+			return theProvider;
+		}
+		IntegratorProvider configured;
+		try {
+			if (theConfigured instanceof IntegratorProvider) {
+				configured = (IntegratorProvider) theConfigured;
+			} else {
+				Class<?> type = theConfigured instanceof Class ? (Class<?>) theConfigured : Class.forName(theConfigured.toString());
+				configured = (IntegratorProvider) type.getDeclaredConstructor().newInstance();
+			}
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			throw new IllegalStateException("Invalid " + EntityManagerFactoryBuilderImpl.INTEGRATOR_PROVIDER + ": " + theConfigured, e);
+		}
+		return () -> {
+			List<Integrator> retVal = new ArrayList<>(configured.getIntegrators());
+			retVal.addAll(theProvider.getIntegrators());
+			return retVal;
+		};
+	}
+
 	public static String getElasticsearchServerUrl(ConfigurableEnvironment environment) {
 		return environment.getProperty("elasticsearch.rest_url", String.class);
 	}
@@ -0,0 +1,143 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.logging.AsyncAccessLogInterceptor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-async-access-log",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.logger.name=fhirtest.access.async",
+	"hapi.fhir.logger.async_enabled=true",
+	"hapi.fhir.logger.buffer_size=64",
+	"hapi.fhir.logger.batch_size=8"
+})
+class AsyncAccessLogTest {
+
+	private static final ObjectMapper ourMapper = new ObjectMapper();
+
+	@LocalServerPort
+	private int port;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	private IGenericClient client;
+	private ListAppender<ILoggingEvent> appender;
+
+	@BeforeEach
+	void setUp() {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		client = ctx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+
+		appender = new ListAppender<>();
+		appender.start();
+		((Logger) LoggerFactory.getLogger("fhirtest.access.async")).addAppender(appender);
+	}
+
+	@AfterEach
+	void tearDown() {
+		((Logger) LoggerFactory.getLogger("fhirtest.access.async")).detachAppender(appender);
+	}
+
+	@Test
+	void testRequestsAreLoggedAsJson() {
+		Patient patient = new Patient();
+		patient.addName().setFamily("Logged");
+		IIdType id = client.create().resource(patient).execute().getId().toUnqualifiedVersionless();
+		client.read().resource(Patient.class).withId(id).execute();
+
+		JsonNode read = awaitEntry("read");
+		assertEquals("GET", read.get("verb").asText());
+		assertEquals("Patient", read.get("resource_type").asText());
+		assertEquals(id.getIdPart(), read.get("resource_id").asText());
+		assertEquals(200, read.get("status").asInt());
+		assertTrue(read.get("duration_ms").asLong() >= 0);
+		assertTrue(read.has("timestamp"));
+		assertTrue(read.has("request_id"));
+
+		JsonNode create = awaitEntry("create");
+		assertEquals("POST", create.get("verb").asText());
+		assertEquals(201, create.get("status").asInt());
+
+		await().atMost(1, TimeUnit.MINUTES).until(() -> meterRegistry.get(AsyncAccessLogInterceptor.METRIC_ENTRIES).tag("result", "written").counter().count() >= 2);
+	}
+
+	@Test
+	void testFailedRequestsAreLoggedWithTheirStatus() {
+		assertThrows(ResourceNotFoundException.class, () -> client.read().resource(Patient.class).withId("does-not-exist").execute());
+
+		JsonNode failed = awaitEntry("read");
+		assertEquals(404, failed.get("status").asInt());
+		assertNotEquals("", failed.get("error").asText());
+	}
+
+	@Test
+	void testForwardedForIsIgnoredFromUntrustedPeers() throws Exception {
+		HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/fhir/Patient?_summary=count"))
+			.header("X-Forwarded-For", "203.0.113.7")
+			.GET()
+			.build();
+		HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.discarding());
+
+		JsonNode search = awaitEntry("search-type");
+		assertNotEquals("203.0.113.7", search.get("source").asText());
+	}
+
+	private JsonNode awaitEntry(String theOperation) {
+		await().atMost(1, TimeUnit.MINUTES).until(() -> findEntry(theOperation).isPresent());
+		return findEntry(theOperation).orElseThrow();
+	}
+
+	private Optional<JsonNode> findEntry(String theOperation) {
+		List<String> lines;
+		// The appender adds events while holding its own lock
+		synchronized (appender) {
+			lines = appender.list.stream().map(ILoggingEvent::getFormattedMessage).collect(Collectors.toList());
+		}
+		for (String next : lines) {
+			try {
+				JsonNode entry = ourMapper.readTree(next);
+				if (entry.has("operation") && theOperation.equals(entry.get("operation").asText())) {
+					return Optional.of(entry);
+				}
+			} catch (Exception e) {
+				throw new AssertionError("Access log line is not JSON: " + next, e);
+			}
+		}
+		return Optional.empty();
+	}
+}
@@ -0,0 +1,54 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.common.validation.AsyncResponseValidatingInterceptor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-async-response-validation",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.validation.responses_enabled=true",
+	"hapi.fhir.validation.responses_async=true",
+	"hapi.fhir.validation.responses_sample_rate=1.0"
+})
+class AsyncResponseValidationTest {
+
+	@LocalServerPort
+	private int port;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Test
+	void testSampledResponsesAreValidatedInBackground() {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		IGenericClient client = ctx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+
+		// The validator reports profiles it can't resolve
+		Patient patient = new Patient();
+		patient.getMeta().addProfile("http://example.org/StructureDefinition/unknown-patient");
+		patient.addName().setFamily("Sampled");
+		IIdType id = client.create().resource(patient).execute().getId().toUnqualifiedVersionless();
+
+		Patient read = client.read().resource(Patient.class).withId(id).execute();
+		assertEquals("Sampled", read.getNameFirstRep().getFamily());
+
+		await().atMost(1, TimeUnit.MINUTES).until(() -> meterRegistry.get(AsyncResponseValidatingInterceptor.METRIC_RESPONSES).tag("result", "validated").counter().count() >= 1);
+		await().atMost(1, TimeUnit.MINUTES).until(() -> meterRegistry.get(AsyncResponseValidatingInterceptor.METRIC_FINDINGS).counters().stream().mapToDouble(Counter::count).sum() > 0);
+	}
+}
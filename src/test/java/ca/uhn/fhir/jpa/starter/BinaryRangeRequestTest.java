@@ -0,0 +1,198 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import org.hl7.fhir.r4.model.Binary;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-binary-range",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.binary_storage_enabled=true",
+	"hapi.fhir.binary_storage_backend=FILESYSTEM",
+	"hapi.fhir.binary_range_requests_enabled=true",
+	"hapi.fhir.binary_transfer_buffer_size=65536",
+	"hapi.fhir.binary_transfer_buffers=4"
+})
+class BinaryRangeRequestTest {
+
+	private static final int SIZE = 200_000;
+
+	@LocalServerPort
+	private int port;
+
+	@Autowired
+	private RestfulServer restfulServer;
+
+	private IGenericClient client;
+
+	@DynamicPropertySource
+	static void binaryStorageDirectory(DynamicPropertyRegistry theRegistry) throws IOException {
+		String directory = Files.createTempDirectory("binaries").toString();
+		theRegistry.add("hapi.fhir.binary_storage_directory", () -> directory);
+	}
+
+	@BeforeEach
+	void setUp() {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ctx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		client = ctx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+	}
+
+	@Test
+	void testRangesOfBinaryAreServed() throws Exception {
+		byte[] content = new byte[SIZE];
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) i;
+		}
+		Binary binary = new Binary();
+		binary.setId("range");
+		binary.setContentType("application/octet-stream");
+		binary.setData(content);
+		client.update().resource(binary).execute();
+
+		HttpResponse<byte[]> response = read("bytes=1000-1999");
+		assertEquals(206, response.statusCode());
+		assertEquals("bytes 1000-1999/" + SIZE, response.headers().firstValue("Content-Range").orElse(null));
+		assertArrayEquals(Arrays.copyOfRange(content, 1000, 2000), response.body());
+
+		response = read("bytes=-10");
+		assertEquals(206, response.statusCode());
+		assertArrayEquals(Arrays.copyOfRange(content, SIZE - 10, SIZE), response.body());
+
+		response = read("bytes=" + SIZE + "-");
+		assertEquals(416, response.statusCode());
+		assertEquals("bytes */" + SIZE, response.headers().firstValue("Content-Range").orElse(null));
+
+		response = read("bytes=0-99999999999999999999");
+		assertEquals(416, response.statusCode());
+
+		response = read(null);
+		assertEquals(200, response.statusCode());
+		assertEquals("bytes", response.headers().firstValue("Accept-Ranges").orElse(null));
+		assertArrayEquals(content, response.body());
+	}
+
+	@Test
+	void testStreamingUsesOneBufferWhateverTheSize() throws Exception {
+		long size = 32L * 1024 * 1024;
+		Binary binary = new Binary();
+		binary.setId("large");
+		binary.setContentType("application/octet-stream");
+		client.update().resource(binary).execute();
+		HttpRequest write = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/fhir/Binary/large/$binary-access-write?path=Binary"))
+			.header("Content-Type", "application/octet-stream")
+			.POST(HttpRequest.BodyPublishers.fromPublisher(HttpRequest.BodyPublishers.ofInputStream(() -> new GeneratedInputStream(size)), size))
+			.build();
+		assertEquals(200, HttpClient.newHttpClient().send(write, HttpResponse.BodyHandlers.discarding()).statusCode());
+
+		AllocationRecorder recorder = new AllocationRecorder();
+		restfulServer.registerInterceptor(recorder);
+		try {
+			HttpRequest read = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/fhir/Binary/large/$binary-access-read?path=Binary")).GET().build();
+			HttpResponse<Void> response = HttpClient.newHttpClient().send(read, HttpResponse.BodyHandlers.discarding());
+			assertEquals(200, response.statusCode());
+			assertEquals(size, response.headers().firstValueAsLong("Content-Length").orElse(-1));
+		} finally {
+			restfulServer.unregisterInterceptor(recorder);
+		}
+
+		long allocated = recorder.myAllocated.get();
+		assertTrue(allocated >= 0, "The request wasn't recorded");
+		assertTrue(allocated < 4 * 1024 * 1024, "Serving " + size + " bytes allocated " + allocated + " bytes");
+	}
+
+	private HttpResponse<byte[]> read(String theRange) throws Exception {
+		HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/fhir/Binary/range/$binary-access-read?path=Binary")).GET();
+		if (theRange != null) {
+			request.header("Range", theRange);
+		}
+		return HttpClient.newHttpClient().send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+	}
+
+	/**
+	 * Records the bytes allocated by the server thread processing a request, from the start of its processing
+	 * until it completes, including when an interceptor served it.
+	 */
+	@Interceptor
+	public static class AllocationRecorder {
+
+		private final com.sun.management.ThreadMXBean myThreads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		private final ThreadLocal<Long> myAllocatedBefore = new ThreadLocal<>();
+		private final AtomicLong myAllocated = new AtomicLong(-1);
+
+		@Hook(Pointcut.SERVER_INCOMING_REQUEST_PRE_PROCESSED)
+		public boolean start(HttpServletRequest theServletRequest) {
+			myAllocatedBefore.set(myThreads.getThreadAllocatedBytes(Thread.currentThread().getId()));
+			return true;
+		}
+
+		@Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+		public void complete(RequestDetails theRequestDetails) {
+			Long before = myAllocatedBefore.get();
+			myAllocatedBefore.remove();
+			if (before != null && theRequestDetails.getOperation() != null && theRequestDetails.getOperation().equals("$binary-access-read")) {
+				myAllocated.set(myThreads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before);
+			}
+		}
+	}
+
+	/**
+	 * Generates content without holding it in the heap.
+	 */
+	private static class GeneratedInputStream extends InputStream {
+
+		private final long mySize;
+		private long myPosition;
+
+		private GeneratedInputStream(long theSize) {
+			mySize = theSize;
+		}
+
+		@Override
+		public int read() {
+			return myPosition < mySize ? (int) (myPosition++ & 0xff) : -1;
+		}
+
+		@Override
+		public int read(byte[] theBuffer, int theOffset, int theLength) {
+			if (myPosition >= mySize) {
+				return -1;
+			}
+			int length = (int) Math.min(theLength, mySize - myPosition);
+			for (int i = 0; i < length; i++) {
+				theBuffer[theOffset + i] = (byte) (myPosition++ & 0xff);
+			}
+			return length;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.batch2.coordinator.JobDefinitionRegistry;
+import ca.uhn.fhir.batch2.jobs.imprt.BulkImportAppCtx;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.bulk.BulkIngestionConfig;
+import ca.uhn.fhir.jpa.starter.bulk.BulkIngestionConsumeFilesStep;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-bulk-ingestion",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.bulk_ingestion_enabled=true",
+	"hapi.fhir.bulk_ingestion_jdbc_batch_size=100"
+})
+class BulkIngestionTest {
+
+	@LocalServerPort
+	private int port;
+
+	@Autowired
+	private JobDefinitionRegistry jobDefinitionRegistry;
+
+	@Autowired
+	private BulkIngestionConsumeFilesStep consumeFilesStep;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Test
+	void testImportUsesBatchedJob() {
+		assertEquals(BulkIngestionConfig.JOB_DEFINITION_VERSION, jobDefinitionRegistry.getLatestJobDefinition(BulkIngestionConfig.JOB_BULK_INGESTION).orElseThrow().getJobDefinitionVersion());
+		// HAPI's own job is left as it is
+		assertEquals(1, jobDefinitionRegistry.getLatestJobDefinition(BulkImportAppCtx.JOB_BULK_IMPORT_PULL).orElseThrow().getJobDefinitionVersion());
+	}
+
+	@Test
+	void testChunkIsStored() {
+		List<IBaseResource> resources = new ArrayList<>();
+		for (int i = 0; i < 25; i++) {
+			Patient patient = new Patient();
+			patient.setId("Patient/bulk-" + i);
+			patient.addName().setFamily("Bulk");
+			resources.add(patient);
+			Observation observation = new Observation();
+			observation.setId("Observation/bulk-" + i);
+			observation.setStatus(Observation.ObservationStatus.FINAL);
+			observation.getCode().addCoding().setSystem("http://loinc.org").setCode("718-7");
+			observation.setSubject(new Reference("Patient/bulk-" + i));
+			resources.add(observation);
+		}
+		consumeFilesStep.storeResources(resources);
+
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		IGenericClient client = ctx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+		Bundle observations = client.search().forResource(Observation.class)
+			.where(Observation.SUBJECT.hasChainedProperty(Patient.FAMILY.matchesExactly().value("Bulk")))
+			.count(100)
+			.returnBundle(Bundle.class).execute();
+		assertEquals(25, observations.getEntry().size());
+
+		assertEquals(resources.size(), meterRegistry.get(BulkIngestionConsumeFilesStep.METRIC_RESOURCES).counter().count());
+		// Every resource has at least a resource row and a version row, besides its index rows
+		assertTrue(meterRegistry.get(BulkIngestionConsumeFilesStep.METRIC_ROWS).counter().count() > 2 * resources.size());
+	}
+}
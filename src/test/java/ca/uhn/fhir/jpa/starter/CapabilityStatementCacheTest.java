@@ -0,0 +1,43 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.rest.api.Constants;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-capability-statement-cache",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.capability_statement_cache_enabled=true"
+})
+class CapabilityStatementCacheTest {
+
+	@LocalServerPort
+	private int port;
+
+	@Test
+	void testRepeatedMetadataFetchIsNotModified() throws Exception {
+		HttpClient client = HttpClient.newHttpClient();
+		URI uri = URI.create("http://localhost:" + port + "/fhir/metadata?_format=json");
+
+		HttpResponse<String> first = client.send(HttpRequest.newBuilder(uri).GET().build(), HttpResponse.BodyHandlers.ofString());
+		assertEquals(200, first.statusCode());
+		assertTrue(first.body().contains("\"resourceType\":\"CapabilityStatement\"") || first.body().contains("\"resourceType\": \"CapabilityStatement\""));
+		String eTag = first.headers().firstValue(Constants.HEADER_ETAG).orElseThrow();
+
+		HttpResponse<String> second = client.send(HttpRequest.newBuilder(uri).GET().build(), HttpResponse.BodyHandlers.ofString());
+		assertEquals(eTag, second.headers().firstValue(Constants.HEADER_ETAG).orElseThrow());
+		assertEquals(first.body(), second.body());
+
+		HttpResponse<String> notModified = client.send(HttpRequest.newBuilder(uri).header(Constants.HEADER_IF_NONE_MATCH, eTag).GET().build(), HttpResponse.BodyHandlers.ofString());
+		assertEquals(304, notModified.statusCode());
+	}
+}
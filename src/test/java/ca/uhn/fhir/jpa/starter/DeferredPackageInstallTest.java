@@ -0,0 +1,124 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.batch2.api.IJobCoordinator;
+import ca.uhn.fhir.batch2.model.StatusEnum;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.ig.DeferredPackageInstallation;
+import ca.uhn.fhir.jpa.starter.ig.PackageInstallationGateInterceptor;
+import ca.uhn.fhir.jpa.starter.ig.ParallelPackageInstaller;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.availability.ApplicationAvailability;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.context.ApplicationEventPublisher;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-deferred-package-install",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.ig_install_deferred=true",
+	"hapi.fhir.ig_install_deferred_gates=READINESS,WRITES",
+	"hapi.fhir.ig_install_deferred_poll_millis=200",
+	"hapi.fhir.implementationguides.derived.name=example.derived",
+	"hapi.fhir.implementationguides.derived.version=0.1.0",
+	"hapi.fhir.implementationguides.derived.url=classpath:packages/example.derived-0.1.0.tgz",
+	"hapi.fhir.implementationguides.base.name=example.base",
+	"hapi.fhir.implementationguides.base.version=0.1.0",
+	"hapi.fhir.implementationguides.base.url=classpath:packages/example.base-0.1.0.tgz"
+})
+class DeferredPackageInstallTest {
+
+	@LocalServerPort
+	private int port;
+
+	@Autowired
+	private DeferredPackageInstallation deferredPackageInstallation;
+
+	@Autowired
+	private ParallelPackageInstaller parallelPackageInstaller;
+
+	@Autowired
+	private IJobCoordinator jobCoordinator;
+
+	@Autowired
+	private ApplicationEventPublisher eventPublisher;
+
+	@Autowired
+	private ApplicationAvailability applicationAvailability;
+
+	@Test
+	void testPackagesAreInstalledInTheBackground() {
+		// The job only completes once the Batch2 maintenance pass has seen all its chunks complete
+		await().atMost(Duration.ofMinutes(3)).until(deferredPackageInstallation::isComplete);
+
+		assertEquals(StatusEnum.COMPLETED, deferredPackageInstallation.getStatus().get("status"));
+		String jobId = (String) deferredPackageInstallation.getStatus().get("jobId");
+		assertEquals(StatusEnum.COMPLETED, jobCoordinator.getInstance(jobId).getStatus());
+		assertEquals(ReadinessState.ACCEPTING_TRAFFIC, applicationAvailability.getReadinessState());
+		// Read from the report of the job, whichever node installed the packages
+		assertTrue(((Map<?, ?>) deferredPackageInstallation.getStatus().get("packageMillis")).containsKey("example.derived#0.1.0"));
+
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		IGenericClient client = ctx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+		Bundle bundle = client.search().forResource(StructureDefinition.class).where(StructureDefinition.URL.matches().value("http://example.org/StructureDefinition/derived-patient")).returnBundle(Bundle.class).execute();
+		assertEquals(1, bundle.getEntry().size());
+
+		Patient patient = new Patient();
+		patient.addName().setFamily("Deferred");
+		assertTrue(client.create().resource(patient).execute().getCreated());
+	}
+
+	@Test
+	void testWritesWaitForTheInstallation() {
+		// Not started, so the installation never completes
+		DeferredPackageInstallation pending = new DeferredPackageInstallation(jobCoordinator, parallelPackageInstaller, eventPublisher, List.of(AppProperties.PackageInstallationGate.WRITES), 1000, null);
+		PackageInstallationGateInterceptor interceptor = new PackageInstallationGateInterceptor(pending, 5);
+
+		SystemRequestDetails read = new SystemRequestDetails();
+		read.setRestOperationType(RestOperationTypeEnum.READ);
+		assertTrue(interceptor.checkGates(read));
+
+		SystemRequestDetails create = new SystemRequestDetails();
+		create.setRestOperationType(RestOperationTypeEnum.CREATE);
+		UnclassifiedServerFailureException e = assertThrows(UnclassifiedServerFailureException.class, () -> interceptor.checkGates(create));
+		assertEquals(503, e.getStatusCode());
+		assertEquals(List.of("5"), e.getResponseHeaders().get("Retry-After"));
+
+		SystemRequestDetails writeOperation = new SystemRequestDetails();
+		writeOperation.setRestOperationType(RestOperationTypeEnum.EXTENDED_OPERATION_TYPE);
+		writeOperation.setRequestType(RequestTypeEnum.POST);
+		writeOperation.setOperation("$reindex");
+		assertThrows(UnclassifiedServerFailureException.class, () -> interceptor.checkGates(writeOperation));
+
+		SystemRequestDetails readOperation = new SystemRequestDetails();
+		readOperation.setRestOperationType(RestOperationTypeEnum.EXTENDED_OPERATION_TYPE);
+		readOperation.setRequestType(RequestTypeEnum.POST);
+		readOperation.setOperation("$expand");
+		assertTrue(interceptor.checkGates(readOperation));
+
+		SystemRequestDetails validate = new SystemRequestDetails();
+		validate.setRestOperationType(RestOperationTypeEnum.VALIDATE);
+		assertTrue(interceptor.checkGates(validate));
+		pending.destroy();
+	}
+}
@@ -0,0 +1,106 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.binary.api.IBinaryStorageSvc;
+import ca.uhn.fhir.jpa.binary.api.StoredDetails;
+import ca.uhn.fhir.jpa.starter.binstore.ContentAddressedBinaryStorageSvc;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.r4.model.IdType;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-filesystem-binary-storage",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.binary_storage_enabled=true",
+	"hapi.fhir.binary_storage_backend=FILESYSTEM",
+	"hapi.fhir.binary_storage_orphan_grace_seconds=2"
+})
+class FilesystemBinaryStorageTest {
+
+	private static Path ourDirectory;
+
+	@Autowired
+	private IBinaryStorageSvc binaryStorageSvc;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@DynamicPropertySource
+	static void binaryStorageDirectory(DynamicPropertyRegistry theRegistry) throws IOException {
+		ourDirectory = Files.createTempDirectory("binaries");
+		theRegistry.add("hapi.fhir.binary_storage_directory", ourDirectory::toString);
+	}
+
+	@Test
+	void testSameContentIsStoredOnce() throws IOException {
+		assertTrue(binaryStorageSvc instanceof ContentAddressedBinaryStorageSvc);
+		byte[] content = "%PDF-1.4 the same attachment".getBytes(StandardCharsets.UTF_8);
+
+		StoredDetails first = binaryStorageSvc.storeBlob(new IdType("Binary/a"), null, "application/pdf", new ByteArrayInputStream(content));
+		StoredDetails second = binaryStorageSvc.storeBlob(new IdType("DocumentReference/b"), null, "application/pdf", new ByteArrayInputStream(content));
+		assertEquals(first.getHash(), second.getHash());
+		assertEquals(content.length, first.getBytes());
+		assertEquals(1, countContents());
+		assertEquals(1.0, meterRegistry.get(ContentAddressedBinaryStorageSvc.METRIC_DEDUPLICATED).counter().count());
+
+		StoredDetails details = binaryStorageSvc.fetchBlobDetails(new IdType("Binary/a"), first.getBlobId());
+		assertEquals("application/pdf", details.getContentType());
+		ByteArrayOutputStream written = new ByteArrayOutputStream();
+		assertTrue(binaryStorageSvc.writeBlob(new IdType("Binary/a"), first.getBlobId(), written));
+		assertArrayEquals(content, written.toByteArray());
+
+		// The content is kept as long as a binary refers to it
+		binaryStorageSvc.expungeBlob(new IdType("Binary/a"), first.getBlobId());
+		assertNull(binaryStorageSvc.fetchBlobDetails(new IdType("Binary/a"), first.getBlobId()));
+		assertArrayEquals(content, binaryStorageSvc.fetchBlob(new IdType("DocumentReference/b"), second.getBlobId()));
+		binaryStorageSvc.expungeBlob(new IdType("DocumentReference/b"), second.getBlobId());
+		assertFalse(binaryStorageSvc.writeBlob(new IdType("DocumentReference/b"), second.getBlobId(), new ByteArrayOutputStream()));
+
+		// The content is only swept once it has had no reference for the grace period
+		assertEquals(1, countContents());
+		await().atMost(1, TimeUnit.MINUTES).until(() -> countContents() == 0);
+	}
+
+	@Test
+	void testOrphanedContentReferredToAgainIsKept() throws IOException, InterruptedException {
+		ContentAddressedBinaryStorageSvc svc = (ContentAddressedBinaryStorageSvc) binaryStorageSvc;
+		byte[] content = "%PDF-1.4 stored again".getBytes(StandardCharsets.UTF_8);
+
+		StoredDetails first = svc.storeBlob(new IdType("Binary/c"), null, "application/pdf", new ByteArrayInputStream(content));
+		svc.expungeBlob(new IdType("Binary/c"), first.getBlobId());
+		StoredDetails second = svc.storeBlob(new IdType("Binary/d"), null, "application/pdf", new ByteArrayInputStream(content));
+
+		Thread.sleep(2500);
+		svc.sweepOrphans();
+		assertArrayEquals(content, svc.fetchBlob(new IdType("Binary/d"), second.getBlobId()));
+	}
+
+	private long countContents() throws IOException {
+		Path contents = ourDirectory.resolve("content");
+		if (!Files.isDirectory(contents)) {
+			return 0;
+		}
+		try (Stream<Path> files = Files.walk(contents)) {
+			return files.filter(Files::isRegularFile).count();
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-keyset-paging",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.search_keyset_paging_enabled=true"
+})
+class KeysetPagingTest {
+
+	@LocalServerPort
+	private int port;
+
+	private IGenericClient client;
+
+	@BeforeEach
+	void setUp() {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ctx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		client = ctx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+	}
+
+	@Test
+	void testPagesAreLinkedWithCursors() {
+		for (int i = 0; i < 25; i++) {
+			Patient patient = new Patient();
+			patient.addName().setFamily("Keyset").addGiven("P" + i);
+			client.create().resource(patient).execute();
+		}
+
+		Bundle first = client.search().forResource(Patient.class).where(Patient.FAMILY.matches().value("Keyset")).count(10).returnBundle(Bundle.class).execute();
+		Bundle second = client.loadPage().next(first).execute();
+		Bundle third = client.loadPage().next(second).execute();
+		Bundle secondAgain = client.loadPage().previous(third).execute();
+
+		assertTrue(second.getLink(Bundle.LINK_NEXT).getUrl().contains("_pageId="));
+		assertEquals(10, second.getEntry().size());
+		assertEquals(5, third.getEntry().size());
+		assertNull(third.getLink(Bundle.LINK_NEXT));
+		assertEquals(ids(second), ids(secondAgain));
+
+		Set<String> all = new HashSet<>(ids(first));
+		all.addAll(ids(second));
+		all.addAll(ids(third));
+		assertEquals(25, all.size());
+	}
+
+	private static List<String> ids(Bundle theBundle) {
+		return theBundle.getEntry().stream().map(e -> e.getResource().getIdElement().toUnqualifiedVersionless().getValue()).collect(Collectors.toList());
+	}
+}
@@ -0,0 +1,90 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-machine-client-formatting",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.default_pretty_print=true",
+	"hapi.fhir.machine_client_formatting_enabled=true",
+	"hapi.fhir.capability_statement_cache_enabled=true"
+})
+class MachineClientFormattingTest {
+
+	@LocalServerPort
+	private int port;
+
+	private String patientId;
+
+	@BeforeEach
+	void setUp() {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ctx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		IGenericClient client = ctx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+		Patient patient = new Patient();
+		patient.addName().setFamily("Formatting").addGiven("Machine");
+		patientId = client.create().resource(patient).execute().getId().getIdPart();
+	}
+
+	@Test
+	void testMachineClientsGetCompactResponses() throws Exception {
+		String body = get("Patient/" + patientId, "application/fhir+json");
+		assertTrue(body.startsWith("{\"resourceType\":\"Patient\""), body);
+		assertFalse(body.contains("\n"));
+	}
+
+	@Test
+	void testBundleLinksAreLeftAlone() throws Exception {
+		String body = get("Patient?family=Formatting", "application/fhir+json");
+		assertFalse(body.contains("\n"));
+		assertFalse(body.contains("_pretty"), body);
+	}
+
+	@Test
+	void testPrettyPrintingCanBeAskedFor() throws Exception {
+		assertTrue(get("Patient/" + patientId + "?_pretty=true", "application/fhir+json").contains("\n"));
+		assertTrue(get("Patient/" + patientId, "application/fhir+json; pretty=true").contains("\n"));
+	}
+
+	@Test
+	void testCachedCapabilityStatementFollowsTheClient() throws Exception {
+		String compact = get("metadata", "application/fhir+json");
+		assertTrue(compact.startsWith("{\"resourceType\":\"CapabilityStatement\""), compact);
+		assertFalse(compact.contains("\n"));
+
+		// Served from a separate cache entry
+		assertTrue(get("metadata", "application/fhir+json; pretty=true").contains("\n"));
+		assertFalse(get("metadata", "application/fhir+json").contains("\n"));
+	}
+
+	@Test
+	void testBrowsersStillGetTheHighlighter() throws Exception {
+		String body = get("Patient/" + patientId, "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8");
+		assertTrue(body.contains("<html"), body);
+	}
+
+	private String get(String theUrl, String theAccept) throws Exception {
+		HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/fhir/" + theUrl))
+			.header("Accept", theAccept)
+			.header("User-Agent", "Mozilla/5.0")
+			.GET()
+			.build();
+		return HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString()).body();
+	}
+}
@@ -0,0 +1,103 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationInterceptor;
+import ca.uhn.fhir.rest.server.interceptor.auth.PolicyEnum;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-ndjson",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.default_page_size=7",
+	"hapi.fhir.search_ndjson_streaming_enabled=true"
+})
+class NdjsonSearchStreamingTest {
+
+	@LocalServerPort
+	private int port;
+
+	@Autowired
+	private RestfulServer restfulServer;
+
+	private FhirContext ctx;
+
+	private IGenericClient client;
+
+	@BeforeEach
+	void setUp() {
+		ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ctx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		client = ctx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+	}
+
+	@Test
+	void testSearchIsStreamedAsNdjson() throws Exception {
+		createPatients("NdjsonAll", 30);
+
+		HttpResponse<String> response = get("Patient?family=NdjsonAll&_sort=given&_format=ndjson");
+
+		assertEquals(200, response.statusCode());
+		assertTrue(response.headers().firstValue(Constants.HEADER_CONTENT_TYPE).orElse("").startsWith(Constants.CT_FHIR_NDJSON));
+		List<Patient> patients = response.body().lines().map(l -> ctx.newJsonParser().parseResource(Patient.class, l)).collect(Collectors.toList());
+		assertEquals(30, patients.size());
+		assertEquals("P0", patients.get(0).getNameFirstRep().getGivenAsSingleString());
+	}
+
+	@Test
+	void testCountCapsStreamedResults() throws Exception {
+		createPatients("NdjsonCount", 30);
+
+		HttpResponse<String> response = get("Patient?family=NdjsonCount&_count=10&_format=" + Constants.CT_FHIR_NDJSON.replace("+", "%2B"));
+
+		assertEquals(10, response.body().lines().count());
+	}
+
+	@Test
+	void testNothingIsStreamedPastAnAuthorizationInterceptor() throws Exception {
+		createPatients("NdjsonDenied", 3);
+		AuthorizationInterceptor denyAll = new AuthorizationInterceptor(PolicyEnum.DENY);
+		restfulServer.registerInterceptor(denyAll);
+		try {
+			HttpResponse<String> response = get("Patient?family=NdjsonDenied&_format=ndjson");
+
+			assertEquals(403, response.statusCode());
+			assertFalse(response.body().contains("NdjsonDenied"), response.body());
+		} finally {
+			restfulServer.unregisterInterceptor(denyAll);
+		}
+	}
+
+	private void createPatients(String theFamily, int theCount) {
+		for (int i = 0; i < theCount; i++) {
+			Patient patient = new Patient();
+			patient.addName().setFamily(theFamily).addGiven("P" + i);
+			client.create().resource(patient).execute();
+		}
+	}
+
+	private HttpResponse<String> get(String theUrl) throws Exception {
+		HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/fhir/" + theUrl)).GET().build();
+		return HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
+	}
+}
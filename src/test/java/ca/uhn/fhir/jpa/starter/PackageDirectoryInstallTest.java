@@ -0,0 +1,73 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.ig.PackageDirectoryCache;
+import ca.uhn.fhir.jpa.starter.ig.ParallelPackageInstaller;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-package-directory",
+	"hapi.fhir.fhir_version=r4",
+	// Neither a URL nor the registry is reachable for these packages, they can only come from the package directory
+	"hapi.fhir.implementationguides.derived.name=example.derived",
+	"hapi.fhir.implementationguides.derived.version=0.1.0"
+})
+class PackageDirectoryInstallTest {
+
+	private static Path ourPackageDirectory;
+
+	@LocalServerPort
+	private int port;
+
+	@Autowired
+	private ParallelPackageInstaller parallelPackageInstaller;
+
+	@DynamicPropertySource
+	static void packageDirectory(DynamicPropertyRegistry theRegistry) throws IOException {
+		ourPackageDirectory = Files.createTempDirectory("packages");
+		for (String next : List.of("example.base-0.1.0.tgz", "example.derived-0.1.0.tgz")) {
+			try (InputStream contents = PackageDirectoryInstallTest.class.getResourceAsStream("/packages/" + next)) {
+				Files.copy(contents, ourPackageDirectory.resolve(next));
+			}
+		}
+		theRegistry.add("hapi.fhir.ig_package_directory", ourPackageDirectory::toString);
+	}
+
+	@Test
+	void testPackagesAreInstalledFromTheDirectory() throws IOException {
+		// The base package was found as a dependency of the derived package
+		assertTrue(parallelPackageInstaller.getPackageMillis().containsKey("example.base#0.1.0"));
+		assertTrue(parallelPackageInstaller.getPackageMillis().containsKey("example.derived#0.1.0"));
+
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		IGenericClient client = ctx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+		Bundle bundle = client.search().forResource(StructureDefinition.class).where(StructureDefinition.URL.matches().value("http://example.org/StructureDefinition/derived-patient")).returnBundle(Bundle.class).execute();
+		assertEquals(1, bundle.getEntry().size());
+
+		PackageDirectoryCache directory = new PackageDirectoryCache(ourPackageDirectory);
+		PackageDirectoryCache.PackageManifest manifest = directory.readManifest(directory.find("example.derived", "0.1.0"));
+		assertEquals("0.1.0", manifest.version());
+		assertTrue(manifest.dependencies().contains("example.base#0.1.0"));
+		assertNull(directory.find("example.derived", "0.2.0"));
+	}
+}
@@ -0,0 +1,70 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.packages.PackageInstallationSpec;
+import ca.uhn.fhir.jpa.starter.ig.ParallelPackageInstaller;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-parallel-package-install",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.ig_install_threads=2",
+	"hapi.fhir.implementationguides.derived.name=example.derived",
+	"hapi.fhir.implementationguides.derived.version=0.1.0",
+	"hapi.fhir.implementationguides.derived.url=classpath:packages/example.derived-0.1.0.tgz",
+	"hapi.fhir.implementationguides.base.name=example.base",
+	"hapi.fhir.implementationguides.base.version=0.1.0",
+	"hapi.fhir.implementationguides.base.url=classpath:packages/example.base-0.1.0.tgz"
+})
+class ParallelPackageInstallTest {
+
+	@LocalServerPort
+	private int port;
+
+	@Autowired
+	private ParallelPackageInstaller parallelPackageInstaller;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Test
+	void testPackagesAreInstalledAfterTheirDependenciesOnce() {
+		assertTrue(parallelPackageInstaller.getPackageMillis().containsKey("example.base#0.1.0"));
+		assertTrue(parallelPackageInstaller.getPackageMillis().containsKey("example.derived#0.1.0"));
+		assertTrue(parallelPackageInstaller.getSkippedPackages().isEmpty());
+		assertEquals(1, meterRegistry.get(ParallelPackageInstaller.METRIC_INSTALL).tag("package", "example.derived#0.1.0").timer().count());
+
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		IGenericClient client = ctx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+
+		// The snapshot of the derived profile could only be generated once the base profile was installed
+		Bundle bundle = client.search().forResource(StructureDefinition.class).where(StructureDefinition.URL.matches().value("http://example.org/StructureDefinition/derived-patient")).returnBundle(Bundle.class).execute();
+		assertEquals(1, bundle.getEntry().size());
+		StructureDefinition derived = (StructureDefinition) bundle.getEntryFirstRep().getResource();
+		assertFalse(derived.getSnapshot().getElement().isEmpty());
+		assertTrue(derived.getSnapshot().getElement().stream().anyMatch(next -> next.getPath().equals("Patient.name") && next.getMin() == 1));
+
+		// Installing them again is a no-op
+		PackageInstallationSpec derivedSpec = new PackageInstallationSpec().setName("example.derived").setVersion("0.1.0").setPackageUrl("classpath:packages/example.derived-0.1.0.tgz").setFetchDependencies(true);
+		derivedSpec.setDependencyExcludes(List.of("hl7.fhir.r4.core"));
+		parallelPackageInstaller.install(List.of(derivedSpec, new PackageInstallationSpec().setName("example.base").setVersion("0.1.0").setPackageUrl("classpath:packages/example.base-0.1.0.tgz")));
+
+		assertTrue(parallelPackageInstaller.getSkippedPackages().contains("example.base#0.1.0"));
+		assertTrue(parallelPackageInstaller.getSkippedPackages().contains("example.derived#0.1.0"));
+	}
+}
@@ -0,0 +1,93 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-parallel-transaction",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.transaction_parallel_indexing_enabled=true",
+	"hapi.fhir.transaction_parallel_indexing_min_entries=5"
+})
+class ParallelTransactionIndexingTest {
+
+	@LocalServerPort
+	private int port;
+
+	private IGenericClient client;
+
+	@BeforeEach
+	void setUp() {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ctx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		client = ctx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+	}
+
+	@Test
+	void testIndependentEntriesAreIndexedAhead() {
+		String patientId = client.create().resource(new Patient().setActive(true)).execute().getId().toUnqualifiedVersionless().getValue();
+
+		Bundle transaction = new Bundle();
+		transaction.setType(Bundle.BundleType.TRANSACTION);
+		// The Patient doesn't depend on anything, the first Observation depends on the Patient's placeholder
+		Patient newPatient = new Patient();
+		newPatient.addIdentifier().setSystem("http://example.org/mrn").setValue("parallel-1");
+		transaction.addEntry().setFullUrl("urn:uuid:6f1a2b3c-0000-0000-0000-000000000001").setResource(newPatient)
+			.getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Patient");
+		transaction.addEntry().setResource(newObservation("urn:uuid:6f1a2b3c-0000-0000-0000-000000000001", 1))
+			.getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Observation");
+		for (int i = 0; i < 20; i++) {
+			transaction.addEntry().setResource(newObservation(patientId, i))
+				.getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Observation");
+		}
+		Bundle response = client.transaction().withBundle(transaction).execute();
+		assertEquals(22, response.getEntry().size());
+
+		Bundle allBySubject = client.search().forResource(Observation.class)
+			.where(Observation.SUBJECT.hasId(patientId))
+			.count(100)
+			.returnBundle(Bundle.class).execute();
+		assertEquals(20, allBySubject.getEntry().size());
+
+		Bundle byValue = client.search().forResource(Observation.class)
+			.where(Observation.SUBJECT.hasId(patientId))
+			.and(Observation.VALUE_QUANTITY.exactly().number(7).andNoUnits())
+			.returnBundle(Bundle.class).execute();
+		assertEquals(1, byValue.getEntry().size());
+
+		Bundle bySubject = client.search().forResource(Observation.class)
+			.where(Observation.SUBJECT.hasId(patientId))
+			.and(Observation.CODE.exactly().systemAndCode("http://loinc.org", "718-7"))
+			.and(Observation.VALUE_QUANTITY.greaterThanOrEquals().number(10).andNoUnits())
+			.count(100)
+			.returnBundle(Bundle.class).execute();
+		assertEquals(10, bySubject.getEntry().size());
+
+		Bundle byNewPatient = client.search().forResource(Observation.class)
+			.where(Observation.SUBJECT.hasChainedProperty(Patient.IDENTIFIER.exactly().systemAndCode("http://example.org/mrn", "parallel-1")))
+			.returnBundle(Bundle.class).execute();
+		assertEquals(1, byNewPatient.getEntry().size());
+	}
+
+	private static Observation newObservation(String theSubject, int theValue) {
+		Observation observation = new Observation();
+		observation.setStatus(Observation.ObservationStatus.FINAL);
+		observation.getCode().addCoding().setSystem("http://loinc.org").setCode("718-7");
+		observation.setSubject(new Reference(theSubject));
+		observation.setValue(new Quantity().setValue(theValue));
+		return observation;
+	}
+}
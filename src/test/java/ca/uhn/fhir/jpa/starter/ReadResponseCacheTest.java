@@ -0,0 +1,94 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.cache.ReadResponseCacheInterceptor;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-read-cache",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.read_cache_enabled=true"
+})
+class ReadResponseCacheTest {
+
+	@LocalServerPort
+	private int port;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	private IGenericClient client;
+
+	@BeforeEach
+	void setUp() {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ctx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		client = ctx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+	}
+
+	@Test
+	void testReadIsCachedAndInvalidatedByUpdate() {
+		Patient patient = new Patient();
+		patient.addName().setFamily("Cached");
+		IIdType id = client.create().resource(patient).execute().getId().toUnqualifiedVersionless();
+
+		Patient first = client.read().resource(Patient.class).withId(id).execute();
+		Patient second = client.read().resource(Patient.class).withId(id).execute();
+		assertEquals("1", second.getMeta().getVersionId());
+		assertEquals(first.getNameFirstRep().getFamily(), second.getNameFirstRep().getFamily());
+		assertEquals(1.0, hits());
+
+		second.getNameFirstRep().setFamily("Updated");
+		client.update().resource(second).execute();
+
+		Patient third = client.read().resource(Patient.class).withId(id).execute();
+		assertEquals("2", third.getMeta().getVersionId());
+		assertEquals("Updated", third.getNameFirstRep().getFamily());
+		assertEquals(1.0, hits());
+	}
+
+	@Test
+	void testResponsesAreNotSharedBetweenCredentials() throws Exception {
+		Patient patient = new Patient();
+		patient.addName().setFamily("Private");
+		IIdType id = client.create().resource(patient).execute().getId().toUnqualifiedVersionless();
+
+		double before = hits();
+		assertEquals(200, read(id, "Bearer alice").statusCode());
+		assertEquals(200, read(id, "Bearer alice").statusCode());
+		assertEquals(before + 1, hits());
+
+		assertEquals(200, read(id, "Bearer bob").statusCode());
+		assertEquals(before + 1, hits());
+	}
+
+	private HttpResponse<String> read(IIdType theId, String theAuthorization) throws Exception {
+		HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/fhir/" + theId.getValue()))
+			.header(Constants.HEADER_AUTHORIZATION, theAuthorization)
+			.GET()
+			.build();
+		return HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
+	}
+
+	private double hits() {
+		return meterRegistry.get("cache.gets").tag("cache", ReadResponseCacheInterceptor.CACHE_NAME).tag("result", "hit").functionCounter().count();
+	}
+}
@@ -0,0 +1,74 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.awaitility.Awaitility.await;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-repository-validation",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.enable_repository_validating_interceptor=true"
+})
+class RepositoryValidationRulesTest {
+
+	@LocalServerPort
+	private int port;
+
+	@Test
+	void testRulesFollowStoredProfiles() {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		IGenericClient client = ctx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+
+		// Without any stored profile, anything goes
+		client.create().resource(newObservation()).execute();
+
+		StructureDefinition profile = new StructureDefinition();
+		profile.setUrl("http://example.org/StructureDefinition/coded-observation");
+		profile.setName("CodedObservation");
+		profile.setStatus(Enumerations.PublicationStatus.ACTIVE);
+		profile.setFhirVersion(Enumerations.FHIRVersion._4_0_1);
+		profile.setKind(StructureDefinition.StructureDefinitionKind.RESOURCE);
+		profile.setAbstract(false);
+		profile.setType("Observation");
+		profile.setBaseDefinition("http://hl7.org/fhir/StructureDefinition/Observation");
+		profile.setDerivation(StructureDefinition.TypeDerivationRule.CONSTRAINT);
+		profile.getDifferential().addElement().setPath("Observation.code").setMin(1).setId("Observation.code");
+		IIdType profileId = client.create().resource(profile).execute().getId().toUnqualifiedVersionless();
+
+		// Once the profile is picked up, Observations have to declare it
+		await().atMost(1, TimeUnit.MINUTES).until(() -> isRejected(client));
+
+		// And once it is deleted, they don't anymore
+		client.delete().resourceById(profileId).execute();
+		await().atMost(1, TimeUnit.MINUTES).until(() -> !isRejected(client));
+	}
+
+	private static boolean isRejected(IGenericClient theClient) {
+		try {
+			theClient.create().resource(newObservation()).execute();
+			return false;
+		} catch (PreconditionFailedException e) {
+			return true;
+		}
+	}
+
+	private static Observation newObservation() {
+		Observation observation = new Observation();
+		observation.setStatus(Observation.ObservationStatus.FINAL);
+		observation.getCode().setText("Unprofiled");
+		return observation;
+	}
+}
@@ -0,0 +1,116 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.metrics.RequestMetricsInterceptor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.search.Search;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-request-metrics",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.request_metrics_enabled=true",
+	"hapi.fhir.read_cache_enabled=true"
+})
+class RequestMetricsTest {
+
+	@LocalServerPort
+	private int port;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	private IGenericClient client;
+
+	@BeforeEach
+	void setUp() {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		client = ctx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+	}
+
+	@Test
+	void testLatencyIsRecordedPerResourceTypeAndInteraction() {
+		Patient patient = new Patient();
+		patient.addName().setFamily("Measured");
+		IIdType id = client.create().resource(patient).execute().getId().toUnqualifiedVersionless();
+		client.read().resource(Patient.class).withId(id).execute();
+		client.search().forResource(Patient.class).returnBundle(Bundle.class).execute();
+		client.operation().onInstance(id).named("$meta").withNoParameters(Parameters.class).execute();
+
+		Timer create = requestTimer("Patient", "create");
+		assertTrue(create.count() >= 1);
+		assertTrue(create.takeSnapshot().histogramCounts().length > 0, "create latency has no histogram");
+		assertTrue(requestTimer("Patient", "read").count() >= 1);
+		assertTrue(requestTimer("Patient", "search-type").count() >= 1);
+		assertTrue(requestTimer("Patient", "$meta").count() >= 1);
+	}
+
+	@Test
+	void testStagesAreBrokenDown() {
+		Patient patient = new Patient();
+		patient.addName().setFamily("Staged");
+		client.create().resource(patient).execute();
+		client.search().forResource(Patient.class).returnBundle(Bundle.class).execute();
+
+		assertTrue(stageTimer("Patient", "create", "jdbc").totalTime(TimeUnit.NANOSECONDS) > 0);
+		assertTrue(stageTimer("Patient", "create", "parsing").totalTime(TimeUnit.NANOSECONDS) > 0);
+		assertTrue(stageTimer("Patient", "search-type", "jdbc").totalTime(TimeUnit.NANOSECONDS) > 0);
+		assertTrue(stageTimer("Patient", "search-type", "serialization").totalTime(TimeUnit.NANOSECONDS) > 0);
+		assertTrue(stageTimer("Patient", "search-type", "validation").count() >= 1);
+	}
+
+	@Test
+	void testRequestsAnsweredByInterceptorsAreRecorded() {
+		Patient patient = new Patient();
+		patient.addName().setFamily("Cached");
+		IIdType id = client.create().resource(patient).execute().getId().toUnqualifiedVersionless();
+		client.read().resource(Patient.class).withId(id).execute();
+		long before = requestTimer("Patient", "read").count();
+
+		// Served by the read cache
+		for (int i = 0; i < 5; i++) {
+			client.read().resource(Patient.class).withId(id).execute();
+		}
+
+		await().atMost(1, TimeUnit.MINUTES).until(() -> requestTimer("Patient", "read").count() >= before + 5);
+	}
+
+	/**
+	 * Requests are recorded once the response is written, which may be after the client has read it
+	 */
+	private Timer requestTimer(String theResourceType, String theInteraction) {
+		return awaitTimer(meterRegistry.find(RequestMetricsInterceptor.METRIC_REQUESTS)
+			.tag("resource_type", theResourceType)
+			.tag("interaction", theInteraction)
+			.tag("outcome", "SUCCESS"));
+	}
+
+	private Timer stageTimer(String theResourceType, String theInteraction, String theStage) {
+		return awaitTimer(meterRegistry.find(RequestMetricsInterceptor.METRIC_STAGES)
+			.tag("resource_type", theResourceType)
+			.tag("interaction", theInteraction)
+			.tag("stage", theStage));
+	}
+
+	private Timer awaitTimer(Search theSearch) {
+		await().atMost(1, TimeUnit.MINUTES).until(() -> theSearch.timer() != null && theSearch.timer().count() > 0);
+		return theSearch.timer();
+	}
+}
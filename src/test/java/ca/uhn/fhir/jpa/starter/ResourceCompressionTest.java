@@ -0,0 +1,113 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.storage.ResourceTextCompressor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Quantity;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-resource-compression",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.resource_compression_enabled=true"
+})
+class ResourceCompressionTest {
+
+	@LocalServerPort
+	private int port;
+
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	private IGenericClient client;
+
+	@BeforeEach
+	void setUp() {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ctx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		client = ctx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+	}
+
+	@Test
+	void testResourceTextIsStoredCompressed() {
+		IIdType id = client.create().resource(newObservation("8867-4", 72)).execute().getId().toUnqualifiedVersionless();
+		Observation updated = newObservation("8867-4", 75);
+		updated.setId(id);
+		client.update().resource(updated).execute();
+
+		List<byte[]> texts = jdbcTemplate.queryForList("SELECT RES_TEXT FROM HFJ_RES_VER WHERE RES_ID = ? ORDER BY RES_VER", byte[].class, Long.parseLong(id.getIdPart()));
+		assertEquals(2, texts.size());
+		for (byte[] text : texts) {
+			assertTrue(ResourceTextCompressor.isCompressed(text));
+		}
+
+		// Versions, searches and history are read through the compressed text
+		assertEquals(72, ((Quantity) client.vread().resource(Observation.class).withIdAndVersion(id.getIdPart(), "1").execute().getValue()).getValue().intValue());
+		assertEquals(75, ((Quantity) client.read().resource(Observation.class).withId(id).execute().getValue()).getValue().intValue());
+		Bundle found = client.search().forResource(Observation.class).where(Observation.CODE.exactly().code("8867-4")).returnBundle(Bundle.class).execute();
+		assertEquals(1, found.getEntry().size());
+		assertEquals(75, ((Quantity) ((Observation) found.getEntryFirstRep().getResource()).getValue()).getValue().intValue());
+		Bundle history = client.history().onInstance(id).returnBundle(Bundle.class).execute();
+		assertEquals(2, history.getEntry().size());
+	}
+
+	@Test
+	void testDictionaryCompressesBetterThanPlainDeflate() {
+		FhirContext ctx = FhirContext.forR4Cached();
+		byte[] text = ctx.newJsonParser().encodeResourceToString(newObservation("8310-5", 37)).getBytes(StandardCharsets.UTF_8);
+
+		ResourceTextCompressor withDictionaries = new ResourceTextCompressor(ctx, 6, true, null);
+		ResourceTextCompressor withoutDictionaries = new ResourceTextCompressor(ctx, 6, false, null);
+		byte[] compressed = withDictionaries.compress(text);
+
+		assertTrue(compressed.length < withoutDictionaries.compress(text).length);
+		assertArrayEquals(text, withDictionaries.decompress(compressed));
+		// Text compressed before the level was set to 0 is still read
+		assertArrayEquals(text, new ResourceTextCompressor(ctx, 0, true, null).decompress(compressed));
+	}
+
+	@Test
+	void testTextIsOnlyReadWithItsDictionary() throws IOException {
+		byte[] text = FhirContext.forR4Cached().newJsonParser().encodeResourceToString(newObservation("8310-5", 37)).getBytes(StandardCharsets.UTF_8);
+		Path directory = Files.createTempDirectory("dictionaries");
+		byte[] compressed = new ResourceTextCompressor(FhirContext.forR4Cached(), 6, true, directory).compress(text);
+
+		// The dictionaries derived from another version of the structure definitions differ
+		IllegalStateException e = assertThrows(IllegalStateException.class, () -> new ResourceTextCompressor(FhirContext.forR5Cached(), 6, true, null).decompress(compressed));
+		assertTrue(e.getMessage().contains("Observation dictionary"), e.getMessage());
+
+		// but the dictionary compressed with was saved
+		assertArrayEquals(text, new ResourceTextCompressor(FhirContext.forR5Cached(), 6, true, directory).decompress(compressed));
+	}
+
+	private static Observation newObservation(String theCode, int theValue) {
+		Observation observation = new Observation();
+		observation.setStatus(Observation.ObservationStatus.FINAL);
+		observation.getCategoryFirstRep().addCoding().setSystem("http://terminology.hl7.org/CodeSystem/observation-category").setCode("vital-signs").setDisplay("Vital Signs");
+		observation.getCode().addCoding().setSystem("http://loinc.org").setCode(theCode);
+		observation.getSubject().setReference("Patient/compressed");
+		observation.setValue(new Quantity().setValue(theValue).setUnit("/min").setSystem("http://unitsofmeasure.org").setCode("/min"));
+		return observation;
+	}
+}
@@ -0,0 +1,105 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.compression.ResponseCompressionFilter;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-response-compression",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.response_compression.enabled=true",
+	"hapi.fhir.response_compression.min_size=1024"
+})
+class ResponseCompressionTest {
+
+	@LocalServerPort
+	private int port;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	private FhirContext ctx;
+
+	private IGenericClient client;
+
+	@BeforeEach
+	void setUp() {
+		ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ctx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		client = ctx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+	}
+
+	@Test
+	void testLargeResponsesAreCompressedWithTheNegotiatedEncoding() throws Exception {
+		for (int i = 0; i < 20; i++) {
+			Patient patient = new Patient();
+			patient.addName().setFamily("Compressed").addGiven("P" + i);
+			client.create().resource(patient).execute();
+		}
+
+		HttpResponse<byte[]> gzipped = get("Patient?family=Compressed&_count=20", "deflate;q=0.5, gzip");
+		assertEquals("gzip", gzipped.headers().firstValue("Content-Encoding").orElse(null));
+		assertEquals(20, parse(new GZIPInputStream(new ByteArrayInputStream(gzipped.body()))).getEntry().size());
+
+		HttpResponse<byte[]> deflated = get("Patient?family=Compressed&_count=20", "deflate");
+		assertEquals("deflate", deflated.headers().firstValue("Content-Encoding").orElse(null));
+		assertEquals(20, parse(new InflaterInputStream(new ByteArrayInputStream(deflated.body()))).getEntry().size());
+
+		HttpResponse<byte[]> identity = get("Patient?family=Compressed&_count=20", "br");
+		assertFalse(identity.headers().firstValue("Content-Encoding").isPresent());
+		assertEquals(20, parse(new ByteArrayInputStream(identity.body())).getEntry().size());
+
+		assertTrue(meterRegistry.get(ResponseCompressionFilter.METRIC_BYTES_SAVED).tag("encoding", "gzip").counter().count() > 0);
+	}
+
+	@Test
+	void testSmallResponsesAreNotCompressed() throws Exception {
+		Patient patient = new Patient();
+		patient.setActive(true);
+		String id = client.create().resource(patient).execute().getId().getIdPart();
+
+		HttpResponse<byte[]> response = get("Patient/" + id, "gzip");
+		assertFalse(response.headers().firstValue("Content-Encoding").isPresent());
+		assertEquals(response.body().length, Integer.parseInt(response.headers().firstValue("Content-Length").orElse("-1")));
+		assertTrue(new String(response.body(), StandardCharsets.UTF_8).contains("\"active\""));
+	}
+
+	private Bundle parse(InputStream theInputStream) throws Exception {
+		try (InputStream inputStream = theInputStream) {
+			return ctx.newJsonParser().parseResource(Bundle.class, new String(inputStream.readAllBytes(), StandardCharsets.UTF_8));
+		}
+	}
+
+	private HttpResponse<byte[]> get(String theUrl, String theAcceptEncoding) throws Exception {
+		HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/fhir/" + theUrl))
+			.header("Accept", "application/fhir+json")
+			.header("Accept-Encoding", theAcceptEncoding)
+			.GET()
+			.build();
+		return HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofByteArray());
+	}
+}
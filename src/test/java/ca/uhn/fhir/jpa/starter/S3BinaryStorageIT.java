@@ -0,0 +1,86 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.binary.api.StoredDetails;
+import ca.uhn.fhir.jpa.starter.binstore.ContentAddressedBinaryStorageSvc;
+import ca.uhn.fhir.jpa.starter.binstore.S3BlobObjectStore;
+import org.hl7.fhir.r4.model.IdType;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.containers.wait.strategy.Wait;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3Configuration;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the S3 binary storage against MinIO as a local stand-in for S3.
+ */
+@Testcontainers
+class S3BinaryStorageIT {
+
+	private static final String BUCKET = "fhir-binaries";
+
+	@Container
+	private static final GenericContainer<?> ourMinio = new GenericContainer<>("minio/minio:RELEASE.2023-03-24T21-41-23Z")
+		.withCommand("server", "/data")
+		.withEnv("MINIO_ROOT_USER", "minioadmin")
+		.withEnv("MINIO_ROOT_PASSWORD", "minioadmin")
+		.withExposedPorts(9000)
+		.waitingFor(Wait.forHttp("/minio/health/live").forPort(9000));
+
+	private static S3Client ourClient;
+
+	@BeforeAll
+	static void createBucket() {
+		ourClient = S3Client.builder()
+			.endpointOverride(URI.create("http://" + ourMinio.getHost() + ":" + ourMinio.getMappedPort(9000)))
+			.region(Region.US_EAST_1)
+			.serviceConfiguration(S3Configuration.builder().pathStyleAccessEnabled(true).build())
+			.credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create("minioadmin", "minioadmin")))
+			.build();
+		ourClient.createBucket(b -> b.bucket(BUCKET));
+	}
+
+	@Test
+	void testSameContentIsStoredOnce() throws IOException {
+		ContentAddressedBinaryStorageSvc svc = new ContentAddressedBinaryStorageSvc(new S3BlobObjectStore(ourClient, BUCKET, "hapi"), Duration.ofSeconds(2));
+		byte[] content = "the same attachment".getBytes(StandardCharsets.UTF_8);
+
+		StoredDetails first = svc.storeBlob(new IdType("Binary/a"), null, "text/plain", new ByteArrayInputStream(content));
+		StoredDetails second = svc.storeBlob(new IdType("Binary/b"), null, "text/plain", new ByteArrayInputStream(content));
+		assertEquals(1, countContents());
+
+		ByteArrayOutputStream written = new ByteArrayOutputStream();
+		assertTrue(svc.writeBlob(new IdType("Binary/b"), second.getBlobId(), written));
+		assertArrayEquals(content, written.toByteArray());
+
+		svc.expungeBlob(new IdType("Binary/a"), first.getBlobId());
+		assertEquals(1, countContents());
+		svc.expungeBlob(new IdType("Binary/b"), second.getBlobId());
+		// Swept once it has had no reference for the grace period
+		assertEquals(1, countContents());
+		await().atMost(1, TimeUnit.MINUTES).until(() -> countContents() == 0);
+		svc.shutdown();
+	}
+
+	private static long countContents() {
+		return ourClient.listObjectsV2(b -> b.bucket(BUCKET).prefix("hapi/content/")).keyCount();
+	}
+}
@@ -0,0 +1,68 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.paging.SearchPageHotTier;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-hot-tier",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.search_page_hot_tier_size=1000"
+})
+class SearchPageHotTierTest {
+
+	@LocalServerPort
+	private int port;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	private IGenericClient client;
+
+	@BeforeEach
+	void setUp() {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ctx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		client = ctx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+	}
+
+	@Test
+	void testRepeatedPageIsServedFromHotTier() {
+		for (int i = 0; i < 25; i++) {
+			Patient patient = new Patient();
+			patient.addName().setFamily("HotTier").addGiven("P" + i);
+			client.create().resource(patient).execute();
+		}
+
+		Bundle first = client.search().forResource(Patient.class).where(Patient.FAMILY.matches().value("HotTier")).count(10).returnBundle(Bundle.class).execute();
+		Bundle second = client.loadPage().next(first).execute();
+		Bundle third = client.loadPage().next(second).execute();
+		Bundle secondAgain = client.loadPage().previous(third).execute();
+
+		assertEquals(5, third.getEntry().size());
+		assertEquals(ids(second), ids(secondAgain));
+
+		double hits = meterRegistry.get("cache.gets").tag("cache", SearchPageHotTier.CACHE_NAME_PAGES).tag("result", "hit").functionCounter().count();
+		assertTrue(hits >= 1, "Expected the repeated page to be a hot tier hit");
+	}
+
+	private static List<String> ids(Bundle theBundle) {
+		return theBundle.getEntry().stream().map(e -> e.getResource().getIdElement().toUnqualifiedVersionless().getValue()).collect(Collectors.toList());
+	}
+}
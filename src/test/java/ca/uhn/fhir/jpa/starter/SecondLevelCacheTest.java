@@ -0,0 +1,53 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.model.entity.ResourceHistoryTable;
+import ca.uhn.fhir.jpa.model.entity.ResourceTable;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-second-level-cache",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.second_level_cache_enabled=true",
+	"hapi.fhir.second_level_cache_entities[0]=ca.uhn.fhir.jpa.model.entity.ResourceTable",
+	"hapi.fhir.second_level_cache_entities[1]=ca.uhn.fhir.jpa.model.entity.ResourceHistoryTable"
+})
+class SecondLevelCacheTest {
+
+	@LocalServerPort
+	private int port;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Test
+	void testRepeatedReadsHitCache() {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		IGenericClient client = ctx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+
+		Patient patient = new Patient();
+		patient.addName().setFamily("Cached");
+		IIdType id = client.create().resource(patient).execute().getId().toUnqualifiedVersionless();
+
+		for (int i = 0; i < 5; i++) {
+			Patient read = client.read().resource(Patient.class).withId(id).execute();
+			assertEquals("Cached", read.getNameFirstRep().getFamily());
+		}
+
+		assertTrue(meterRegistry.get("cache.gets").tag("cache", ResourceTable.class.getName()).tag("result", "hit").functionCounter().count() > 0);
+		assertNotNull(meterRegistry.get("cache.size").tag("cache", ResourceHistoryTable.class.getName()).gauge());
+	}
+}
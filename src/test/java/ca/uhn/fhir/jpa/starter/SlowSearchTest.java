@@ -0,0 +1,68 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.search.SlowSearchRecorder;
+import ca.uhn.fhir.jpa.starter.search.SqlStatementCapture;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-slow-search",
+	"hapi.fhir.fhir_version=r4",
+	"management.endpoints.web.exposure.include=health,prometheus,slowsearches",
+	"hapi.fhir.slow_search.enabled=true",
+	// Every search counts as slow
+	"hapi.fhir.slow_search.threshold_millis=0",
+	"hapi.fhir.slow_search.explain=true"
+})
+class SlowSearchTest {
+
+	@LocalServerPort
+	private int port;
+
+	@Autowired
+	private SlowSearchRecorder slowSearchRecorder;
+
+	@Test
+	void testSlowSearchesAreRecordedWithTheirSqlAndPlans() throws Exception {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		IGenericClient client = ctx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+
+		Patient patient = new Patient();
+		patient.addName().setFamily("Sluggish");
+		client.create().resource(patient).execute();
+		Bundle found = client.search().forResource(Patient.class).where(Patient.FAMILY.matches().value("Sluggish")).returnBundle(Bundle.class).execute();
+		assertEquals(1, found.getEntry().size());
+
+		await().atMost(1, TimeUnit.MINUTES).until(() -> slowSearchRecorder.getSlowSearches().stream().anyMatch(next -> next.getSearch().contains("family=Sluggish")));
+		SlowSearchRecorder.SlowSearch slowSearch = slowSearchRecorder.getSlowSearches().stream().filter(next -> next.getSearch().contains("family=Sluggish")).findFirst().orElseThrow();
+		assertFalse(slowSearch.getStatements().isEmpty());
+		assertTrue(slowSearch.getStatements().stream().anyMatch(next -> next.getSql().toUpperCase(Locale.ROOT).contains("HFJ_SPIDX_STRING")), "the string index wasn't queried");
+
+		await().atMost(1, TimeUnit.MINUTES).until(() -> slowSearch.getStatements().stream().map(SqlStatementCapture.CapturedStatement::getPlan).anyMatch(next -> next != null && !next.startsWith("Failed")));
+
+		HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/actuator/slowsearches")).GET().build();
+		HttpResponse<String> response = HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
+		assertEquals(200, response.statusCode());
+		assertTrue(response.body().contains("Sluggish"), response.body());
+	}
+}
@@ -0,0 +1,66 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.common.validation.ValidationResultCachingModule;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.common.hapi.validation.support.CachingValidationSupport;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-validation-cache",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.validation.requests_enabled=true",
+	"hapi.fhir.validation.cache_enabled=true"
+})
+class ValidationResultCacheTest {
+
+	@LocalServerPort
+	private int port;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Autowired
+	private CachingValidationSupport validationSupportChain;
+
+	@Test
+	void testRepeatedSubmissionsReuseOutcome() {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		IGenericClient client = ctx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+
+		Patient patient = new Patient();
+		patient.addName().setFamily("Validated");
+		client.create().resource(patient).execute();
+		client.create().resource(patient).execute();
+		assertEquals(1, hits());
+
+		// An invalid resource is rejected every time, with the same outcome
+		Observation observation = new Observation();
+		observation.getCode().setText("No status");
+		String first = assertThrows(UnprocessableEntityException.class, () -> client.create().resource(observation).execute()).getMessage();
+		String second = assertThrows(UnprocessableEntityException.class, () -> client.create().resource(observation).execute()).getMessage();
+		assertEquals(first, second);
+		assertEquals(2, hits());
+
+		// Invalidating the validation support chain drops the outcomes
+		validationSupportChain.invalidateCaches();
+		client.create().resource(patient).execute();
+		assertEquals(2, hits());
+	}
+
+	private double hits() {
+		return meterRegistry.get("cache.gets").tag("cache", ValidationResultCachingModule.CACHE_NAME).tag("result", "hit").functionCounter().count();
+	}
+}
@@ -0,0 +1,73 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.common.validation.ValidatorWarmup;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.availability.ApplicationAvailability;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-validator-warmup",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.validation.warmup_enabled=true",
+	"hapi.fhir.validation.warmup_threads=2"
+})
+class ValidatorWarmupTest {
+
+	private static final String PROFILE_URL = "http://example.org/StructureDefinition/named-patient";
+
+	@LocalServerPort
+	private int port;
+
+	@Autowired
+	private ValidatorWarmup validatorWarmup;
+
+	@Autowired
+	private ApplicationAvailability applicationAvailability;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Test
+	void testStoredProfilesAreWarmedUp() throws Exception {
+		// The warm-up ran before the application became ready
+		assertEquals(ReadinessState.ACCEPTING_TRAFFIC, applicationAvailability.getReadinessState());
+		assertEquals(1, meterRegistry.get(ValidatorWarmup.METRIC_WARMUP).timer().count());
+
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		IGenericClient client = ctx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+
+		// A profile with a differential only, the validator has to generate its snapshot
+		StructureDefinition profile = new StructureDefinition();
+		profile.setUrl(PROFILE_URL);
+		profile.setName("NamedPatient");
+		profile.setStatus(Enumerations.PublicationStatus.ACTIVE);
+		profile.setFhirVersion(Enumerations.FHIRVersion._4_0_1);
+		profile.setKind(StructureDefinition.StructureDefinitionKind.RESOURCE);
+		profile.setAbstract(false);
+		profile.setType("Patient");
+		profile.setBaseDefinition("http://hl7.org/fhir/StructureDefinition/Patient");
+		profile.setDerivation(StructureDefinition.TypeDerivationRule.CONSTRAINT);
+		profile.getDifferential().addElement().setPath("Patient.name").setMin(1).setId("Patient.name");
+		client.create().resource(profile).execute();
+
+		long profilesBefore = meterRegistry.get(ValidatorWarmup.METRIC_PROFILE).timer().count();
+		validatorWarmup.run(null);
+
+		assertTrue(validatorWarmup.getProfileMillis().containsKey(PROFILE_URL));
+		assertTrue(meterRegistry.get(ValidatorWarmup.METRIC_PROFILE).timer().count() > profilesBefore);
+		assertEquals(1, meterRegistry.get(ValidatorWarmup.METRIC_PROFILE).timers().size());
+	}
+}